@@ -32,19 +32,25 @@ import org.jasig.cas.authentication.principal.Service;
 import org.jasig.cas.authentication.principal.ShibbolethCompatiblePersistentIdGenerator;
 import org.jasig.cas.authentication.principal.SimplePrincipal;
 import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.ServiceUsageMetrics;
 import org.jasig.cas.services.ServicesManager;
 import org.jasig.cas.services.UnauthorizedProxyingException;
 import org.jasig.cas.services.UnauthorizedServiceException;
 import org.jasig.cas.services.UnauthorizedSsoServiceException;
 import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.InvalidTicketException;
+import org.jasig.cas.ticket.RegistryFullException;
 import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
 import org.jasig.cas.ticket.TicketCreationException;
 import org.jasig.cas.ticket.TicketException;
 import org.jasig.cas.ticket.TicketGrantingTicket;
 import org.jasig.cas.ticket.TicketGrantingTicketImpl;
 import org.jasig.cas.ticket.TicketValidationException;
 import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistryFullException;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.StatelessServiceTicketCodec;
 import org.jasig.cas.util.UniqueTicketIdGenerator;
 import org.jasig.cas.validation.Assertion;
 import org.jasig.cas.validation.ImmutableAssertionImpl;
@@ -83,6 +89,9 @@ import java.util.Map;
  * <li> <code>serviceTicketExpirationPolicy</code> - The expiration policy for
  * ServiceTickets.</li>
  * </ul>
+ * <p>
+ * Optionally, a <code>statelessServiceTicketCodec</code> issues self-contained service tickets, which are never
+ * stored, to registered services flagged to use them.
  *
  * @author William G. Thompson, Jr.
  * @author Scott Battaglia
@@ -137,6 +146,13 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
     @NotNull
     private PersistentIdGenerator persistentIdGenerator = new ShibbolethCompatiblePersistentIdGenerator();
 
+    /** Codec of service tickets for services using stateless service tickets, if enabled. */
+    private StatelessServiceTicketCodec statelessServiceTicketCodec;
+
+    /** Counters of the requests of each registered service. */
+    @NotNull
+    private ServiceUsageMetrics serviceUsageMetrics = new ServiceUsageMetrics();
+
     /**
      * Implementation of destoryTicketGrantingTicket expires the ticket provided
      * and removes it from the TicketRegistry.
@@ -190,23 +206,23 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
             throw new InvalidTicketException();
         }
 
-        synchronized (ticketGrantingTicket) {
-            if (ticketGrantingTicket.isExpired()) {
-                this.ticketRegistry.deleteTicket(ticketGrantingTicketId);
-                throw new InvalidTicketException();
-            }
+        if (ticketGrantingTicket.isExpired()) {
+            this.ticketRegistry.deleteTicket(ticketGrantingTicketId);
+            throw new InvalidTicketException();
         }
 
         final RegisteredService registeredService = this.servicesManager
             .findServiceBy(service);
 
         if (registeredService == null || !registeredService.isEnabled()) {
+            recordAccessDenied(registeredService, service);
             log.warn("ServiceManagement: Unauthorized Service Access. Service [" + service.getId() + "] not found in Service Registry.");
             throw new UnauthorizedServiceException();
         }
 
         if (!registeredService.isSsoEnabled() && credentials == null
             && ticketGrantingTicket.getCountOfUses() > 0) {
+            recordAccessDenied(registeredService, service);
             log.warn("ServiceManagement: Service Not Allowed to use SSO.  Service [" + service.getId() + "]");
             throw new UnauthorizedSsoServiceException();
         }
@@ -215,6 +231,7 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
         final List<Authentication> authns = ticketGrantingTicket.getChainedAuthentications();
         if(authns.size() > 1) {
             if (!registeredService.isAllowedToProxy()) {
+                recordAccessDenied(registeredService, service);
                 final String message = String.format("ServiceManagement: Service Attempted to Proxy, but is not allowed. Service: [%s] | Registered Service: [%s]", service.getId(), registeredService.toString());
                 log.warn(message);
                 throw new UnauthorizedProxyingException(message);
@@ -235,16 +252,34 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
             }
         }
 
-        // this code is a bit brittle by depending on the class name.  Future versions (i.e. CAS4 will know inherently how to identify themselves)
-        final UniqueTicketIdGenerator serviceTicketUniqueTicketIdGenerator = this.uniqueTicketIdGeneratorsForService
-            .get(service.getClass().getName());
+        final ServiceTicket serviceTicket;
+        final boolean stateless = isStatelessServiceTickets(registeredService);
 
-        final ServiceTicket serviceTicket = ticketGrantingTicket
-            .grantServiceTicket(serviceTicketUniqueTicketIdGenerator
-                .getNewTicketId(ServiceTicket.PREFIX), service,
-                this.serviceTicketExpirationPolicy, credentials != null);
+        if (stateless) {
+            // the ticket id carries everything needed to validate it, so the ticket itself is not stored
+            serviceTicket = ticketGrantingTicket.grantServiceTicket(
+                this.statelessServiceTicketCodec.encode(ticketGrantingTicket.getId(), service, credentials != null),
+                service, this.serviceTicketExpirationPolicy, credentials != null);
+        } else {
+            // this code is a bit brittle by depending on the class name.  Future versions (i.e. CAS4 will know inherently how to identify themselves)
+            final UniqueTicketIdGenerator serviceTicketUniqueTicketIdGenerator = this.uniqueTicketIdGeneratorsForService
+                .get(service.getClass().getName());
+
+            serviceTicket = ticketGrantingTicket
+                .grantServiceTicket(serviceTicketUniqueTicketIdGenerator
+                    .getNewTicketId(ServiceTicket.PREFIX), service,
+                    this.serviceTicketExpirationPolicy, credentials != null);
+        }
 
-        this.serviceTicketRegistry.addTicket(serviceTicket);
+        if (serviceTicket == null) {
+            // the ticket granting ticket expired after it was checked above
+            this.ticketRegistry.deleteTicket(ticketGrantingTicketId);
+            throw new InvalidTicketException();
+        }
+        if (!stateless) {
+            addTicket(this.serviceTicketRegistry, serviceTicket);
+        }
+        this.serviceUsageMetrics.record(registeredService, ServiceUsageMetrics.Event.SERVICE_TICKET_GRANTED);
 
         if (log.isInfoEnabled()) {
             final List<Authentication> authentications = serviceTicket.getGrantingTicket().getChainedAuthentications();
@@ -308,6 +343,7 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
 
             if (registeredService == null || !registeredService.isEnabled()
                 || !registeredService.isAllowedToProxy()) {
+                recordAccessDenied(registeredService, serviceTicket.getService());
                 log.warn("ServiceManagement: Service Attempted to Proxy, but is not allowed.  Service: [" + serviceTicket.getService().getId() + "]");
                 throw new UnauthorizedProxyingException();
             }
@@ -318,7 +354,9 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
                         .getNewTicketId(TicketGrantingTicket.PREFIX),
                     authentication, this.ticketGrantingTicketExpirationPolicy);
 
-            this.ticketRegistry.addTicket(ticketGrantingTicket);
+            addTicket(this.ticketRegistry, ticketGrantingTicket);
+            this.serviceUsageMetrics.record(
+                registeredService, ServiceUsageMetrics.Event.PROXY_GRANTING_TICKET_GRANTED);
 
             return ticketGrantingTicket.getId();
         } catch (final AuthenticationException e) {
@@ -340,79 +378,219 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
         Assert.notNull(serviceTicketId, "serviceTicketId cannot be null");
         Assert.notNull(service, "service cannot be null");
 
-        final ServiceTicket serviceTicket = (ServiceTicket) this.serviceTicketRegistry.getTicket(serviceTicketId, ServiceTicket.class);
-
         final RegisteredService registeredService = this.servicesManager.findServiceBy(service);
 
         if (registeredService == null || !registeredService.isEnabled()) {
+            recordAccessDenied(registeredService, service);
             log.warn("ServiceManagement: Service does not exist is not enabled, and thus not allowed to validate tickets.   Service: [" + service.getId() + "]");
             throw new UnauthorizedServiceException("Service not allowed to validate tickets.");
         }
 
+        try {
+            final Assertion assertion = validateServiceTicket(serviceTicketId, service, registeredService);
+            this.serviceUsageMetrics.record(registeredService, ServiceUsageMetrics.Event.VALIDATION_SUCCEEDED);
+            return assertion;
+        } catch (final TicketException e) {
+            this.serviceUsageMetrics.record(registeredService, ServiceUsageMetrics.Event.VALIDATION_FAILED);
+            throw e;
+        }
+    }
+
+    /**
+     * Validates a service ticket on behalf of an enabled registered service.
+     *
+     * @param serviceTicketId the id of the service ticket.
+     * @param service the service validating the ticket.
+     * @param registeredService the registered service matching the service.
+     * @return the assertion for the service.
+     * @throws TicketException if the ticket is not valid for the service.
+     */
+    private Assertion validateServiceTicket(final String serviceTicketId, final Service service,
+        final RegisteredService registeredService) throws TicketException {
+        if (isStatelessServiceTickets(registeredService)) {
+            final StatelessServiceTicketCodec.Claims claims = this.statelessServiceTicketCodec.decode(serviceTicketId);
+            // tickets issued before the service switched to stateless tickets are still in the registry
+            if (claims != null) {
+                return validateStatelessServiceTicket(serviceTicketId, claims, service, registeredService);
+            }
+        }
+
+        // ticket granting and proxy granting tickets share this prefix; they are never looked up, let alone
+        // consumed, here. Service tickets from other id generators, such as SAML artifacts, carry no ST prefix.
+        if (serviceTicketId.startsWith(TicketGrantingTicket.PREFIX + "-")) {
+            log.info("Ticket [" + serviceTicketId + "] is not a ServiceTicket.");
+            throw new InvalidTicketException();
+        }
+
+        // a single use ticket is removed from the registry in one atomic operation before it is used, and its
+        // detached copy validated; concurrent validations find nothing. Multi-use tickets are looked up instead.
+        final boolean consumed = isSingleUseServiceTickets();
+        final ServiceTicket serviceTicket;
+
+        if (consumed) {
+            final Ticket ticket = this.serviceTicketRegistry.consumeTicket(serviceTicketId);
+
+            if (ticket != null && !(ticket instanceof ServiceTicket)) {
+                this.serviceTicketRegistry.addTicket(ticket);
+                throw new ClassCastException("Ticket [" + serviceTicketId + "] is of type " + ticket.getClass()
+                    + " when we were expecting " + ServiceTicket.class);
+            }
+            serviceTicket = (ServiceTicket) ticket;
+        } else {
+            serviceTicket =
+                (ServiceTicket) this.serviceTicketRegistry.getTicket(serviceTicketId, ServiceTicket.class);
+        }
+
         if (serviceTicket == null) {
             log.info("ServiceTicket [" + serviceTicketId + "] does not exist.");
             throw new InvalidTicketException();
         }
 
-        try {
-            synchronized (serviceTicket) {
-                if (serviceTicket.isExpired()) {
-                    log.info("ServiceTicket [" + serviceTicketId + "] has expired.");
-                    throw new InvalidTicketException();
-                }
-
-                if (!serviceTicket.isValidFor(service)) {
-                    log.error("ServiceTicket [" + serviceTicketId + "] with service [" + serviceTicket.getService().getId() + " does not match supplied service [" + service + "]");
-                    throw new TicketValidationException(serviceTicket.getService());
-                }
+        if (serviceTicket.isExpired()) {
+            log.info("ServiceTicket [" + serviceTicketId + "] has expired.");
+            if (!consumed) {
+                this.serviceTicketRegistry.consumeTicket(serviceTicketId);
             }
+            throw new InvalidTicketException();
+        }
 
-            final List<Authentication> chainedAuthenticationsList = serviceTicket.getGrantingTicket().getChainedAuthentications();
-            final Authentication authentication = chainedAuthenticationsList.get(chainedAuthenticationsList.size() - 1);
-            final Principal principal = authentication.getPrincipal();
-           
-            final String principalId = determinePrincipalIdForRegisteredService(principal, registeredService, serviceTicket);
-            final Authentication authToUse;
+        final boolean valid = serviceTicket.isValidFor(service);
 
-            if (!registeredService.isIgnoreAttributes()) {
-                final Map<String, Object> attributes = new HashMap<String, Object>();
+        // the use that expired a multi-use ticket removes it, in one atomic operation; of concurrent validations of
+        // a copy of the ticket, only the one that removes it succeeds. Tickets with uses left stay in the registry.
+        if ((!consumed && serviceTicket.isExpired()
+                && this.serviceTicketRegistry.consumeTicket(serviceTicketId) == null)
+            || (!valid && service.matches(serviceTicket.getService()))) {
+            log.info("ServiceTicket [" + serviceTicketId + "] has already been used.");
+            throw new InvalidTicketException();
+        }
 
-                for (final String attribute : registeredService.getAllowedAttributes()) {
-                    final Object value = principal.getAttributes().get(attribute);
+        if (!valid) {
+            log.error("ServiceTicket [" + serviceTicketId + "] with service [" + serviceTicket.getService().getId() + " does not match supplied service [" + service + "]");
+            throw new TicketValidationException(serviceTicket.getService());
+        }
 
-                    if (value != null) {
-                        attributes.put(attribute, value);
-                    }
-                }
+        return buildAssertion(serviceTicket.getGrantingTicket().getChainedAuthentications(),
+            serviceTicket.getService(), serviceTicket.isFromNewLogin(), registeredService);
+    }
 
-                final Principal modifiedPrincipal = new SimplePrincipal(principalId, attributes);
-                final MutableAuthentication mutableAuthentication = new MutableAuthentication(
-                    modifiedPrincipal, authentication.getAuthenticatedDate());
-                mutableAuthentication.getAttributes().putAll(
-                    authentication.getAttributes());
-                mutableAuthentication.getAuthenticatedDate().setTime(
-                    authentication.getAuthenticatedDate().getTime());
-                authToUse = mutableAuthentication;
-            } else {
-                final Principal modifiedPrincipal = new SimplePrincipal(principalId, principal.getAttributes());
-                authToUse = new MutableAuthentication(modifiedPrincipal, authentication.getAuthenticatedDate());
-            }
-           
-            final List<Authentication> authentications = new ArrayList<Authentication>();
+    /**
+     * Validates a stateless service ticket, which only requires its granting ticket to be looked up.
+     *
+     * @param serviceTicketId the id of the service ticket.
+     * @param claims the contents of the service ticket.
+     * @param service the service validating the ticket.
+     * @param registeredService the registered service matching the service.
+     * @return the assertion for the service.
+     * @throws TicketException if the ticket is expired, used or not valid for the service.
+     */
+    private Assertion validateStatelessServiceTicket(final String serviceTicketId,
+        final StatelessServiceTicketCodec.Claims claims, final Service service,
+        final RegisteredService registeredService) throws TicketException {
+        if (this.statelessServiceTicketCodec.isExpired(claims)) {
+            log.info("ServiceTicket [" + serviceTicketId + "] has expired.");
+            throw new InvalidTicketException();
+        }
 
-            for (int i = 0; i < chainedAuthenticationsList.size() - 1; i++) {
-                authentications.add(serviceTicket.getGrantingTicket().getChainedAuthentications().get(i));
-            }
-            authentications.add(authToUse);
+        if (!this.statelessServiceTicketCodec.use(claims)) {
+            log.info("ServiceTicket [" + serviceTicketId + "] has already been used.");
+            throw new InvalidTicketException();
+        }
+
+        if (!claims.isValidFor(service)) {
+            log.error("ServiceTicket [" + serviceTicketId + "] was not issued for supplied service [" + service + "]");
+            throw new InvalidTicketException();
+        }
+
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) this.ticketRegistry.getTicket(
+            claims.getTicketGrantingTicketId(), TicketGrantingTicket.class);
+
+        if (ticketGrantingTicket == null || ticketGrantingTicket.isExpired()) {
+            log.info("TicketGrantingTicket of ServiceTicket [" + serviceTicketId + "] no longer exists.");
+            throw new InvalidTicketException();
+        }
+
+        return buildAssertion(ticketGrantingTicket.getChainedAuthentications(), service, claims.isFromNewLogin(),
+            registeredService);
+    }
 
-            return new ImmutableAssertionImpl(authentications, serviceTicket.getService(), serviceTicket.isFromNewLogin());
-        } finally {
-            if (serviceTicket.isExpired()) {
-                this.serviceTicketRegistry.deleteTicket(serviceTicketId);
+    /**
+     * Builds the assertion released to a service, with the principal id and attributes the service is entitled to.
+     *
+     * @param chainedAuthenticationsList the authentications of the granting ticket, the proxied ones first.
+     * @param service the service the ticket was issued for.
+     * @param fromNewLogin whether the ticket was issued on a new login.
+     * @param registeredService the registered service matching the service.
+     * @return the assertion for the service.
+     */
+    private Assertion buildAssertion(final List<Authentication> chainedAuthenticationsList, final Service service,
+        final boolean fromNewLogin, final RegisteredService registeredService) {
+        final Authentication authentication = chainedAuthenticationsList.get(chainedAuthenticationsList.size() - 1);
+        final Principal principal = authentication.getPrincipal();
+       
+        final String principalId = determinePrincipalIdForRegisteredService(principal, registeredService, service);
+        final Authentication authToUse;
+
+        if (!registeredService.isIgnoreAttributes()) {
+            final Map<String, Object> attributes = new HashMap<String, Object>();
+
+            for (final String attribute : registeredService.getAllowedAttributes()) {
+                final Object value = principal.getAttributes().get(attribute);
+
+                if (value != null) {
+                    attributes.put(attribute, value);
+                }
             }
+
+            final Principal modifiedPrincipal = new SimplePrincipal(principalId, attributes);
+            final MutableAuthentication mutableAuthentication = new MutableAuthentication(
+                modifiedPrincipal, authentication.getAuthenticatedDate());
+            mutableAuthentication.getAttributes().putAll(
+                authentication.getAttributes());
+            mutableAuthentication.getAuthenticatedDate().setTime(
+                authentication.getAuthenticatedDate().getTime());
+            authToUse = mutableAuthentication;
+        } else {
+            final Principal modifiedPrincipal = new SimplePrincipal(principalId, principal.getAttributes());
+            authToUse = new MutableAuthentication(modifiedPrincipal, authentication.getAuthenticatedDate());
+        }
+       
+        final List<Authentication> authentications = new ArrayList<Authentication>();
+
+        for (int i = 0; i < chainedAuthenticationsList.size() - 1; i++) {
+            authentications.add(chainedAuthenticationsList.get(i));
+        }
+        authentications.add(authToUse);
+
+        return new ImmutableAssertionImpl(authentications, service, fromNewLogin);
+    }
+
+    /**
+     * Counts a request that was denied, against the registered service or else the unregistered service URL.
+     *
+     * @param registeredService the registered service matching the service, or null.
+     * @param service the service that was denied.
+     */
+    private void recordAccessDenied(final RegisteredService registeredService, final Service service) {
+        if (registeredService == null) {
+            this.serviceUsageMetrics.recordUnregisteredService(service.getId());
+        } else {
+            this.serviceUsageMetrics.record(registeredService, ServiceUsageMetrics.Event.ACCESS_DENIED);
         }
     }
 
+    /**
+     * Service tickets are single use if their expiration policy allows them one use.
+     */
+    private boolean isSingleUseServiceTickets() {
+        return this.serviceTicketExpirationPolicy instanceof MultiTimeUseOrTimeoutExpirationPolicy
+            && ((MultiTimeUseOrTimeoutExpirationPolicy) this.serviceTicketExpirationPolicy).getNumberOfUses() == 1;
+    }
+
+    private boolean isStatelessServiceTickets(final RegisteredService registeredService) {
+        return this.statelessServiceTicketCodec != null && registeredService.isStatelessServiceTickets();
+    }
+
     /**
      * Determines the principal id to use for a {@link RegisteredService} using the following rules: 
      * 
@@ -427,17 +605,17 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
      * 
      * @param principal The principal object to be validated and constructed
      * @param registeredService Requesting service for which a principal is being validated. 
-     * @param serviceTicket An instance of the service ticket used for validation
+     * @param service The service the ticket was issued for
      * 
      * @return The principal id to use for the requesting registered service
      */
     private String determinePrincipalIdForRegisteredService(final Principal principal, final RegisteredService registeredService, 
-                                                            final ServiceTicket serviceTicket) {
+                                                            final Service service) {
         String principalId = null;
         final String serviceUsernameAttribute = registeredService.getUsernameAttribute();
 
         if (registeredService.isAnonymousAccess()) {
-            principalId = this.persistentIdGenerator.generate(principal, serviceTicket.getService());
+            principalId = this.persistentIdGenerator.generate(principal, service);
         } else if (StringUtils.isBlank(serviceUsernameAttribute)) {
             principalId = principal.getId();
         } else {
@@ -481,13 +659,29 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
                     .getNewTicketId(TicketGrantingTicket.PREFIX),
                 authentication, this.ticketGrantingTicketExpirationPolicy);
 
-            this.ticketRegistry.addTicket(ticketGrantingTicket);
+            addTicket(this.ticketRegistry, ticketGrantingTicket);
             return ticketGrantingTicket.getId();
         } catch (final AuthenticationException e) {
             throw new TicketCreationException(e);
         }
     }
 
+    /**
+     * Adds a ticket to a registry, reporting a full registry as a failure to create the ticket.
+     *
+     * @param registry the registry to add the ticket to.
+     * @param ticket the ticket to add.
+     * @throws RegistryFullException if the registry has no room for the ticket.
+     */
+    private void addTicket(final TicketRegistry registry, final Ticket ticket) throws RegistryFullException {
+        try {
+            registry.addTicket(ticket);
+        } catch (final TicketRegistryFullException e) {
+            log.warn("Ticket [{}] not created: {}", ticket.getId(), e.getMessage());
+            throw new RegistryFullException();
+        }
+    }
+
     /**
      * Method to set the TicketRegistry.
      *
@@ -560,4 +754,19 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
         final PersistentIdGenerator persistentIdGenerator) {
         this.persistentIdGenerator = persistentIdGenerator;
     }
+
+    /**
+     * @param statelessServiceTicketCodec the codec of stateless service tickets, enabling them for registered
+     * services flagged to use them.
+     */
+    public void setStatelessServiceTicketCodec(final StatelessServiceTicketCodec statelessServiceTicketCodec) {
+        this.statelessServiceTicketCodec = statelessServiceTicketCodec;
+    }
+
+    /**
+     * @param serviceUsageMetrics the counters of the requests of each registered service.
+     */
+    public void setServiceUsageMetrics(final ServiceUsageMetrics serviceUsageMetrics) {
+        this.serviceUsageMetrics = serviceUsageMetrics;
+    }
 }
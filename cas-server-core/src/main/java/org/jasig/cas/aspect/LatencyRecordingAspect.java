@@ -0,0 +1,111 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.aspect;
+
+import javax.validation.constraints.NotNull;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.jasig.cas.monitor.LatencyMetrics;
+import org.jasig.cas.services.RegisteredService;
+import org.perf4j.aop.Profiled;
+
+/**
+ * Records the latency of profiled operations and ticket registry operations in a {@link LatencyMetrics} registry,
+ * in place of the perf4j timing aspect which formats a log message per call.
+ * <p>
+ * Methods annotated with {@link Profiled} are recorded under their tag. If such an operation looks up the
+ * {@link RegisteredService} for its service, its latency is also recorded under the name of that registered service.
+ * </p>
+ * <p>
+ * Only the bean named <code>ticketRegistry</code> is advised for ticket registry operations, so that the registries
+ * it decorates are neither proxied nor counted again. Authentication handlers are not advised; the authentication
+ * manager records their latency itself.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+@Aspect
+public final class LatencyRecordingAspect {
+
+    /** Name of the registered service looked up by the operation in progress on the current thread, if any. */
+    private static final ThreadLocal<String[]> CURRENT_SERVICE = new ThreadLocal<String[]>() {
+        @Override
+        protected String[] initialValue() {
+            return new String[1];
+        }
+    };
+
+    @NotNull
+    private final LatencyMetrics latencyMetrics;
+
+
+    /**
+     * Creates a new aspect.
+     *
+     * @param latencyMetrics Registry in which latencies are recorded.
+     */
+    public LatencyRecordingAspect(final LatencyMetrics latencyMetrics) {
+        this.latencyMetrics = latencyMetrics;
+    }
+
+
+    @Around("execution(* *(..)) && @annotation(profiled)")
+    public Object recordOperation(final ProceedingJoinPoint proceedingJoinPoint, final Profiled profiled)
+            throws Throwable {
+        final String[] service = CURRENT_SERVICE.get();
+        final String outer = service[0];
+        service[0] = null;
+        final long start = System.nanoTime();
+        try {
+            return proceedingJoinPoint.proceed();
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            this.latencyMetrics.record(LatencyMetrics.OPERATION, profiled.tag(), elapsed);
+            if (service[0] != null) {
+                this.latencyMetrics.record(LatencyMetrics.REGISTERED_SERVICE, service[0], elapsed);
+            }
+            service[0] = outer;
+        }
+    }
+
+    @AfterReturning(
+            pointcut = "execution(* org.jasig.cas.services.ServicesManager.findServiceBy("
+                    + "org.jasig.cas.authentication.principal.Service))",
+            returning = "registeredService")
+    public void captureRegisteredService(final RegisteredService registeredService) {
+        if (registeredService != null) {
+            CURRENT_SERVICE.get()[0] = registeredService.getName() != null
+                    ? registeredService.getName() : String.valueOf(registeredService.getId());
+        }
+    }
+
+    @Around("execution(* org.jasig.cas.ticket.registry.TicketRegistry.*(..)) && bean(ticketRegistry)")
+    public Object recordTicketRegistry(final ProceedingJoinPoint proceedingJoinPoint) throws Throwable {
+        final long start = System.nanoTime();
+        try {
+            return proceedingJoinPoint.proceed();
+        } finally {
+            this.latencyMetrics.record(LatencyMetrics.TICKET_REGISTRY,
+                    proceedingJoinPoint.getSignature().getName(), System.nanoTime() - start);
+        }
+    }
+}
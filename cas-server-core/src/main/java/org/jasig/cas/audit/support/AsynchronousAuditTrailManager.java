@@ -0,0 +1,391 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.audit.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.github.inspektr.audit.AuditActionContext;
+import com.github.inspektr.audit.AuditTrailManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Audit trail manager recording audit records in the background, so that audited operations do not wait for them
+ * to be written.
+ * <p>
+ * Records are placed in a bounded, lock-free ring buffer and taken out by a single writer thread, which hands them
+ * to each {@link AuditRecordSink} in batches: once a batch is full, or once its first record has waited for the flush
+ * interval. What happens to a record that finds the buffer full depends on the {@link OverflowPolicy}.
+ * </p>
+ * <p>
+ * Counters of recorded, written, dropped and lost records, the number of pending records and the delay between an
+ * audited action and the writing of its record are exposed for monitoring. Example configuration:
+ * </p>
+ * <pre>
+ * &lt;bean id="auditTrailManager" class="org.jasig.cas.audit.support.AsynchronousAuditTrailManager"
+ *     p:overflowPolicy="SAMPLE"&gt;
+ *   &lt;constructor-arg&gt;
+ *     &lt;list&gt;
+ *       &lt;bean class="org.jasig.cas.audit.support.JdbcAuditRecordSink" c:dataSource-ref="dataSource" /&gt;
+ *     &lt;/list&gt;
+ *   &lt;/constructor-arg&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * @since 3.5.2
+ */
+public final class AsynchronousAuditTrailManager implements AuditTrailManager, InitializingBean, DisposableBean,
+        Runnable {
+
+    /** Handling of records that find the buffer full. */
+    public enum OverflowPolicy {
+
+        /** The caller waits for room, so that no record is lost. */
+        BLOCK,
+
+        /** The record is dropped. */
+        DROP,
+
+        /**
+         * Once the buffer is half full, only one record in the sample rate is kept, so that the load of a burst is
+         * shed gradually; records finding the buffer full are dropped.
+         */
+        SAMPLE
+    }
+
+    /** Nanoseconds a blocked caller or an idle writer waits before checking the buffer again. */
+    private static final long PARK_NANOS = 1000 * 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @NotNull
+    private final List<AuditRecordSink> sinks;
+
+    /** Number of records the buffer holds, rounded up to a power of two. */
+    @Min(2)
+    private int capacity = 65536;
+
+    @Min(1)
+    private int batchSize = 500;
+
+    /** Maximum milliseconds a record waits for its batch to fill. */
+    @Min(0)
+    private long flushInterval = 100;
+
+    @NotNull
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    @Min(1)
+    private int sampleRate = 10;
+
+    private RingBuffer buffer;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    private final AtomicLong recordedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private final AtomicLong lostCount = new AtomicLong();
+
+    private volatile long lag;
+
+    private volatile long maxLag;
+
+
+    /**
+     * Creates a new manager.
+     *
+     * @param sinks Destinations of the records.
+     */
+    public AsynchronousAuditTrailManager(final List<AuditRecordSink> sinks) {
+        this.sinks = sinks;
+    }
+
+
+    public void afterPropertiesSet() {
+        this.buffer = new RingBuffer(this.capacity);
+        this.running = true;
+        this.writerThread = new Thread(this, "AsynchronousAuditTrailManager-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Stops the writer once the pending records are written.
+     */
+    public void destroy() throws Exception {
+        this.running = false;
+        if (this.writerThread != null) {
+            this.writerThread.join();
+        }
+    }
+
+    public void record(final AuditActionContext context) {
+        if (this.overflowPolicy == OverflowPolicy.SAMPLE && this.buffer.size() > this.buffer.capacity() / 2
+                && this.sampleCounter.incrementAndGet() % this.sampleRate != 0) {
+            this.droppedCount.incrementAndGet();
+            return;
+        }
+        if (!this.buffer.offer(context)) {
+            if (this.overflowPolicy != OverflowPolicy.BLOCK) {
+                this.droppedCount.incrementAndGet();
+                return;
+            }
+            this.blockedCount.incrementAndGet();
+            do {
+                if (!this.running) {
+                    this.droppedCount.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+            } while (!this.buffer.offer(context));
+        }
+        this.recordedCount.incrementAndGet();
+    }
+
+    public void run() {
+        final List<AuditActionContext> batch = new ArrayList<AuditActionContext>(this.batchSize);
+        long batchStart = 0;
+        while (true) {
+            final boolean stopping = !this.running;
+            AuditActionContext record;
+            while (batch.size() < this.batchSize && (record = this.buffer.poll()) != null) {
+                if (batch.isEmpty()) {
+                    batchStart = System.currentTimeMillis();
+                }
+                batch.add(record);
+            }
+            if (batch.size() == this.batchSize || !batch.isEmpty()
+                    && (stopping || System.currentTimeMillis() - batchStart >= this.flushInterval)) {
+                write(batch);
+                batch.clear();
+            } else if (stopping) {
+                return;
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return Number of records waiting to be written.
+     */
+    public int getPendingCount() {
+        return this.buffer == null ? 0 : this.buffer.size();
+    }
+
+    /**
+     * @return Total number of records accepted.
+     */
+    public long getRecordedCount() {
+        return this.recordedCount.get();
+    }
+
+    /**
+     * @return Total number of records dropped because the buffer was full or being sampled.
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * @return Total number of records whose caller had to wait for room in the buffer.
+     */
+    public long getBlockedCount() {
+        return this.blockedCount.get();
+    }
+
+    /**
+     * @return Total number of records written by every sink.
+     */
+    public long getWrittenCount() {
+        return this.writtenCount.get();
+    }
+
+    /**
+     * @return Total number of records that at least one sink failed to write.
+     */
+    public long getLostCount() {
+        return this.lostCount.get();
+    }
+
+    /**
+     * @return Milliseconds between the oldest action of the last batch written and its writing.
+     */
+    public long getLag() {
+        return this.lag;
+    }
+
+    /**
+     * @return Largest lag in milliseconds observed.
+     */
+    public long getMaxLag() {
+        return this.maxLag;
+    }
+
+    /**
+     * @param capacity Number of records the buffer holds, rounded up to a power of two. Default is 65536.
+     */
+    public void setCapacity(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param size Maximum number of records written at once. Default is 500.
+     */
+    public void setBatchSize(final int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * @param interval Maximum milliseconds a record waits for its batch to fill. Default is 100.
+     */
+    public void setFlushInterval(final long interval) {
+        this.flushInterval = interval;
+    }
+
+    /**
+     * @param policy Handling of records that find the buffer full. Default is {@link OverflowPolicy#BLOCK}.
+     */
+    public void setOverflowPolicy(final OverflowPolicy policy) {
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * @param rate One record in this number is kept while sampling. Default is 10.
+     */
+    public void setSampleRate(final int rate) {
+        this.sampleRate = rate;
+    }
+
+    private void write(final List<AuditActionContext> batch) {
+        boolean written = true;
+        for (final AuditRecordSink sink : this.sinks) {
+            try {
+                sink.write(batch);
+            } catch (final Exception e) {
+                written = false;
+                log.error("Failed writing " + batch.size() + " audit records to " + sink, e);
+            }
+        }
+        // each record counts once, however many sinks there are
+        if (written) {
+            this.writtenCount.addAndGet(batch.size());
+        } else {
+            this.lostCount.addAndGet(batch.size());
+        }
+        final long lag = System.currentTimeMillis() - batch.get(0).getWhenActionWasPerformed().getTime();
+        this.lag = lag;
+        if (lag > this.maxLag) {
+            this.maxLag = lag;
+        }
+    }
+
+
+    /**
+     * Bounded multi-producer, single-consumer queue. Each slot carries a sequence number telling producers and the
+     * consumer whose turn it is, so that neither ever takes a lock.
+     */
+    private static final class RingBuffer {
+
+        private final AtomicReferenceArray<AuditActionContext> slots;
+
+        private final AtomicLongArray sequences;
+
+        private final int mask;
+
+        private final AtomicLong tail = new AtomicLong();
+
+        private volatile long head;
+
+        public RingBuffer(final int minimumCapacity) {
+            int capacity = 1;
+            while (capacity < minimumCapacity) {
+                capacity <<= 1;
+            }
+            this.slots = new AtomicReferenceArray<AuditActionContext>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                this.sequences.set(i, i);
+            }
+            this.mask = capacity - 1;
+        }
+
+        public boolean offer(final AuditActionContext record) {
+            long position = this.tail.get();
+            while (true) {
+                final int index = (int) position & this.mask;
+                final long difference = this.sequences.get(index) - position;
+                if (difference == 0) {
+                    if (this.tail.compareAndSet(position, position + 1)) {
+                        this.slots.set(index, record);
+                        this.sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = this.tail.get();
+                } else if (difference < 0) {
+                    // the slot still holds the record of the previous lap
+                    return false;
+                } else {
+                    position = this.tail.get();
+                }
+            }
+        }
+
+        /** Called by the consumer only. */
+        public AuditActionContext poll() {
+            final long position = this.head;
+            final int index = (int) position & this.mask;
+            if (this.sequences.get(index) != position + 1) {
+                return null;
+            }
+            final AuditActionContext record = this.slots.get(index);
+            this.slots.set(index, null);
+            this.sequences.set(index, position + capacity());
+            this.head = position + 1;
+            return record;
+        }
+
+        public int size() {
+            return (int) Math.max(0, this.tail.get() - this.head);
+        }
+
+        public int capacity() {
+            return this.mask + 1;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.audit.support;
+
+import java.util.List;
+
+import com.github.inspektr.audit.AuditActionContext;
+
+/**
+ * Destination of the audit records written in batches by {@link AsynchronousAuditTrailManager}.
+ *
+ * @since 3.5.2
+ */
+public interface AuditRecordSink {
+
+    /**
+     * Writes a batch of audit records. Called by a single thread.
+     *
+     * @param records Records in the order they were made.
+     *
+     * @throws Exception if the records could not be written, in which case they are lost.
+     */
+    void write(List<AuditActionContext> records) throws Exception;
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.audit.support;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import javax.sql.DataSource;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.github.inspektr.audit.AuditActionContext;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Writes audit records to the <code>COM_AUDIT_TRAIL</code> table used by the Inspektr JDBC audit trail manager,
+ * inserting each batch with a single JDBC batch statement in a single transaction.
+ *
+ * @since 3.5.2
+ */
+public final class JdbcAuditRecordSink implements AuditRecordSink {
+
+    private static final String INSERT_SQL_TEMPLATE = "INSERT INTO %s (AUD_USER, AUD_CLIENT_IP, AUD_SERVER_IP, "
+            + "AUD_RESOURCE, AUD_ACTION, APPLIC_CD, AUD_DATE) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    @NotNull
+    private final JdbcTemplate jdbcTemplate;
+
+    @NotNull
+    private final TransactionTemplate transactionTemplate;
+
+    @NotNull
+    private String tableName = "COM_AUDIT_TRAIL";
+
+    /** Length of the resource column, beyond which resources are truncated. */
+    @Min(1)
+    private int columnLength = 100;
+
+
+    /**
+     * Creates a new sink.
+     *
+     * @param dataSource Database holding the audit trail table.
+     */
+    public JdbcAuditRecordSink(final DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
+
+    public void write(final List<AuditActionContext> records) {
+        final String sql = String.format(INSERT_SQL_TEMPLATE, this.tableName);
+        this.transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+                    public void setValues(final PreparedStatement ps, final int i) throws SQLException {
+                        final AuditActionContext record = records.get(i);
+                        final String resource = record.getResourceOperatedUpon();
+                        ps.setString(1, record.getPrincipal());
+                        ps.setString(2, record.getClientIpAddress());
+                        ps.setString(3, record.getServerIpAddress());
+                        ps.setString(4, resource != null && resource.length() > columnLength
+                                ? resource.substring(0, columnLength) : resource);
+                        ps.setString(5, record.getActionPerformed());
+                        ps.setString(6, record.getApplicationCode());
+                        ps.setTimestamp(7, new Timestamp(record.getWhenActionWasPerformed().getTime()));
+                    }
+
+                    public int getBatchSize() {
+                        return records.size();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param tableName Name of the audit trail table. Default is COM_AUDIT_TRAIL.
+     */
+    public void setTableName(final String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * @param length Length of the resource column. Default is 100.
+     */
+    public void setColumnLength(final int length) {
+        this.columnLength = length;
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcAuditRecordSink[" + this.tableName + "]";
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.audit.support;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.github.inspektr.audit.AuditActionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Appends audit records as lines of tab-separated fields to memory-mapped files on local disk.
+ * <p>
+ * Records are written to segment files named <code>audit-N.log</code>, which are preallocated, mapped into memory
+ * and truncated to their contents once full. Only the most recent segments are kept. Each line holds the time of the
+ * action, the application code, the action, the principal, the resource and the client and server IP addresses.
+ * Written records survive a crash of the JVM as the operating system writes mapped pages back on its own; they are
+ * forced to disk after each batch only if so configured.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class MappedFileAuditRecordSink implements AuditRecordSink, DisposableBean {
+
+    private static final String PREFIX = "audit-";
+
+    private static final String SUFFIX = ".log";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Directory holding the segments. */
+    @NotNull
+    private final File directory;
+
+    /** Size in bytes of segments. */
+    @Min(4096)
+    private int segmentSize = 64 * 1024 * 1024;
+
+    /** Number of segments kept, including the current one. */
+    @Min(1)
+    private int maxSegments = 10;
+
+    private boolean sync;
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    private MappedByteBuffer segment;
+
+    private File segmentFile;
+
+    private long segmentNumber;
+
+
+    /**
+     * Creates a sink writing to the given directory, which is created if needed.
+     *
+     * @param directory Directory holding the segments.
+     *
+     * @throws IOException if the directory cannot be created.
+     */
+    public MappedFileAuditRecordSink(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create audit directory " + directory);
+        }
+        this.directory = directory;
+        final File[] segments = list();
+        if (segments.length > 0) {
+            final String name = segments[segments.length - 1].getName();
+            this.segmentNumber = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        }
+    }
+
+
+    public synchronized void write(final List<AuditActionContext> records) throws IOException {
+        for (final AuditActionContext record : records) {
+            final byte[] bytes = format(record);
+            if (this.segment == null || this.segment.remaining() < bytes.length) {
+                roll(bytes.length);
+            }
+            this.segment.put(bytes);
+        }
+        if (this.sync) {
+            this.segment.force();
+        }
+    }
+
+    /**
+     * Truncates the current segment to its contents.
+     */
+    public synchronized void destroy() throws IOException {
+        close();
+    }
+
+    /**
+     * @param size Size in bytes of segments. Default is 64 MB.
+     */
+    public void setSegmentSize(final int size) {
+        this.segmentSize = size;
+    }
+
+    /**
+     * @param max Number of segments kept, including the current one. Default is 10.
+     */
+    public void setMaxSegments(final int max) {
+        this.maxSegments = max;
+    }
+
+    /**
+     * @param sync True to force records to disk after each batch, false to leave it to the operating system (default).
+     */
+    public void setSync(final boolean sync) {
+        this.sync = sync;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileAuditRecordSink[" + this.directory + "]";
+    }
+
+    private byte[] format(final AuditActionContext record) throws IOException {
+        this.line.setLength(0);
+        this.line.append(this.dateFormat.format(record.getWhenActionWasPerformed()));
+        append(record.getApplicationCode());
+        append(record.getActionPerformed());
+        append(record.getPrincipal());
+        append(record.getResourceOperatedUpon());
+        append(record.getClientIpAddress());
+        append(record.getServerIpAddress());
+        return this.line.append('\n').toString().getBytes("UTF-8");
+    }
+
+    private void append(final String field) {
+        this.line.append('\t');
+        if (field == null) {
+            return;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            this.line.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+        }
+    }
+
+    private void roll(final int minimumSize) throws IOException {
+        close();
+        this.segmentNumber++;
+        this.segmentFile = new File(this.directory, PREFIX + String.format("%020d", this.segmentNumber) + SUFFIX);
+        final int size = Math.max(this.segmentSize, minimumSize);
+        final RandomAccessFile raf = new RandomAccessFile(this.segmentFile, "rw");
+        try {
+            raf.setLength(size);
+            // The mapping stays valid after the channel is closed and is released when garbage collected
+            this.segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+        final File[] segments = list();
+        for (int i = 0; i < segments.length - this.maxSegments; i++) {
+            if (!segments[i].delete()) {
+                log.warn("Cannot delete audit segment {}", segments[i]);
+            }
+        }
+    }
+
+    private void close() throws IOException {
+        if (this.segment == null) {
+            return;
+        }
+        this.segment.force();
+        final RandomAccessFile raf = new RandomAccessFile(this.segmentFile, "rw");
+        try {
+            raf.setLength(this.segment.position());
+        } catch (final IOException e) {
+            // Some platforms do not allow truncating a mapped file; readers must then skip the trailing zeros
+            log.debug("Cannot truncate audit segment {}: {}", this.segmentFile, e.getMessage());
+        } finally {
+            raf.close();
+        }
+        this.segment = null;
+    }
+
+    private File[] list() {
+        final File[] files = this.directory.listFiles(new FileFilter() {
+            public boolean accept(final File file) {
+                return file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+            }
+        });
+        // Zero-padded segment numbers sort lexicographically
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -25,10 +25,12 @@ import javax.validation.constraints.Size;
 import org.jasig.cas.authentication.handler.AuthenticationException;
 import org.jasig.cas.authentication.handler.AuthenticationHandler;
 import org.jasig.cas.authentication.handler.BadCredentialsAuthenticationException;
+import org.jasig.cas.authentication.handler.NamedAuthenticationHandler;
 import org.jasig.cas.authentication.handler.UnsupportedCredentialsException;
 import org.jasig.cas.authentication.principal.Credentials;
 import org.jasig.cas.authentication.principal.CredentialsToPrincipalResolver;
 import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.monitor.LatencyMetrics;
 
 /**
  * <p>
@@ -78,6 +80,9 @@ public final class AuthenticationManagerImpl extends AbstractAuthenticationManag
     @Size(min=1)
     private List<CredentialsToPrincipalResolver> credentialsToPrincipalResolvers;
 
+    /** Registry in which the latency of each authentication handler is recorded, if any. */
+    private LatencyMetrics latencyMetrics;
+
     @Override
     protected Pair<AuthenticationHandler, Principal> authenticateAndObtainPrincipal(final Credentials credentials) throws AuthenticationException {
         boolean foundSupported = false;
@@ -91,6 +96,7 @@ public final class AuthenticationManagerImpl extends AbstractAuthenticationManag
             if (authenticationHandler.supports(credentials)) {
                 foundSupported = true;
                 handlerName = authenticationHandler.getClass().getName();
+                final long start = System.nanoTime();
                 try {
                     if (!authenticationHandler.authenticate(credentials)) {
                         log.info("{} failed to authenticate {}", handlerName, credentials);
@@ -105,6 +111,8 @@ public final class AuthenticationManagerImpl extends AbstractAuthenticationManag
                     logAuthenticationHandlerError(handlerName, credentials, e);
                 } catch (Exception e) {
                     logAuthenticationHandlerError(handlerName, credentials, e);
+                } finally {
+                    recordLatency(authenticationHandler, System.nanoTime() - start);
                 }
             }
         }
@@ -142,6 +150,18 @@ public final class AuthenticationManagerImpl extends AbstractAuthenticationManag
         throw UnsupportedCredentialsException.ERROR;
     }
 
+    private void recordLatency(final AuthenticationHandler authenticationHandler, final long nanos) {
+        if (this.latencyMetrics == null) {
+            return;
+        }
+        String name = null;
+        if (authenticationHandler instanceof NamedAuthenticationHandler) {
+            name = ((NamedAuthenticationHandler) authenticationHandler).getName();
+        }
+        this.latencyMetrics.record(LatencyMetrics.AUTHENTICATION_HANDLER,
+            name != null ? name : authenticationHandler.getClass().getSimpleName(), nanos);
+    }
+
     /**
      * @param authenticationHandlers The authenticationHandlers to set.
      */
@@ -158,4 +178,12 @@ public final class AuthenticationManagerImpl extends AbstractAuthenticationManag
         final List<CredentialsToPrincipalResolver> credentialsToPrincipalResolvers) {
         this.credentialsToPrincipalResolvers = credentialsToPrincipalResolvers;
     }
+
+    /**
+     * @param latencyMetrics Registry in which the latency of each authentication handler is recorded.
+     * Default is none.
+     */
+    public void setLatencyMetrics(final LatencyMetrics latencyMetrics) {
+        this.latencyMetrics = latencyMetrics;
+    }
 }
@@ -18,6 +18,10 @@
  */
 package org.jasig.cas.authentication.handler.support;
 
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.jasig.cas.authentication.handler.AuthenticationHandler;
 import org.jasig.cas.authentication.principal.Credentials;
 import org.jasig.cas.authentication.principal.HttpBasedServiceCredentials;
@@ -25,6 +29,7 @@ import org.jasig.cas.util.HttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 /**
@@ -35,6 +40,10 @@ import javax.validation.constraints.NotNull;
  * This class is concerned with ensuring that the protocol is HTTPS and that a
  * response is returned. The SSL handshake that occurs automatically by opening
  * a connection does the heavy process of authenticating.
+ * <p>
+ * Successful validations may be remembered per origin (protocol, host and port)
+ * for a configurable time, during which other callback urls of the same origin
+ * are accepted without contacting the server again.
  * 
  * @author Scott Battaglia
  * @version $Revision$ $Date$
@@ -55,6 +64,17 @@ public final class HttpBasedServiceCredentialsAuthenticationHandler implements A
     @NotNull
     private HttpClient httpClient;
 
+    /** Milliseconds for which a validated origin is remembered; 0 disables caching. */
+    @Min(0)
+    private long validationCacheTimeToLive = 0;
+
+    /** Maximum number of origins remembered. */
+    @Min(1)
+    private int validationCacheSize = 10000;
+
+    /** Expiration time of the validation of each origin. */
+    private final ConcurrentMap<String, Long> validatedOrigins = new ConcurrentHashMap<String, Long>();
+
     public boolean authenticate(final Credentials credentials) {
         final HttpBasedServiceCredentials serviceCredentials = (HttpBasedServiceCredentials) credentials;
         if (this.requireSecure
@@ -69,8 +89,25 @@ public final class HttpBasedServiceCredentialsAuthenticationHandler implements A
             .debug("Attempting to resolve credentials for "
                 + serviceCredentials);
 
-        return this.httpClient.isValidEndPoint(serviceCredentials
-            .getCallbackUrl());
+        if (this.validationCacheTimeToLive == 0) {
+            return this.httpClient.isValidEndPoint(serviceCredentials.getCallbackUrl());
+        }
+
+        final String origin = originOf(serviceCredentials.getCallbackUrl());
+        final Long expiration = this.validatedOrigins.get(origin);
+        if (expiration != null && expiration > System.currentTimeMillis()) {
+            log.debug("Origin {} validated recently", origin);
+            return true;
+        }
+        if (!this.httpClient.isValidEndPoint(serviceCredentials.getCallbackUrl())) {
+            this.validatedOrigins.remove(origin);
+            return false;
+        }
+        if (this.validatedOrigins.size() >= this.validationCacheSize) {
+            this.validatedOrigins.clear();
+        }
+        this.validatedOrigins.put(origin, System.currentTimeMillis() + this.validationCacheTimeToLive);
+        return true;
     }
 
     /**
@@ -96,4 +133,29 @@ public final class HttpBasedServiceCredentialsAuthenticationHandler implements A
     public void setRequireSecure(final boolean requireSecure) {
         this.requireSecure = requireSecure;
     }
+
+    /**
+     * Set how long a successful validation is remembered for the origin of the
+     * callback url.
+     * 
+     * @param timeToLive milliseconds; 0 disables caching. Default is 0.
+     */
+    public void setValidationCacheTimeToLive(final long timeToLive) {
+        this.validationCacheTimeToLive = timeToLive;
+    }
+
+    /**
+     * Set the maximum number of origins remembered, beyond which all are
+     * forgotten.
+     * 
+     * @param size the maximum number of origins. Default is 10000.
+     */
+    public void setValidationCacheSize(final int size) {
+        this.validationCacheSize = size;
+    }
+
+    private static String originOf(final URL url) {
+        final int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
 }
@@ -89,7 +89,7 @@ public abstract class AbstractPersonDirectoryCredentialsToPrincipalResolver
             final Object value = entry.getValue().size() == 1 ? entry.getValue().get(0) : entry.getValue();
             convertedAttributes.put(key, value);
         }
-        return new SimplePrincipal(principalId, convertedAttributes);
+        return new SimplePrincipal(principalId, ImmutableAttributeMap.intern(convertedAttributes));
     }
     
     /**
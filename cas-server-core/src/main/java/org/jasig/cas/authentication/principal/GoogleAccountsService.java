@@ -18,6 +18,7 @@
  */
 package org.jasig.cas.authentication.principal;
 
+import org.jasig.cas.util.RandomSource;
 import org.jasig.cas.util.SamlUtils;
 import org.jdom.Document;
 import org.springframework.util.StringUtils;
@@ -32,7 +33,6 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -54,7 +54,7 @@ public class GoogleAccountsService extends AbstractWebApplicationService {
      */
     private static final long serialVersionUID = 6678711809842282833L;
 
-    private static Random random = new Random();
+    private static final RandomSource random = RandomSource.getInstance();
     
     private static final char[] charMapping = {
       'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o',
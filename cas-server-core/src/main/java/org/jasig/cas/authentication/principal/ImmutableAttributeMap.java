@@ -0,0 +1,199 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.authentication.principal;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Immutable map of principal attributes shared by all principals with equal attributes.
+ * <p>
+ * {@link #intern(Map)} returns the canonical instance of a map, whose keys and string values are themselves
+ * canonical and whose collections of values are canonical sets or lists, as the original values were, so that users with several concurrent sessions, and attribute values such as group names common to
+ * many users, are held once on the heap. Canonical instances are held in a pool through weak references and are
+ * released once no principal uses them. Deserialized maps are replaced by their canonical instance. The pool is
+ * split into independently locked stripes so that concurrent logins and deserializations rarely contend.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class ImmutableAttributeMap extends AbstractMap<String, Object> implements Serializable {
+
+    /** Unique Id for Serialization. */
+    private static final long serialVersionUID = 4781522393157286744L;
+
+    /** Number of stripes of the pool; a power of two. */
+    private static final int POOL_STRIPES = 64;
+
+    /** Canonical maps, strings and collections of values, striped by hash code; each stripe is its own lock. */
+    private static final List<Map<Object, WeakReference<Object>>> POOL = newPool();
+
+    private final Map<String, Object> attributes;
+
+    /** Cached hash code; attribute maps are frequently looked up in the pool. */
+    private transient int hash;
+
+
+    private ImmutableAttributeMap(final Map<String, Object> attributes) {
+        this.attributes = attributes;
+    }
+
+
+    /**
+     * Gets the canonical immutable instance of a map of attributes.
+     *
+     * @param attributes Map of attribute names to a value or a collection of values.
+     *
+     * @return Immutable map equal to the given map.
+     */
+    public static ImmutableAttributeMap intern(final Map<String, ?> attributes) {
+        if (attributes instanceof ImmutableAttributeMap) {
+            return (ImmutableAttributeMap) attributes;
+        }
+        final Map<String, Object> copy = new HashMap<String, Object>(attributes.size() * 4 / 3 + 1);
+        for (final Map.Entry<String, ?> entry : attributes.entrySet()) {
+            copy.put(canonical(entry.getKey()), canonicalValue(entry.getValue()));
+        }
+        return canonical(new ImmutableAttributeMap(copy));
+    }
+
+    /**
+     * @return Number of canonical maps, strings and collections of values in the pool, including those not yet cleared
+     * after being released.
+     */
+    public static int getPoolSize() {
+        int size = 0;
+        for (final Map<Object, WeakReference<Object>> stripe : POOL) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return Collections.unmodifiableMap(this.attributes).entrySet();
+    }
+
+    @Override
+    public Object get(final Object key) {
+        return this.attributes.get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return this.attributes.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return this.attributes.size();
+    }
+
+    @Override
+    public int hashCode() {
+        int h = this.hash;
+        if (h == 0) {
+            h = this.attributes.hashCode();
+            this.hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof ImmutableAttributeMap && o.hashCode() != hashCode()) {
+            return false;
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * Replaces a deserialized map by its canonical instance.
+     *
+     * @return Canonical instance.
+     */
+    private Object readResolve() {
+        return intern(this.attributes);
+    }
+
+    private static Object canonicalValue(final Object value) {
+        if (value instanceof String) {
+            return canonical((String) value);
+        }
+        if (value instanceof Set) {
+            final Set<?> values = (Set<?>) value;
+            final Set<Object> copy = new LinkedHashSet<Object>(values.size() * 4 / 3 + 1);
+            for (final Object item : values) {
+                copy.add(item instanceof String ? canonical((String) item) : item);
+            }
+            return canonical(Collections.unmodifiableSet(copy));
+        }
+        if (value instanceof Collection) {
+            final Collection<?> values = (Collection<?>) value;
+            final List<Object> copy = new ArrayList<Object>(values.size());
+            for (final Object item : values) {
+                copy.add(item instanceof String ? canonical((String) item) : item);
+            }
+            return canonical(Collections.unmodifiableList(copy));
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T canonical(final T object) {
+        if (object == null) {
+            return null;
+        }
+        final int h = object.hashCode();
+        final Map<Object, WeakReference<Object>> stripe = POOL.get((h ^ (h >>> 16)) & (POOL_STRIPES - 1));
+        synchronized (stripe) {
+            final WeakReference<Object> reference = stripe.get(object);
+            final Object existing = reference != null ? reference.get() : null;
+            if (existing != null) {
+                return (T) existing;
+            }
+            stripe.put(object, new WeakReference<Object>(object));
+            return object;
+        }
+    }
+
+    private static List<Map<Object, WeakReference<Object>>> newPool() {
+        final List<Map<Object, WeakReference<Object>>> pool =
+                new ArrayList<Map<Object, WeakReference<Object>>>(POOL_STRIPES);
+        for (int i = 0; i < POOL_STRIPES; i++) {
+            pool.add(new WeakHashMap<Object, WeakReference<Object>>());
+        }
+        return pool;
+    }
+}
@@ -56,8 +56,14 @@ public class SimplePrincipal implements Principal {
         Assert.notNull(id, "id cannot be null");
         this.id = id;
 
-        this.attributes = attributes == null || attributes.isEmpty()
-            ? EMPTY_MAP : Collections.unmodifiableMap(attributes);
+        if (attributes == null || attributes.isEmpty()) {
+            this.attributes = EMPTY_MAP;
+        } else if (attributes instanceof ImmutableAttributeMap) {
+            // shared with other principals and already immutable
+            this.attributes = attributes;
+        } else {
+            this.attributes = Collections.unmodifiableMap(attributes);
+        }
     }
 
     /**
@@ -18,23 +18,62 @@
  */
 package org.jasig.cas.monitor;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
+import org.springframework.beans.factory.DisposableBean;
+
 /**
  * Simple health check monitor that reports the overall health as the greatest reported
  * {@link StatusCode} of an arbitrary number of individual checks.
+ * <p>
+ * Individual monitors are observed in parallel, and each result is reused for a configurable time to live.
+ * Concurrent calls to {@link #observe()} share a single observation of each monitor in progress, so that a monitor
+ * is never observed more than once at a time. A monitor that does not respond within the timeout is reported with
+ * {@link StatusCode#ERROR}; its observation keeps running and is shared by later calls until it completes.
+ * </p>
  *
  * @author Marvin S. Addison
  * @since 3.5.0
  */
-public class HealthCheckMonitor implements Monitor<HealthStatus> {
-    /** Individual monitors that comprise health check. */
+public class HealthCheckMonitor implements Monitor<HealthStatus>, DisposableBean {
+    /** Individual monitors that comprise health check, with their latest observation. */
     @NotNull
-    private Collection<Monitor> monitors = Collections.emptySet();
+    private List<Check> checks = Collections.emptyList();
+
+    /** Maximum time in milliseconds to wait for all monitors. */
+    @Min(1)
+    private long timeout = 5000;
+
+    /** Time in milliseconds for which the status reported by a monitor is reused. */
+    @Min(0)
+    private long cacheTimeToLive;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "HealthCheckMonitor-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
 
     /**
@@ -43,7 +82,29 @@ public class HealthCheckMonitor implements Monitor<HealthStatus> {
      * @param monitors Collection of monitors responsible for observing various aspects of CAS.
      */
     public void setMonitors(final Collection<Monitor> monitors) {
-        this.monitors = monitors;
+        final List<Check> checks = new ArrayList<Check>(monitors.size());
+        for (final Monitor monitor : monitors) {
+            checks.add(new Check(monitor));
+        }
+        this.checks = checks;
+    }
+
+    /**
+     * Sets the maximum time to wait for the monitors to report their status.
+     *
+     * @param timeout Timeout in milliseconds for all monitors together. Default is 5000.
+     */
+    public void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the time for which the status reported by a monitor is reused instead of observing the monitor again.
+     *
+     * @param cacheTimeToLive Time to live in milliseconds, or zero to observe monitors on every call. Default is 0.
+     */
+    public void setCacheTimeToLive(final long cacheTimeToLive) {
+        this.cacheTimeToLive = cacheTimeToLive;
     }
 
     /** {@inheritDoc} */
@@ -53,17 +114,97 @@ public class HealthCheckMonitor implements Monitor<HealthStatus> {
 
     /** {@inheritDoc} */
     public HealthStatus observe() {
-        final Map<String, Status> results = new LinkedHashMap<String, Status>(this.monitors.size());
+        final List<Check> checks = this.checks;
+        final List<Observation> observations = new ArrayList<Observation>(checks.size());
+        for (final Check check : checks) {
+            observations.add(check.observe());
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+        final Map<String, Status> results = new LinkedHashMap<String, Status>(checks.size());
         StatusCode code = StatusCode.UNKNOWN;
         Status result;
-        for (final Monitor monitor : this.monitors) {
-            result = monitor.observe();
+        for (int i = 0; i < checks.size(); i++) {
+            result = observations.get(i).await(deadline);
             if (result.getCode().value() > code.value()) {
                 code = result.getCode();
             }
-            results.put(monitor.getName(), result);
+            results.put(checks.get(i).monitor.getName(), result);
         }
 
         return new HealthStatus(code, results);
     }
+
+    /** {@inheritDoc} */
+    public void destroy() {
+        this.executor.shutdownNow();
+    }
+
+
+    /**
+     * Holds the latest observation of a monitor.
+     */
+    private final class Check {
+        private final Monitor monitor;
+
+        private final AtomicReference<Observation> latest = new AtomicReference<Observation>();
+
+        public Check(final Monitor monitor) {
+            this.monitor = monitor;
+        }
+
+        /**
+         * Gets the observation in progress or the cached one if it is still fresh, or else starts a new one.
+         */
+        public Observation observe() {
+            final Observation current = this.latest.get();
+            if (current != null && (!current.isDone() || current.isFresh())) {
+                return current;
+            }
+            final Observation next = new Observation(this.monitor);
+            if (this.latest.compareAndSet(current, next)) {
+                executor.execute(next);
+                return next;
+            }
+            return this.latest.get();
+        }
+    }
+
+
+    /**
+     * Observation of a monitor, possibly in progress.
+     */
+    private final class Observation extends FutureTask<Status> {
+        private volatile long completed;
+
+        public Observation(final Monitor monitor) {
+            super(new Callable<Status>() {
+                public Status call() {
+                    return monitor.observe();
+                }
+            });
+        }
+
+        @Override
+        protected void done() {
+            this.completed = System.nanoTime();
+        }
+
+        public boolean isFresh() {
+            return System.nanoTime() - this.completed < TimeUnit.MILLISECONDS.toNanos(cacheTimeToLive);
+        }
+
+        public Status await(final long deadline) {
+            try {
+                return get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                return new Status(StatusCode.ERROR, String.format("No response within %s ms.", timeout));
+            } catch (final ExecutionException e) {
+                return new Status(StatusCode.ERROR, e.getCause().getMessage());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Status(StatusCode.UNKNOWN, "Interrupted while waiting for status.");
+            }
+        }
+    }
 }
@@ -0,0 +1,313 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds with log-linear buckets, over a sliding time window.
+ * <p>
+ * Each power of two is split into 32 linear sub-buckets, so that any recorded value is reported with a relative
+ * error of at most about 3% over a range from one nanosecond to about 18 minutes; larger values are clamped to the
+ * last bucket. Recording is a bucket index computation and a few atomic increments, without locks, and may be done
+ * concurrently with {@link #snapshot()}.
+ * </p>
+ * <p>
+ * The window is divided into five intervals, each with its own buckets, which are reused in rotation. Snapshots
+ * merge the intervals that are part of the window, so that percentiles, mean and maximum reflect the recent
+ * latency rather than the whole uptime: they cover between four fifths of the window and the whole window. The
+ * total count and sum of recorded values are kept since creation.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class LatencyHistogram {
+
+    /** Default length of the window in milliseconds. */
+    public static final long DEFAULT_WINDOW = 5 * 60 * 1000;
+
+    /** Binary logarithm of the number of sub-buckets per power of two. */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** Largest value that can be recorded without clamping. */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+    /** Number of intervals the window is divided into. */
+    private static final int INTERVALS = 5;
+
+    private final long intervalNanos;
+
+    private final long origin = System.nanoTime();
+
+    private final AtomicReferenceArray<Interval> intervals = new AtomicReferenceArray<Interval>(INTERVALS);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalSum = new AtomicLong();
+
+
+    /**
+     * Creates a histogram over the default window.
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a histogram.
+     *
+     * @param window Length of the window in milliseconds; must be at least 5.
+     */
+    public LatencyHistogram(final long window) {
+        if (window < INTERVALS) {
+            throw new IllegalArgumentException("Window must be at least " + INTERVALS + " milliseconds.");
+        }
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(window) / INTERVALS;
+    }
+
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos Latency in nanoseconds; negative values are recorded as zero.
+     */
+    public void record(final long nanos) {
+        final long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        current().record(value);
+        this.totalCount.incrementAndGet();
+        this.totalSum.addAndGet(value);
+    }
+
+    /**
+     * Copies the current state of this histogram. Values recorded concurrently may or may not be included.
+     *
+     * @return Point-in-time view of this histogram.
+     */
+    public Snapshot snapshot() {
+        final long epoch = epoch();
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (int i = 0; i < INTERVALS; i++) {
+            final Interval interval = this.intervals.get(i);
+            if (interval == null || interval.epoch <= epoch - INTERVALS) {
+                continue;
+            }
+            for (int j = 0; j < BUCKET_COUNT; j++) {
+                final long n = interval.buckets.get(j);
+                counts[j] += n;
+                count += n;
+            }
+            sum += interval.sum.get();
+            max = Math.max(max, interval.max.get());
+        }
+        return new Snapshot(counts, count, sum, max, this.totalCount.get(), this.totalSum.get());
+    }
+
+    private long epoch() {
+        return (System.nanoTime() - this.origin) / this.intervalNanos;
+    }
+
+    /**
+     * Gets the interval values are recorded in now, replacing the one that held the same slot a window ago.
+     */
+    private Interval current() {
+        final long epoch = epoch();
+        final int slot = (int) (epoch % INTERVALS);
+        for (;;) {
+            final Interval interval = this.intervals.get(slot);
+            // a recorder that read the clock before the slot moved on records in the newer interval
+            if (interval != null && interval.epoch >= epoch) {
+                return interval;
+            }
+            final Interval next = new Interval(epoch);
+            if (this.intervals.compareAndSet(slot, interval, next)) {
+                return next;
+            }
+        }
+    }
+
+    private static int indexOf(final long value) {
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        return ((msb - SUB_BUCKET_BITS) << SUB_BUCKET_BITS) + (int) (value >>> (msb - SUB_BUCKET_BITS));
+    }
+
+    private static long highestValueOf(final int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        final long mantissa = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+
+    /**
+     * Values recorded during one interval of the window.
+     */
+    private static final class Interval {
+
+        private final long epoch;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private Interval(final long epoch) {
+            this.epoch = epoch;
+        }
+
+        private void record(final long value) {
+            this.buckets.incrementAndGet(indexOf(value));
+            this.sum.addAndGet(value);
+            long current = this.max.get();
+            while (value > current && !this.max.compareAndSet(current, value)) {
+                current = this.max.get();
+            }
+        }
+    }
+
+
+    /**
+     * Immutable copy of the state of a {@link LatencyHistogram}.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sum;
+
+        private final long max;
+
+        private final long totalCount;
+
+        private final long totalSum;
+
+        private Snapshot(final long[] counts, final long count, final long sum, final long max,
+                final long totalCount, final long totalSum) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.totalCount = totalCount;
+            this.totalSum = totalSum;
+        }
+
+        /**
+         * @return Number of values recorded within the window.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return Sum of values recorded within the window in nanoseconds.
+         */
+        public long getSum() {
+            return this.sum;
+        }
+
+        /**
+         * @return Largest value recorded within the window in nanoseconds.
+         */
+        public long getMax() {
+            return this.max;
+        }
+
+        /**
+         * @return Number of values recorded since the histogram was created.
+         */
+        public long getTotalCount() {
+            return this.totalCount;
+        }
+
+        /**
+         * @return Sum of values recorded since the histogram was created in nanoseconds.
+         */
+        public long getTotalSum() {
+            return this.totalSum;
+        }
+
+        /**
+         * @return Mean of values recorded within the window in nanoseconds, or zero if none were recorded.
+         */
+        public double getMean() {
+            return this.count == 0 ? 0 : (double) this.sum / this.count;
+        }
+
+        /**
+         * Gets the value below which the given percentage of values recorded within the window fall.
+         *
+         * @param percentile Percentage between 0 and 100.
+         *
+         * @return Upper bound of the bucket holding the percentile in nanoseconds, never more than the largest
+         * recorded value, or zero if no values were recorded.
+         */
+        public long getValueAtPercentile(final double percentile) {
+            if (this.count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * this.count));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), this.max);
+                }
+            }
+            return this.max;
+        }
+
+        /**
+         * @return 50th percentile in nanoseconds.
+         */
+        public long getMedian() {
+            return getValueAtPercentile(50);
+        }
+
+        /**
+         * @return 99th percentile in nanoseconds.
+         */
+        public long getPercentile99() {
+            return getValueAtPercentile(99);
+        }
+
+        /**
+         * @return 99.9th percentile in nanoseconds.
+         */
+        public long getPercentile999() {
+            return getValueAtPercentile(99.9);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.monitor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.validation.constraints.Min;
+
+/**
+ * Registry of {@link LatencyHistogram} instances, grouped by metric name and keyed by a label value within each
+ * metric, e.g. the operation, authentication handler or registered service that was timed.
+ * <p>
+ * Histograms are created on first use and live as long as the registry. Their percentiles cover a sliding window of
+ * recent latencies. The number of label values per metric is bounded; once the bound is reached, latencies for new
+ * label values are recorded under {@link #OTHER_LABEL}.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class LatencyMetrics {
+
+    /** Latency of operations of the central authentication service, labelled by operation. */
+    public static final String OPERATION = "cas_operation_latency";
+
+    /** Latency of authentication handlers, labelled by handler. */
+    public static final String AUTHENTICATION_HANDLER = "cas_authentication_handler_latency";
+
+    /** Latency of ticket registry operations, labelled by operation. */
+    public static final String TICKET_REGISTRY = "cas_ticket_registry_latency";
+
+    /** Latency of operations of the central authentication service, labelled by registered service. */
+    public static final String REGISTERED_SERVICE = "cas_registered_service_latency";
+
+    /** Label value under which latencies are recorded once a metric has too many label values. */
+    public static final String OTHER_LABEL = "other";
+
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> metrics =
+            new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+
+    @Min(1)
+    private int maxLabels = 1000;
+
+    /** Milliseconds of recent latencies reported by each histogram. */
+    @Min(5)
+    private long window = LatencyHistogram.DEFAULT_WINDOW;
+
+
+    /**
+     * Records a latency.
+     *
+     * @param metric Metric name.
+     * @param label Label value within the metric.
+     * @param nanos Latency in nanoseconds.
+     */
+    public void record(final String metric, final String label, final long nanos) {
+        histogram(metric, label).record(nanos);
+    }
+
+    /**
+     * Gets the histogram for a label value of a metric, creating it if needed.
+     *
+     * @param metric Metric name.
+     * @param label Label value within the metric.
+     *
+     * @return Histogram for the label value, or for {@link #OTHER_LABEL} if the metric has too many label values.
+     */
+    public LatencyHistogram histogram(final String metric, final String label) {
+        ConcurrentMap<String, LatencyHistogram> histograms = this.metrics.get(metric);
+        if (histograms == null) {
+            final ConcurrentMap<String, LatencyHistogram> created = new ConcurrentHashMap<String, LatencyHistogram>();
+            histograms = this.metrics.putIfAbsent(metric, created);
+            if (histograms == null) {
+                histograms = created;
+            }
+        }
+        final LatencyHistogram histogram = histograms.get(label);
+        if (histogram != null) {
+            return histogram;
+        }
+        final String key = histograms.size() < this.maxLabels ? label : OTHER_LABEL;
+        final LatencyHistogram created = new LatencyHistogram(this.window);
+        final LatencyHistogram existing = histograms.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+    /**
+     * Takes snapshots of all histograms.
+     *
+     * @return Snapshots keyed by label value, keyed by metric name, both sorted.
+     */
+    public Map<String, Map<String, LatencyHistogram.Snapshot>> snapshot() {
+        final Map<String, Map<String, LatencyHistogram.Snapshot>> snapshots =
+                new TreeMap<String, Map<String, LatencyHistogram.Snapshot>>();
+        for (final Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> metric : this.metrics.entrySet()) {
+            final Map<String, LatencyHistogram.Snapshot> labels = new TreeMap<String, LatencyHistogram.Snapshot>();
+            for (final Map.Entry<String, LatencyHistogram> entry : metric.getValue().entrySet()) {
+                labels.put(entry.getKey(), entry.getValue().snapshot());
+            }
+            snapshots.put(metric.getKey(), Collections.unmodifiableMap(labels));
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    /**
+     * Sets the maximum number of label values per metric.
+     *
+     * @param maxLabels Maximum number of distinct label values kept for each metric. Default is 1000.
+     */
+    public void setMaxLabels(final int maxLabels) {
+        this.maxLabels = maxLabels;
+    }
+
+    /**
+     * Sets the length of the window over which histograms report percentiles, mean and maximum. It applies to
+     * histograms created afterwards.
+     *
+     * @param window Window in milliseconds. Default is 300000.
+     */
+    public void setWindow(final long window) {
+        this.window = window;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.monitor;
+
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Monitors the latency of the operations of the central authentication service as recorded in a
+ * {@link LatencyMetrics} registry, and issues a warning when a percentile of any operation exceeds a threshold.
+ * Percentiles cover the recent window of the histograms, so that the warning clears once latency recovers.
+ *
+ * @since 3.5.2
+ */
+public class LatencyMonitor implements Monitor<LatencyStatus> {
+    /** Registry holding the recorded latencies. */
+    @NotNull
+    private LatencyMetrics latencyMetrics;
+
+    /** Percentile compared against the warn threshold. */
+    private double percentile = 99;
+
+    /** Threshold in milliseconds above which warnings are issued for operation latency. */
+    private long latencyWarnThreshold = -1;
+
+
+    /**
+     * Sets the registry holding the recorded latencies.
+     *
+     * @param metrics Latency metrics registry.
+     */
+    public void setLatencyMetrics(final LatencyMetrics metrics) {
+        this.latencyMetrics = metrics;
+    }
+
+
+    /**
+     * Sets the percentile of operation latency that is reported and compared against the warn threshold.
+     *
+     * @param percentile Percentage between 0 and 100. Default is 99.
+     */
+    public void setPercentile(final double percentile) {
+        this.percentile = percentile;
+    }
+
+
+    /**
+     * Sets the threshold above which warnings are issued for operation latency.
+     *
+     * @param threshold Warn threshold in milliseconds if non-negative value, otherwise warnings are disabled.
+     */
+    public void setLatencyWarnThreshold(final long threshold) {
+        this.latencyWarnThreshold = threshold;
+    }
+
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return LatencyMonitor.class.getSimpleName();
+    }
+
+
+    /** {@inheritDoc} */
+    public LatencyStatus observe() {
+        final Map<String, LatencyHistogram.Snapshot> operations =
+                this.latencyMetrics.snapshot().get(LatencyMetrics.OPERATION);
+        if (operations == null || operations.isEmpty()) {
+            return new LatencyStatus(StatusCode.UNKNOWN, "No operations have been recorded.");
+        }
+
+        final String label = "p" + (this.percentile == Math.rint(this.percentile)
+                ? String.valueOf((long) this.percentile) : String.valueOf(this.percentile));
+        final StringBuilder msg = new StringBuilder();
+        StatusCode code = StatusCode.OK;
+        for (final Map.Entry<String, LatencyHistogram.Snapshot> entry : operations.entrySet()) {
+            if (entry.getValue().getCount() == 0) {
+                continue;
+            }
+            final double millis = entry.getValue().getValueAtPercentile(this.percentile) / 1e6;
+            if (this.latencyWarnThreshold > -1 && millis > this.latencyWarnThreshold) {
+                code = StatusCode.WARN;
+                msg.append(String.format(
+                        "%s %s (%.3f ms) is above threshold %s ms. ",
+                        entry.getKey(), label, millis, this.latencyWarnThreshold));
+            } else {
+                msg.append(String.format("%s %s %.3f ms. ", entry.getKey(), label, millis));
+            }
+        }
+        if (msg.length() == 0) {
+            return new LatencyStatus(StatusCode.UNKNOWN, "No operations have been recorded recently.");
+        }
+        return new LatencyStatus(code, msg.toString().trim(), operations);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.monitor;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Provides status information about the latency of the operations of the central authentication service.
+ *
+ * @since 3.5.2
+ */
+public class LatencyStatus extends Status {
+    /** Latency histogram snapshots keyed by operation. */
+    private final Map<String, LatencyHistogram.Snapshot> operations;
+
+
+    /**
+     * Creates a new status object with the given code.
+     *
+     * @param code Status code.
+     * @param desc Human-readable status description.
+     *
+     * @see #getCode()
+     */
+    public LatencyStatus(final StatusCode code, final String desc) {
+        this(code, desc, Collections.<String, LatencyHistogram.Snapshot>emptyMap());
+    }
+
+
+    /**
+     * Creates a new status object with the given code.
+     *
+     * @param code Status code.
+     * @param desc Human-readable status description.
+     * @param operations Latency histogram snapshots keyed by operation.
+     *
+     * @see #getCode()
+     */
+    public LatencyStatus(
+            final StatusCode code, final String desc, final Map<String, LatencyHistogram.Snapshot> operations) {
+        super(code, desc);
+        this.operations = operations;
+    }
+
+
+    /**
+     * Gets the latency histogram snapshots of the operations that were observed.
+     *
+     * @return Snapshots keyed by operation.
+     */
+    public Map<String, LatencyHistogram.Snapshot> getOperations() {
+        return this.operations;
+    }
+}
@@ -93,6 +93,10 @@ public abstract class AbstractRegisteredService
 
     private boolean ignoreAttributes = false;
 
+    private boolean statelessServiceTickets = false;
+
+    private boolean batchLogoutRequests = false;
+
     @Column(name = "evaluation_order", nullable = false)
     private int evaluationOrder;
 
@@ -168,6 +172,8 @@ public abstract class AbstractRegisteredService
                   .append(this.enabled, that.enabled)
                   .append(this.evaluationOrder, that.evaluationOrder)
                   .append(this.ignoreAttributes, that.ignoreAttributes)
+                  .append(this.statelessServiceTickets, that.statelessServiceTickets)
+                  .append(this.batchLogoutRequests, that.batchLogoutRequests)
                   .append(this.ssoEnabled, that.ssoEnabled)
                   .append(this.allowedAttributes, that.allowedAttributes)
                   .append(this.description, that.description)
@@ -189,6 +195,8 @@ public abstract class AbstractRegisteredService
                   .append(this.ssoEnabled)
                   .append(this.anonymousAccess)
                   .append(this.ignoreAttributes)
+                  .append(this.statelessServiceTickets)
+                  .append(this.batchLogoutRequests)
                   .append(this.evaluationOrder)
                   .append(this.usernameAttribute)
                   .toHashCode();
@@ -240,6 +248,22 @@ public abstract class AbstractRegisteredService
         this.ignoreAttributes = ignoreAttributes;
     }
 
+    public boolean isStatelessServiceTickets() {
+        return this.statelessServiceTickets;
+    }
+
+    public void setStatelessServiceTickets(final boolean statelessServiceTickets) {
+        this.statelessServiceTickets = statelessServiceTickets;
+    }
+
+    public boolean isBatchLogoutRequests() {
+        return this.batchLogoutRequests;
+    }
+
+    public void setBatchLogoutRequests(final boolean batchLogoutRequests) {
+        this.batchLogoutRequests = batchLogoutRequests;
+    }
+
     public void setEvaluationOrder(final int evaluationOrder) {
         this.evaluationOrder = evaluationOrder;
     }
@@ -295,6 +319,8 @@ public abstract class AbstractRegisteredService
         this.setTheme(source.getTheme());
         this.setAnonymousAccess(source.isAnonymousAccess());
         this.setIgnoreAttributes(source.isIgnoreAttributes());
+        this.setStatelessServiceTickets(source.isStatelessServiceTickets());
+        this.setBatchLogoutRequests(source.isBatchLogoutRequests());
         this.setEvaluationOrder(source.getEvaluationOrder());
         this.setUsernameAttribute(source.getUsernameAttribute());
     }
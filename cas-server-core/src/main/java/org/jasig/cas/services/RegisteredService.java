@@ -55,6 +55,22 @@ public interface RegisteredService extends Cloneable, Serializable {
      */
     boolean isIgnoreAttributes();
 
+    /**
+     * Determines whether service tickets for this service are self-contained signed tokens that are validated
+     * without a ticket registry. Such tickets cannot be used to obtain proxy granting tickets.
+     *
+     * @return true if service tickets are stateless, false if they are kept in the ticket registry.
+     */
+    boolean isStatelessServiceTickets();
+
+    /**
+     * Determines whether the single sign-out requests for this service are batched, several session indexes being
+     * sent in one logout request. The service must process every <code>SessionIndex</code> of a request.
+     *
+     * @return true if logout requests are batched, false if one is sent per session.
+     */
+    boolean isBatchLogoutRequests();
+
     /**
      * Returns the list of allowed attributes.
      * 
@@ -0,0 +1,339 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jasig.cas.util.SpaceSavingSketch;
+
+/**
+ * Counts what each {@link RegisteredService} asks of CAS, and which unregistered services are being rejected.
+ * <p>
+ * Counters are kept per registered service and striped by thread over separate cache lines, so that recording an
+ * event is a lock-free table lookup and an uncontended atomic increment without allocation. Rejected unregistered
+ * service URLs, without their query string, are counted in a {@link SpaceSavingSketch} that keeps the most frequent
+ * ones in bounded memory.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class ServiceUsageMetrics {
+
+    /** Events counted for registered services. */
+    public enum Event {
+        /** A service ticket was granted. */
+        SERVICE_TICKET_GRANTED,
+        /** A service ticket was validated. */
+        VALIDATION_SUCCEEDED,
+        /** A service ticket failed to validate. */
+        VALIDATION_FAILED,
+        /** A proxy granting ticket was granted. */
+        PROXY_GRANTING_TICKET_GRANTED,
+        /** The service was denied access, e.g. because it is disabled or not allowed to proxy. */
+        ACCESS_DENIED
+    }
+
+    /** Number of counters per stripe; one cache line of longs, enough for all events. */
+    private static final int STRIDE = 8;
+
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 16) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    private static final Comparator<ServiceUsage> BY_TOTAL_DESCENDING = new Comparator<ServiceUsage>() {
+        public int compare(final ServiceUsage u1, final ServiceUsage u2) {
+            final long t1 = u1.getTotal();
+            final long t2 = u2.getTotal();
+            return t1 < t2 ? 1 : t1 == t2 ? 0 : -1;
+        }
+    };
+
+    /** Open addressing hash table of counters keyed by registered service id, replaced when it grows. */
+    private volatile Counters[] table = new Counters[64];
+
+    private int size;
+
+    private SpaceSavingSketch unregisteredServices = new SpaceSavingSketch(1000);
+
+
+    /**
+     * Counts an event for a registered service.
+     *
+     * @param registeredService Registered service the event applies to.
+     * @param event Event that occurred.
+     */
+    public void record(final RegisteredService registeredService, final Event event) {
+        final Counters counters = countersFor(registeredService.getId());
+        final String name = registeredService.getName();
+        if (counters.name != name) {
+            counters.name = name;
+        }
+        final int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) + 1;
+        counters.cells.incrementAndGet(stripe * STRIDE + event.ordinal());
+    }
+
+    /**
+     * Counts a rejected request from a service that matches no registered service.
+     *
+     * @param serviceId Id (URL) of the service.
+     */
+    public void recordUnregisteredService(final String serviceId) {
+        final int query = serviceId.indexOf('?');
+        this.unregisteredServices.offer(query < 0 ? serviceId : serviceId.substring(0, query));
+    }
+
+    /**
+     * Gets the number of events counted for a registered service.
+     *
+     * @param registeredServiceId Id of the registered service.
+     * @param event Event to count.
+     *
+     * @return Number of events.
+     */
+    public long getCount(final long registeredServiceId, final Event event) {
+        final Counters counters = find(this.table, registeredServiceId);
+        return counters != null ? counters.sum(event) : 0;
+    }
+
+    /**
+     * Gets the usage of all registered services that recorded at least one event.
+     *
+     * @return Usage per registered service, in no particular order.
+     */
+    public List<ServiceUsage> getServiceUsage() {
+        final List<ServiceUsage> usage = new ArrayList<ServiceUsage>();
+        for (final Counters counters : this.table) {
+            if (counters != null) {
+                final long[] counts = new long[EVENTS.length];
+                for (final Event event : EVENTS) {
+                    counts[event.ordinal()] = counters.sum(event);
+                }
+                usage.add(new ServiceUsage(counters.id, counters.name, counts));
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Gets the registered services that recorded the most events.
+     *
+     * @param limit Maximum number of services to return.
+     *
+     * @return Usage per registered service, most events first.
+     */
+    public List<ServiceUsage> getTopServiceUsage(final int limit) {
+        final List<ServiceUsage> usage = getServiceUsage();
+        Collections.sort(usage, BY_TOTAL_DESCENDING);
+        return usage.size() > limit ? new ArrayList<ServiceUsage>(usage.subList(0, limit)) : usage;
+    }
+
+    /**
+     * Gets the unregistered services that were rejected most often.
+     *
+     * @param limit Maximum number of services to return.
+     *
+     * @return Estimated rejection counts of service URLs, most frequent first.
+     */
+    public List<SpaceSavingSketch.Counter> getTopUnregisteredServices(final int limit) {
+        return this.unregisteredServices.getTop(limit);
+    }
+
+    /**
+     * Sets the number of unregistered service URLs that are tracked.
+     *
+     * @param capacity Number of counters of the heavy hitters sketch. Default is 1000.
+     */
+    public void setUnregisteredServicesCapacity(final int capacity) {
+        this.unregisteredServices = new SpaceSavingSketch(capacity);
+    }
+
+    private Counters countersFor(final long id) {
+        final Counters counters = find(this.table, id);
+        return counters != null ? counters : add(id);
+    }
+
+    private synchronized Counters add(final long id) {
+        Counters[] table = this.table;
+        final Counters existing = find(table, id);
+        if (existing != null) {
+            return existing;
+        }
+        if (2 * (this.size + 1) > table.length) {
+            final Counters[] grown = new Counters[table.length * 2];
+            for (final Counters counters : table) {
+                if (counters != null) {
+                    grown[slot(grown, counters.id)] = counters;
+                }
+            }
+            table = grown;
+        }
+        final Counters counters = new Counters(id);
+        table[slot(table, id)] = counters;
+        this.size++;
+        // publishes the new entry, as well as a grown table
+        this.table = table;
+        return counters;
+    }
+
+    private static Counters find(final Counters[] table, final long id) {
+        final int mask = table.length - 1;
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            final Counters counters = table[i];
+            if (counters == null || counters.id == id) {
+                return counters;
+            }
+        }
+    }
+
+    private static int slot(final Counters[] table, final long id) {
+        final int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int hash(final long id) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+
+    private static final class Counters {
+        private final long id;
+
+        private volatile String name;
+
+        /** Counters of each stripe, after a stripe of padding. */
+        private final AtomicLongArray cells = new AtomicLongArray((STRIPES + 1) * STRIDE);
+
+        public Counters(final long id) {
+            this.id = id;
+        }
+
+        public long sum(final Event event) {
+            long sum = 0;
+            for (int stripe = 1; stripe <= STRIPES; stripe++) {
+                sum += this.cells.get(stripe * STRIDE + event.ordinal());
+            }
+            return sum;
+        }
+    }
+
+
+    /**
+     * Counts of the events of a registered service.
+     */
+    public static final class ServiceUsage {
+
+        private final long id;
+
+        private final String name;
+
+        private final long[] counts;
+
+        private ServiceUsage(final long id, final String name, final long[] counts) {
+            this.id = id;
+            this.name = name;
+            this.counts = counts;
+        }
+
+        /**
+         * @return Id of the registered service.
+         */
+        public long getId() {
+            return this.id;
+        }
+
+        /**
+         * @return Name of the registered service when the last event was counted.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @param event Event to count.
+         *
+         * @return Number of events.
+         */
+        public long getCount(final Event event) {
+            return this.counts[event.ordinal()];
+        }
+
+        /**
+         * @return Number of service tickets granted.
+         */
+        public long getServiceTicketsGranted() {
+            return getCount(Event.SERVICE_TICKET_GRANTED);
+        }
+
+        /**
+         * @return Number of successful service ticket validations.
+         */
+        public long getValidationsSucceeded() {
+            return getCount(Event.VALIDATION_SUCCEEDED);
+        }
+
+        /**
+         * @return Number of failed service ticket validations.
+         */
+        public long getValidationsFailed() {
+            return getCount(Event.VALIDATION_FAILED);
+        }
+
+        /**
+         * @return Number of proxy granting tickets granted.
+         */
+        public long getProxyGrantingTicketsGranted() {
+            return getCount(Event.PROXY_GRANTING_TICKET_GRANTED);
+        }
+
+        /**
+         * @return Number of requests denied.
+         */
+        public long getAccessDenied() {
+            return getCount(Event.ACCESS_DENIED);
+        }
+
+        /**
+         * @return Number of all events.
+         */
+        public long getTotal() {
+            long total = 0;
+            for (final long count : this.counts) {
+                total += count;
+            }
+            return total;
+        }
+    }
+}
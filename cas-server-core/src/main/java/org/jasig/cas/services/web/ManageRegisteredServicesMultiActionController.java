@@ -29,6 +29,7 @@ import javax.validation.constraints.NotNull;
 
 import org.apache.commons.lang.math.NumberUtils;
 import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.ServiceUsageMetrics;
 import org.jasig.cas.services.ServicesManager;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
@@ -53,6 +54,9 @@ public final class ManageRegisteredServicesMultiActionController extends MultiAc
 
     @NotNull
     private final String defaultServiceUrl;
+
+    /** Counters of the requests of each registered service, if enabled. */
+    private ServiceUsageMetrics serviceUsageMetrics;
     
     /**
      * Constructor that takes the required {@link ServicesManager}.
@@ -68,6 +72,14 @@ public final class ManageRegisteredServicesMultiActionController extends MultiAc
         this.defaultServiceUrl = defaultServiceUrl;
     }
 
+    /**
+     * @param serviceUsageMetrics the counters of the requests of each registered service reported by
+     * {@link #usage(HttpServletRequest, HttpServletResponse)}.
+     */
+    public void setServiceUsageMetrics(final ServiceUsageMetrics serviceUsageMetrics) {
+        this.serviceUsageMetrics = serviceUsageMetrics;
+    }
+
     /**
      * Method to delete the RegisteredService by its ID.
      * 
@@ -140,4 +152,24 @@ public final class ManageRegisteredServicesMultiActionController extends MultiAc
         
         return new ModelAndView("jsonView");
     }
+
+    /**
+     * Reports the usage of the registered services that recorded the most events, and the unregistered services
+     * rejected most often. Accepts an optional <code>limit</code> parameter for the number of services of each kind,
+     * which defaults to 100.
+     *
+     * @param request the HttpServletRequest
+     * @param response the HttpServletResponse
+     * @return {@link ModelAndView} object that redirects to a <code>jsonView</code>. The model contains the
+     *         <code>services</code> and the <code>unregisteredServices</code>, most frequent first.
+     */
+    public ModelAndView usage(final HttpServletRequest request, final HttpServletResponse response) {
+        final int limit = NumberUtils.toInt(request.getParameter("limit"), 100);
+        final ModelAndView modelAndView = new ModelAndView("jsonView");
+        if (this.serviceUsageMetrics != null) {
+            modelAndView.addObject("services", this.serviceUsageMetrics.getTopServiceUsage(limit));
+            modelAndView.addObject("unregisteredServices", this.serviceUsageMetrics.getTopUnregisteredServices(limit));
+        }
+        return modelAndView;
+    }
 }
@@ -18,12 +18,18 @@
  */
 package org.jasig.cas.ticket;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import javax.persistence.Column;
+import javax.persistence.Embedded;
 import javax.persistence.Id;
 import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
 import javax.persistence.MappedSuperclass;
 
+import org.jasig.cas.authentication.Authentication;
 import org.springframework.util.Assert;
 
 /**
@@ -41,6 +47,12 @@ import org.springframework.util.Assert;
 @MappedSuperclass
 public abstract class AbstractTicket implements Ticket, TicketState {
 
+    /** Unique Id for serialization, that of tickets serialized before ticket usage was held by {@link TicketUsage}. */
+    private static final long serialVersionUID = -2418635416750736300L;
+
+    private static final AtomicReferenceFieldUpdater<AbstractTicket, TicketUsage> USAGE =
+        AtomicReferenceFieldUpdater.newUpdater(AbstractTicket.class, TicketUsage.class, "usage");
+
     /** The ExpirationPolicy this ticket will be following. */
     // XXX removed final
     @Lob
@@ -56,22 +68,14 @@ public abstract class AbstractTicket implements Ticket, TicketState {
     @ManyToOne
     private TicketGrantingTicketImpl ticketGrantingTicket;
 
-    /** The last time this ticket was used. */
-    @Column(name="LAST_TIME_USED")
-    private long lastTimeUsed;
-
-    /** The previous last time this ticket was used. */
-    @Column(name="PREVIOUS_LAST_TIME_USED")
-    private long previousLastTimeUsed;
+    /** The number of uses and the last two times this ticket was used, replaced as a whole on each use. */
+    @Embedded
+    private volatile TicketUsage usage;
 
     /** The time the ticket was created. */
     @Column(name="CREATION_TIME")
     private long creationTime;
 
-    /** The number of times this was used. */
-    @Column(name="NUMBER_OF_TIMES_USED")
-    private int countOfUses;
-    
     protected AbstractTicket() {
         // nothing to do
     }
@@ -92,7 +96,7 @@ public abstract class AbstractTicket implements Ticket, TicketState {
 
         this.id = id;
         this.creationTime = System.currentTimeMillis();
-        this.lastTimeUsed = System.currentTimeMillis();
+        this.usage = new TicketUsage(this.creationTime);
         this.expirationPolicy = expirationPolicy;
         this.ticketGrantingTicket = ticket;
     }
@@ -101,14 +105,37 @@ public abstract class AbstractTicket implements Ticket, TicketState {
         return this.id;
     }
 
-    protected final void updateState() {
-        this.previousLastTimeUsed = this.lastTimeUsed;
-        this.lastTimeUsed = System.currentTimeMillis();
-        this.countOfUses++;
+    /**
+     * Records a use of this ticket unless it has expired. The expiration check and the update happen atomically:
+     * of concurrent uses of a ticket valid for a single use, exactly one succeeds.
+     *
+     * @return true if the use was recorded, false if the ticket had expired.
+     */
+    protected final boolean updateState() {
+        return use() != null;
+    }
+
+    /**
+     * Records a use of this ticket unless it has expired.
+     *
+     * @return the usage before this use, or null if the ticket had expired and the use was not recorded.
+     */
+    final TicketUsage use() {
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final TicketUsage current = this.usage;
+            // the expiration policy reads this.usage; if it changes meanwhile, the compare-and-set fails and we retry
+            if (isExpired()) {
+                return null;
+            }
+            if (USAGE.compareAndSet(this, current, current.next(now))) {
+                return current;
+            }
+        }
     }
 
     public final int getCountOfUses() {
-        return this.countOfUses;
+        return this.usage.getCountOfUses();
     }
 
     public final long getCreationTime() {
@@ -119,12 +146,26 @@ public abstract class AbstractTicket implements Ticket, TicketState {
         return this.ticketGrantingTicket;
     }
 
+    /**
+     * Replaces the parent ticket with another instance of the same ticket. A ticket deserialized on its own
+     * carries a private copy of its parent; registries that restore tickets one at a time use this to make it
+     * share the parent instance they hold, so that changes to the parent, such as its expiration, apply to it.
+     *
+     * @param ticket another instance of the parent ticket.
+     * @throws IllegalArgumentException if the given ticket is not the parent of this ticket.
+     */
+    public final void relinkGrantingTicket(final TicketGrantingTicketImpl ticket) {
+        Assert.isTrue(this.ticketGrantingTicket != null && this.ticketGrantingTicket.getId().equals(ticket.getId()),
+            "ticket is not the parent of this ticket");
+        this.ticketGrantingTicket = ticket;
+    }
+
     public final long getLastTimeUsed() {
-        return this.lastTimeUsed;
+        return this.usage.getLastTimeUsed();
     }
 
     public final long getPreviousTimeUsed() {
-        return this.previousLastTimeUsed;
+        return this.usage.getPreviousLastTimeUsed();
     }
 
     public final boolean isExpired() {
@@ -135,6 +176,83 @@ public abstract class AbstractTicket implements Ticket, TicketState {
         return false;
     }
 
+    /**
+     * Finds the time at which this ticket expires if it is not used again. Expiration policies judge the time
+     * elapsed since the creation and the last use of a ticket, so the policy is shown this ticket with its times
+     * moved back, and the least delay after which it considers the ticket expired is searched for.
+     *
+     * @param horizon latest time of interest.
+     * @return the time at which this ticket expires, or horizon if it does not expire before.
+     */
+    public final long getExpirationTime(final long horizon) {
+        final long now = System.currentTimeMillis();
+        if (isExpired()) {
+            return now;
+        }
+        long low = 0;
+        long high = horizon - now;
+        if (high <= 0 || !isExpiredAfter(high)) {
+            return horizon;
+        }
+        while (high - low > 1) {
+            final long delay = (low + high) >>> 1;
+            if (isExpiredAfter(delay)) {
+                high = delay;
+            } else {
+                low = delay;
+            }
+        }
+        return now + high;
+    }
+
+    private boolean isExpiredAfter(final long delay) {
+        final TicketUsage current = this.usage;
+        final TicketState state = new TicketState() {
+            public int getCountOfUses() {
+                return current.getCountOfUses();
+            }
+
+            public long getLastTimeUsed() {
+                return current.getLastTimeUsed() - delay;
+            }
+
+            public long getPreviousTimeUsed() {
+                return current.getPreviousLastTimeUsed() - delay;
+            }
+
+            public long getCreationTime() {
+                return AbstractTicket.this.creationTime - delay;
+            }
+
+            public Authentication getAuthentication() {
+                return AbstractTicket.this.getAuthentication();
+            }
+        };
+        return this.expirationPolicy.isExpired(state)
+            || (this.ticketGrantingTicket != null && ((AbstractTicket) this.ticketGrantingTicket).isExpiredAfter(delay));
+    }
+
+    /**
+     * Reads a ticket serialized by this version, or by versions that held its usage in separate fields, so that
+     * tickets persisted by a registry survive an upgrade.
+     */
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        this.expirationPolicy = (ExpirationPolicy) fields.get("expirationPolicy", null);
+        this.id = (String) fields.get("id", null);
+        this.ticketGrantingTicket = (TicketGrantingTicketImpl) fields.get("ticketGrantingTicket", null);
+        this.creationTime = fields.get("creationTime", 0L);
+        final TicketUsage streamedUsage = (TicketUsage) fields.get("usage", null);
+        if (streamedUsage != null) {
+            this.usage = streamedUsage;
+        } else if (fields.getObjectStreamClass().getField("countOfUses") != null) {
+            this.usage = new TicketUsage(
+                fields.get("lastTimeUsed", 0L), fields.get("previousLastTimeUsed", 0L), fields.get("countOfUses", 0));
+        } else {
+            this.usage = new TicketUsage(this.creationTime);
+        }
+    }
+
     public final int hashCode() {
         return 34 ^ this.getId().hashCode();
     }
@@ -0,0 +1,40 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket;
+
+/**
+ * TicketCreationException to alert that a ticket was refused because the ticket registry is full.
+ *
+ * @since 3.5.2
+ */
+public class RegistryFullException extends TicketCreationException {
+
+    /** The Unique Serializable ID. */
+    private static final long serialVersionUID = -2384621507213938470L;
+
+    /** The code description. */
+    private static final String CODE = "REGISTRY_FULL";
+
+    /**
+     * Constructs a RegistryFullException with the default exception code.
+     */
+    public RegistryFullException() {
+        super(CODE);
+    }
+}
@@ -18,6 +18,8 @@
  */
 package org.jasig.cas.ticket;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Lob;
@@ -45,6 +47,9 @@ public final class ServiceTicketImpl extends AbstractTicket implements
     /** Unique Id for serialization. */
     private static final long serialVersionUID = -4223319704861765405L;
 
+    private static final AtomicReferenceFieldUpdater<ServiceTicketImpl, Boolean> GRANTED_TICKET_ALREADY =
+        AtomicReferenceFieldUpdater.newUpdater(ServiceTicketImpl.class, Boolean.class, "grantedTicketAlready");
+
     /** The service this ticket is valid for. */
     @Lob
     @Column(name="SERVICE",nullable=false)
@@ -55,7 +60,7 @@ public final class ServiceTicketImpl extends AbstractTicket implements
     private boolean fromNewLogin;
 
     @Column(name="TICKET_ALREADY_GRANTED",nullable=false)
-    private Boolean grantedTicketAlready = false;
+    private volatile Boolean grantedTicketAlready = false;
     
     public ServiceTicketImpl() {
         // exists for JPA purposes
@@ -94,20 +99,25 @@ public final class ServiceTicketImpl extends AbstractTicket implements
         return this.service;
     }
 
+    /**
+     * Consumes one use of this ticket and checks it was issued for the given service. A ticket presented for another
+     * service is consumed as well. Of concurrent validations of a ticket valid for a single use, exactly one
+     * succeeds.
+     *
+     * @return true if the ticket had not expired before this use and was issued for the given service.
+     */
     public boolean isValidFor(final Service serviceToValidate) {
-        updateState();
-        return serviceToValidate.matches(this.service);
+        final boolean used = updateState();
+        return used && serviceToValidate.matches(this.service);
     }
 
     public TicketGrantingTicket grantTicketGrantingTicket(
         final String id, final Authentication authentication,
         final ExpirationPolicy expirationPolicy) {
-        synchronized (this) {
-            if(this.grantedTicketAlready) {
-                throw new IllegalStateException(
-                    "TicketGrantingTicket already generated for this ServiceTicket.  Cannot grant more than one TGT for ServiceTicket");
-            }
-            this.grantedTicketAlready = true;
+        final Boolean granted = this.grantedTicketAlready;
+        if (granted.booleanValue() || !GRANTED_TICKET_ALREADY.compareAndSet(this, granted, Boolean.TRUE)) {
+            throw new IllegalStateException(
+                "TicketGrantingTicket already generated for this ServiceTicket.  Cannot grant more than one TGT for ServiceTicket");
         }
 
         return new TicketGrantingTicketImpl(id, (TicketGrantingTicketImpl) this.getGrantingTicket(),
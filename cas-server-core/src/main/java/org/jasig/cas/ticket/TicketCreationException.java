@@ -49,4 +49,13 @@ public class TicketCreationException extends TicketException {
     public TicketCreationException(final Throwable throwable) {
         super(CODE, throwable);
     }
+
+    /**
+     * Constructs a TicketCreationException with a more specific exception code.
+     *
+     * @param code the code to describe what type of exception this is.
+     */
+    protected TicketCreationException(final String code) {
+        super(code);
+    }
 }
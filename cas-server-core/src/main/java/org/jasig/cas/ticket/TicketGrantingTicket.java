@@ -50,7 +50,8 @@ public interface TicketGrantingTicket extends Ticket {
      * @param id The unique identifier for this ticket.
      * @param service The service for which we are granting a ticket
      * @return the service ticket granted to a specific service for the
-     * principal of the TicketGrantingTicket
+     * principal of the TicketGrantingTicket, or null if this ticket has
+     * expired
      */
     ServiceTicket grantServiceTicket(String id, Service service,
         ExpirationPolicy expirationPolicy, boolean credentialsProvided);
@@ -18,16 +18,18 @@
  */
 package org.jasig.cas.ticket;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Lob;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.principal.Service;
@@ -56,6 +58,13 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
 
     private static final Logger LOG = LoggerFactory.getLogger(TicketGrantingTicketImpl.class);
 
+    private static final AtomicReferenceFieldUpdater<TicketGrantingTicketImpl, Boolean> EXPIRED =
+        AtomicReferenceFieldUpdater.newUpdater(TicketGrantingTicketImpl.class, Boolean.class, "expired");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<TicketGrantingTicketImpl, HashMap> SERVICES =
+        AtomicReferenceFieldUpdater.newUpdater(TicketGrantingTicketImpl.class, HashMap.class, "services");
+
     /** The authenticated object for which this ticket was generated for. */
     @Lob
     @Column(name="AUTHENTICATION", nullable=false)
@@ -63,12 +72,25 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
 
     /** Flag to enforce manual expiration. */
     @Column(name="EXPIRED", nullable=false)
-    private Boolean expired = false;
-    
+    private volatile Boolean expired = false;
+
+    /** Services granted access to, replaced with an updated copy on each grant. */
     @Lob
     @Column(name="SERVICES_GRANTED_ACCESS_TO", nullable=false)
-    private final HashMap<String,Service> services = new HashMap<String, Service>();
-    
+    private volatile HashMap<String,Service> services = new HashMap<String, Service>();
+
+    /**
+     * Authentications of this ticket and of its ancestors, starting with this ticket's own. Computed on creation and
+     * serialized with the ticket, so that the chain is read without fetching the granting tickets; not persisted by
+     * JPA, which recomputes it on first use.
+     */
+    @Transient
+    private Authentication[] chainedAuthentications;
+
+    /** Read-only view of the chained authentications. */
+    @Transient
+    private transient List<Authentication> chainedAuthenticationList;
+
     public TicketGrantingTicketImpl() {
         // nothing to do
     }
@@ -90,6 +112,7 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
         Assert.notNull(authentication, "authentication cannot be null");
 
         this.authentication = authentication;
+        this.chainedAuthentications = chainAuthentications();
     }
 
     /**
@@ -109,23 +132,38 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
         return this.authentication;
     }
 
-    public synchronized ServiceTicket grantServiceTicket(final String id,
+    public ServiceTicket grantServiceTicket(final String id,
         final Service service, final ExpirationPolicy expirationPolicy,
         final boolean credentialsProvided) {
+        // the usage before this grant tells whether it is the first, even among concurrent grants
+        final TicketUsage previousUsage = use();
+        if (previousUsage == null) {
+            // expired since the caller checked it
+            return null;
+        }
+        final boolean firstUse = previousUsage.getCountOfUses() == 0;
         final ServiceTicket serviceTicket = new ServiceTicketImpl(id, this,
-            service, this.getCountOfUses() == 0 || credentialsProvided,
-            expirationPolicy);
+            service, firstUse || credentialsProvided, expirationPolicy);
 
-        updateState();
-        
         final List<Authentication> authentications = getChainedAuthentications();
         service.setPrincipal(authentications.get(authentications.size()-1).getPrincipal());
-        
-        this.services.put(id, service);
+
+        addService(id, service);
 
         return serviceTicket;
     }
-    
+
+    private void addService(final String id, final Service service) {
+        for (;;) {
+            final HashMap<String, Service> current = this.services;
+            final HashMap<String, Service> updated = new HashMap<String, Service>(current);
+            updated.put(id, service);
+            if (SERVICES.compareAndSet(this, current, updated)) {
+                return;
+            }
+        }
+    }
+
     private void logOutOfServices() {
         for (final Entry<String, Service> entry : this.services.entrySet()) {
 
@@ -139,8 +177,20 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
         return this.getGrantingTicket() == null;
     }
 
-    public synchronized void expire() {
-        this.expired = true;
+    /**
+     * Expires this ticket and notifies the services it granted access to. Only the first of concurrent calls sends
+     * the notifications.
+     */
+    public void expire() {
+        for (;;) {
+            final Boolean current = this.expired;
+            if (current.booleanValue()) {
+                return;
+            }
+            if (EXPIRED.compareAndSet(this, current, Boolean.TRUE)) {
+                break;
+            }
+        }
         logOutOfServices();
     }
 
@@ -149,17 +199,29 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
     }
 
     public List<Authentication> getChainedAuthentications() {
-        final List<Authentication> list = new ArrayList<Authentication>();
-
-        if (this.getGrantingTicket() == null) {
-            list.add(this.getAuthentication());
-            return Collections.unmodifiableList(list);
+        List<Authentication> list = this.chainedAuthenticationList;
+        if (list == null) {
+            if (this.chainedAuthentications == null) {
+                this.chainedAuthentications = chainAuthentications();
+            }
+            list = Collections.unmodifiableList(Arrays.asList(this.chainedAuthentications));
+            this.chainedAuthenticationList = list;
         }
+        return list;
+    }
 
-        list.add(this.getAuthentication());
-        list.addAll(this.getGrantingTicket().getChainedAuthentications());
-
-        return Collections.unmodifiableList(list);
+    private Authentication[] chainAuthentications() {
+        final TicketGrantingTicket parent = this.getGrantingTicket();
+        if (parent == null) {
+            return new Authentication[] {this.authentication};
+        }
+        final List<Authentication> parentAuthentications = parent.getChainedAuthentications();
+        final Authentication[] chain = new Authentication[parentAuthentications.size() + 1];
+        chain[0] = this.authentication;
+        for (int i = 1; i < chain.length; i++) {
+            chain[i] = parentAuthentications.get(i - 1);
+        }
+        return chain;
     }
     
     public final boolean equals(final Object object) {
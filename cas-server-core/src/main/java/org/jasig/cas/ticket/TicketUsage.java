@@ -0,0 +1,91 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * Immutable snapshot of the usage of a ticket: the number of uses and the times of the last two uses.
+ * <p>
+ * Tickets replace their usage with a new snapshot on every use through a compare-and-set, so that the three values
+ * always change together and concurrent uses are neither lost nor need a lock.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+@Embeddable
+public final class TicketUsage implements Serializable {
+
+    /** Unique Id for serialization. */
+    private static final long serialVersionUID = -1928420735562213307L;
+
+    /** The last time the ticket was used. */
+    @Column(name="LAST_TIME_USED")
+    private long lastTimeUsed;
+
+    /** The previous last time the ticket was used. */
+    @Column(name="PREVIOUS_LAST_TIME_USED")
+    private long previousLastTimeUsed;
+
+    /** The number of times the ticket was used. */
+    @Column(name="NUMBER_OF_TIMES_USED")
+    private int countOfUses;
+
+    public TicketUsage() {
+        // exists for JPA purposes
+    }
+
+    /**
+     * Creates the usage of a new ticket.
+     *
+     * @param creationTime the time the ticket was created.
+     */
+    public TicketUsage(final long creationTime) {
+        this(creationTime, 0, 0);
+    }
+
+    TicketUsage(final long lastTimeUsed, final long previousLastTimeUsed, final int countOfUses) {
+        this.lastTimeUsed = lastTimeUsed;
+        this.previousLastTimeUsed = previousLastTimeUsed;
+        this.countOfUses = countOfUses;
+    }
+
+    /**
+     * @param time the time of the use.
+     * @return the usage after one more use at the given time.
+     */
+    public TicketUsage next(final long time) {
+        return new TicketUsage(time, this.lastTimeUsed, this.countOfUses + 1);
+    }
+
+    public long getLastTimeUsed() {
+        return this.lastTimeUsed;
+    }
+
+    public long getPreviousLastTimeUsed() {
+        return this.previousLastTimeUsed;
+    }
+
+    public int getCountOfUses() {
+        return this.countOfUses;
+    }
+}
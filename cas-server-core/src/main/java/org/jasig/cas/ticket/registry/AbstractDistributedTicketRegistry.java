@@ -41,6 +41,15 @@ public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRe
 
     protected abstract boolean needsCallback();
 
+    /**
+     * Returns the ticket itself rather than a proxy, so that using it does not write it back to the registry.
+     */
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        final Ticket ticket = super.consumeTicket(ticketId);
+        return ticket instanceof TicketDelegator ? ((TicketDelegator<?>) ticket).getTicket() : ticket;
+    }
+
     protected final Ticket getProxiedTicketInstance(final Ticket ticket) {
         if (ticket == null) {
             return null;
@@ -59,6 +59,16 @@ public abstract class AbstractTicketRegistry implements TicketRegistry, TicketRe
 
         return ticket;
     }
+
+    /**
+     * Gets the ticket, then deletes it. The ticket is returned only if the delete succeeded, which makes this
+     * implementation atomic for registries whose deletes are. Registries should override it with a single operation
+     * on their store where one exists.
+     */
+    public Ticket consumeTicket(final String ticketId) {
+        final Ticket ticket = this.getTicket(ticketId);
+        return ticket != null && this.deleteTicket(ticketId) ? ticket : null;
+    }
     
     public int sessionCount() {
       log.debug("sessionCount() operation is not implemented by the ticket registry instance {}. Returning unknown as {}", 
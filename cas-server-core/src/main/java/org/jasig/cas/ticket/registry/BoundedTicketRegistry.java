@@ -0,0 +1,553 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.github.inspektr.common.web.ClientInfo;
+import com.github.inspektr.common.web.ClientInfoHolder;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.registry.support.TicketJournal;
+import org.springframework.util.Assert;
+
+/**
+ * Ticket registry decorator that caps the number of tickets held by an in-memory registry, so that a flood of
+ * logins cannot exhaust the heap.
+ * <p>
+ * The registry enforces a maximum number of TGTs, a maximum number of service tickets and a budget of estimated
+ * bytes, estimated from the serialized size of a sample of the tickets added. When a new TGT would exceed a cap,
+ * the registry refuses it outright if the client is one of the most active sources of TGTs in the current window;
+ * otherwise it makes room by evicting a batch of the least recently used idle root TGTs, notifying their services
+ * of the logout. Tickets that still do not fit are refused with a {@link TicketRegistryFullException}, which the
+ * central authentication service reports as a {@link org.jasig.cas.ticket.RegistryFullException}.
+ * </p>
+ * <p>
+ * Root TGTs are kept in a queue in creation order. Eviction takes idle TGTs from the head of the queue and moves
+ * TGTs used since they were queued to its tail, which approximates least recently used order while examining a
+ * bounded number of TGTs per eviction rather than scanning the registry.
+ * </p>
+ * <p>
+ * The counts kept by this registry are only accurate if all tickets are added and removed through it, including by
+ * the registry cleaner. Example configuration:
+ * </p>
+ * <pre>
+ * &lt;bean id="ticketRegistry" class="org.jasig.cas.ticket.registry.BoundedTicketRegistry"
+ *     p:maxTicketGrantingTickets="500000" p:maxServiceTickets="100000" p:maxEstimatedBytes="1073741824"&gt;
+ *   &lt;constructor-arg&gt;
+ *     &lt;bean class="org.jasig.cas.ticket.registry.DefaultTicketRegistry" /&gt;
+ *   &lt;/constructor-arg&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * @since 3.5.2
+ */
+public final class BoundedTicketRegistry extends AbstractTicketRegistry {
+
+    /** One in this many tickets added is serialized to refine the size estimates. */
+    private static final int SAMPLE_INTERVAL = 64;
+
+    /** Minimum interval in milliseconds between computations of the most active sources. */
+    private static final long HEAVY_SOURCES_REFRESH_INTERVAL = 1000;
+
+    /** Maximum number of queued TGTs examined per TGT to evict. */
+    private static final int MAX_EXAMINED_PER_EVICTION = 4;
+
+    /** Number of queued TGTs beyond twice the number of TGTs after which removed TGTs are pruned from the queue. */
+    private static final int EVICTION_QUEUE_SLACK = 1024;
+
+    /** Registry holding the tickets. */
+    @NotNull
+    private final TicketRegistry delegate;
+
+    @Min(1)
+    private int maxTicketGrantingTickets = 1000000;
+
+    @Min(1)
+    private int maxServiceTickets = 1000000;
+
+    @Min(1)
+    private long maxEstimatedBytes = Long.MAX_VALUE;
+
+    /** Milliseconds since last use after which a TGT may be evicted. */
+    @Min(0)
+    private long minIdleTime = 5 * 60 * 1000;
+
+    @Min(1)
+    private int evictionBatchSize = 1000;
+
+    /** Whether services are notified of the logout of evicted TGTs. */
+    private boolean notifyServicesOnEviction = true;
+
+    /** Milliseconds over which TGT creations are counted per source. */
+    @Min(1)
+    private long sourceWindow = 60 * 1000;
+
+    /** Number of most active sources refused when the registry is full. */
+    @Min(0)
+    private int heavySourceCount = 10;
+
+    /** Minimum number of TGTs created in the current window for a source to be refused. */
+    @Min(1)
+    private int heavySourceThreshold = 5;
+
+    @Min(1)
+    private int maxTrackedSources = 10000;
+
+    private final AtomicInteger ticketGrantingTicketCount = new AtomicInteger();
+
+    private final AtomicInteger serviceTicketCount = new AtomicInteger();
+
+    private final AtomicInteger sampleCounter = new AtomicInteger();
+
+    private volatile long averageTicketGrantingTicketBytes = 2048;
+
+    private volatile long averageServiceTicketBytes = 512;
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /** TGTs created per client IP address in the current window. */
+    private final ConcurrentHashMap<String, AtomicInteger> sourceCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private volatile long windowStart = System.currentTimeMillis();
+
+    private volatile Set<String> heavySources = Collections.emptySet();
+
+    private volatile long heavySourcesComputedAt;
+
+    /** Root TGTs roughly from least to most recently used, including removed TGTs not yet pruned. */
+    private final Queue<TicketGrantingTicket> evictionQueue = new ConcurrentLinkedQueue<TicketGrantingTicket>();
+
+    private final AtomicInteger evictionQueueSize = new AtomicInteger();
+
+    /** Held by the single thread evicting TGTs or pruning the eviction queue. */
+    private final Lock evictionLock = new ReentrantLock();
+
+
+    /**
+     * Creates a new registry bounding the given registry.
+     *
+     * @param delegate In-memory registry holding the tickets.
+     */
+    public BoundedTicketRegistry(final TicketRegistry delegate) {
+        this.delegate = delegate;
+    }
+
+
+    /**
+     * Adds a ticket if it fits within the caps, evicting idle TGTs if needed to make room for a new TGT.
+     *
+     * @param ticket Ticket to add.
+     *
+     * @throws TicketRegistryFullException if the ticket does not fit.
+     */
+    public void addTicket(final Ticket ticket) {
+        Assert.notNull(ticket, "ticket cannot be null");
+        if (ticket instanceof TicketGrantingTicket) {
+            final String source = getClientIpAddress();
+            recordSource(source);
+            if (!reserve(this.ticketGrantingTicketCount, this.maxTicketGrantingTickets,
+                    this.averageTicketGrantingTicketBytes)) {
+                if (source != null && getHeavySources().contains(source)) {
+                    throw reject(ticket, "source " + source + " is among the most active");
+                }
+                evictIdleTicketGrantingTickets();
+                if (!reserve(this.ticketGrantingTicketCount, this.maxTicketGrantingTickets,
+                        this.averageTicketGrantingTicketBytes)) {
+                    throw reject(ticket, "no idle TGT could be evicted");
+                }
+            }
+            sample(ticket);
+            addReserved(ticket, this.ticketGrantingTicketCount);
+            if (((TicketGrantingTicket) ticket).isRoot()) {
+                enqueue((TicketGrantingTicket) ticket);
+            }
+        } else if (ticket instanceof ServiceTicket) {
+            if (!reserve(this.serviceTicketCount, this.maxServiceTickets, this.averageServiceTicketBytes)) {
+                throw reject(ticket, "service ticket cap reached");
+            }
+            sample(ticket);
+            addReserved(ticket, this.serviceTicketCount);
+        } else {
+            this.delegate.addTicket(ticket);
+        }
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        return this.delegate.getTicket(ticketId);
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        final Ticket ticket = this.delegate.getTicket(ticketId);
+        if (ticket == null || !this.delegate.deleteTicket(ticketId)) {
+            return false;
+        }
+        if (ticket instanceof TicketGrantingTicket) {
+            this.ticketGrantingTicketCount.decrementAndGet();
+        } else if (ticket instanceof ServiceTicket) {
+            this.serviceTicketCount.decrementAndGet();
+        }
+        return true;
+    }
+
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        final Ticket ticket = this.delegate.consumeTicket(ticketId);
+        if (ticket instanceof TicketGrantingTicket) {
+            this.ticketGrantingTicketCount.decrementAndGet();
+        } else if (ticket instanceof ServiceTicket) {
+            this.serviceTicketCount.decrementAndGet();
+        }
+        return ticket;
+    }
+
+    public Collection<Ticket> getTickets() {
+        return this.delegate.getTickets();
+    }
+
+    @Override
+    public int sessionCount() {
+        return this.ticketGrantingTicketCount.get();
+    }
+
+    @Override
+    public int serviceTicketCount() {
+        return this.serviceTicketCount.get();
+    }
+
+    /**
+     * @return Ratio of the most used cap, from 0 for an empty registry to 1 for a full one.
+     */
+    public double getPressure() {
+        final double tgtRatio = (double) this.ticketGrantingTicketCount.get() / this.maxTicketGrantingTickets;
+        final double stRatio = (double) this.serviceTicketCount.get() / this.maxServiceTickets;
+        final double bytesRatio = (double) getEstimatedBytes() / this.maxEstimatedBytes;
+        return Math.max(tgtRatio, Math.max(stRatio, bytesRatio));
+    }
+
+    /**
+     * @return Estimated number of bytes held by the tickets in the registry.
+     */
+    public long getEstimatedBytes() {
+        return this.ticketGrantingTicketCount.get() * this.averageTicketGrantingTicketBytes
+                + this.serviceTicketCount.get() * this.averageServiceTicketBytes;
+    }
+
+    /**
+     * @return Total number of TGTs evicted to make room for new ones.
+     */
+    public long getEvictedCount() {
+        return this.evictedCount.get();
+    }
+
+    /**
+     * @return Total number of tickets refused because the registry was full.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @param max Maximum number of TGTs, including proxy-granting tickets. Default is 1000000.
+     */
+    public void setMaxTicketGrantingTickets(final int max) {
+        this.maxTicketGrantingTickets = max;
+    }
+
+    /**
+     * @param max Maximum number of service tickets, including proxy tickets. Default is 1000000.
+     */
+    public void setMaxServiceTickets(final int max) {
+        this.maxServiceTickets = max;
+    }
+
+    /**
+     * @param max Maximum estimated number of bytes held by tickets. Default is unlimited.
+     */
+    public void setMaxEstimatedBytes(final long max) {
+        this.maxEstimatedBytes = max;
+    }
+
+    /**
+     * @param time Milliseconds since last use after which a TGT may be evicted. Default is 5 minutes.
+     */
+    public void setMinIdleTime(final long time) {
+        this.minIdleTime = time;
+    }
+
+    /**
+     * @param size Maximum number of TGTs evicted at once when the registry is full. Default is 1000.
+     */
+    public void setEvictionBatchSize(final int size) {
+        this.evictionBatchSize = size;
+    }
+
+    /**
+     * @param notify Whether services are notified of the logout of evicted TGTs. Default is true.
+     */
+    public void setNotifyServicesOnEviction(final boolean notify) {
+        this.notifyServicesOnEviction = notify;
+    }
+
+    /**
+     * @param window Milliseconds over which TGT creations are counted per client IP address. Default is 1 minute.
+     */
+    public void setSourceWindow(final long window) {
+        this.sourceWindow = window;
+    }
+
+    /**
+     * @param count Number of most active client IP addresses refused when the registry is full. Default is 10.
+     */
+    public void setHeavySourceCount(final int count) {
+        this.heavySourceCount = count;
+    }
+
+    /**
+     * @param threshold Minimum number of TGTs created by a client IP address in the current window for it to be
+     * refused when the registry is full. Default is 5.
+     */
+    public void setHeavySourceThreshold(final int threshold) {
+        this.heavySourceThreshold = threshold;
+    }
+
+    /**
+     * @param max Maximum number of client IP addresses tracked per window. Default is 10000.
+     */
+    public void setMaxTrackedSources(final int max) {
+        this.maxTrackedSources = max;
+    }
+
+    private boolean hasRoomForTicketGrantingTicket() {
+        return this.ticketGrantingTicketCount.get() < this.maxTicketGrantingTickets
+                && getEstimatedBytes() + this.averageTicketGrantingTicketBytes <= this.maxEstimatedBytes;
+    }
+
+    /**
+     * Takes a slot for a ticket, so that concurrent additions cannot exceed the caps.
+     *
+     * @param count Count of tickets of the type added.
+     * @param max Cap on that count.
+     * @param ticketBytes Estimated size of a ticket of that type.
+     *
+     * @return true if a slot was taken, false if the registry is full.
+     */
+    private boolean reserve(final AtomicInteger count, final int max, final long ticketBytes) {
+        for (;;) {
+            final int current = count.get();
+            if (current >= max || getEstimatedBytes() + ticketBytes > this.maxEstimatedBytes) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void addReserved(final Ticket ticket, final AtomicInteger count) {
+        try {
+            this.delegate.addTicket(ticket);
+        } catch (final RuntimeException e) {
+            count.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private TicketRegistryFullException reject(final Ticket ticket, final String reason) {
+        this.rejectedCount.incrementAndGet();
+        log.warn("Refusing ticket {}: registry full, {}", ticket.getId(), reason);
+        return new TicketRegistryFullException("Ticket registry is full; " + reason);
+    }
+
+    private void enqueue(final TicketGrantingTicket ticket) {
+        this.evictionQueue.offer(ticket);
+        final int queued = this.evictionQueueSize.incrementAndGet();
+        // Amortized over at least as many additions as there are TGTs
+        if (queued > 2 * this.ticketGrantingTicketCount.get() + EVICTION_QUEUE_SLACK && this.evictionLock.tryLock()) {
+            try {
+                int pruned = 0;
+                final Iterator<TicketGrantingTicket> it = this.evictionQueue.iterator();
+                while (it.hasNext()) {
+                    if (this.delegate.getTicket(it.next().getId()) == null) {
+                        it.remove();
+                        pruned++;
+                    }
+                }
+                this.evictionQueueSize.addAndGet(-pruned);
+                log.debug("Pruned {} removed TGTs from the eviction queue", pruned);
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evicts approximately least recently used root TGTs idle for longer than the minimum idle time. A single thread
+     * evicts at a time; concurrent callers wait for it, then evict only if it did not make room.
+     */
+    private void evictIdleTicketGrantingTickets() {
+        this.evictionLock.lock();
+        try {
+            if (hasRoomForTicketGrantingTicket()) {
+                return;
+            }
+            final long idleSince = System.currentTimeMillis() - this.minIdleTime;
+            final int maxExamined = MAX_EXAMINED_PER_EVICTION * this.evictionBatchSize;
+            int count = 0;
+            for (int examined = 0; count < this.evictionBatchSize && examined < maxExamined; examined++) {
+                final TicketGrantingTicket queued = this.evictionQueue.poll();
+                if (queued == null) {
+                    break;
+                }
+                final Ticket ticket = this.delegate.getTicket(queued.getId());
+                if (ticket == null) {
+                    this.evictionQueueSize.decrementAndGet();
+                    continue;
+                }
+                if (lastTimeUsed(ticket) > idleSince) {
+                    // Used within the minimum idle time, so move it behind the TGTs idle for longer
+                    this.evictionQueue.offer(queued);
+                    continue;
+                }
+                this.evictionQueueSize.decrementAndGet();
+                final TicketGrantingTicket tgt = (TicketGrantingTicket) ticket;
+                if (this.notifyServicesOnEviction) {
+                    try {
+                        tgt.expire();
+                    } catch (final RuntimeException e) {
+                        log.warn("Cannot notify services of the logout of evicted ticket {}: {}", tgt.getId(), e.getMessage());
+                    }
+                }
+                if (deleteTicket(tgt.getId())) {
+                    count++;
+                }
+            }
+            this.evictedCount.addAndGet(count);
+            if (count > 0) {
+                log.info("Evicted {} idle TGTs; registry pressure is {}", count, getPressure());
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Refines the estimated size of tickets of the type of the given ticket with an exponential moving average of
+     * sampled serialized sizes.
+     */
+    private void sample(final Ticket ticket) {
+        if (this.sampleCounter.incrementAndGet() % SAMPLE_INTERVAL != 0) {
+            return;
+        }
+        final int size;
+        try {
+            size = TicketJournal.serialize(ticket).length;
+        } catch (final IllegalArgumentException e) {
+            log.debug("Cannot sample size of ticket {}: {}", ticket.getId(), e.getMessage());
+            return;
+        }
+        if (ticket instanceof TicketGrantingTicket) {
+            this.averageTicketGrantingTicketBytes = (7 * this.averageTicketGrantingTicketBytes + size) / 8;
+        } else {
+            this.averageServiceTicketBytes = (7 * this.averageServiceTicketBytes + size) / 8;
+        }
+    }
+
+    private void recordSource(final String source) {
+        final long now = System.currentTimeMillis();
+        if (now - this.windowStart > this.sourceWindow) {
+            this.windowStart = now;
+            this.sourceCounts.clear();
+        }
+        if (source == null) {
+            return;
+        }
+        AtomicInteger count = this.sourceCounts.get(source);
+        if (count == null) {
+            if (this.sourceCounts.size() >= this.maxTrackedSources) {
+                return;
+            }
+            count = new AtomicInteger();
+            final AtomicInteger existing = this.sourceCounts.putIfAbsent(source, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return Client IP addresses among the most active sources of TGTs in the current window, recomputed at most
+     * once per second.
+     */
+    private Set<String> getHeavySources() {
+        final long now = System.currentTimeMillis();
+        if (now - this.heavySourcesComputedAt < HEAVY_SOURCES_REFRESH_INTERVAL) {
+            return this.heavySources;
+        }
+        final List<Map.Entry<String, AtomicInteger>> entries = new ArrayList<Map.Entry<String, AtomicInteger>>();
+        for (final Map.Entry<String, AtomicInteger> entry : this.sourceCounts.entrySet()) {
+            if (entry.getValue().get() >= this.heavySourceThreshold) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicInteger>>() {
+            public int compare(final Map.Entry<String, AtomicInteger> e1, final Map.Entry<String, AtomicInteger> e2) {
+                return e2.getValue().get() - e1.getValue().get();
+            }
+        });
+        final Set<String> sources = new HashSet<String>();
+        for (int i = 0; i < entries.size() && i < this.heavySourceCount; i++) {
+            sources.add(entries.get(i).getKey());
+        }
+        this.heavySources = sources;
+        this.heavySourcesComputedAt = now;
+        return sources;
+    }
+
+    private static long lastTimeUsed(final Ticket ticket) {
+        return ((TicketState) ticket).getLastTimeUsed();
+    }
+
+    private static String getClientIpAddress() {
+        final ClientInfo clientInfo = ClientInfoHolder.getClientInfo();
+        return clientInfo != null ? clientInfo.getClientIpAddress() : null;
+    }
+}
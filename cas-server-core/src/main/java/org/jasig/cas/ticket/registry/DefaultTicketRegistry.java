@@ -101,6 +101,18 @@ public final class DefaultTicketRegistry extends AbstractTicketRegistry  {
         return (this.cache.remove(ticketId) != null);
     }
 
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Consuming ticket [" + ticketId + "] from registry");
+        }
+
+        return this.cache.remove(ticketId);
+    }
+
     public Collection<Ticket> getTickets() {
         return Collections.unmodifiableCollection(this.cache.values());
     }
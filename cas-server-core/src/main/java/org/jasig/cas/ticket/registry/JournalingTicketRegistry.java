@@ -0,0 +1,335 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.monitor.TicketRegistryState;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.support.TicketChange;
+import org.jasig.cas.ticket.registry.support.TicketJournal;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Ticket registry decorator that persists the contents of an in-memory registry to a {@link TicketJournal} on
+ * local disk, so that sessions survive a restart of the CAS node.
+ * <p>
+ * Changes are handed to a background writer through a bounded queue and never block the caller. The writer
+ * appends them to the memory-mapped journal in batches and forces each batch to disk with a single sync (group
+ * commit), so a crash loses at most the changes of the batch in flight. Once the journal has grown past the
+ * snapshot threshold, the writer replaces it with a compact snapshot of the registry; the same happens if the
+ * queue ever overflows, since the dropped changes are reflected in the registry itself.
+ * </p>
+ * <p>
+ * On startup the snapshot and journal are replayed into the wrapped registry on parallel threads, omitting tickets
+ * that expired while the node was down. The wrapped registry must hold live ticket instances, as
+ * {@link DefaultTicketRegistry} does. Example configuration:
+ * </p>
+ * <pre>
+ * &lt;bean id="ticketRegistry" class="org.jasig.cas.ticket.registry.JournalingTicketRegistry"
+ *     c:delegate-ref="localTicketRegistry" c:directory="/var/lib/cas/journal"
+ *     p:segmentSize="67108864" p:snapshotThreshold="268435456" /&gt;
+ * </pre>
+ *
+ * @since 3.5.2
+ */
+public final class JournalingTicketRegistry extends AbstractDistributedTicketRegistry
+        implements InitializingBean, DisposableBean, Runnable {
+
+    /** Registry holding the tickets. */
+    @NotNull
+    private final TicketRegistry delegate;
+
+    /** Journal directory. */
+    @NotNull
+    private final File directory;
+
+    /** Size in bytes of journal segments. */
+    @Min(4096)
+    private int segmentSize = 64 * 1024 * 1024;
+
+    /** Journal size in bytes beyond which a snapshot is written. */
+    @Min(0)
+    private long snapshotThreshold = 256L * 1024 * 1024;
+
+    /** Maximum number of changes written per sync. */
+    @Min(1)
+    private int batchSize = 1024;
+
+    /** Maximum number of queued changes. */
+    @Min(1)
+    private int queueCapacity = 100000;
+
+    /** Number of threads replaying the journal on startup. */
+    @Min(1)
+    private int replayThreads = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicBoolean snapshotRequired = new AtomicBoolean();
+
+    private final AtomicLong journaledCount = new AtomicLong();
+
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private BlockingQueue<Mutation> queue;
+
+    private TicketJournal journal;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    private volatile long replayMillis;
+
+
+    /**
+     * Creates a new registry journaling to the given directory.
+     *
+     * @param delegate In-memory registry holding the tickets.
+     * @param directory Journal directory, which is created if needed.
+     */
+    public JournalingTicketRegistry(final TicketRegistry delegate, final File directory) {
+        this.delegate = delegate;
+        this.directory = directory;
+    }
+
+
+    public void afterPropertiesSet() throws Exception {
+        this.queue = new ArrayBlockingQueue<Mutation>(this.queueCapacity);
+        this.journal = new TicketJournal(this.directory, this.segmentSize);
+        final long start = System.currentTimeMillis();
+        final long count = this.journal.replay(this.delegate, this.replayThreads);
+        this.replayMillis = System.currentTimeMillis() - start;
+        log.info("Replayed {} journaled changes from {} in {} ms", new Object[] {count, this.directory, this.replayMillis});
+        // Compact what was replayed before accepting new changes
+        this.snapshotRequired.set(count > 0);
+        this.running = true;
+        this.writerThread = new Thread(this, "JournalingTicketRegistry-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public void destroy() throws Exception {
+        this.running = false;
+        if (this.writerThread != null) {
+            this.writerThread.join();
+        }
+    }
+
+    public void run() {
+        final List<Mutation> batch = new ArrayList<Mutation>(this.batchSize);
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                if (this.snapshotRequired.getAndSet(false)
+                        || this.journal.getBytesSinceSnapshot() > this.snapshotThreshold) {
+                    // Changes made from here on are queued; those made before are reflected in the registry
+                    this.queue.clear();
+                    final int count = this.journal.snapshot(this.delegate.getTickets());
+                    log.info("Wrote journal snapshot of {} tickets", count);
+                }
+                final Mutation first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                this.queue.drainTo(batch, this.batchSize - 1);
+                final long now = System.currentTimeMillis();
+                for (final Mutation mutation : batch) {
+                    this.journal.append(new TicketChange(
+                            mutation.type,
+                            this.journal.nextSequence(),
+                            now,
+                            mutation.ticketId,
+                            mutation.ticket != null ? TicketJournal.serialize(mutation.ticket) : null));
+                }
+                this.journal.sync();
+                this.journaledCount.addAndGet(batch.size());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (final Exception e) {
+                log.error("Failed writing ticket journal; scheduling snapshot", e);
+                this.snapshotRequired.set(true);
+                try {
+                    Thread.sleep(1000);
+                } catch (final InterruptedException ie) {
+                    break;
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        this.journal.sync();
+    }
+
+    public void addTicket(final Ticket ticket) {
+        this.delegate.addTicket(ticket);
+        publish(TicketChange.Type.ADD, ticket.getId(), ticket);
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        return getProxiedTicketInstance(this.delegate.getTicket(ticketId));
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        if (this.delegate.deleteTicket(ticketId)) {
+            publish(TicketChange.Type.DELETE, ticketId, null);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        final Ticket ticket = this.delegate.consumeTicket(ticketId);
+        if (ticket != null) {
+            publish(TicketChange.Type.DELETE, ticketId, null);
+        }
+        return ticket;
+    }
+
+    public Collection<Ticket> getTickets() {
+        return this.delegate.getTickets();
+    }
+
+    @Override
+    public int sessionCount() {
+        return this.delegate instanceof TicketRegistryState
+                ? ((TicketRegistryState) this.delegate).sessionCount() : Integer.MIN_VALUE;
+    }
+
+    @Override
+    public int serviceTicketCount() {
+        return this.delegate instanceof TicketRegistryState
+                ? ((TicketRegistryState) this.delegate).serviceTicketCount() : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return Number of changes waiting to be written.
+     */
+    public int getPendingChanges() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return Number of changes written to the journal.
+     */
+    public long getJournaledCount() {
+        return this.journaledCount.get();
+    }
+
+    /**
+     * @return Number of changes dropped because the queue was full, each scheduling a snapshot.
+     */
+    public long getOverflowCount() {
+        return this.overflowCount.get();
+    }
+
+    /**
+     * @return Duration in milliseconds of the journal replay on startup.
+     */
+    public long getReplayMillis() {
+        return this.replayMillis;
+    }
+
+    /**
+     * @param size Size in bytes of journal segments. Default is 64 MB.
+     */
+    public void setSegmentSize(final int size) {
+        this.segmentSize = size;
+    }
+
+    /**
+     * @param threshold Journal size in bytes beyond which a snapshot is written. Default is 256 MB.
+     */
+    public void setSnapshotThreshold(final long threshold) {
+        this.snapshotThreshold = threshold;
+    }
+
+    /**
+     * @param size Maximum number of changes written per sync. Default is 1024.
+     */
+    public void setBatchSize(final int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * @param capacity Maximum number of queued changes. Default is 100000.
+     */
+    public void setQueueCapacity(final int capacity) {
+        this.queueCapacity = capacity;
+    }
+
+    /**
+     * @param threads Number of threads replaying the journal on startup. Default is the number of processors.
+     */
+    public void setReplayThreads(final int threads) {
+        this.replayThreads = threads;
+    }
+
+    @Override
+    protected void updateTicket(final Ticket ticket) {
+        // Do not let an update through a stale reference resurrect a deleted ticket on replay
+        if (this.delegate.getTicket(ticket.getId()) != null) {
+            publish(TicketChange.Type.UPDATE, ticket.getId(), ticket);
+        }
+    }
+
+    @Override
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    private void publish(final TicketChange.Type type, final String ticketId, final Ticket ticket) {
+        if (!this.queue.offer(new Mutation(type, ticketId, ticket))) {
+            this.overflowCount.incrementAndGet();
+            this.snapshotRequired.set(true);
+        }
+    }
+
+
+    /**
+     * Queued change. Ticket state is captured by the writer, so the journal records the latest state of the ticket
+     * regardless of the order in which concurrent updates were queued.
+     */
+    private static final class Mutation {
+
+        private final TicketChange.Type type;
+
+        private final String ticketId;
+
+        private final Ticket ticket;
+
+        public Mutation(final TicketChange.Type type, final String ticketId, final Ticket ticket) {
+            this.type = type;
+            this.ticketId = ticketId;
+            this.ticket = ticket;
+        }
+    }
+}
@@ -83,6 +83,28 @@ public final class JpaTicketRegistry extends AbstractDistributedTicketRegistry {
         return true;
     }
     
+    /**
+     * Locks the row of the ticket until the transaction completes and deletes it, so that concurrent transactions
+     * consuming the same ticket wait and then find nothing.
+     */
+    @Override
+    @Transactional(readOnly = false)
+    public Ticket consumeTicket(final String ticketId) {
+        final Ticket ticket = getRawTicket(ticketId, LockModeType.PESSIMISTIC_WRITE);
+
+        if (ticket == null) {
+            return null;
+        }
+
+        if (ticket instanceof ServiceTicket) {
+            removeTicket(ticket);
+        } else {
+            deleteTicketAndChildren(ticket);
+        }
+        log.debug("Consumed ticket [{}] from the registry.", ticket);
+        return ticket;
+    }
+
     private void deleteTicketAndChildren(final Ticket ticket) {
         final List<TicketGrantingTicketImpl> ticketGrantingTicketImpls = entityManager
             .createQuery("select t from TicketGrantingTicketImpl t where t.ticketGrantingTicket.id = :id", TicketGrantingTicketImpl.class)
@@ -123,12 +145,16 @@ public final class JpaTicketRegistry extends AbstractDistributedTicketRegistry {
     }
     
     private Ticket getRawTicket(final String ticketId) {
+        return getRawTicket(ticketId, LockModeType.NONE);
+    }
+
+    private Ticket getRawTicket(final String ticketId, final LockModeType serviceTicketLockMode) {
         try {
             if (ticketId.startsWith(this.ticketGrantingTicketPrefix)) {
                 return entityManager.find(TicketGrantingTicketImpl.class, ticketId, LockModeType.PESSIMISTIC_WRITE);
             }
             
-            return entityManager.find(ServiceTicketImpl.class, ticketId);
+            return entityManager.find(ServiceTicketImpl.class, ticketId, serviceTicketLockMode);
         } catch (final Exception e) {
             log.error("Error getting ticket {} from registry.", ticketId, e);
         }
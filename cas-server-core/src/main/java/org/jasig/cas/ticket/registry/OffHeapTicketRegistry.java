@@ -0,0 +1,499 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.registry.support.SlabAllocator;
+import org.jasig.cas.ticket.registry.support.TicketJournal;
+
+/**
+ * Ticket registry that stores serialized tickets in direct memory outside the Java heap, so that the number of
+ * sessions has little effect on garbage collection pauses.
+ * <p>
+ * Tickets are written to chunks obtained from a {@link SlabAllocator}. They are located through an index made of
+ * primitive arrays only: ticket IDs are hashed to 64 bits and looked up by open addressing with linear probing in
+ * one of several independently locked index segments, and the full ID stored in the chunk is compared to rule out
+ * hash collisions. Each index entry also records a removal deadline, computed from the time the ticket was last
+ * used and the timeout configured for its type, so that {@link #removeExpired()} finds candidates for removal
+ * without deserializing any ticket. Only candidates are deserialized to confirm expiry with their expiration
+ * policy.
+ * </p>
+ * <p>
+ * Every read deserializes a copy of the ticket, so updates are written back through {@link #updateTicket(Ticket)}
+ * as with other distributed registries. Example configuration, with removal of expired tickets scheduled in
+ * place of the registry cleaner:
+ * </p>
+ * <pre>
+ * &lt;bean id="ticketRegistry" class="org.jasig.cas.ticket.registry.OffHeapTicketRegistry"
+ *     c:capacity="4294967296" c:ticketGrantingTicketTimeOut="28800" c:serviceTicketTimeOut="300" /&gt;
+ * &lt;bean id="jobDetailTicketRegistryCleaner" class="org.springframework.scheduling.quartz.MethodInvokingJobDetailFactoryBean"
+ *     p:targetObject-ref="ticketRegistry" p:targetMethod="removeExpired" /&gt;
+ * </pre>
+ * <p>
+ * Direct memory must be permitted with <code>-XX:MaxDirectMemorySize</code> of at least the capacity.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class OffHeapTicketRegistry extends AbstractDistributedTicketRegistry {
+
+    /** Number of independently locked index segments. */
+    private static final int SEGMENTS = 16;
+
+    /** Hash of an empty index slot. */
+    private static final long EMPTY = 0;
+
+    /** Hash of a slot whose entry was removed. */
+    private static final long REMOVED = 1;
+
+    private static final byte TYPE_TGT = 1;
+
+    private static final byte TYPE_ST = 2;
+
+    @NotNull
+    private final SlabAllocator allocator;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /** TGT timeout in milliseconds. */
+    @Min(0)
+    private final long tgtTimeout;
+
+    /** ST timeout in milliseconds. */
+    @Min(0)
+    private final long stTimeout;
+
+    private final AtomicInteger ticketGrantingTicketCount = new AtomicInteger();
+
+    private final AtomicInteger serviceTicketCount = new AtomicInteger();
+
+    /** Flag indicating whether expired TGTs are expired to log users out of services before removal. */
+    private boolean logUserOutOfServices = true;
+
+
+    /**
+     * Creates a new registry.
+     *
+     * @param capacity Maximum number of bytes of direct memory used for tickets.
+     * @param ticketGrantingTicketTimeOut TGT timeout in seconds after last use.
+     * @param serviceTicketTimeOut ST timeout in seconds after last use.
+     */
+    public OffHeapTicketRegistry(
+            final long capacity, final int ticketGrantingTicketTimeOut, final int serviceTicketTimeOut) {
+        this.allocator = new SlabAllocator(capacity);
+        this.tgtTimeout = ticketGrantingTicketTimeOut * 1000L;
+        this.stTimeout = serviceTicketTimeOut * 1000L;
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+
+    /**
+     * @throws IllegalStateException if the off-heap capacity is exhausted.
+     */
+    public void addTicket(final Ticket ticket) {
+        log.debug("Adding ticket {}", ticket.getId());
+        write(ticket, false);
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        final byte[] data = read(ticketId);
+        return data != null ? getProxiedTicketInstance(deserialize(data)) : null;
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+        log.debug("Removing ticket {}", ticketId);
+        final long hash = hash(ticketId);
+        return segmentFor(hash).remove(utf8(ticketId), hash);
+    }
+
+    /**
+     * Gets all tickets, deserializing each of them. Prefer {@link #removeExpired()} for removing expired tickets.
+     *
+     * @return Copies of all tickets.
+     */
+    public Collection<Ticket> getTickets() {
+        final List<Ticket> tickets = new ArrayList<Ticket>();
+        for (final Segment segment : this.segments) {
+            for (final byte[] data : segment.readAll()) {
+                tickets.add(getProxiedTicketInstance(deserialize(data)));
+            }
+        }
+        return tickets;
+    }
+
+    /**
+     * Removes tickets whose removal deadline has passed and whose expiration policy confirms they are expired.
+     * Tickets past their deadline that are not yet expired, such as remember-me TGTs, get a new deadline.
+     *
+     * @return Number of tickets removed.
+     */
+    public int removeExpired() {
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        for (final Segment segment : this.segments) {
+            for (final String ticketId : segment.findPastDeadline(now)) {
+                final byte[] data = read(ticketId);
+                if (data == null) {
+                    continue;
+                }
+                final Ticket ticket = deserialize(data);
+                if (!ticket.isExpired()) {
+                    write(ticket, true);
+                    continue;
+                }
+                if (this.logUserOutOfServices && ticket instanceof TicketGrantingTicket) {
+                    ((TicketGrantingTicket) ticket).expire();
+                }
+                if (deleteTicket(ticketId)) {
+                    count++;
+                }
+            }
+        }
+        log.info("Removed {} expired tickets", count);
+        return count;
+    }
+
+    @Override
+    public int sessionCount() {
+        return this.ticketGrantingTicketCount.get();
+    }
+
+    @Override
+    public int serviceTicketCount() {
+        return this.serviceTicketCount.get();
+    }
+
+    /**
+     * @return Number of bytes of direct memory allocated for tickets.
+     */
+    public long getAllocatedBytes() {
+        return this.allocator.getAllocatedBytes();
+    }
+
+    /**
+     * @return Number of bytes of direct memory holding tickets.
+     */
+    public long getUsedBytes() {
+        return this.allocator.getUsedBytes();
+    }
+
+    /**
+     * @param logUserOutOfServices Whether expired TGTs are expired to log users out of services before removal.
+     * Default is true.
+     */
+    public void setLogUserOutOfServices(final boolean logUserOutOfServices) {
+        this.logUserOutOfServices = logUserOutOfServices;
+    }
+
+    @Override
+    protected void updateTicket(final Ticket ticket) {
+        log.debug("Updating ticket {}", ticket.getId());
+        write(ticket, true);
+    }
+
+    @Override
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    private void write(final Ticket ticket, final boolean onlyIfPresent) {
+        final byte[] id = utf8(ticket.getId());
+        final byte[] data = TicketJournal.serialize(ticket);
+        final byte type = ticket instanceof TicketGrantingTicket ? TYPE_TGT : ticket instanceof ServiceTicket ? TYPE_ST : 0;
+        final long lastUsed = ticket instanceof TicketState
+                ? ((TicketState) ticket).getLastTimeUsed() : System.currentTimeMillis();
+        final long deadline = Math.max(lastUsed, System.currentTimeMillis())
+                + (type == TYPE_ST ? this.stTimeout : this.tgtTimeout);
+        final long hash = hash(ticket.getId());
+        segmentFor(hash).put(id, data, hash, type, deadline, onlyIfPresent);
+    }
+
+    private byte[] read(final String ticketId) {
+        final long hash = hash(ticketId);
+        return segmentFor(hash).get(utf8(ticketId), hash);
+    }
+
+    private Segment segmentFor(final long hash) {
+        return this.segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private void adjustCount(final byte type, final int delta) {
+        if (type == TYPE_TGT) {
+            this.ticketGrantingTicketCount.addAndGet(delta);
+        } else if (type == TYPE_ST) {
+            this.serviceTicketCount.addAndGet(delta);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash, never equal to {@link #EMPTY} or {@link #REMOVED}.
+     */
+    private static long hash(final String ticketId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < ticketId.length(); i++) {
+            hash ^= ticketId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY || hash == REMOVED ? hash + 2 : hash;
+    }
+
+    private static byte[] utf8(final String ticketId) {
+        try {
+            return ticketId.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Ticket deserialize(final byte[] data) {
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            try {
+                return (Ticket) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (final Exception e) {
+            throw new IllegalStateException("Cannot deserialize ticket", e);
+        }
+    }
+
+
+    /**
+     * Open-addressing hash index over primitive arrays. Chunks are laid out as the ID length (short), the ID, the
+     * ticket length (int) and the ticket.
+     */
+    private final class Segment {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private long[] hashes = new long[1024];
+
+        private long[] addresses = new long[1024];
+
+        private long[] deadlines = new long[1024];
+
+        private byte[] types = new byte[1024];
+
+        /** Number of live entries. */
+        private int size;
+
+        /** Number of slots that are not empty, including removed entries. */
+        private int used;
+
+        public void put(
+                final byte[] id,
+                final byte[] data,
+                final long hash,
+                final byte type,
+                final long deadline,
+                final boolean onlyIfPresent) {
+
+            this.lock.writeLock().lock();
+            try {
+                int slot = find(id, hash);
+                if (slot < 0 && onlyIfPresent) {
+                    return;
+                }
+                final long address = allocator.allocate(2 + id.length + 4 + data.length);
+                final ByteBuffer chunk = allocator.view(address);
+                chunk.putShort((short) id.length);
+                chunk.put(id);
+                chunk.putInt(data.length);
+                chunk.put(data);
+                if (slot >= 0) {
+                    allocator.free(this.addresses[slot]);
+                } else {
+                    if ((this.used + 1) * 4 > this.hashes.length * 3) {
+                        resize();
+                    }
+                    slot = insertionSlot(hash);
+                    if (this.hashes[slot] == EMPTY) {
+                        this.used++;
+                    }
+                    this.size++;
+                    this.hashes[slot] = hash;
+                    adjustCount(type, 1);
+                }
+                this.addresses[slot] = address;
+                this.deadlines[slot] = deadline;
+                this.types[slot] = type;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        public byte[] get(final byte[] id, final long hash) {
+            this.lock.readLock().lock();
+            try {
+                final int slot = find(id, hash);
+                return slot >= 0 ? readData(this.addresses[slot]) : null;
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        public boolean remove(final byte[] id, final long hash) {
+            this.lock.writeLock().lock();
+            try {
+                final int slot = find(id, hash);
+                if (slot < 0) {
+                    return false;
+                }
+                allocator.free(this.addresses[slot]);
+                adjustCount(this.types[slot], -1);
+                this.hashes[slot] = REMOVED;
+                this.size--;
+                return true;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        public List<byte[]> readAll() {
+            this.lock.readLock().lock();
+            try {
+                final List<byte[]> all = new ArrayList<byte[]>(this.size);
+                for (int i = 0; i < this.hashes.length; i++) {
+                    if (this.hashes[i] != EMPTY && this.hashes[i] != REMOVED) {
+                        all.add(readData(this.addresses[i]));
+                    }
+                }
+                return all;
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        public List<String> findPastDeadline(final long now) {
+            this.lock.readLock().lock();
+            try {
+                final List<String> ids = new ArrayList<String>();
+                for (int i = 0; i < this.hashes.length; i++) {
+                    if (this.hashes[i] != EMPTY && this.hashes[i] != REMOVED && this.deadlines[i] < now) {
+                        ids.add(readId(this.addresses[i]));
+                    }
+                }
+                return ids;
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        private int find(final byte[] id, final long hash) {
+            final int mask = this.hashes.length - 1;
+            int slot = (int) hash & mask;
+            while (this.hashes[slot] != EMPTY) {
+                if (this.hashes[slot] == hash && idEquals(this.addresses[slot], id)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int insertionSlot(final long hash) {
+            final int mask = this.hashes.length - 1;
+            int slot = (int) hash & mask;
+            while (this.hashes[slot] != EMPTY && this.hashes[slot] != REMOVED) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            final long[] oldHashes = this.hashes;
+            final long[] oldAddresses = this.addresses;
+            final long[] oldDeadlines = this.deadlines;
+            final byte[] oldTypes = this.types;
+            // Grow only if live entries, not removed ones, fill the table
+            final int capacity = this.size * 2 > oldHashes.length ? oldHashes.length * 2 : oldHashes.length;
+            this.hashes = new long[capacity];
+            this.addresses = new long[capacity];
+            this.deadlines = new long[capacity];
+            this.types = new byte[capacity];
+            this.used = 0;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHashes[i] != EMPTY && oldHashes[i] != REMOVED) {
+                    final int slot = insertionSlot(oldHashes[i]);
+                    this.hashes[slot] = oldHashes[i];
+                    this.addresses[slot] = oldAddresses[i];
+                    this.deadlines[slot] = oldDeadlines[i];
+                    this.types[slot] = oldTypes[i];
+                    this.used++;
+                }
+            }
+        }
+
+        private boolean idEquals(final long address, final byte[] id) {
+            final ByteBuffer chunk = allocator.view(address);
+            if (chunk.getShort() != id.length) {
+                return false;
+            }
+            for (final byte b : id) {
+                if (chunk.get() != b) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String readId(final long address) {
+            final ByteBuffer chunk = allocator.view(address);
+            final byte[] id = new byte[chunk.getShort()];
+            chunk.get(id);
+            try {
+                return new String(id, "UTF-8");
+            } catch (final UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] readData(final long address) {
+            final ByteBuffer chunk = allocator.view(address);
+            chunk.position(chunk.position() + 2 + chunk.getShort(chunk.position()));
+            final byte[] data = new byte[chunk.getInt()];
+            chunk.get(data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.monitor.TicketRegistryState;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.support.TicketChange;
+import org.jasig.cas.ticket.registry.support.TicketReplicationReceiver;
+import org.jasig.cas.ticket.registry.support.TicketReplicationSender;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Ticket registry decorator for active/passive pairs of CAS nodes that keeps tickets in an in-memory registry on
+ * the primary node and streams every change to a standby node, where a {@link TicketReplicationReceiver} applies
+ * them to the standby's own registry.
+ * <p>
+ * Replication is asynchronous: changes are queued and sent in batches by a background thread, so requests served
+ * by the primary never wait on the standby. Should the standby fall behind far enough to overflow the queue, or
+ * reconnect after an outage, it is brought up to date with a snapshot of the registry. Replication lag is exposed
+ * through {@link #getReplicationLagMillis()} and {@link #getPendingChanges()}.
+ * </p>
+ * <p>
+ * The wrapped registry must hold live ticket instances, as {@link DefaultTicketRegistry} does, since ticket updates
+ * are only captured for replication and not written back to it. Example configuration of the primary:
+ * </p>
+ * <pre>
+ * &lt;bean id="ticketRegistry" class="org.jasig.cas.ticket.registry.ReplicatingTicketRegistry"
+ *     c:delegate-ref="localTicketRegistry" c:standbyHost="cas02.example.org" c:standbyPort="7600"
+ *     c:queueCapacity="100000" /&gt;
+ * </pre>
+ *
+ * @since 3.5.2
+ */
+public final class ReplicatingTicketRegistry extends AbstractDistributedTicketRegistry
+        implements InitializingBean, DisposableBean {
+
+    /** Registry holding the tickets. */
+    @NotNull
+    private final TicketRegistry delegate;
+
+    /** Streams changes to the standby. */
+    @NotNull
+    private final TicketReplicationSender sender;
+
+
+    /**
+     * Creates a new registry replicating to the given standby node.
+     *
+     * @param delegate In-memory registry holding the tickets.
+     * @param standbyHost Host name of the standby node.
+     * @param standbyPort Port on which the standby node receives changes.
+     * @param queueCapacity Maximum number of changes queued before falling back to a snapshot.
+     */
+    public ReplicatingTicketRegistry(
+            final TicketRegistry delegate,
+            final String standbyHost,
+            final int standbyPort,
+            final int queueCapacity) {
+        this.delegate = delegate;
+        this.sender = new TicketReplicationSender(
+                delegate, new InetSocketAddress(standbyHost, standbyPort), queueCapacity);
+    }
+
+
+    public void afterPropertiesSet() throws Exception {
+        this.sender.start();
+    }
+
+    public void destroy() throws Exception {
+        this.sender.stop();
+    }
+
+    public void addTicket(final Ticket ticket) {
+        this.delegate.addTicket(ticket);
+        this.sender.publish(TicketChange.Type.ADD, ticket.getId(), ticket);
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        return getProxiedTicketInstance(this.delegate.getTicket(ticketId));
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        if (this.delegate.deleteTicket(ticketId)) {
+            this.sender.publish(TicketChange.Type.DELETE, ticketId, null);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        final Ticket ticket = this.delegate.consumeTicket(ticketId);
+        if (ticket != null) {
+            this.sender.publish(TicketChange.Type.DELETE, ticketId, null);
+        }
+        return ticket;
+    }
+
+    public Collection<Ticket> getTickets() {
+        return this.delegate.getTickets();
+    }
+
+    @Override
+    public int sessionCount() {
+        return this.delegate instanceof TicketRegistryState
+                ? ((TicketRegistryState) this.delegate).sessionCount() : Integer.MIN_VALUE;
+    }
+
+    @Override
+    public int serviceTicketCount() {
+        return this.delegate instanceof TicketRegistryState
+                ? ((TicketRegistryState) this.delegate).serviceTicketCount() : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return Number of changes not yet acknowledged by the standby.
+     */
+    public long getPendingChanges() {
+        return this.sender.getPendingChanges();
+    }
+
+    /**
+     * @return Replication lag in milliseconds, or -1 if the standby is not connected.
+     */
+    public long getReplicationLagMillis() {
+        return this.sender.getReplicationLagMillis();
+    }
+
+    /**
+     * @return Number of times changes were dropped because the queue was full, each triggering a snapshot.
+     */
+    public long getOverflowCount() {
+        return this.sender.getOverflowCount();
+    }
+
+    /**
+     * @return Number of snapshots sent to the standby.
+     */
+    public long getSnapshotCount() {
+        return this.sender.getSnapshotCount();
+    }
+
+    public boolean isStandbyConnected() {
+        return this.sender.isConnected();
+    }
+
+    /**
+     * @param size Maximum number of changes written per batch. Default is 256.
+     */
+    public void setBatchSize(final int size) {
+        this.sender.setBatchSize(size);
+    }
+
+    /**
+     * @param interval Milliseconds to wait before reconnecting to the standby. Default is 5000.
+     */
+    public void setReconnectInterval(final int interval) {
+        this.sender.setReconnectInterval(interval);
+    }
+
+    /**
+     * @param interval Milliseconds of inactivity after which a heartbeat is sent to the standby. Default is 1000.
+     */
+    public void setHeartbeatInterval(final int interval) {
+        this.sender.setHeartbeatInterval(interval);
+    }
+
+    /**
+     * @param key Base64 encoded HMAC key of at least 32 bytes shared with the
+     * {@link TicketReplicationReceiver} of the standby, which authenticates the replication stream.
+     */
+    public void setSigningKey(final String key) {
+        this.sender.setSigningKey(key);
+    }
+
+    @Override
+    protected void updateTicket(final Ticket ticket) {
+        this.sender.publish(TicketChange.Type.UPDATE, ticket.getId(), ticket);
+    }
+
+    @Override
+    protected boolean needsCallback() {
+        return true;
+    }
+}
@@ -75,6 +75,18 @@ public interface TicketRegistry {
      */
     boolean deleteTicket(String ticketId);
 
+    /**
+     * Remove a specific ticket from the registry and return it, atomically:
+     * of concurrent calls for the same ticket, at most one returns it. The
+     * returned ticket is detached from the registry; changes to it are not
+     * written back.
+     *
+     * @param ticketId The id of the ticket to consume.
+     * @return the removed ticket, or null if the ticket did not exist or was
+     * removed by another caller.
+     */
+    Ticket consumeTicket(String ticketId);
+
     /**
      * Retrieve all tickets from the registry.
      * 
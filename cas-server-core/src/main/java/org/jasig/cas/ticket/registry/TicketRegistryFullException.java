@@ -0,0 +1,39 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+/**
+ * Thrown by a ticket registry that has no room left for a new ticket.
+ *
+ * @since 3.5.2
+ */
+public class TicketRegistryFullException extends RuntimeException {
+
+    /** The Unique Serializable ID. */
+    private static final long serialVersionUID = 6817244573851620390L;
+
+    /**
+     * Constructs a TicketRegistryFullException with the given message.
+     *
+     * @param message the reason the ticket was refused.
+     */
+    public TicketRegistryFullException(final String message) {
+        super(message);
+    }
+}
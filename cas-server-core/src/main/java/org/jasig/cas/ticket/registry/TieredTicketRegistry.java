@@ -0,0 +1,533 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.ticket.AbstractTicket;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.registry.support.MappedTicketStore;
+import org.jasig.cas.ticket.registry.support.TicketJournal;
+import org.springframework.util.Assert;
+
+/**
+ * In-memory ticket registry that keeps recently used tickets on the heap and moves idle TGTs to a
+ * {@link MappedTicketStore} outside the heap, so that heap usage follows the number of active users rather than
+ * the number of remembered sessions.
+ * <p>
+ * {@link #spill()}, meant to be invoked periodically like the registry cleaner, serializes root TGTs that have not
+ * been used for longer than the idle threshold and are not referenced by another ticket on the heap, and removes
+ * them from the heap. Long-lived remember-me sessions make up the bulk of such TGTs. A spilled TGT is promoted back
+ * to the heap when it is next accessed, or when it is updated through a reference obtained before it was spilled.
+ * </p>
+ * <p>
+ * The expiration time of each spilled TGT is kept on the heap, so that {@link #getTickets()} only deserializes
+ * spilled TGTs that are due to expire and stands in for the others with unexpired placeholders.
+ * </p>
+ * <p>
+ * Spilled TGTs are lost on restart; the store only extends the heap. Example configuration:
+ * </p>
+ * <pre>
+ * &lt;bean id="ticketRegistry" class="org.jasig.cas.ticket.registry.TieredTicketRegistry"
+ *     c:directory="/var/cache/cas/tickets" c:segmentSize="67108864" p:idleThreshold="3600000" /&gt;
+ * &lt;bean id="jobDetailTicketRegistrySpill" class="org.springframework.scheduling.quartz.MethodInvokingJobDetailFactoryBean"
+ *     p:targetObject-ref="ticketRegistry" p:targetMethod="spill" /&gt;
+ * </pre>
+ *
+ * @since 3.5.2
+ */
+public final class TieredTicketRegistry extends AbstractDistributedTicketRegistry {
+
+    /** Number of locks serializing the movement of tickets between tiers. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Longest time a spilled TGT is taken to be unexpired without being checked. */
+    private static final long MAX_EXPIRATION_DELAY = 24 * 60 * 60 * 1000;
+
+    /** Tickets on the heap. */
+    private final Map<String, Ticket> hot = new ConcurrentHashMap<String, Ticket>();
+
+    /** Spilled TGTs. */
+    @NotNull
+    private final MappedTicketStore cold;
+
+    /** Expiration times of spilled TGTs. */
+    private final ConcurrentMap<String, Long> expirationTimes = new ConcurrentHashMap<String, Long>();
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /** Milliseconds since last use after which a TGT may be spilled. */
+    @Min(0)
+    private long idleThreshold = 30 * 60 * 1000;
+
+    /** Live ratio below which spill segments are compacted. */
+    private double compactionThreshold = 0.5;
+
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    private final AtomicLong promotedCount = new AtomicLong();
+
+
+    /**
+     * Creates a new registry spilling to the given directory.
+     *
+     * @param directory Directory holding the memory-mapped segment files.
+     * @param segmentSize Size in bytes of segment files.
+     *
+     * @throws IOException if the directory cannot be prepared.
+     */
+    public TieredTicketRegistry(final File directory, final int segmentSize) throws IOException {
+        this.cold = new MappedTicketStore(directory, segmentSize);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+
+    public void addTicket(final Ticket ticket) {
+        Assert.notNull(ticket, "ticket cannot be null");
+        log.debug("Adding ticket {}", ticket.getId());
+        this.hot.put(ticket.getId(), ticket);
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        Ticket ticket = this.hot.get(ticketId);
+        if (ticket == null && this.cold.contains(ticketId)) {
+            ticket = promote(ticketId);
+        }
+        return getProxiedTicketInstance(ticket);
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+        log.debug("Removing ticket {}", ticketId);
+        // A ticket being spilled is briefly in both tiers
+        synchronized (lockFor(ticketId)) {
+            final boolean removedFromHeap = this.hot.remove(ticketId) != null;
+            final boolean removedFromStore = this.cold.remove(ticketId);
+            this.expirationTimes.remove(ticketId);
+            return removedFromHeap || removedFromStore;
+        }
+    }
+
+    /**
+     * Gets all tickets. Spilled TGTs due to expire are deserialized one at a time during iteration without being
+     * promoted; the others are represented by placeholders that are unexpired until their expiration time and
+     * deserialize the TGT when any other information is asked of them.
+     *
+     * @return Collection of tickets on and off the heap.
+     */
+    public Collection<Ticket> getTickets() {
+        return new AbstractCollection<Ticket>() {
+            public Iterator<Ticket> iterator() {
+                return new TieredIterator(hot.values().iterator(), cold.ids().iterator());
+            }
+
+            public int size() {
+                return hot.size() + cold.size();
+            }
+        };
+    }
+
+    @Override
+    public int sessionCount() {
+        int count = 0;
+        for (final Ticket ticket : this.hot.values()) {
+            if (ticket instanceof TicketGrantingTicket) {
+                count++;
+            }
+        }
+        // Only TGTs are spilled
+        return count + this.cold.size();
+    }
+
+    @Override
+    public int serviceTicketCount() {
+        int count = 0;
+        for (final Ticket ticket : this.hot.values()) {
+            if (ticket instanceof ServiceTicket) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves idle root TGTs not referenced by other tickets on the heap to the off-heap store, then compacts the
+     * store.
+     *
+     * @return Number of TGTs spilled.
+     */
+    public int spill() {
+        final Set<String> referenced = new HashSet<String>();
+        for (final Ticket ticket : this.hot.values()) {
+            final TicketGrantingTicket parent = ticket.getGrantingTicket();
+            if (parent != null) {
+                referenced.add(parent.getId());
+            }
+        }
+        final long idleSince = System.currentTimeMillis() - this.idleThreshold;
+        int count = 0;
+        for (final Ticket ticket : this.hot.values()) {
+            if (!(ticket instanceof TicketGrantingTicket) || !((TicketGrantingTicket) ticket).isRoot()
+                    || ((TicketState) ticket).getLastTimeUsed() > idleSince
+                    || referenced.contains(ticket.getId()) || ticket.isExpired()) {
+                continue;
+            }
+            synchronized (lockFor(ticket.getId())) {
+                if (this.hot.get(ticket.getId()) != ticket) {
+                    continue;
+                }
+                // Iterators skip spilled TGTs whose expiration time is unknown
+                this.expirationTimes.put(ticket.getId(), getExpirationTime(ticket));
+                try {
+                    this.cold.put(ticket.getId(), TicketJournal.serialize(ticket));
+                } catch (final IOException e) {
+                    this.expirationTimes.remove(ticket.getId());
+                    log.warn("Cannot spill tickets: {}", e.getMessage());
+                    break;
+                }
+                this.hot.remove(ticket.getId());
+                count++;
+            }
+        }
+        this.spilledCount.addAndGet(count);
+        try {
+            this.cold.compact(this.compactionThreshold);
+        } catch (final IOException e) {
+            log.warn("Cannot compact spilled tickets: {}", e.getMessage());
+        }
+        log.info("Spilled {} idle TGTs; {} TGTs off heap in {} bytes", new Object[] {count, this.cold.size(), this.cold.getLiveBytes()});
+        return count;
+    }
+
+    /**
+     * @param threshold Milliseconds since last use after which a TGT may be spilled. Default is 30 minutes.
+     */
+    public void setIdleThreshold(final long threshold) {
+        this.idleThreshold = threshold;
+    }
+
+    /**
+     * @param threshold Ratio of live to written bytes below which spill segments are compacted. Default is 0.5.
+     */
+    public void setCompactionThreshold(final double threshold) {
+        this.compactionThreshold = threshold;
+    }
+
+    /**
+     * @return Number of tickets on the heap.
+     */
+    public int getHeapTicketCount() {
+        return this.hot.size();
+    }
+
+    /**
+     * @return Number of TGTs off the heap.
+     */
+    public int getSpilledTicketCount() {
+        return this.cold.size();
+    }
+
+    /**
+     * @return Number of bytes of spilled TGTs.
+     */
+    public long getSpilledBytes() {
+        return this.cold.getLiveBytes();
+    }
+
+    /**
+     * @return Total number of TGTs spilled.
+     */
+    public long getSpilledCount() {
+        return this.spilledCount.get();
+    }
+
+    /**
+     * @return Total number of TGTs promoted back to the heap.
+     */
+    public long getPromotedCount() {
+        return this.promotedCount.get();
+    }
+
+    /**
+     * Promotes a spilled TGT that was updated through a reference obtained before it was spilled, so that the
+     * update is not lost.
+     *
+     * @param ticket Updated ticket.
+     */
+    @Override
+    protected void updateTicket(final Ticket ticket) {
+        if (this.hot.get(ticket.getId()) == ticket) {
+            return;
+        }
+        synchronized (lockFor(ticket.getId())) {
+            if (this.cold.remove(ticket.getId())) {
+                this.expirationTimes.remove(ticket.getId());
+                this.hot.put(ticket.getId(), ticket);
+                this.promotedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Ticket references held by other tickets may point at copies of promoted TGTs, so TGTs are looked up on access.
+     *
+     * @return True.
+     */
+    @Override
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    private Ticket promote(final String ticketId) {
+        synchronized (lockFor(ticketId)) {
+            Ticket ticket = this.hot.get(ticketId);
+            if (ticket != null) {
+                return ticket;
+            }
+            final byte[] data = this.cold.get(ticketId);
+            if (data == null) {
+                return null;
+            }
+            ticket = deserialize(data);
+            this.hot.put(ticketId, ticket);
+            this.cold.remove(ticketId);
+            this.expirationTimes.remove(ticketId);
+            this.promotedCount.incrementAndGet();
+            log.debug("Promoted ticket {} to heap", ticketId);
+            return ticket;
+        }
+    }
+
+    private Object lockFor(final String ticketId) {
+        return this.locks[(ticketId.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private static long getExpirationTime(final Ticket ticket) {
+        final long now = System.currentTimeMillis();
+        if (ticket instanceof AbstractTicket) {
+            return ((AbstractTicket) ticket).getExpirationTime(now + MAX_EXPIRATION_DELAY);
+        }
+        return now;
+    }
+
+    private static Ticket deserialize(final byte[] data) {
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            try {
+                return (Ticket) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (final Exception e) {
+            throw new IllegalStateException("Cannot deserialize spilled ticket", e);
+        }
+    }
+
+
+    /**
+     * Iterates over the tickets on the heap followed by the spilled tickets, skipping spilled tickets removed or
+     * promoted during iteration. Spilled TGTs found not to expire at their expected time get a new one.
+     */
+    private final class TieredIterator implements Iterator<Ticket> {
+
+        private final Iterator<Ticket> hotIterator;
+
+        private final Iterator<String> coldIterator;
+
+        private Ticket next;
+
+        public TieredIterator(final Iterator<Ticket> hotIterator, final Iterator<String> coldIterator) {
+            this.hotIterator = hotIterator;
+            this.coldIterator = coldIterator;
+        }
+
+        public boolean hasNext() {
+            if (this.next != null) {
+                return true;
+            }
+            if (this.hotIterator.hasNext()) {
+                this.next = this.hotIterator.next();
+                return true;
+            }
+            while (this.coldIterator.hasNext()) {
+                final String ticketId = this.coldIterator.next();
+                final Long expirationTime = expirationTimes.get(ticketId);
+                if (expirationTime == null) {
+                    continue;
+                }
+                if (expirationTime.longValue() > System.currentTimeMillis()) {
+                    this.next = new SpilledTicketGrantingTicket(ticketId, expirationTime.longValue());
+                    return true;
+                }
+                final byte[] data = cold.get(ticketId);
+                if (data != null) {
+                    this.next = deserialize(data);
+                    if (!this.next.isExpired()) {
+                        expirationTimes.replace(ticketId, expirationTime, getExpirationTime(this.next));
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Ticket next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Ticket ticket = this.next;
+            this.next = null;
+            return ticket;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    /**
+     * Stands in for a spilled TGT during iteration. It is unexpired until the expiration time of the TGT, and
+     * otherwise answers from a deserialized copy of the TGT, like the tickets deserialized by the iterator.
+     */
+    private final class SpilledTicketGrantingTicket implements TicketGrantingTicket {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+
+        private final long expirationTime;
+
+        public SpilledTicketGrantingTicket(final String id, final long expirationTime) {
+            this.id = id;
+            this.expirationTime = expirationTime;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        public boolean isExpired() {
+            if (System.currentTimeMillis() < this.expirationTime) {
+                return false;
+            }
+            final TicketGrantingTicket ticket = load();
+            return ticket == null || ticket.isExpired();
+        }
+
+        public TicketGrantingTicket getGrantingTicket() {
+            // Only root TGTs are spilled
+            return null;
+        }
+
+        public boolean isRoot() {
+            return true;
+        }
+
+        public long getCreationTime() {
+            return loadExisting().getCreationTime();
+        }
+
+        public int getCountOfUses() {
+            return loadExisting().getCountOfUses();
+        }
+
+        public Authentication getAuthentication() {
+            return loadExisting().getAuthentication();
+        }
+
+        public ServiceTicket grantServiceTicket(final String id, final Service service,
+            final ExpirationPolicy expirationPolicy, final boolean credentialsProvided) {
+            return loadExisting().grantServiceTicket(id, service, expirationPolicy, credentialsProvided);
+        }
+
+        public void expire() {
+            loadExisting().expire();
+        }
+
+        public List<Authentication> getChainedAuthentications() {
+            return loadExisting().getChainedAuthentications();
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            return object instanceof TicketGrantingTicket && ((Ticket) object).getId().equals(this.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 34 ^ this.id.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return this.id;
+        }
+
+        private TicketGrantingTicket load() {
+            final byte[] data = cold.get(this.id);
+            if (data != null) {
+                return (TicketGrantingTicket) deserialize(data);
+            }
+            return (TicketGrantingTicket) hot.get(this.id);
+        }
+
+        private TicketGrantingTicket loadExisting() {
+            final TicketGrantingTicket ticket = load();
+            if (ticket == null) {
+                throw new IllegalStateException("Ticket " + this.id + " has been removed");
+            }
+            return ticket;
+        }
+
+        private Object writeReplace() throws ObjectStreamException {
+            return loadExisting();
+        }
+    }
+}
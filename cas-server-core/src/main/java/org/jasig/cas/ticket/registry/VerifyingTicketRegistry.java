@@ -0,0 +1,208 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.monitor.TicketRegistryState;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.util.SignedUniqueTicketIdGenerator;
+import org.jasig.cas.util.SignedUniqueTicketIdGenerator.Verification;
+
+/**
+ * Ticket registry decorator that turns away ids that were not issued by a {@link SignedUniqueTicketIdGenerator}
+ * before they reach the registry, so that guessed or garbage ids sent by scanners cost a checksum computation
+ * rather than a lookup in a remote store.
+ * <p>
+ * Ids starting with one of the verified prefixes (by default those of TGTs and service tickets) are looked up only
+ * if they are well formed, carry a valid checksum and, if a maximum age is configured for their prefix, were issued
+ * recently enough; others are passed on unchecked, so that ids of other formats such as SAML artifacts keep working.
+ * Every generator issuing ids with a verified prefix must therefore be a signed generator sharing the same key, and
+ * tickets issued with another format before verification was turned on can no longer be found.
+ * </p>
+ * <pre>
+ * &lt;bean id="ticketRegistry" class="org.jasig.cas.ticket.registry.VerifyingTicketRegistry"&gt;
+ *   &lt;constructor-arg index="0"&gt;
+ *     &lt;bean class="org.jasig.cas.ticket.registry.DefaultTicketRegistry" /&gt;
+ *   &lt;/constructor-arg&gt;
+ *   &lt;constructor-arg index="1" ref="ticketGrantingTicketUniqueIdGenerator" /&gt;
+ *   &lt;property name="maximumAges"&gt;
+ *     &lt;map&gt;
+ *       &lt;entry key="ST" value="300000" /&gt;
+ *     &lt;/map&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * @since 3.5.2
+ */
+public final class VerifyingTicketRegistry extends AbstractTicketRegistry {
+
+    /** Registry holding the tickets. */
+    @NotNull
+    private final TicketRegistry delegate;
+
+    @NotNull
+    private final SignedUniqueTicketIdGenerator verifier;
+
+    /** Prefixes of the ids to verify, each followed by '-'. */
+    @NotNull
+    private String[] prefixes = {TicketGrantingTicket.PREFIX + "-", ServiceTicket.PREFIX + "-"};
+
+    /** Maximum age in milliseconds of ids by prefix followed by '-'. */
+    @NotNull
+    private Map<String, Long> maximumAges = new HashMap<String, Long>();
+
+    private final AtomicLong malformedCount = new AtomicLong();
+
+    private final AtomicLong forgedCount = new AtomicLong();
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+
+    /**
+     * Creates a new registry verifying ids before passing them to the given registry.
+     *
+     * @param delegate Registry holding the tickets.
+     * @param verifier Generator of the ids of the tickets.
+     */
+    public VerifyingTicketRegistry(final TicketRegistry delegate, final SignedUniqueTicketIdGenerator verifier) {
+        this.delegate = delegate;
+        this.verifier = verifier;
+    }
+
+
+    public void addTicket(final Ticket ticket) {
+        this.delegate.addTicket(ticket);
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        return isPlausible(ticketId) ? this.delegate.getTicket(ticketId) : null;
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        return isPlausible(ticketId) && this.delegate.deleteTicket(ticketId);
+    }
+
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        return isPlausible(ticketId) ? this.delegate.consumeTicket(ticketId) : null;
+    }
+
+    public Collection<Ticket> getTickets() {
+        return this.delegate.getTickets();
+    }
+
+    @Override
+    public int sessionCount() {
+        return this.delegate instanceof TicketRegistryState
+                ? ((TicketRegistryState) this.delegate).sessionCount() : Integer.MIN_VALUE;
+    }
+
+    @Override
+    public int serviceTicketCount() {
+        return this.delegate instanceof TicketRegistryState
+                ? ((TicketRegistryState) this.delegate).serviceTicketCount() : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return Total number of ids turned away for not having the form of a signed id.
+     */
+    public long getMalformedCount() {
+        return this.malformedCount.get();
+    }
+
+    /**
+     * @return Total number of ids turned away for carrying an invalid checksum.
+     */
+    public long getForgedCount() {
+        return this.forgedCount.get();
+    }
+
+    /**
+     * @return Total number of ids turned away for being older than the maximum age of their prefix.
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    /**
+     * @return Total number of ids turned away without a lookup.
+     */
+    public long getRejectedCount() {
+        return this.malformedCount.get() + this.forgedCount.get() + this.expiredCount.get();
+    }
+
+    /**
+     * @param prefixes Prefixes of the ids to verify. Default is TGT and ST.
+     */
+    public void setPrefixes(final List<String> prefixes) {
+        final String[] array = new String[prefixes.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = prefixes.get(i) + "-";
+        }
+        this.prefixes = array;
+    }
+
+    /**
+     * @param maximumAges Maximum age in milliseconds of ids by prefix, which must exceed the hard timeout of the
+     * tickets. Default is none.
+     */
+    public void setMaximumAges(final Map<String, Long> maximumAges) {
+        final Map<String, Long> ages = new HashMap<String, Long>();
+        for (final Map.Entry<String, Long> entry : maximumAges.entrySet()) {
+            ages.put(entry.getKey() + "-", entry.getValue());
+        }
+        this.maximumAges = ages;
+    }
+
+    private boolean isPlausible(final String ticketId) {
+        if (ticketId == null) {
+            return true;
+        }
+        for (final String prefix : this.prefixes) {
+            if (ticketId.startsWith(prefix)) {
+                final Long maximumAge = this.maximumAges.get(prefix);
+                final Verification verification = this.verifier.verify(ticketId, maximumAge != null ? maximumAge : -1);
+                switch (verification) {
+                    case VALID:
+                        return true;
+                    case MALFORMED:
+                        this.malformedCount.incrementAndGet();
+                        break;
+                    case FORGED:
+                        this.forgedCount.incrementAndGet();
+                        break;
+                    default:
+                        this.expiredCount.incrementAndGet();
+                }
+                log.debug("Ticket id [{}] turned away: {}", ticketId, verification);
+                return false;
+            }
+        }
+        return true;
+    }
+}
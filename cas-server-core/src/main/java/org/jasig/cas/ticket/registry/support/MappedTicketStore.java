@@ -0,0 +1,322 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores serialized tickets outside the Java heap in memory-mapped segment files, keeping only an index of ticket
+ * ID to segment and offset on the heap.
+ * <p>
+ * Records are appended to the active segment and never modified in place; removing or replacing a record only
+ * updates the index and the live byte count of its segment. Segments left without live records are deleted, and
+ * {@link #compact(double)} moves the remaining records out of sparsely used segments. Since records are never
+ * overwritten, readers need no locking.
+ * </p>
+ * <p>
+ * The store is a heap extension rather than persistent storage: segment files left over in the directory are
+ * deleted on creation.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class MappedTicketStore {
+
+    private static final String SEGMENT_PREFIX = "tier-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /** Record length prefix. */
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    /** Ticket ID to location, where the location holds the segment number in the high and the offset in the low
+     * 32 bits. */
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+
+    private Segment active;
+
+    private int nextSegmentNumber;
+
+
+    /**
+     * Creates a new, empty store.
+     *
+     * @param directory Directory holding segment files, which is created if needed.
+     * @param segmentSize Size in bytes of segment files.
+     *
+     * @throws IOException if the directory cannot be created.
+     */
+    public MappedTicketStore(final File directory, final int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        final File[] stale = directory.listFiles(new FileFilter() {
+            public boolean accept(final File file) {
+                return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (final File file : stale) {
+            if (!file.delete()) {
+                throw new IOException("Cannot delete stale segment " + file);
+            }
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+
+    /**
+     * Stores a record, replacing any record stored under the same ID.
+     *
+     * @param id Ticket ID.
+     * @param data Serialized ticket.
+     *
+     * @throws IOException if a new segment cannot be created.
+     */
+    public synchronized void put(final String id, final byte[] data) throws IOException {
+        final Long previous = this.index.put(id, append(data));
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * @param id Ticket ID.
+     *
+     * @return Stored record, or null if none exists.
+     */
+    public byte[] get(final String id) {
+        // Retry if compaction moved the record and deleted its segment between the two lookups
+        for (int attempt = 0; attempt < 3; attempt++) {
+            final Long location = this.index.get(id);
+            if (location == null) {
+                return null;
+            }
+            final Segment segment = this.segments.get(segmentOf(location));
+            if (segment != null) {
+                return segment.read(offsetOf(location));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param id Ticket ID.
+     *
+     * @return True if a record was removed, false if none existed.
+     */
+    public boolean remove(final String id) {
+        final Long location = this.index.remove(id);
+        if (location == null) {
+            return false;
+        }
+        synchronized (this) {
+            release(location);
+        }
+        return true;
+    }
+
+    public boolean contains(final String id) {
+        return this.index.containsKey(id);
+    }
+
+    /**
+     * @return Live view of the IDs of stored records.
+     */
+    public Set<String> ids() {
+        return this.index.keySet();
+    }
+
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return Number of bytes of live records.
+     */
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for (final Segment segment : this.segments.values()) {
+            live += segment.liveBytes;
+        }
+        return live;
+    }
+
+    /**
+     * @return Number of bytes mapped by segment files.
+     */
+    public synchronized long getMappedBytes() {
+        long mapped = 0;
+        for (final Segment segment : this.segments.values()) {
+            mapped += segment.buffer.capacity();
+        }
+        return mapped;
+    }
+
+    /**
+     * Moves the live records of full segments whose ratio of live to written bytes is below the given threshold
+     * into the active segment and deletes those segments.
+     *
+     * @param threshold Live ratio below which segments are compacted, e.g. 0.5.
+     *
+     * @return Number of segments deleted.
+     *
+     * @throws IOException if a new segment cannot be created.
+     */
+    public synchronized int compact(final double threshold) throws IOException {
+        final List<Segment> sparse = new ArrayList<Segment>();
+        for (final Segment segment : this.segments.values()) {
+            if (segment != this.active && segment.liveBytes < segment.buffer.position() * threshold) {
+                sparse.add(segment);
+            }
+        }
+        if (sparse.isEmpty()) {
+            return 0;
+        }
+        for (final Map.Entry<String, Long> entry : this.index.entrySet()) {
+            final Segment segment = this.segments.get(segmentOf(entry.getValue()));
+            if (sparse.contains(segment)) {
+                final Long moved = append(segment.read(offsetOf(entry.getValue())));
+                if (!this.index.replace(entry.getKey(), entry.getValue(), moved)) {
+                    // Removed concurrently, so the copy is garbage
+                    release(moved);
+                }
+            }
+        }
+        for (final Segment segment : sparse) {
+            drop(segment);
+        }
+        log.debug("Compacted {} segments", sparse.size());
+        return sparse.size();
+    }
+
+    /**
+     * Removes all records and deletes all segment files.
+     */
+    public synchronized void clear() {
+        this.index.clear();
+        for (final Segment segment : new ArrayList<Segment>(this.segments.values())) {
+            drop(segment);
+        }
+        this.active = null;
+    }
+
+    private long append(final byte[] data) throws IOException {
+        if (this.active == null || this.active.buffer.remaining() < data.length + RECORD_HEADER_SIZE) {
+            this.active = newSegment(Math.max(this.segmentSize, data.length + RECORD_HEADER_SIZE));
+        }
+        final int offset = this.active.buffer.position();
+        this.active.buffer.putInt(data.length);
+        this.active.buffer.put(data);
+        this.active.liveBytes += data.length + RECORD_HEADER_SIZE;
+        return ((long) this.active.number << 32) | offset;
+    }
+
+    private void release(final long location) {
+        final Segment segment = this.segments.get(segmentOf(location));
+        if (segment == null) {
+            return;
+        }
+        segment.liveBytes -= segment.buffer.getInt(offsetOf(location)) + RECORD_HEADER_SIZE;
+        if (segment.liveBytes == 0 && segment != this.active) {
+            drop(segment);
+        }
+    }
+
+    private Segment newSegment(final int size) throws IOException {
+        final int number = this.nextSegmentNumber++;
+        final File file = new File(this.directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            // The mapping stays valid after the file is closed and is released when garbage collected
+            final Segment segment = new Segment(number, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            this.segments.put(number, segment);
+            return segment;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void drop(final Segment segment) {
+        this.segments.remove(segment.number);
+        // Readers still holding the segment keep reading from the mapping, which outlives the file
+        if (!segment.file.delete()) {
+            log.warn("Cannot delete segment {}", segment.file);
+        }
+    }
+
+    private static int segmentOf(final long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(final long location) {
+        return (int) location;
+    }
+
+
+    private static final class Segment {
+
+        private final int number;
+
+        private final File file;
+
+        /** Write position is guarded by the store; reads use duplicates. */
+        private final MappedByteBuffer buffer;
+
+        /** Guarded by the store. */
+        private long liveBytes;
+
+        public Segment(final int number, final File file, final MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        public byte[] read(final int offset) {
+            final ByteBuffer view = this.buffer.duplicate();
+            view.position(offset);
+            final byte[] data = new byte[view.getInt()];
+            view.get(data);
+            return data;
+        }
+    }
+}
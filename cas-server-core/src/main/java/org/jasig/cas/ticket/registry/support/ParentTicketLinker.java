@@ -0,0 +1,140 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.cas.ticket.AbstractTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+
+/**
+ * Makes tickets restored from their serialized state share the instance of their parent TGT held by a registry.
+ * <p>
+ * Each serialized ST or PGT carries a copy of its parent, so a ticket deserialized on its own would otherwise not
+ * see later changes to the parent, and would for instance remain valid after the parent is destroyed. Tickets
+ * restored in bulk are linked in a single pass by {@link #linkAll(TicketRegistry)}. Tickets restored one at a time
+ * are reported to {@link #added(Ticket)}, which also remembers the children of each parent so that they can be
+ * linked to a parent that arrives after them, or that is replaced by a newer copy. This class is not thread-safe.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+final class ParentTicketLinker {
+
+    /** Registry holding the restored tickets. */
+    private final TicketRegistry registry;
+
+    /** IDs of the children of each parent ticket, keyed by parent ID. */
+    private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+
+    /** ID of the parent of each child ticket, keyed by child ID. */
+    private final Map<String, String> parents = new HashMap<String, String>();
+
+
+    /**
+     * @param registry Registry holding the restored tickets, which must return the instances it holds.
+     */
+    public ParentTicketLinker(final TicketRegistry registry) {
+        this.registry = registry;
+    }
+
+
+    /**
+     * Links every ticket of a registry to the instance of its parent held by that registry.
+     *
+     * @param registry Registry whose tickets are linked.
+     *
+     * @return Number of tickets linked to another instance of their parent.
+     */
+    public static int linkAll(final TicketRegistry registry) {
+        int linked = 0;
+        for (final Ticket ticket : registry.getTickets()) {
+            final TicketGrantingTicket parent = ticket.getGrantingTicket();
+            if (parent != null && link(ticket, registry.getTicket(parent.getId()))) {
+                linked++;
+            }
+        }
+        return linked;
+    }
+
+    /**
+     * Links a ticket just added to the registry to its parent, and its known children to it.
+     *
+     * @param ticket Instance of the ticket held by the registry.
+     */
+    public void added(final Ticket ticket) {
+        final TicketGrantingTicket parent = ticket.getGrantingTicket();
+        if (parent != null) {
+            this.parents.put(ticket.getId(), parent.getId());
+            Set<String> siblings = this.children.get(parent.getId());
+            if (siblings == null) {
+                siblings = new HashSet<String>();
+                this.children.put(parent.getId(), siblings);
+            }
+            siblings.add(ticket.getId());
+            link(ticket, this.registry.getTicket(parent.getId()));
+        }
+        final Set<String> ids = this.children.get(ticket.getId());
+        if (ids != null) {
+            final Iterator<String> it = ids.iterator();
+            while (it.hasNext()) {
+                final Ticket child = this.registry.getTicket(it.next());
+                if (child == null) {
+                    it.remove();
+                } else {
+                    link(child, ticket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets a ticket deleted from the registry.
+     *
+     * @param ticketId ID of the deleted ticket.
+     */
+    public void deleted(final String ticketId) {
+        final String parentId = this.parents.remove(ticketId);
+        if (parentId != null) {
+            final Set<String> siblings = this.children.get(parentId);
+            if (siblings != null) {
+                siblings.remove(ticketId);
+                if (siblings.isEmpty()) {
+                    this.children.remove(parentId);
+                }
+            }
+        }
+    }
+
+    private static boolean link(final Ticket child, final Ticket parent) {
+        if (child instanceof AbstractTicket && parent instanceof TicketGrantingTicketImpl
+                && child.getGrantingTicket() != parent) {
+            ((AbstractTicket) child).relinkGrantingTicket((TicketGrantingTicketImpl) parent);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Writes and reads the length-prefixed, authenticated frames exchanged by {@link TicketReplicationSender} and
+ * {@link TicketReplicationReceiver} in one direction of a connection.
+ * <p>
+ * Every frame is followed by an HMAC-SHA256 under a key shared by both nodes, computed over a nonce chosen by the
+ * receiver for the connection, the direction, the position of the frame in the connection and the frame itself.
+ * Frames are verified before they are parsed, so neither forged nor replayed frames, nor the tickets they carry,
+ * are ever deserialized.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+final class ReplicationFrameCodec {
+
+    /** Length of the nonce chosen by the receiver for each connection. */
+    static final int NONCE_LENGTH = 16;
+
+    /** Direction of frames sent by the primary. */
+    static final byte PRIMARY_TO_STANDBY = 'P';
+
+    /** Direction of acknowledgements sent by the standby. */
+    static final byte STANDBY_TO_PRIMARY = 'A';
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final int MAC_LENGTH = 32;
+
+    private final Mac mac;
+
+    private final byte[] nonce;
+
+    private final byte direction;
+
+    /** Position of the next frame in this direction of the connection. */
+    private long counter;
+
+
+    /**
+     * Creates a codec for one direction of a connection.
+     *
+     * @param key Key shared by the primary and standby.
+     * @param nonce Nonce chosen by the receiver for the connection.
+     * @param direction Direction of the frames.
+     */
+    ReplicationFrameCodec(final SecretKeySpec key, final byte[] nonce, final byte direction) {
+        try {
+            this.mac = Mac.getInstance(MAC_ALGORITHM);
+            this.mac.init(key);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        this.nonce = nonce;
+        this.direction = direction;
+    }
+
+
+    /**
+     * Decodes a shared key.
+     *
+     * @param key Base64 encoded HMAC key of at least 32 bytes.
+     *
+     * @return Key usable by codecs.
+     */
+    static SecretKeySpec decodeKey(final String key) {
+        final byte[] bytes = Base64.decodeBase64(key);
+        if (bytes.length < 32) {
+            throw new IllegalArgumentException("Signing key must be at least 32 bytes long");
+        }
+        return new SecretKeySpec(bytes, MAC_ALGORITHM);
+    }
+
+    /**
+     * Writes a frame followed by its MAC.
+     *
+     * @param out Destination.
+     * @param frame Frame contents, which are cleared once written.
+     *
+     * @throws IOException on write errors.
+     */
+    void write(final DataOutputStream out, final ByteArrayOutputStream frame) throws IOException {
+        final byte[] bytes = frame.toByteArray();
+        frame.reset();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.write(sign(bytes));
+    }
+
+    /**
+     * Reads a frame and verifies its MAC.
+     *
+     * @param in Source.
+     * @param maxLength Maximum length of a frame in bytes.
+     *
+     * @return Stream over the frame contents.
+     *
+     * @throws IOException on read errors, or if the frame is too long or fails verification.
+     */
+    DataInputStream read(final DataInputStream in, final int maxLength) throws IOException {
+        final int length = in.readInt();
+        if (length < 1 || length > maxLength) {
+            throw new IOException("Invalid replication frame length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        final byte[] received = new byte[MAC_LENGTH];
+        in.readFully(received);
+        if (!MessageDigest.isEqual(sign(bytes), received)) {
+            throw new IOException("Replication frame failed authentication");
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private byte[] sign(final byte[] bytes) {
+        this.mac.update(this.nonce);
+        this.mac.update(this.direction);
+        final long position = this.counter++;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            this.mac.update((byte) (position >>> shift));
+        }
+        return this.mac.doFinal(bytes);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates fixed-size chunks from slabs of direct memory outside the Java heap.
+ * <p>
+ * Chunk sizes are powers of two from 128 bytes to 1 MB. Each size class carves chunks out of its own slabs, which
+ * are allocated on demand and never released, and recycles freed chunks through a free list, so that memory is
+ * reused without fragmentation. Chunks are identified by an address encoding size class, slab and offset.
+ * </p>
+ * <p>
+ * Allocation and release are synchronized; {@link #view(long)} may be called concurrently with both, but the
+ * caller must ensure that a chunk is not released while it is being read.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class SlabAllocator {
+
+    /** Binary logarithm of the smallest chunk size. */
+    private static final int MIN_CHUNK_SHIFT = 7;
+
+    /** Number of size classes, up to chunks of 1 MB. */
+    private static final int SIZE_CLASSES = 14;
+
+    /** Minimum slab size. */
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    /** Maximum number of bytes of slabs. */
+    private final long capacity;
+
+    private final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASSES];
+
+    private long allocatedBytes;
+
+    private long usedBytes;
+
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param capacity Maximum number of bytes of direct memory to allocate.
+     */
+    public SlabAllocator(final long capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            this.sizeClasses[i] = new SizeClass(1 << (MIN_CHUNK_SHIFT + i));
+        }
+    }
+
+
+    /**
+     * Allocates a chunk.
+     *
+     * @param size Number of bytes needed.
+     *
+     * @return Address of a chunk of at least the given size.
+     *
+     * @throws IllegalArgumentException if the size exceeds the largest chunk size.
+     * @throws IllegalStateException if the capacity is exhausted.
+     */
+    public synchronized long allocate(final int size) {
+        final int index = sizeClassOf(size);
+        final SizeClass sizeClass = this.sizeClasses[index];
+        final long chunk = sizeClass.allocate();
+        this.usedBytes += sizeClass.chunkSize;
+        return ((long) index << 56) | chunk;
+    }
+
+    /**
+     * Releases a chunk for reuse.
+     *
+     * @param address Address of the chunk.
+     */
+    public synchronized void free(final long address) {
+        final SizeClass sizeClass = this.sizeClasses[(int) (address >>> 56)];
+        sizeClass.free(address & 0x00FFFFFFFFFFFFFFL);
+        this.usedBytes -= sizeClass.chunkSize;
+    }
+
+    /**
+     * Gets a buffer spanning a chunk, positioned at its start.
+     *
+     * @param address Address of the chunk.
+     *
+     * @return Buffer whose position and limit delimit the chunk.
+     */
+    public ByteBuffer view(final long address) {
+        final SizeClass sizeClass = this.sizeClasses[(int) (address >>> 56)];
+        final int slab = (int) ((address >>> 32) & 0xFFFFFF);
+        final int offset = (int) address;
+        final ByteBuffer view = sizeClass.slabs[slab].duplicate();
+        view.limit(offset + sizeClass.chunkSize);
+        view.position(offset);
+        return view;
+    }
+
+    /**
+     * @return Number of bytes of direct memory allocated for slabs.
+     */
+    public synchronized long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    /**
+     * @return Number of bytes of chunks in use, including unused space at the end of chunks.
+     */
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /**
+     * @return Maximum number of bytes of direct memory to allocate.
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    private static int sizeClassOf(final int size) {
+        int index = 0;
+        while ((1 << (MIN_CHUNK_SHIFT + index)) < size) {
+            if (++index == SIZE_CLASSES) {
+                throw new IllegalArgumentException("Cannot allocate " + size + " bytes off heap");
+            }
+        }
+        return index;
+    }
+
+
+    private final class SizeClass {
+
+        private final int chunkSize;
+
+        private final int chunksPerSlab;
+
+        /** Replaced on growth so that concurrent readers see a consistent array. */
+        private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+        /** Addresses (slab and offset) of freed chunks. */
+        private long[] freeList = new long[16];
+
+        private int freeCount;
+
+        /** Index of the next never used chunk in the last slab. */
+        private int nextChunk;
+
+        public SizeClass(final int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerSlab = Math.max(1, SLAB_SIZE / chunkSize);
+            this.nextChunk = this.chunksPerSlab;
+        }
+
+        public long allocate() {
+            if (this.freeCount > 0) {
+                return this.freeList[--this.freeCount];
+            }
+            if (this.nextChunk == this.chunksPerSlab) {
+                final int slabSize = this.chunksPerSlab * this.chunkSize;
+                if (allocatedBytes + slabSize > capacity) {
+                    throw new IllegalStateException("Off-heap capacity of " + capacity + " bytes exhausted");
+                }
+                final ByteBuffer[] grown = new ByteBuffer[this.slabs.length + 1];
+                System.arraycopy(this.slabs, 0, grown, 0, this.slabs.length);
+                grown[this.slabs.length] = ByteBuffer.allocateDirect(slabSize);
+                this.slabs = grown;
+                allocatedBytes += slabSize;
+                this.nextChunk = 0;
+            }
+            return ((long) (this.slabs.length - 1) << 32) | (this.nextChunk++ * this.chunkSize);
+        }
+
+        public void free(final long chunk) {
+            if (this.freeCount == this.freeList.length) {
+                final long[] grown = new long[this.freeList.length * 2];
+                System.arraycopy(this.freeList, 0, grown, 0, this.freeCount);
+                this.freeList = grown;
+            }
+            this.freeList[this.freeCount++] = chunk;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * Immutable record of a single change made to a ticket registry, along with its binary encoding.
+ * <p>
+ * Changes are numbered by a sequence that increases monotonically in the order changes were made, which allows a
+ * consumer of a change log to acknowledge its progress. The state of added and updated tickets is captured in
+ * serialized form at the time the change is made, so later changes to the live ticket object do not affect the
+ * record.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class TicketChange {
+
+    /** Maximum size in bytes of the serialized state of a ticket read by {@link #readFrom(DataInput)}. */
+    public static final int MAX_STATE_LENGTH = 1024 * 1024;
+
+    /** Kinds of changes. */
+    public enum Type {
+        ADD,
+        UPDATE,
+        DELETE
+    }
+
+    private final Type type;
+
+    private final long sequence;
+
+    private final long timestamp;
+
+    private final String ticketId;
+
+    /** Serialized ticket state; null for deletions. */
+    private final byte[] state;
+
+
+    /**
+     * Creates a new change record.
+     *
+     * @param type Kind of change.
+     * @param sequence Sequence number of the change.
+     * @param timestamp Time at which the change was made in milliseconds since the epoch.
+     * @param ticketId ID of the changed ticket.
+     * @param state Serialized ticket state, or null for deletions.
+     */
+    public TicketChange(
+            final Type type, final long sequence, final long timestamp, final String ticketId, final byte[] state) {
+        this.type = type;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.ticketId = ticketId;
+        this.state = state;
+    }
+
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public String getTicketId() {
+        return this.ticketId;
+    }
+
+    /**
+     * @return Size in bytes of the serialized ticket state, or 0 for deletions.
+     */
+    public int getStateLength() {
+        return this.state != null ? this.state.length : 0;
+    }
+
+    /**
+     * @return Ticket deserialized from the recorded state, or null for deletions.
+     *
+     * @throws IOException if the ticket cannot be deserialized.
+     */
+    public Ticket getTicket() throws IOException {
+        if (this.state == null) {
+            return null;
+        }
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(this.state));
+        try {
+            return (Ticket) in.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("Cannot deserialize ticket " + this.ticketId, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the binary encoding of this change.
+     *
+     * @param out Destination.
+     *
+     * @throws IOException on write errors.
+     */
+    public void writeTo(final DataOutput out) throws IOException {
+        out.writeByte(this.type.ordinal());
+        out.writeLong(this.sequence);
+        out.writeLong(this.timestamp);
+        out.writeUTF(this.ticketId);
+        if (this.state != null) {
+            out.writeInt(this.state.length);
+            out.write(this.state);
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    /**
+     * Reads a change from its binary encoding as written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in Source.
+     *
+     * @return Change read.
+     *
+     * @throws IOException on read errors or malformed input, including state longer than {@link #MAX_STATE_LENGTH}.
+     */
+    public static TicketChange readFrom(final DataInput in) throws IOException {
+        return readFrom(in, MAX_STATE_LENGTH);
+    }
+
+    /**
+     * Reads a change from its binary encoding as written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in Source.
+     * @param maxStateLength Maximum size in bytes of the serialized ticket state, which is checked before the
+     * state is read.
+     *
+     * @return Change read.
+     *
+     * @throws IOException on read errors or malformed input, including state longer than the maximum.
+     */
+    public static TicketChange readFrom(final DataInput in, final int maxStateLength) throws IOException {
+        final int ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= Type.values().length) {
+            throw new IOException("Invalid change type " + ordinal);
+        }
+        final long sequence = in.readLong();
+        final long timestamp = in.readLong();
+        final String ticketId = in.readUTF();
+        final int length = in.readInt();
+        if (length > maxStateLength) {
+            throw new IOException("Ticket state of " + length + " bytes exceeds maximum of " + maxStateLength);
+        }
+        byte[] state = null;
+        if (length >= 0) {
+            state = new byte[length];
+            in.readFully(state);
+        }
+        return new TicketChange(Type.values()[ordinal], sequence, timestamp, ticketId, state);
+    }
+
+    /**
+     * Captures the current state of a ticket in serialized form.
+     *
+     * @param ticket Ticket to serialize.
+     *
+     * @return Serialized ticket.
+     */
+    public static byte[] serialize(final Ticket ticket) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try {
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(ticket);
+            out.close();
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Cannot serialize ticket " + ticket.getId(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return this.type + " " + this.ticketId + " #" + this.sequence;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, memory-mapped journal of ticket registry changes with compacting snapshots.
+ * <p>
+ * The journal directory holds segment files named <code>journal-N.log</code> and snapshot files named
+ * <code>snapshot-N.dat</code>, where N is the sequence number of the first change recorded in the segment or, for
+ * snapshots, of the first change <em>not</em> reflected by the snapshot. Segments are preallocated and mapped into
+ * memory; each change is stored in a frame consisting of its length, a CRC-32 checksum and its
+ * {@link TicketChange} encoding, so a frame torn by a crash is detected on replay and ends the journal.
+ * </p>
+ * <p>
+ * Writing a snapshot starts a new segment, writes the given tickets to a temporary file that is synced and then
+ * renamed, and finally removes older segments and snapshots. A crash at any point thus leaves either the previous
+ * snapshot and its segments or the new snapshot in place.
+ * </p>
+ * <p>
+ * Instances are not thread safe; all writes must be made by a single thread.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class TicketJournal {
+
+    private static final String JOURNAL_PREFIX = "journal-";
+
+    private static final String JOURNAL_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    /** Frame length and checksum. */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    /** Marks the end of the changes submitted to a replay lane. */
+    private static final TicketChange END_OF_REPLAY = new TicketChange(TicketChange.Type.DELETE, -1, 0, "", null);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(1024);
+
+    private final CRC32 checksum = new CRC32();
+
+    private MappedByteBuffer segment;
+
+    private long nextSequence = 1;
+
+    private long bytesSinceSnapshot;
+
+
+    /**
+     * Creates a journal in the given directory, which is created if needed.
+     *
+     * @param directory Journal directory.
+     * @param segmentSize Size in bytes of journal segments.
+     *
+     * @throws IOException if the directory cannot be created.
+     */
+    public TicketJournal(final File directory, final int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+
+    /**
+     * Replays the latest snapshot and the journal segments following it into the given registry, after which the
+     * journal is ready for appending. Changes are decoded sequentially and dispatched by ticket ID to parallel
+     * lanes that deserialize and apply them, which preserves the order of changes to any single ticket. Since each
+     * replayed ticket carries its own copy of its parent TGT, every ticket is then linked to the instance of its
+     * parent held by the registry, which must therefore return the instances it holds.
+     *
+     * @param registry Registry to which changes are applied.
+     * @param threads Number of replay lanes.
+     *
+     * @return Number of changes replayed.
+     *
+     * @throws IOException if the journal cannot be read or a change cannot be applied.
+     */
+    public long replay(final TicketRegistry registry, final int threads) throws IOException {
+        final ReplayLanes lanes = new ReplayLanes(registry, threads);
+        long count = 0;
+        long start = 0;
+        try {
+            final File[] snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+            if (snapshots.length > 0) {
+                final File latest = snapshots[snapshots.length - 1];
+                start = parseSequence(latest, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+                count += read(latest, lanes);
+                this.nextSequence = Math.max(this.nextSequence, start);
+            }
+            for (final File journal : list(JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+                if (parseSequence(journal, JOURNAL_PREFIX, JOURNAL_SUFFIX) >= start) {
+                    count += read(journal, lanes);
+                }
+            }
+        } finally {
+            lanes.finish();
+        }
+        final int linked = ParentTicketLinker.linkAll(registry);
+        log.debug("Linked {} replayed tickets to their parent", linked);
+        openSegment(this.segmentSize, this.nextSequence);
+        return count;
+    }
+
+    /**
+     * Assigns the next sequence number.
+     *
+     * @return Sequence number of the next change to append.
+     */
+    public long nextSequence() {
+        return this.nextSequence++;
+    }
+
+    /**
+     * Appends a change to the current segment, starting a new segment if it is full. The change is not durable
+     * until {@link #sync()} is called.
+     *
+     * @param change Change to append.
+     *
+     * @throws IOException on write errors.
+     */
+    public void append(final TicketChange change) throws IOException {
+        final byte[] frame = encode(change);
+        if (this.segment.remaining() < frame.length + FRAME_HEADER_SIZE) {
+            roll(frame.length + FRAME_HEADER_SIZE * 2, change.getSequence());
+        }
+        this.checksum.reset();
+        this.checksum.update(frame);
+        this.segment.putInt(frame.length);
+        this.segment.putInt((int) this.checksum.getValue());
+        this.segment.put(frame);
+        this.bytesSinceSnapshot += frame.length + FRAME_HEADER_SIZE;
+    }
+
+    /**
+     * Forces changes appended to the current segment to disk.
+     */
+    public void sync() {
+        if (this.segment != null) {
+            this.segment.force();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given tickets, which must reflect at least all changes appended so far, and removes
+     * the segments and snapshots it supersedes. Expired tickets are omitted.
+     *
+     * @param tickets Tickets of the registry.
+     *
+     * @return Number of tickets written.
+     *
+     * @throws IOException on write errors.
+     */
+    public int snapshot(final Collection<Ticket> tickets) throws IOException {
+        final long sequence = this.nextSequence;
+        roll(0, sequence);
+        final long now = System.currentTimeMillis();
+        final File temp = new File(this.directory, SNAPSHOT_PREFIX + format(sequence) + SNAPSHOT_SUFFIX + ".tmp");
+        final FileOutputStream file = new FileOutputStream(temp);
+        int count = 0;
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536));
+            for (final Ticket ticket : tickets) {
+                if (ticket.isExpired()) {
+                    continue;
+                }
+                final byte[] frame = encode(new TicketChange(
+                        TicketChange.Type.ADD, sequence, now, ticket.getId(), serialize(ticket)));
+                this.checksum.reset();
+                this.checksum.update(frame);
+                out.writeInt(frame.length);
+                out.writeInt((int) this.checksum.getValue());
+                out.write(frame);
+                count++;
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        final File target = new File(this.directory, SNAPSHOT_PREFIX + format(sequence) + SNAPSHOT_SUFFIX);
+        if (!temp.renameTo(target)) {
+            throw new IOException("Cannot rename " + temp + " to " + target);
+        }
+        for (final File old : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (parseSequence(old, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX) < sequence) {
+                delete(old);
+            }
+        }
+        for (final File old : list(JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            if (parseSequence(old, JOURNAL_PREFIX, JOURNAL_SUFFIX) < sequence) {
+                delete(old);
+            }
+        }
+        this.bytesSinceSnapshot = 0;
+        return count;
+    }
+
+    /**
+     * @return Number of bytes appended since the last snapshot.
+     */
+    public long getBytesSinceSnapshot() {
+        return this.bytesSinceSnapshot;
+    }
+
+    /**
+     * Captures the state of a ticket. Ticket implementations replace their mutable state atomically, so tickets
+     * may be serialized while in use.
+     *
+     * @param ticket Ticket to serialize.
+     *
+     * @return Serialized ticket.
+     */
+    public static byte[] serialize(final Ticket ticket) {
+        return TicketChange.serialize(ticket);
+    }
+
+    private byte[] encode(final TicketChange change) throws IOException {
+        this.frameBuffer.reset();
+        change.writeTo(new DataOutputStream(this.frameBuffer));
+        return this.frameBuffer.toByteArray();
+    }
+
+    private void roll(final int minimumSize, final long firstSequence) throws IOException {
+        sync();
+        openSegment(Math.max(this.segmentSize, minimumSize), firstSequence);
+    }
+
+    private void openSegment(final int size, final long firstSequence) throws IOException {
+        final File file = new File(this.directory, JOURNAL_PREFIX + format(firstSequence) + JOURNAL_SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            // The mapping stays valid after the channel is closed and is released when garbage collected
+            this.segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private long read(final File file, final ReplayLanes lanes) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        final CRC32 crc = new CRC32();
+        long count = 0;
+        while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+            final int length = buffer.getInt();
+            final int expectedChecksum = buffer.getInt();
+            if (length <= 0) {
+                // Preallocated space that was never written
+                break;
+            }
+            if (length > buffer.remaining()) {
+                log.warn("Truncated change at offset {} of {}; ignoring remainder", buffer.position(), file);
+                break;
+            }
+            final byte[] frame = new byte[length];
+            buffer.get(frame);
+            crc.reset();
+            crc.update(frame);
+            if ((int) crc.getValue() != expectedChecksum) {
+                log.warn("Corrupt change at offset {} of {}; ignoring remainder", buffer.position(), file);
+                break;
+            }
+            // The frame was verified and bounds the ticket state
+            final TicketChange change =
+                    TicketChange.readFrom(new DataInputStream(new ByteArrayInputStream(frame)), length);
+            this.nextSequence = Math.max(this.nextSequence, change.getSequence() + 1);
+            lanes.dispatch(change);
+            count++;
+        }
+        log.debug("Replayed {} changes from {}", count, file);
+        return count;
+    }
+
+    private File[] list(final String prefix, final String suffix) {
+        final File[] files = this.directory.listFiles(new FileFilter() {
+            public boolean accept(final File file) {
+                return file.getName().startsWith(prefix) && file.getName().endsWith(suffix);
+            }
+        });
+        // Zero-padded sequence numbers sort lexicographically
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void delete(final File file) {
+        if (!file.delete()) {
+            log.warn("Cannot delete superseded journal file {}", file);
+        }
+    }
+
+    private static long parseSequence(final File file, final String prefix, final String suffix) {
+        final String name = file.getName();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    private static String format(final long sequence) {
+        return String.format("%020d", sequence);
+    }
+
+
+    /**
+     * Applies replayed changes on a fixed number of threads, dispatching all changes to a given ticket to the same
+     * thread.
+     */
+    private static final class ReplayLanes {
+
+        private final TicketRegistry registry;
+
+        private final List<BlockingQueue<TicketChange>> queues;
+
+        private final ExecutorService executor;
+
+        private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        public ReplayLanes(final TicketRegistry registry, final int threads) {
+            this.registry = registry;
+            this.queues = new ArrayList<BlockingQueue<TicketChange>>(threads);
+            this.executor = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++) {
+                final BlockingQueue<TicketChange> queue = new ArrayBlockingQueue<TicketChange>(4096);
+                this.queues.add(queue);
+                this.executor.execute(new Runnable() {
+                    public void run() {
+                        apply(queue);
+                    }
+                });
+            }
+        }
+
+        public void dispatch(final TicketChange change) throws IOException {
+            final int lane = (change.getTicketId().hashCode() & Integer.MAX_VALUE) % this.queues.size();
+            try {
+                this.queues.get(lane).put(change);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying journal");
+            }
+        }
+
+        public void finish() throws IOException {
+            try {
+                for (final BlockingQueue<TicketChange> queue : this.queues) {
+                    queue.put(END_OF_REPLAY);
+                }
+                this.executor.shutdown();
+                this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                this.executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying journal");
+            }
+            if (this.failure.get() != null) {
+                throw new IOException("Journal replay failed", this.failure.get());
+            }
+        }
+
+        private void apply(final BlockingQueue<TicketChange> queue) {
+            try {
+                TicketChange change;
+                while ((change = queue.take()) != END_OF_REPLAY) {
+                    if (change.getType() == TicketChange.Type.DELETE) {
+                        this.registry.deleteTicket(change.getTicketId());
+                        continue;
+                    }
+                    final Ticket ticket = change.getTicket();
+                    if (ticket.isExpired()) {
+                        this.registry.deleteTicket(ticket.getId());
+                    } else {
+                        this.registry.addTicket(ticket);
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final Exception e) {
+                this.failure.compareAndSet(null, e);
+                // Keep draining so the reader never blocks on a full lane
+                while (true) {
+                    try {
+                        if (queue.take() == END_OF_REPLAY) {
+                            return;
+                        }
+                    } catch (final InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
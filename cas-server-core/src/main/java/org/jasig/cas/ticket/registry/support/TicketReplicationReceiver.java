@@ -0,0 +1,291 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+import javax.crypto.spec.SecretKeySpec;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Runs on a standby CAS node and applies the change log streamed by the {@link TicketReplicationSender} of the
+ * primary node to the local ticket registry, so that sessions survive a failover to the standby.
+ * <p>
+ * A single primary connection is served at a time. Snapshots are applied without first clearing the registry:
+ * tickets absent from a snapshot are removed once the snapshot is complete, so the standby holds a usable set of
+ * tickets at all times. Every received ticket carries its own copy of its parent TGT, so it is linked to the instance
+ * of the parent held by the registry, which must be an in-memory registry returning the instances it holds.
+ * </p>
+ * <p>
+ * The receiver listens on the loopback address unless told otherwise. Each connection starts with a random nonce
+ * sent to the primary, after which every frame must be authenticated under the key shared with the primary by a
+ * {@link ReplicationFrameCodec}; the connection is dropped on the first frame that fails verification, before any
+ * ticket it carries is deserialized.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class TicketReplicationReceiver implements Runnable, InitializingBean, DisposableBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Registry to which changes are applied. */
+    @NotNull
+    private final TicketRegistry registry;
+
+    /** Port on which to listen for the primary. */
+    @Min(1)
+    private final int port;
+
+    /** Local address to bind to. */
+    @NotNull
+    private String bindAddress = "127.0.0.1";
+
+    /** Key shared with the primary to authenticate frames. */
+    private SecretKeySpec signingKey;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /** Links received tickets to the registry instance of their parent; used by the receiving thread only. */
+    private final ParentTicketLinker linker;
+
+    /** Milliseconds without any frame from the primary after which the connection is considered dead. */
+    private int readTimeout = 10000;
+
+    private volatile ServerSocket serverSocket;
+
+    private volatile Socket socket;
+
+    private volatile boolean running;
+
+    private volatile long appliedSequence;
+
+    private volatile long appliedTimestamp;
+
+    private volatile boolean synchronizedWithPrimary;
+
+
+    /**
+     * Creates a new receiver.
+     *
+     * @param registry Registry to which changes are applied.
+     * @param port Port on which to listen for the primary.
+     */
+    public TicketReplicationReceiver(final TicketRegistry registry, final int port) {
+        this.registry = registry;
+        this.port = port;
+        this.linker = new ParentTicketLinker(registry);
+    }
+
+
+    public void afterPropertiesSet() throws Exception {
+        if (this.signingKey == null) {
+            throw new IllegalStateException("Signing key must be set to receive tickets.");
+        }
+        final ServerSocket s = new ServerSocket();
+        s.setReuseAddress(true);
+        s.bind(new InetSocketAddress(InetAddress.getByName(this.bindAddress), this.port));
+        this.serverSocket = s;
+        this.running = true;
+        final Thread thread = new Thread(this, "TicketReplicationReceiver-" + this.port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void destroy() throws Exception {
+        this.running = false;
+        this.serverSocket.close();
+        final Socket s = this.socket;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    public void run() {
+        while (this.running) {
+            try {
+                final Socket s = this.serverSocket.accept();
+                s.setSoTimeout(this.readTimeout);
+                s.setTcpNoDelay(true);
+                this.socket = s;
+                log.info("Accepted replication connection from {}", s.getRemoteSocketAddress());
+                try {
+                    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    final byte[] nonce = new byte[ReplicationFrameCodec.NONCE_LENGTH];
+                    this.random.nextBytes(nonce);
+                    out.write(nonce);
+                    out.flush();
+                    receive(new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536)), out,
+                            new ReplicationFrameCodec(
+                                    this.signingKey, nonce, ReplicationFrameCodec.PRIMARY_TO_STANDBY),
+                            new ReplicationFrameCodec(
+                                    this.signingKey, nonce, ReplicationFrameCodec.STANDBY_TO_PRIMARY));
+                } finally {
+                    this.synchronizedWithPrimary = false;
+                    s.close();
+                }
+            } catch (final IOException e) {
+                if (this.running) {
+                    log.warn("Replication connection failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Sequence number of the last change applied.
+     */
+    public long getAppliedSequence() {
+        return this.appliedSequence;
+    }
+
+    /**
+     * @return Time at which the last applied change was made on the primary.
+     */
+    public long getAppliedTimestamp() {
+        return this.appliedTimestamp;
+    }
+
+    /**
+     * @return True if connected to the primary and a complete snapshot has been applied.
+     */
+    public boolean isSynchronizedWithPrimary() {
+        return this.synchronizedWithPrimary;
+    }
+
+    /**
+     * @param address Local address to bind to, e.g. <code>0.0.0.0</code> for all addresses. Default is
+     * <code>127.0.0.1</code>.
+     */
+    public void setBindAddress(final String address) {
+        this.bindAddress = address;
+    }
+
+    /**
+     * @param key Base64 encoded HMAC key of at least 32 bytes shared with the primary.
+     */
+    public void setSigningKey(final String key) {
+        this.signingKey = ReplicationFrameCodec.decodeKey(key);
+    }
+
+    /**
+     * @param timeout Milliseconds without any frame from the primary after which the connection is considered
+     * dead. Must exceed the heartbeat interval of the sender. Default is 10000.
+     */
+    public void setReadTimeout(final int timeout) {
+        this.readTimeout = timeout;
+    }
+
+    private void receive(
+            final DataInputStream in,
+            final DataOutputStream out,
+            final ReplicationFrameCodec inCodec,
+            final ReplicationFrameCodec outCodec) throws IOException {
+        Set<String> staleTicketIds = null;
+        while (this.running) {
+            final DataInputStream frame = inCodec.read(in, TicketReplicationSender.MAX_FRAME_LENGTH);
+            final byte type = frame.readByte();
+            switch (type) {
+                case TicketReplicationSender.FRAME_HEARTBEAT:
+                    break;
+                case TicketReplicationSender.FRAME_SNAPSHOT_BEGIN:
+                    frame.readLong();
+                    this.synchronizedWithPrimary = false;
+                    staleTicketIds = new HashSet<String>();
+                    for (final Ticket ticket : this.registry.getTickets()) {
+                        staleTicketIds.add(ticket.getId());
+                    }
+                    break;
+                case TicketReplicationSender.FRAME_BATCH:
+                    while (frame.available() > 0) {
+                        final TicketChange change = TicketChange.readFrom(frame);
+                        if (staleTicketIds != null) {
+                            staleTicketIds.remove(change.getTicketId());
+                        }
+                        apply(change);
+                    }
+                    acknowledge(out, outCodec);
+                    break;
+                case TicketReplicationSender.FRAME_SNAPSHOT_END:
+                    this.appliedSequence = frame.readLong();
+                    if (staleTicketIds != null) {
+                        for (final String id : staleTicketIds) {
+                            this.registry.deleteTicket(id);
+                            this.linker.deleted(id);
+                        }
+                        log.info("Applied snapshot at sequence {}; removed {} stale tickets",
+                                this.appliedSequence, staleTicketIds.size());
+                        staleTicketIds = null;
+                    }
+                    this.synchronizedWithPrimary = true;
+                    acknowledge(out, outCodec);
+                    break;
+                default:
+                    throw new IOException("Invalid replication frame " + type);
+            }
+        }
+    }
+
+    private void apply(final TicketChange change) throws IOException {
+        switch (change.getType()) {
+            case ADD:
+            case UPDATE:
+                final Ticket ticket = change.getTicket();
+                this.registry.addTicket(ticket);
+                this.linker.added(ticket);
+                break;
+            case DELETE:
+                this.registry.deleteTicket(change.getTicketId());
+                this.linker.deleted(change.getTicketId());
+                break;
+            default:
+                throw new IllegalStateException("Unknown change type " + change.getType());
+        }
+        this.appliedSequence = change.getSequence();
+        this.appliedTimestamp = change.getTimestamp();
+    }
+
+    private void acknowledge(final DataOutputStream out, final ReplicationFrameCodec codec) throws IOException {
+        final ByteArrayOutputStream ack = new ByteArrayOutputStream(TicketReplicationSender.ACKNOWLEDGEMENT_LENGTH);
+        final DataOutputStream frame = new DataOutputStream(ack);
+        frame.writeLong(this.appliedSequence);
+        frame.writeLong(this.appliedTimestamp);
+        codec.write(out, ack);
+        out.flush();
+    }
+}
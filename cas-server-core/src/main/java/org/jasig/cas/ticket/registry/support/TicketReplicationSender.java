@@ -0,0 +1,445 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the change log of a ticket registry to a standby node over TCP, where it is applied by a
+ * {@link TicketReplicationReceiver}.
+ * <p>
+ * Changes are published into a bounded queue without blocking and written by a single background thread in
+ * batches. Tickets are serialized on the publishing thread under a lock striped by ticket ID, so that changes to
+ * distinct tickets are captured concurrently while changes to the same ticket are queued in the order they were
+ * captured. When a connection is established, and whenever the queue overflows because the standby or the network
+ * cannot keep up, the queue is discarded and a snapshot of the whole registry is sent instead, after which
+ * streaming resumes. Since changes are idempotent (adds and updates replace, deletes remove) a snapshot overlapping
+ * queued changes converges to the state of the primary.
+ * </p>
+ * <p>
+ * The standby acknowledges every batch with the sequence number and timestamp of the last change applied, from
+ * which the replication lag is derived.
+ * </p>
+ * <p>
+ * Both directions of the connection consist of frames authenticated by a {@link ReplicationFrameCodec} under a key
+ * shared with the standby, which must be set before the sender is started. Tickets whose serialized state exceeds
+ * {@link TicketChange#MAX_STATE_LENGTH} are not replicated.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class TicketReplicationSender implements Runnable {
+
+    /** Frame announcing the start of a snapshot, followed by the sequence at which it was taken. */
+    static final byte FRAME_SNAPSHOT_BEGIN = 'S';
+
+    /** Frame completing a snapshot, followed by the sequence at which it was taken. */
+    static final byte FRAME_SNAPSHOT_END = 'E';
+
+    /** Frame holding a batch of changes, followed by the changes up to the end of the frame. */
+    static final byte FRAME_BATCH = 'B';
+
+    /** Frame sent when idle to keep the connection alive. */
+    static final byte FRAME_HEARTBEAT = 'H';
+
+    /** Maximum length of a frame, which holds at least one change of maximum size. */
+    static final int MAX_FRAME_LENGTH = 4 * TicketChange.MAX_STATE_LENGTH;
+
+    /** Length of an acknowledgement frame. */
+    static final int ACKNOWLEDGEMENT_LENGTH = 16;
+
+    /** Number of locks over which ticket IDs are spread while their changes are captured. */
+    private static final int CAPTURE_STRIPES = 64;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Registry whose contents are sent as snapshots. */
+    private final TicketRegistry source;
+
+    /** Address of the standby node. */
+    private final InetSocketAddress standby;
+
+    /** Changes waiting to be sent. */
+    private final BlockingQueue<TicketChange> queue;
+
+    /** Guards assignment of sequence numbers so that they match queue order. */
+    private final Object publishLock = new Object();
+
+    /** Orders the capture and queuing of changes to the same ticket. */
+    private final Object[] captureLocks = new Object[CAPTURE_STRIPES];
+
+    private final AtomicBoolean resyncRequired = new AtomicBoolean(true);
+
+    private long sequence;
+
+    private volatile long acknowledgedSequence;
+
+    private volatile long acknowledgedTimestamp;
+
+    private volatile boolean connected;
+
+    private volatile boolean running;
+
+    private final AtomicLong publishedCount = new AtomicLong();
+
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private final AtomicLong snapshotCount = new AtomicLong();
+
+    private int batchSize = 256;
+
+    private int connectTimeout = 2000;
+
+    private int heartbeatInterval = 1000;
+
+    private int reconnectInterval = 5000;
+
+    private Thread writerThread;
+
+    private volatile Socket socket;
+
+    /** Key shared with the standby to authenticate frames. */
+    private SecretKeySpec signingKey;
+
+    /** Contents of the frame being written; used by the writer thread only. */
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(65536);
+
+    private final DataOutputStream frame = new DataOutputStream(this.frameBuffer);
+
+
+    /**
+     * Creates a new sender.
+     *
+     * @param source Registry whose contents are sent as snapshots.
+     * @param standby Address of the standby node.
+     * @param queueCapacity Maximum number of changes queued before falling back to a snapshot.
+     */
+    public TicketReplicationSender(
+            final TicketRegistry source, final InetSocketAddress standby, final int queueCapacity) {
+        this.source = source;
+        this.standby = standby;
+        this.queue = new ArrayBlockingQueue<TicketChange>(queueCapacity);
+        for (int i = 0; i < CAPTURE_STRIPES; i++) {
+            this.captureLocks[i] = new Object();
+        }
+    }
+
+
+    /**
+     * Records a change. Never blocks on the standby: if the queue is full the change is dropped and a snapshot is
+     * scheduled.
+     *
+     * @param type Kind of change.
+     * @param ticketId ID of the changed ticket.
+     * @param ticket Changed ticket, or null for deletions.
+     */
+    public void publish(final TicketChange.Type type, final String ticketId, final Ticket ticket) {
+        this.publishedCount.incrementAndGet();
+        if (!this.connected || this.resyncRequired.get()) {
+            // The next snapshot will carry this change
+            return;
+        }
+        synchronized (this.captureLocks[(ticketId.hashCode() & Integer.MAX_VALUE) % CAPTURE_STRIPES]) {
+            // Concurrent updates of a ticket are captured and queued one at a time, so they reach the standby in order
+            final byte[] state = ticket != null ? capture(ticket) : null;
+            if (ticket != null && state == null) {
+                return;
+            }
+            synchronized (this.publishLock) {
+                final TicketChange change = new TicketChange(
+                        type, ++this.sequence, System.currentTimeMillis(), ticketId, state);
+                if (!this.queue.offer(change)) {
+                    this.overflowCount.incrementAndGet();
+                    this.resyncRequired.set(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if no signing key is set.
+     */
+    public void start() {
+        if (this.signingKey == null) {
+            throw new IllegalStateException("Signing key must be set to replicate tickets.");
+        }
+        this.running = true;
+        this.writerThread = new Thread(this, "TicketReplicationSender-" + this.standby);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public void stop() {
+        this.running = false;
+        closeSocket();
+        if (this.writerThread != null) {
+            this.writerThread.interrupt();
+        }
+    }
+
+    public void run() {
+        while (this.running) {
+            try {
+                final Socket s = new Socket();
+                s.setTcpNoDelay(true);
+                s.connect(this.standby, this.connectTimeout);
+                this.socket = s;
+                log.info("Connected to standby {}", this.standby);
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 65536));
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                final byte[] nonce = new byte[ReplicationFrameCodec.NONCE_LENGTH];
+                s.setSoTimeout(this.connectTimeout);
+                in.readFully(nonce);
+                s.setSoTimeout(0);
+                startAcknowledgementReader(in, new ReplicationFrameCodec(
+                        this.signingKey, nonce, ReplicationFrameCodec.STANDBY_TO_PRIMARY));
+                this.resyncRequired.set(true);
+                this.connected = true;
+                stream(out,
+                        new ReplicationFrameCodec(this.signingKey, nonce, ReplicationFrameCodec.PRIMARY_TO_STANDBY));
+            } catch (final IOException e) {
+                if (this.running) {
+                    log.warn("Replication to standby {} failed: {}", this.standby, e.getMessage());
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                this.connected = false;
+                closeSocket();
+            }
+            try {
+                Thread.sleep(this.reconnectInterval);
+            } catch (final InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return Number of changes published but not yet acknowledged by the standby.
+     */
+    public long getPendingChanges() {
+        synchronized (this.publishLock) {
+            return this.sequence - this.acknowledgedSequence;
+        }
+    }
+
+    /**
+     * @return Age in milliseconds of the last change acknowledged by the standby while changes are pending, or
+     * 0 if the standby is up to date. Returns -1 while disconnected.
+     */
+    public long getReplicationLagMillis() {
+        if (!this.connected) {
+            return -1;
+        }
+        return getPendingChanges() > 0 ? System.currentTimeMillis() - this.acknowledgedTimestamp : 0;
+    }
+
+    public boolean isConnected() {
+        return this.connected;
+    }
+
+    public long getPublishedCount() {
+        return this.publishedCount.get();
+    }
+
+    public long getOverflowCount() {
+        return this.overflowCount.get();
+    }
+
+    public long getSnapshotCount() {
+        return this.snapshotCount.get();
+    }
+
+    /**
+     * @param size Maximum number of changes written per batch. Default is 256.
+     */
+    public void setBatchSize(final int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * @param timeout Connect timeout in milliseconds. Default is 2000.
+     */
+    public void setConnectTimeout(final int timeout) {
+        this.connectTimeout = timeout;
+    }
+
+    /**
+     * @param interval Milliseconds of inactivity after which a heartbeat is sent. Default is 1000.
+     */
+    public void setHeartbeatInterval(final int interval) {
+        this.heartbeatInterval = interval;
+    }
+
+    /**
+     * @param interval Milliseconds to wait before reconnecting to the standby. Default is 5000.
+     */
+    public void setReconnectInterval(final int interval) {
+        this.reconnectInterval = interval;
+    }
+
+    /**
+     * @param key Base64 encoded HMAC key of at least 32 bytes shared with the standby.
+     */
+    public void setSigningKey(final String key) {
+        this.signingKey = ReplicationFrameCodec.decodeKey(key);
+    }
+
+    private void stream(final DataOutputStream out, final ReplicationFrameCodec codec)
+            throws IOException, InterruptedException {
+        final List<TicketChange> batch = new ArrayList<TicketChange>(this.batchSize);
+        while (this.running) {
+            if (this.resyncRequired.get()) {
+                sendSnapshot(out, codec);
+            }
+            final TicketChange first = this.queue.poll(this.heartbeatInterval, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                this.frame.writeByte(FRAME_HEARTBEAT);
+                codec.write(out, this.frameBuffer);
+                out.flush();
+                continue;
+            }
+            batch.add(first);
+            this.queue.drainTo(batch, this.batchSize - 1);
+            writeBatch(out, codec, batch);
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    private void sendSnapshot(final DataOutputStream out, final ReplicationFrameCodec codec) throws IOException {
+        final long snapshotSequence;
+        synchronized (this.publishLock) {
+            // Changes made from here on are queued; those made before are reflected in the registry contents
+            this.queue.clear();
+            this.resyncRequired.set(false);
+            snapshotSequence = ++this.sequence;
+        }
+        log.info("Sending snapshot to standby {} at sequence {}", this.standby, snapshotSequence);
+        final long now = System.currentTimeMillis();
+        this.frame.writeByte(FRAME_SNAPSHOT_BEGIN);
+        this.frame.writeLong(snapshotSequence);
+        codec.write(out, this.frameBuffer);
+        final List<TicketChange> batch = new ArrayList<TicketChange>(this.batchSize);
+        for (final Ticket ticket : this.source.getTickets()) {
+            final byte[] state = capture(ticket);
+            if (state == null) {
+                continue;
+            }
+            batch.add(new TicketChange(TicketChange.Type.ADD, snapshotSequence, now, ticket.getId(), state));
+            if (batch.size() == this.batchSize) {
+                writeBatch(out, codec, batch);
+                batch.clear();
+            }
+        }
+        writeBatch(out, codec, batch);
+        this.frame.writeByte(FRAME_SNAPSHOT_END);
+        this.frame.writeLong(snapshotSequence);
+        codec.write(out, this.frameBuffer);
+        out.flush();
+        this.snapshotCount.incrementAndGet();
+    }
+
+    private void writeBatch(final DataOutputStream out, final ReplicationFrameCodec codec,
+            final List<TicketChange> batch) throws IOException {
+        for (final TicketChange change : batch) {
+            if (this.frameBuffer.size() == 0) {
+                this.frame.writeByte(FRAME_BATCH);
+            }
+            change.writeTo(this.frame);
+            // Keeps the frame within MAX_FRAME_LENGTH whatever the size of the next change
+            if (this.frameBuffer.size() >= MAX_FRAME_LENGTH / 2) {
+                codec.write(out, this.frameBuffer);
+            }
+        }
+        if (this.frameBuffer.size() > 0) {
+            codec.write(out, this.frameBuffer);
+        }
+    }
+
+    /**
+     * Serializes a ticket for replication.
+     *
+     * @param ticket Ticket to serialize.
+     *
+     * @return Serialized ticket, or null if its state is too large to be replicated.
+     */
+    private byte[] capture(final Ticket ticket) {
+        final byte[] state = TicketChange.serialize(ticket);
+        if (state.length > TicketChange.MAX_STATE_LENGTH) {
+            log.warn("Not replicating {} since its state of {} bytes is too large.", ticket.getId(), state.length);
+            return null;
+        }
+        return state;
+    }
+
+    private void startAcknowledgementReader(final DataInputStream in, final ReplicationFrameCodec codec) {
+        final Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final DataInputStream ack = codec.read(in, ACKNOWLEDGEMENT_LENGTH);
+                        final long ackSequence = ack.readLong();
+                        final long ackTimestamp = ack.readLong();
+                        acknowledgedTimestamp = ackTimestamp;
+                        acknowledgedSequence = ackSequence;
+                    }
+                } catch (final IOException e) {
+                    // Closing the socket makes the writer reconnect
+                    closeSocket();
+                }
+            }
+        }, "TicketReplicationAcknowledgements-" + this.standby);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void closeSocket() {
+        final Socket s = this.socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (final IOException e) {
+                log.debug("Error closing replication socket", e);
+            }
+        }
+    }
+}
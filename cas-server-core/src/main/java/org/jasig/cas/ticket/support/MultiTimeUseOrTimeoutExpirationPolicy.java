@@ -57,6 +57,13 @@ public final class MultiTimeUseOrTimeoutExpirationPolicy implements
         this(numberOfUses, timeUnit.toMillis(timeToKill));
     }
 
+    /**
+     * @return the maximum number of uses before expiration.
+     */
+    public int getNumberOfUses() {
+        return this.numberOfUses;
+    }
+
     public boolean isExpired(final TicketState ticketState) {
         return (ticketState == null)
             || (ticketState.getCountOfUses() >= this.numberOfUses)
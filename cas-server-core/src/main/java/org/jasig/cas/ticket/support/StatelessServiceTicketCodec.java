@@ -0,0 +1,356 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.support;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.util.RandomSource;
+
+/**
+ * Encodes service tickets as self-contained tokens, so that they need not be kept in a ticket registry.
+ * <p>
+ * A token carries the id of the granting ticket, a hash of the service id, the issue time, a random nonce and
+ * whether the ticket was issued on a new login. It is encrypted with AES in CBC mode under a random IV and
+ * authenticated with an HMAC-SHA256 over the IV and cipher text, then encoded as
+ * <code>ST-[URL safe Base64]-[SUFFIX]</code>, with '-' of the Base64 alphabet replaced by '.' so that the suffix
+ * can still be used to route requests in a cluster.
+ * </p>
+ * <p>
+ * Tokens are single use: the nonce of every validated token is recorded in a {@link TimeBucketedBloomFilter}
+ * spanning the time to live of tokens. The filter is local to this instance, so in a cluster a token is only
+ * guaranteed to be validated once if validation requests for it reach the same node, which routing on the suffix
+ * achieves. Since nothing is stored, tokens cannot be revoked before they expire.
+ * </p>
+ * <p>
+ * The keys must be shared by all nodes of a cluster and are given Base64 encoded: the encryption key must be 16,
+ * 24 or 32 bytes long and the signing key at least 32 bytes long.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class StatelessServiceTicketCodec {
+
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final int IV_LENGTH = 16;
+
+    private static final int MAC_LENGTH = 16;
+
+    private static final int SERVICE_HASH_LENGTH = 8;
+
+    /** Issue time, nonce, flags and service hash. */
+    private static final int HEADER_LENGTH = 8 + 8 + 1 + SERVICE_HASH_LENGTH;
+
+    private static final byte FLAG_FROM_NEW_LOGIN = 1;
+
+    private static final String PREFIX = ServiceTicket.PREFIX + "-";
+
+    private final SecretKeySpec encryptionKey;
+
+    private final SecretKeySpec signingKey;
+
+    /** Time to live of tokens in milliseconds. */
+    private final long timeToLive;
+
+    private final TimeBucketedBloomFilter usedNonces;
+
+    private final RandomSource random = RandomSource.getInstance();
+
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(CIPHER_ALGORITHM);
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(signingKey);
+                return mac;
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** Suffix appended to tokens, such as the name of the node. */
+    private String suffix;
+
+
+    /**
+     * Creates a new codec for tokens living 10 seconds, expecting up to 100000 tokens to be validated within that
+     * time.
+     *
+     * @param encryptionKey Base64 encoded AES key.
+     * @param signingKey Base64 encoded HMAC key.
+     */
+    public StatelessServiceTicketCodec(final String encryptionKey, final String signingKey) {
+        this(encryptionKey, signingKey, 10000, 100000);
+    }
+
+    /**
+     * Creates a new codec.
+     *
+     * @param encryptionKey Base64 encoded AES key.
+     * @param signingKey Base64 encoded HMAC key.
+     * @param timeToLive Time to live of tokens in milliseconds.
+     * @param expectedTickets Number of tokens expected to be validated within their time to live, used to size the
+     * replay filter so that fewer than one in a million fresh tokens are mistaken for replays.
+     */
+    public StatelessServiceTicketCodec(final String encryptionKey, final String signingKey,
+            final long timeToLive, final int expectedTickets) {
+        final byte[] encryptionKeyBytes = Base64.decodeBase64(encryptionKey);
+        final byte[] signingKeyBytes = Base64.decodeBase64(signingKey);
+        if (encryptionKeyBytes.length != 16 && encryptionKeyBytes.length != 24 && encryptionKeyBytes.length != 32) {
+            throw new IllegalArgumentException("Encryption key must be 16, 24 or 32 bytes long");
+        }
+        if (signingKeyBytes.length < 32) {
+            throw new IllegalArgumentException("Signing key must be at least 32 bytes long");
+        }
+        this.encryptionKey = new SecretKeySpec(encryptionKeyBytes, "AES");
+        this.signingKey = new SecretKeySpec(signingKeyBytes, MAC_ALGORITHM);
+        this.timeToLive = timeToLive;
+        this.usedNonces = new TimeBucketedBloomFilter(timeToLive, expectedTickets, 1e-6);
+    }
+
+
+    /**
+     * Creates a token.
+     *
+     * @param ticketGrantingTicketId Id of the granting ticket.
+     * @param service Service the ticket is issued for.
+     * @param fromNewLogin Whether the ticket is issued on a new login.
+     *
+     * @return Id of the service ticket.
+     */
+    public String encode(final String ticketGrantingTicketId, final Service service, final boolean fromNewLogin) {
+        final byte[] id = utf8(ticketGrantingTicketId);
+        final ByteBuffer plainText = ByteBuffer.allocate(HEADER_LENGTH + id.length);
+        plainText.putLong(System.currentTimeMillis());
+        plainText.putLong(this.random.nextLong());
+        plainText.put(fromNewLogin ? FLAG_FROM_NEW_LOGIN : 0);
+        plainText.put(hash(service));
+        plainText.put(id);
+
+        final byte[] iv = new byte[IV_LENGTH];
+        this.random.nextBytes(iv);
+        final byte[] cipherText;
+        try {
+            final Cipher cipher = this.ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new IvParameterSpec(iv));
+            cipherText = cipher.doFinal(plainText.array());
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final ByteBuffer token = ByteBuffer.allocate(IV_LENGTH + cipherText.length + MAC_LENGTH);
+        token.put(iv);
+        token.put(cipherText);
+        token.put(mac(token.array(), IV_LENGTH + cipherText.length), 0, MAC_LENGTH);
+
+        final String encoded = PREFIX + Base64.encodeBase64URLSafeString(token.array()).replace('-', '.');
+        return this.suffix == null ? encoded : encoded + "-" + this.suffix;
+    }
+
+    /**
+     * Decodes a token created by this codec, or one sharing its keys.
+     *
+     * @param serviceTicketId Id of a service ticket.
+     *
+     * @return Contents of the token, or null if the id is not a token created with the keys of this codec.
+     */
+    public Claims decode(final String serviceTicketId) {
+        if (serviceTicketId == null || !serviceTicketId.startsWith(PREFIX)) {
+            return null;
+        }
+        final int end = serviceTicketId.indexOf('-', PREFIX.length());
+        final String encoded = serviceTicketId.substring(PREFIX.length(), end < 0 ? serviceTicketId.length() : end);
+        final byte[] token = Base64.decodeBase64(encoded.replace('.', '-'));
+        if (token.length < IV_LENGTH + 16 + MAC_LENGTH || (token.length - IV_LENGTH - MAC_LENGTH) % 16 != 0) {
+            return null;
+        }
+
+        final int signedLength = token.length - MAC_LENGTH;
+        final byte[] expectedMac = mac(token, signedLength);
+        int difference = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            difference |= expectedMac[i] ^ token[signedLength + i];
+        }
+        if (difference != 0) {
+            return null;
+        }
+
+        final byte[] plainText;
+        try {
+            final Cipher cipher = this.ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new IvParameterSpec(token, 0, IV_LENGTH));
+            plainText = cipher.doFinal(token, IV_LENGTH, signedLength - IV_LENGTH);
+        } catch (final GeneralSecurityException e) {
+            return null;
+        }
+        if (plainText.length < HEADER_LENGTH) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(plainText);
+        final long issueTime = buffer.getLong();
+        final long nonce = buffer.getLong();
+        final boolean fromNewLogin = (buffer.get() & FLAG_FROM_NEW_LOGIN) != 0;
+        final byte[] serviceHash = new byte[SERVICE_HASH_LENGTH];
+        buffer.get(serviceHash);
+        final String ticketGrantingTicketId;
+        try {
+            ticketGrantingTicketId = new String(plainText, HEADER_LENGTH, plainText.length - HEADER_LENGTH, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Claims(ticketGrantingTicketId, serviceHash, issueTime, nonce, fromNewLogin);
+    }
+
+    /**
+     * Determines whether a token has outlived its time to live.
+     *
+     * @param claims Contents of the token.
+     *
+     * @return True if the token is expired.
+     */
+    public boolean isExpired(final Claims claims) {
+        return System.currentTimeMillis() - claims.getIssueTime() >= this.timeToLive;
+    }
+
+    /**
+     * Records the use of a token.
+     *
+     * @param claims Contents of the token.
+     *
+     * @return True if this is the first use of the token, false if it was (possibly) used before.
+     */
+    public boolean use(final Claims claims) {
+        return this.usedNonces.add(claims.getIssueTime(), claims.nonce);
+    }
+
+    /**
+     * @param suffix Suffix appended to tokens, such as the name of the node. Default is none.
+     */
+    public void setSuffix(final String suffix) {
+        this.suffix = suffix;
+    }
+
+    private byte[] mac(final byte[] data, final int length) {
+        final Mac mac = this.macs.get();
+        mac.update(data, 0, length);
+        return mac.doFinal();
+    }
+
+    private static byte[] hash(final Service service) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(utf8(service.getId()));
+            final byte[] hash = new byte[SERVICE_HASH_LENGTH];
+            System.arraycopy(digest, 0, hash, 0, SERVICE_HASH_LENGTH);
+            return hash;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(final String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Contents of a token.
+     */
+    public static final class Claims {
+
+        private final String ticketGrantingTicketId;
+
+        private final byte[] serviceHash;
+
+        private final long issueTime;
+
+        private final long nonce;
+
+        private final boolean fromNewLogin;
+
+        private Claims(final String ticketGrantingTicketId, final byte[] serviceHash, final long issueTime,
+                final long nonce, final boolean fromNewLogin) {
+            this.ticketGrantingTicketId = ticketGrantingTicketId;
+            this.serviceHash = serviceHash;
+            this.issueTime = issueTime;
+            this.nonce = nonce;
+            this.fromNewLogin = fromNewLogin;
+        }
+
+        /**
+         * @return Id of the granting ticket.
+         */
+        public String getTicketGrantingTicketId() {
+            return this.ticketGrantingTicketId;
+        }
+
+        /**
+         * @return Time the token was issued, in milliseconds since the epoch.
+         */
+        public long getIssueTime() {
+            return this.issueTime;
+        }
+
+        /**
+         * @return Whether the ticket was issued on a new login.
+         */
+        public boolean isFromNewLogin() {
+            return this.fromNewLogin;
+        }
+
+        /**
+         * @param service Service presenting the token.
+         *
+         * @return True if the token was issued for a service with the same id.
+         */
+        public boolean isValidFor(final Service service) {
+            return MessageDigest.isEqual(this.serviceHash, hash(service));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.support;
+
+import java.util.Arrays;
+
+/**
+ * Remembers keys seen within a sliding window of time in a fixed amount of memory.
+ * <p>
+ * Time is divided into buckets as wide as the window, each with its own Bloom filter. A key is recorded in the
+ * bucket of the time it is associated with, and the filter of a bucket is cleared and reused once the bucket falls
+ * out of the window, so that memory does not grow with the number of keys. Keys associated with a time older than
+ * the window are reported as already seen.
+ * </p>
+ * <p>
+ * Like any Bloom filter, this filter may report a key that was never recorded as already seen, with the
+ * configured probability while no more than the expected number of keys are recorded per window; it never reports
+ * a recorded key as unseen.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class TimeBucketedBloomFilter {
+
+    /** Number of buckets; one more than the buckets spanned by the window so the oldest can be recycled. */
+    private static final int BUCKETS = 3;
+
+    /** Width of the window, and of each bucket, in milliseconds. */
+    private final long window;
+
+    private final int bitCount;
+
+    private final int hashCount;
+
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+
+
+    /**
+     * Creates a new filter.
+     *
+     * @param window Width of the window in milliseconds.
+     * @param expectedKeys Number of keys expected to be recorded per window.
+     * @param falsePositiveProbability Probability of reporting an unseen key as seen at the expected load.
+     */
+    public TimeBucketedBloomFilter(final long window, final int expectedKeys, final double falsePositiveProbability) {
+        if (window <= 0 || expectedKeys <= 0 || falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("Invalid Bloom filter dimensions");
+        }
+        final double bits = -expectedKeys * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2));
+        this.window = window;
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.ceil(bits));
+        this.hashCount = Math.max(1, (int) Math.round(this.bitCount / (double) expectedKeys * Math.log(2)));
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets[i] = new Bucket((this.bitCount + 63) >>> 6);
+        }
+    }
+
+
+    /**
+     * Records a key unless it was already recorded for the bucket of the given time.
+     *
+     * @param time Time the key is associated with, in milliseconds since the epoch.
+     * @param key Key to record.
+     *
+     * @return True if the key was recorded, false if it was possibly seen before or the time is outside the window.
+     */
+    public boolean add(final long time, final long key) {
+        final long bucketNumber = time / this.window;
+        final long currentBucketNumber = System.currentTimeMillis() / this.window;
+        if (bucketNumber < currentBucketNumber - (BUCKETS - 2)) {
+            return false;
+        }
+        final Bucket bucket = this.buckets[(int) (bucketNumber % BUCKETS)];
+        final long hash = mix(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        synchronized (bucket) {
+            if (bucket.number != bucketNumber) {
+                if (bucket.number > bucketNumber) {
+                    return false;
+                }
+                bucket.reset(bucketNumber);
+            }
+            boolean added = false;
+            for (int i = 0; i < this.hashCount; i++) {
+                final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bitCount;
+                final long mask = 1L << bit;
+                final int word = bit >>> 6;
+                if ((bucket.bits[word] & mask) == 0) {
+                    bucket.bits[word] |= mask;
+                    added = true;
+                }
+            }
+            return added;
+        }
+    }
+
+    /**
+     * @return Number of bits of each of the bucket filters.
+     */
+    public int getBitCount() {
+        return this.bitCount;
+    }
+
+    /**
+     * @return Number of bits set per key.
+     */
+    public int getHashCount() {
+        return this.hashCount;
+    }
+
+    /** Spreads the bits of a key so that related keys do not collide (finalizer of MurmurHash3). */
+    private static long mix(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    private static final class Bucket {
+
+        private final long[] bits;
+
+        private long number = -1;
+
+        public Bucket(final int words) {
+            this.bits = new long[words];
+        }
+
+        public void reset(final long number) {
+            Arrays.fill(this.bits, 0);
+            this.number = number;
+        }
+    }
+}
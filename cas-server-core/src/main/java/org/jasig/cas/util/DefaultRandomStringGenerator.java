@@ -18,8 +18,6 @@
  */
 package org.jasig.cas.util;
 
-import java.security.SecureRandom;
-
 /**
  * Implementation of the RandomStringGenerator that allows you to define the
  * length of the random part.
@@ -35,11 +33,14 @@ public final class DefaultRandomStringGenerator implements
     private static final char[] PRINTABLE_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ012345679"
         .toCharArray();
 
+    /** Largest multiple of the number of characters not exceeding the number of byte values. */
+    private static final int UNBIASED_LIMIT = 256 - 256 % PRINTABLE_CHARACTERS.length;
+
     /** The default maximum length. */
     private static final int DEFAULT_MAX_RANDOM_LENGTH = 35;
 
-    /** An instance of secure random to ensure randomness is secure. */
-    private SecureRandom randomizer = new SecureRandom();
+    /** Source of secure random bytes shared with the other generators. */
+    private final RandomSource randomizer = RandomSource.getInstance();
 
     /** The maximum length the random string can be. */
     private final int maximumRandomLength;
@@ -61,9 +62,13 @@ public final class DefaultRandomStringGenerator implements
     }
 
     public String getNewString() {
-        final byte[] random = getNewStringAsBytes();
+        final char[] output = new char[this.maximumRandomLength];
+        int length = 0;
+        while (length < output.length) {
+            length = convertBytesToString(getNewStringAsBytes(), output, length);
+        }
 
-        return convertBytesToString(random);
+        return new String(output);
     }
 
 
@@ -75,13 +80,21 @@ public final class DefaultRandomStringGenerator implements
         return random;
     }
 
-    private String convertBytesToString(final byte[] random) {
-        final char[] output = new char[random.length];
-        for (int i = 0; i < random.length; i++) {
-            final int index = Math.abs(random[i] % PRINTABLE_CHARACTERS.length);
-            output[i] = PRINTABLE_CHARACTERS[index];
+    /**
+     * Maps random bytes to characters, skipping the bytes whose value would make the first characters more likely
+     * than the others.
+     *
+     * @return the number of characters of the output filled.
+     */
+    private int convertBytesToString(final byte[] random, final char[] output, final int offset) {
+        int length = offset;
+        for (int i = 0; i < random.length && length < output.length; i++) {
+            final int value = random[i] & 0xFF;
+            if (value < UNBIASED_LIMIT) {
+                output[length++] = PRINTABLE_CHARACTERS[value % PRINTABLE_CHARACTERS.length];
+            }
         }
 
-        return new String(output);
+        return length;
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.validation.constraints.Min;
+
+/**
+ * Limits the number of calls in progress to each remote host, so that threads waiting on a slow host, such as the
+ * proxy callback of a single service, cannot exhaust the thread pool of the container and starve requests that do
+ * not involve that host.
+ * <p>
+ * A call to a host already serving the maximum number of calls waits up to the configured time for one to complete,
+ * and is rejected otherwise.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class HostBulkhead {
+
+    @Min(1)
+    private int maxConcurrentCallsPerHost = 20;
+
+    /** Milliseconds a call waits for a busy host. */
+    @Min(0)
+    private long waitTimeout = 0;
+
+    /** Maximum number of hosts tracked, beyond which idle hosts are forgotten. */
+    @Min(1)
+    private int maxHosts = 10000;
+
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+
+    /**
+     * Obtains permission to call a host.
+     *
+     * @param url URL to be called.
+     *
+     * @return Permit to release once the call completes, or null if the host is busy.
+     */
+    public Semaphore acquire(final URL url) {
+        final int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        final String key = url.getHost().toLowerCase() + ":" + port;
+        try {
+            for (;;) {
+                final Semaphore permits = permitsOf(key);
+                final boolean acquired = permits.tryAcquire(this.waitTimeout, TimeUnit.MILLISECONDS);
+                // the host was forgotten and may have a new semaphore by now; a permit counts only if it has not
+                if (this.hosts.get(key) == permits) {
+                    if (acquired) {
+                        return permits;
+                    }
+                    break;
+                }
+                if (acquired) {
+                    permits.release();
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.rejectedCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return Total number of calls rejected because their host was busy.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @param max Maximum number of calls in progress to the same host. Default is 20.
+     */
+    public void setMaxConcurrentCallsPerHost(final int max) {
+        this.maxConcurrentCallsPerHost = max;
+    }
+
+    /**
+     * @param timeout Milliseconds a call waits for a busy host before being rejected. Default is 0.
+     */
+    public void setWaitTimeout(final long timeout) {
+        this.waitTimeout = timeout;
+    }
+
+    /**
+     * @param max Maximum number of hosts tracked. Default is 10000.
+     */
+    public void setMaxHosts(final int max) {
+        this.maxHosts = max;
+    }
+
+    private Semaphore permitsOf(final String key) {
+        final Semaphore permits = this.hosts.get(key);
+        if (permits != null) {
+            return permits;
+        }
+        if (this.hosts.size() >= this.maxHosts) {
+            for (final Map.Entry<String, Semaphore> entry : this.hosts.entrySet()) {
+                forgetIfIdle(entry.getKey(), entry.getValue());
+            }
+        }
+        final Semaphore created = new Semaphore(this.maxConcurrentCallsPerHost);
+        final Semaphore existing = this.hosts.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+    /**
+     * Forgets a host with no call in progress. Taking all of its permits keeps calls from starting while it is
+     * removed; a call that gets a permit afterwards finds the host gone and starts over with its new semaphore.
+     */
+    private void forgetIfIdle(final String key, final Semaphore permits) {
+        if (permits.tryAcquire(this.maxConcurrentCallsPerHost)) {
+            try {
+                this.hosts.remove(key, permits);
+            } finally {
+                permits.release(this.maxConcurrentCallsPerHost);
+            }
+        }
+    }
+}
@@ -33,11 +33,13 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
 import org.apache.commons.io.IOUtils;
+import org.jasig.cas.authentication.principal.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
@@ -63,6 +65,13 @@ public final class HttpClient implements Serializable, DisposableBean {
 
     private static ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(100);
 
+    private static LogoutMessageDispatcher DISPATCHER = new LogoutMessageDispatcher();
+
+    private static HostBulkhead BULKHEAD;
+
+    /** Time by which the endpoint validations of the current thread must complete, if bounded. */
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+
 
     /** List of HTTP status codes considered valid by this AuthenticationHandler. */
     @NotNull
@@ -88,23 +97,59 @@ public final class HttpClient implements Serializable, DisposableBean {
         EXECUTOR_SERVICE = executorService;
     }
 
+    /**
+     * Sets the dispatcher delivering the messages sent asynchronously. Like the executor, it is shared by all
+     * httpClients.
+     *
+     * @param dispatcher the dispatcher of asynchronous messages.
+     */
+    public void setLogoutMessageDispatcher(final LogoutMessageDispatcher dispatcher) {
+        Assert.notNull(dispatcher);
+        DISPATCHER = dispatcher;
+    }
+
+    /**
+     * Sets the limit on the endpoint validations in progress to each host, so that a slow host cannot tie up all
+     * request threads. Like the executor, it is shared by all httpClients. Default is none.
+     *
+     * @param bulkhead the limit of calls per host.
+     */
+    public void setHostBulkhead(final HostBulkhead bulkhead) {
+        BULKHEAD = bulkhead;
+    }
+
+    /**
+     * Sends a single sign-out request for a session to a service in the background, batched with other sessions
+     * if the service accepts it.
+     *
+     * @param service the service to log out of.
+     * @param url the logout endpoint of the service.
+     * @param sessionIdentifier the id of the service ticket that started the session.
+     * @return true if the request was queued, false if it was dropped.
+     */
+    public boolean sendLogoutRequest(final Service service, final String url, final String sessionIdentifier) {
+        return DISPATCHER.dispatchLogout(service, url, sessionIdentifier);
+    }
+
     /**
      * Sends a message to a particular endpoint.  Option of sending it without waiting to ensure a response was returned.
      * <p>
      * This is useful when it doesn't matter about the response as you'll perform no action based on the response.
+     * Such messages are handed to the {@link LogoutMessageDispatcher}, which retries failed deliveries.
      *
      * @param url the url to send the message to
      * @param message the message itself
      * @param async true if you don't want to wait for the response, false otherwise.
-     * @return boolean if the message was sent, or async was used.  false if the message failed.
+     * @return boolean if the message was sent, or queued when async was used.  false if the message failed or could
+     * not be queued.
      */
     public boolean sendMessageToEndPoint(final String url, final String message, final boolean async) {
-        final Future<Boolean> result = EXECUTOR_SERVICE.submit(new MessageSender(url, message, this.readTimeout, this.connectionTimeout, this.followRedirects));
-
         if (async) {
-            return true;
+            return DISPATCHER.dispatch(url, message);
         }
 
+        final Future<Boolean> result = EXECUTOR_SERVICE.submit(new MessageSender(url, message, this.readTimeout, this.connectionTimeout, this.followRedirects));
+
         try {
             return result.get();
         } catch (final Exception e) {
@@ -112,6 +157,24 @@ public final class HttpClient implements Serializable, DisposableBean {
         }
     }
 
+    /**
+     * Bounds the total time of the endpoint validations made by the current thread, until
+     * {@link #clearDeadline()} is called. The connection and read timeouts of each validation are reduced to the
+     * time left, and validations attempted after the deadline fail immediately.
+     *
+     * @param deadline the time by which the validations must complete.
+     */
+    public static void setDeadline(final long deadline) {
+        DEADLINE.set(deadline);
+    }
+
+    /**
+     * Removes the deadline set for the current thread.
+     */
+    public static void clearDeadline() {
+        DEADLINE.remove();
+    }
+
     public boolean isValidEndPoint(final String url) {
         try {
             final URL u = new URL(url);
@@ -122,18 +185,53 @@ public final class HttpClient implements Serializable, DisposableBean {
         }
     }
 
+    /**
+     * Checks that an endpoint answers with one of the acceptable status codes.
+     * <p>
+     * The connection is left open after a complete exchange, so that the JDK keeps it alive and reuses it for the
+     * next request to the same host. New HTTPS connections share the TLS session cache of the default socket
+     * factory and resume earlier sessions with the host rather than making a full handshake.
+     *
+     * @param url the endpoint to check.
+     * @return true if the endpoint answered with an acceptable code, false otherwise.
+     */
     public boolean isValidEndPoint(final URL url) {
+        int connectionTimeout = this.connectionTimeout;
+        int readTimeout = this.readTimeout;
+        final Long deadline = DEADLINE.get();
+        if (deadline != null) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                log.warn("No time left to contact the endpoint: " + url.toExternalForm());
+                return false;
+            }
+            connectionTimeout = bound(connectionTimeout, remaining);
+            readTimeout = bound(readTimeout, remaining);
+        }
+
+        final HostBulkhead bulkhead = BULKHEAD;
+        final Semaphore permit = bulkhead != null ? bulkhead.acquire(url) : null;
+        if (bulkhead != null && permit == null) {
+            log.warn("Too many calls in progress to the endpoint: " + url.toExternalForm());
+            return false;
+        }
+
         HttpURLConnection connection = null;
         InputStream is = null;
+        boolean keepAlive = false;
         try {
             connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(this.connectionTimeout);
-            connection.setReadTimeout(this.readTimeout);
+            connection.setConnectTimeout(connectionTimeout);
+            connection.setReadTimeout(readTimeout);
             connection.setInstanceFollowRedirects(this.followRedirects);
 
             connection.connect();
 
             final int responseCode = connection.getResponseCode();
+            // closing the response stream rather than disconnecting lets the connection be kept alive
+            is = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getErrorStream() : connection.getInputStream();
+            keepAlive = true;
 
             for (final int acceptableCode : this.acceptableCodes) {
                 if (responseCode == acceptableCode) {
@@ -150,21 +248,28 @@ public final class HttpClient implements Serializable, DisposableBean {
 
             // if the response code is an error and we don't find that error acceptable above:
             if (responseCode == 500) {
-                is = connection.getInputStream();
-                final String value = IOUtils.toString(is);
+                final String value = is != null ? IOUtils.toString(is) : "";
                 log.error(String.format("There was an error contacting the endpoint: %s; The error was:\n%s", url.toExternalForm(), value));
             }
         } catch (final IOException e) {
             log.error(e.getMessage(),e);
         } finally {
             IOUtils.closeQuietly(is);
-            if (connection != null) {
+            if (connection != null && !keepAlive) {
                 connection.disconnect();
             }
+            if (permit != null) {
+                permit.release();
+            }
         }
         return false;
     }
 
+    /** Bounds a timeout, where 0 means none, by the time left before a deadline. */
+    private static int bound(final int timeout, final long remaining) {
+        return timeout == 0 || timeout > remaining ? (int) Math.min(remaining, Integer.MAX_VALUE) : timeout;
+    }
+
     /**
      * Set the acceptable HTTP status codes that we will use to determine if the
      * response from the URL was correct.
@@ -194,6 +299,7 @@ public final class HttpClient implements Serializable, DisposableBean {
 
     public void destroy() throws Exception {
         EXECUTOR_SERVICE.shutdown();
+        DISPATCHER.destroy();
     }
 
     private static final class MessageSender implements Callable<Boolean> {
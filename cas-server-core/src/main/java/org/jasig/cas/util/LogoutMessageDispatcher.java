@@ -0,0 +1,755 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.validation.constraints.Min;
+
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.ServicesManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Delivers single sign-out messages to services in the background, with bounded memory and load on services.
+ * <p>
+ * Messages wait in a queue of bounded capacity: when it is full, callers wait up to a configured time for room, which
+ * slows down a registry cleaner expiring many sessions at once, and the message is dropped if none is made. A pool of
+ * worker threads delivers the messages, never sending more than a configured number at once to the same host; the
+ * messages for a busy host wait their turn without holding up the others. Connections are left open after a complete
+ * exchange so that the JDK keeps them alive and reuses them for the next messages to the same host, up to the
+ * <code>http.maxConnections</code> system property (5 by default) per host, which the per-host limit should not
+ * exceed. Failed deliveries are retried after an exponentially growing, randomly jittered delay, and messages still
+ * undelivered after their time to live are dropped.
+ * </p>
+ * <p>
+ * Counters of delivered, retried, failed, expired and rejected messages, the number of pending messages and the
+ * delivery latency are exposed for monitoring.
+ * </p>
+ * <p>
+ * Logout requests to services registered with {@link RegisteredService#isBatchLogoutRequests()} are coalesced per
+ * logout endpoint: the session indexes are collected into a single request carrying several
+ * <code>SessionIndex</code> elements, sent once it holds a configured number of sessions or its oldest session has
+ * waited for the batch window. This requires a {@link ServicesManager}; without one, every session gets its own
+ * request. Changes to the batching of registered services take effect within a minute.
+ * </p>
+ * <p>
+ * With a {@link LogoutMessageJournal}, queued messages are also recorded on local disk until they are delivered or
+ * dropped, and the messages left pending by a previous run are queued again on startup. Session indexes waiting in
+ * a batch are journaled once the batch is sent.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class LogoutMessageDispatcher implements InitializingBean, DisposableBean {
+
+    private static final UniqueTicketIdGenerator GENERATOR = new DefaultUniqueTicketIdGenerator();
+
+    /** Milliseconds for which the registered services are known to batch their logout requests or not. */
+    private static final long SERVICES_CHECK_INTERVAL = 60 * 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Min(1)
+    private int capacity = 100000;
+
+    /** Milliseconds a caller waits for room in a full queue. */
+    @Min(0)
+    private long enqueueTimeout = 1000;
+
+    @Min(1)
+    private int workers = 20;
+
+    @Min(1)
+    private int maxConnectionsPerHost = 5;
+
+    @Min(1)
+    private int maxAttempts = 4;
+
+    /** Delay in milliseconds before the first retry, doubled for each further one. */
+    @Min(0)
+    private long retryDelay = 1000;
+
+    @Min(0)
+    private long maxRetryDelay = 60 * 1000;
+
+    /** Milliseconds after which an undelivered message is dropped. */
+    @Min(1)
+    private long messageTimeToLive = 10 * 60 * 1000;
+
+    @Min(0)
+    private int connectionTimeout = 5000;
+
+    @Min(0)
+    private int readTimeout = 5000;
+
+    private boolean followRedirects;
+
+    private ServicesManager servicesManager;
+
+    private LogoutMessageJournal journal;
+
+    @Min(1)
+    private int batchSize = 100;
+
+    /** Milliseconds a session index waits for others to the same endpoint. */
+    @Min(1)
+    private long batchWindow = 1000;
+
+    /** Whether any registered service batched its logout requests when the services were last checked. */
+    private volatile boolean anyServiceBatched;
+
+    private volatile long servicesCheckedAt;
+
+    /** Batches being collected by logout endpoint; guarded by itself. */
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    /** Messages ready to be sent or waiting for a retry. */
+    private final DelayQueue<Message> queue = new DelayQueue<Message>();
+
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    /** Room left in the queue; released when a message is delivered or dropped. */
+    private volatile Semaphore room;
+
+    private volatile boolean started;
+
+    private Thread[] threads;
+
+    private Thread flusher;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong deliveredCount = new AtomicLong();
+
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong maxLatency = new AtomicLong();
+
+
+    /**
+     * Queues a logout message for delivery, waiting for room in the queue up to the enqueue timeout.
+     *
+     * @param url Logout endpoint of the service.
+     * @param message Logout request, sent as the <code>logoutRequest</code> form parameter.
+     *
+     * @return True if the message was queued, false if it was dropped for lack of room.
+     */
+    public boolean dispatch(final String url, final String message) {
+        start();
+        final Host host = hostOf(url);
+        if (host == null) {
+            log.warn("Dropping logout message to invalid url [{}]", url);
+            this.failedCount.incrementAndGet();
+            return false;
+        }
+        try {
+            if (!this.room.tryAcquire(this.enqueueTimeout, TimeUnit.MILLISECONDS)) {
+                this.rejectedCount.incrementAndGet();
+                log.warn("Logout queue full, dropping message to [{}]", url);
+                return false;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.rejectedCount.incrementAndGet();
+            return false;
+        }
+        final Message pending = new Message(url, host, message, System.currentTimeMillis());
+        if (this.journal != null) {
+            pending.id = this.journal.add(pending.created, url, message);
+        }
+        this.queue.add(pending);
+        return true;
+    }
+
+    /**
+     * Queues a logout request for a session, batched with others to the same endpoint if the service accepts it.
+     *
+     * @param service Service to log out of.
+     * @param url Logout endpoint of the service.
+     * @param sessionIndex Id of the service ticket that started the session.
+     *
+     * @return True if the request was queued or added to a batch, false if it was dropped.
+     */
+    public boolean dispatchLogout(final Service service, final String url, final String sessionIndex) {
+        if (!isBatched(service)) {
+            return dispatch(url, SamlUtils.newLogoutRequest(
+                    GENERATOR.getNewTicketId("LR"), Collections.singletonList(sessionIndex)));
+        }
+        start();
+        final List<String> full;
+        synchronized (this.batches) {
+            Batch batch = this.batches.get(url);
+            if (batch == null) {
+                batch = new Batch();
+                this.batches.put(url, batch);
+            }
+            batch.sessionIndexes.add(sessionIndex);
+            if (batch.sessionIndexes.size() < this.batchSize) {
+                return true;
+            }
+            this.batches.remove(url);
+            full = batch.sessionIndexes;
+        }
+        return dispatch(url, SamlUtils.newLogoutRequest(GENERATOR.getNewTicketId("LR"), full));
+    }
+
+    /**
+     * Queues the batches whose oldest session waited for the batch window, or all of them.
+     *
+     * @param all True to queue every batch regardless of its age.
+     */
+    public void flush(final boolean all) {
+        final long now = System.currentTimeMillis();
+        final Map<String, List<String>> due = new HashMap<String, List<String>>();
+        synchronized (this.batches) {
+            final Iterator<Map.Entry<String, Batch>> entries = this.batches.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Batch> entry = entries.next();
+                if (all || now - entry.getValue().created >= this.batchWindow) {
+                    due.put(entry.getKey(), entry.getValue().sessionIndexes);
+                    entries.remove();
+                }
+            }
+        }
+        for (final Map.Entry<String, List<String>> entry : due.entrySet()) {
+            dispatch(entry.getKey(), SamlUtils.newLogoutRequest(GENERATOR.getNewTicketId("LR"), entry.getValue()));
+        }
+    }
+
+    /**
+     * @return Number of messages queued, waiting for a retry or being delivered.
+     */
+    public int getPendingCount() {
+        return this.room == null ? 0 : this.capacity - this.room.availablePermits();
+    }
+
+    /**
+     * @return Total number of messages delivered.
+     */
+    public long getDeliveredCount() {
+        return this.deliveredCount.get();
+    }
+
+    /**
+     * @return Total number of failed attempts that were retried.
+     */
+    public long getRetriedCount() {
+        return this.retriedCount.get();
+    }
+
+    /**
+     * @return Total number of messages dropped after their last attempt failed.
+     */
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    /**
+     * @return Total number of messages dropped for outliving their time to live.
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    /**
+     * @return Total number of messages dropped because the queue was full.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @return Average milliseconds from queueing to delivery of delivered messages.
+     */
+    public long getAverageLatency() {
+        final long delivered = this.deliveredCount.get();
+        return delivered == 0 ? 0 : this.totalLatency.get() / delivered;
+    }
+
+    /**
+     * @return Longest milliseconds from queueing to delivery of a delivered message.
+     */
+    public long getMaxLatency() {
+        return this.maxLatency.get();
+    }
+
+    /**
+     * @param capacity Maximum number of pending messages. Default is 100000.
+     */
+    public void setCapacity(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param timeout Milliseconds a caller waits for room in a full queue before the message is dropped. Default
+     * is 1000.
+     */
+    public void setEnqueueTimeout(final long timeout) {
+        this.enqueueTimeout = timeout;
+    }
+
+    /**
+     * @param workers Number of threads delivering messages. Default is 20.
+     */
+    public void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * @param max Maximum number of messages sent at once to the same host. Default is 5.
+     */
+    public void setMaxConnectionsPerHost(final int max) {
+        this.maxConnectionsPerHost = max;
+    }
+
+    /**
+     * @param max Maximum number of delivery attempts of a message. Default is 4.
+     */
+    public void setMaxAttempts(final int max) {
+        this.maxAttempts = max;
+    }
+
+    /**
+     * @param delay Milliseconds before the first retry, doubled for each further one and jittered by up to half
+     * either way. Default is 1000.
+     */
+    public void setRetryDelay(final long delay) {
+        this.retryDelay = delay;
+    }
+
+    /**
+     * @param delay Maximum milliseconds between two attempts. Default is 60000.
+     */
+    public void setMaxRetryDelay(final long delay) {
+        this.maxRetryDelay = delay;
+    }
+
+    /**
+     * @param ttl Milliseconds after which an undelivered message is dropped. Default is 600000.
+     */
+    public void setMessageTimeToLive(final long ttl) {
+        this.messageTimeToLive = ttl;
+    }
+
+    public void setConnectionTimeout(final int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public void setReadTimeout(final int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @param follow True to follow 3xx redirects, false (default) otherwise, as the clients that send logout
+     * requests do not follow them.
+     */
+    public void setFollowRedirects(final boolean follow) {
+        this.followRedirects = follow;
+    }
+
+    /**
+     * @param servicesManager Source of the registered services, needed to batch logout requests.
+     */
+    public void setServicesManager(final ServicesManager servicesManager) {
+        this.servicesManager = servicesManager;
+        this.servicesCheckedAt = 0;
+    }
+
+    /**
+     * @param journal Journal keeping the pending messages across restarts. Default is none.
+     */
+    public void setJournal(final LogoutMessageJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @param size Number of sessions after which a batched logout request is sent. Default is 100.
+     */
+    public void setBatchSize(final int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * @param window Milliseconds after which a batched logout request is sent however many sessions it holds.
+     * Default is 1000.
+     */
+    public void setBatchWindow(final long window) {
+        this.batchWindow = window;
+    }
+
+    /**
+     * Starts the workers, queueing the messages left in the journal by a previous run.
+     */
+    public void afterPropertiesSet() {
+        start();
+    }
+
+    /**
+     * Queues the sessions waiting in batches, then stops the workers. Pending messages are lost, unless journaled.
+     */
+    public void destroy() {
+        if (this.flusher != null) {
+            this.flusher.interrupt();
+        }
+        flush(true);
+        this.running = false;
+        if (this.threads != null) {
+            for (final Thread thread : this.threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /** Starts the workers on first use, once the properties are set. */
+    private void start() {
+        if (this.started) {
+            return;
+        }
+        synchronized (this) {
+            if (!this.started) {
+                this.room = new Semaphore(this.capacity);
+                if (this.journal != null) {
+                    recover();
+                }
+                startWorkers();
+                if (this.servicesManager != null) {
+                    startFlusher();
+                }
+                this.started = true;
+            }
+        }
+    }
+
+    private void startWorkers() {
+        final Thread[] threads = new Thread[this.workers];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "logout-dispatcher-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        this.threads = threads;
+    }
+
+    private void recover() {
+        final List<LogoutMessageJournal.Entry> entries;
+        try {
+            entries = this.journal.open(this.messageTimeToLive);
+        } catch (final IOException e) {
+            log.error("Cannot open logout message journal; pending messages will not survive a restart", e);
+            this.journal = null;
+            return;
+        }
+        for (final LogoutMessageJournal.Entry entry : entries) {
+            final Host host = hostOf(entry.getUrl());
+            if (host == null || !this.room.tryAcquire()) {
+                this.rejectedCount.incrementAndGet();
+                this.journal.done(entry.getId());
+                continue;
+            }
+            final Message message = new Message(entry.getUrl(), host, entry.getBody(), entry.getCreated());
+            message.id = entry.getId();
+            this.queue.add(message);
+        }
+    }
+
+    private void startFlusher() {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(Math.max(1, batchWindow / 4));
+                        flush(false);
+                    } catch (final InterruptedException e) {
+                        return;
+                    } catch (final RuntimeException e) {
+                        log.error("Unexpected error flushing logout batches", e);
+                    }
+                }
+            }
+        }, "logout-dispatcher-flusher");
+        thread.setDaemon(true);
+        thread.start();
+        this.flusher = thread;
+    }
+
+    private boolean isBatched(final Service service) {
+        if (this.servicesManager == null || service == null || !isAnyServiceBatched()) {
+            return false;
+        }
+        final RegisteredService registeredService = this.servicesManager.findServiceBy(service);
+        return registeredService != null && registeredService.isBatchLogoutRequests();
+    }
+
+    /**
+     * Checks the registered services at most once per interval, so that logout requests are not matched against
+     * the services when none of them batches its requests.
+     */
+    private boolean isAnyServiceBatched() {
+        final long now = System.currentTimeMillis();
+        if (now - this.servicesCheckedAt >= SERVICES_CHECK_INTERVAL) {
+            boolean batched = false;
+            for (final RegisteredService registeredService : this.servicesManager.getAllServices()) {
+                if (registeredService.isBatchLogoutRequests()) {
+                    batched = true;
+                    break;
+                }
+            }
+            this.anyServiceBatched = batched;
+            this.servicesCheckedAt = now;
+        }
+        return this.anyServiceBatched;
+    }
+
+    private void work() {
+        while (this.running) {
+            try {
+                final Message message = this.queue.take();
+                message.host.waiting.add(message);
+                drainWaiting(message.host);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final RuntimeException e) {
+                log.error("Unexpected error delivering logout message", e);
+            }
+        }
+    }
+
+    /**
+     * Delivers the messages waiting for the host until none are left or all of its permits are held. Messages are
+     * added before a permit is tried and permits are released before the queue is checked again, so a message added
+     * while every permit was held is picked up by one of the holders once it is done.
+     */
+    private void drainWaiting(final Host host) {
+        while (!host.waiting.isEmpty() && host.permits.tryAcquire()) {
+            try {
+                final Message message = host.waiting.poll();
+                if (message != null) {
+                    deliver(message);
+                }
+            } catch (final RuntimeException e) {
+                // keep draining, or the messages behind this one would wait for the next message to the host
+                log.error("Unexpected error delivering logout message", e);
+            } finally {
+                host.permits.release();
+            }
+        }
+    }
+
+    private void deliver(final Message message) {
+        final long now = System.currentTimeMillis();
+        if (now - message.created > this.messageTimeToLive) {
+            this.expiredCount.incrementAndGet();
+            log.info("Dropping expired logout message to [{}]", message.url);
+            finish(message);
+            return;
+        }
+        message.attempts++;
+        if (send(message)) {
+            final long latency = System.currentTimeMillis() - message.created;
+            this.deliveredCount.incrementAndGet();
+            this.totalLatency.addAndGet(latency);
+            long max = this.maxLatency.get();
+            while (latency > max && !this.maxLatency.compareAndSet(max, latency)) {
+                max = this.maxLatency.get();
+            }
+            finish(message);
+        } else if (message.attempts < this.maxAttempts && !message.permanentFailure) {
+            final long backoff = Math.min(this.maxRetryDelay, this.retryDelay << Math.min(message.attempts - 1, 30));
+            message.due = System.currentTimeMillis() + (long) (backoff * (0.5 + Math.random()));
+            this.retriedCount.incrementAndGet();
+            this.queue.add(message);
+        } else {
+            this.failedCount.incrementAndGet();
+            log.warn("Giving up on logout message to [{}] after {} attempts", message.url, message.attempts);
+            finish(message);
+        }
+    }
+
+    /** Marks a message delivered or dropped. */
+    private void finish(final Message message) {
+        if (this.journal != null) {
+            this.journal.done(message.id);
+        }
+        this.room.release();
+    }
+
+    /**
+     * Posts a message, leaving the connection open for reuse if the exchange completes.
+     *
+     * @return True if the service accepted the message.
+     */
+    private boolean send(final Message message) {
+        HttpURLConnection connection = null;
+        try {
+            final byte[] body = ("logoutRequest=" + URLEncoder.encode(message.body, "UTF-8")).getBytes("UTF-8");
+            connection = (HttpURLConnection) new URL(message.url).openConnection();
+            connection.setDoInput(true);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setReadTimeout(this.readTimeout);
+            connection.setConnectTimeout(this.connectionTimeout);
+            connection.setInstanceFollowRedirects(this.followRedirects);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            final OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+
+            final int code = connection.getResponseCode();
+            // the response must be read to the end for the connection to be reused
+            final InputStream in = code >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                final byte[] buffer = new byte[1024];
+                while (in.read(buffer) >= 0) {
+                    // nothing to do
+                }
+                in.close();
+            }
+            if (code < HttpURLConnection.HTTP_BAD_REQUEST) {
+                return true;
+            }
+            // client errors will not go away by retrying
+            message.permanentFailure = code < HttpURLConnection.HTTP_INTERNAL_ERROR;
+            log.warn("Logout message to [{}] answered with status {}", message.url, code);
+            return false;
+        } catch (final IOException e) {
+            log.warn("Error sending logout message to [{}]: {}", message.url, e.getMessage());
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    private Host hostOf(final String url) {
+        final String key;
+        try {
+            final URL u = new URL(url);
+            key = u.getProtocol() + "://" + u.getHost() + ":" + (u.getPort() < 0 ? u.getDefaultPort() : u.getPort());
+        } catch (final IOException e) {
+            return null;
+        }
+        final Host host = this.hosts.get(key);
+        if (host != null) {
+            return host;
+        }
+        final Host created = new Host(this.maxConnectionsPerHost);
+        final Host existing = this.hosts.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+
+    /** Session indexes collected for one logout endpoint. */
+    private static final class Batch {
+
+        private final List<String> sessionIndexes = new ArrayList<String>();
+
+        private final long created = System.currentTimeMillis();
+    }
+
+
+    /** Concurrency limit and messages waiting for it for one host. */
+    private static final class Host {
+
+        private final Semaphore permits;
+
+        private final Queue<Message> waiting = new ConcurrentLinkedQueue<Message>();
+
+        public Host(final int permits) {
+            this.permits = new Semaphore(permits);
+        }
+    }
+
+
+    private static final class Message implements Delayed {
+
+        private final String url;
+
+        private final Host host;
+
+        private final String body;
+
+        private final long created;
+
+        /** Time before which the message is not sent. */
+        private volatile long due;
+
+        /** Journal id, if journaled. */
+        private long id;
+
+        private int attempts;
+
+        private boolean permanentFailure;
+
+        public Message(final String url, final Host host, final String body, final long created) {
+            this.url = url;
+            this.host = host;
+            this.body = body;
+            this.created = created;
+            this.due = created;
+        }
+
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(this.due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(final Delayed other) {
+            final long difference = this.due - ((Message) other).due;
+            return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Append-only journal of the single sign-out messages pending in a {@link LogoutMessageDispatcher}, so that
+ * messages not yet delivered when a CAS node stops are delivered after it restarts.
+ * <p>
+ * The journal directory holds segment files named <code>logout-N.log</code>. Each queued message is recorded with
+ * an id, its creation time, url and body, and each delivered or dropped message with its id, in frames consisting of
+ * the length, a CRC-32 checksum and the record, so that a frame torn by a crash ends the segment on replay. A new
+ * segment is started once the current one exceeds the segment size, and segments are deleted, oldest first, once
+ * all messages recorded in them are done.
+ * </p>
+ * <p>
+ * Records are handed to a background writer through a bounded queue and never block the caller. The writer
+ * flushes each batch to the operating system, which is enough to survive a restart of the JVM, and forces it to disk
+ * at most once per sync interval. If the queue overflows, the message is delivered without being journaled.
+ * </p>
+ * <p>
+ * On {@link #open(long)} the messages recorded but not done are read back; those older than the time to live are
+ * discarded and the others are rewritten to a fresh segment before the older segments are removed. Delivery is at
+ * least once: a message delivered just before a crash is sent again after the restart, with the same logout request
+ * ID, which services handle as the logout of a session already ended.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class LogoutMessageJournal implements DisposableBean, Runnable {
+
+    private static final String PREFIX = "logout-";
+
+    private static final String SUFFIX = ".log";
+
+    private static final byte ADD = 1;
+
+    private static final byte DONE = 2;
+
+    /** Frame length and checksum. */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    /** Longest plausible frame; anything longer is corrupt. */
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /** Maximum number of records written per flush. */
+    private static final int BATCH_SIZE = 1024;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Journal directory. */
+    @NotNull
+    private final File directory;
+
+    /** Size in bytes beyond which a new segment is started. */
+    @Min(4096)
+    private long segmentSize = 16 * 1024 * 1024;
+
+    /** Minimum milliseconds between two forces to disk. */
+    @Min(0)
+    private long syncInterval = 1000;
+
+    /** Maximum number of records waiting to be written. */
+    @Min(1)
+    private int queueCapacity = 200000;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    private final AtomicLong journaledCount = new AtomicLong();
+
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private BlockingQueue<Record> queue;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    // The following fields are only used by the thread opening the journal, then by the writer
+
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(1024);
+
+    private final CRC32 checksum = new CRC32();
+
+    /** Segment of the ADD record of each pending message. */
+    private final Map<Long, Long> segmentOfMessage = new HashMap<Long, Long>();
+
+    /** Number of pending messages recorded in each existing segment. */
+    private final TreeMap<Long, Integer> pendingBySegment = new TreeMap<Long, Integer>();
+
+    private long segmentNumber;
+
+    private FileOutputStream segmentFile;
+
+    private DataOutputStream segment;
+
+    private long segmentBytes;
+
+    private long lastSync;
+
+
+    /**
+     * Creates a journal in the given directory, which is created if needed when the journal is opened.
+     *
+     * @param directory Journal directory.
+     */
+    public LogoutMessageJournal(final File directory) {
+        this.directory = directory;
+    }
+
+
+    /**
+     * Reads back the pending messages and starts the writer.
+     *
+     * @param timeToLive Milliseconds after which a pending message is discarded.
+     *
+     * @return Messages still to be delivered, oldest first.
+     *
+     * @throws IOException if the journal cannot be read or written.
+     */
+    public synchronized List<Entry> open(final long timeToLive) throws IOException {
+        if (this.running) {
+            throw new IllegalStateException("Logout message journal already open");
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + this.directory);
+        }
+        final File[] segments = list();
+        final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+        for (final File file : segments) {
+            read(file, pending);
+            this.segmentNumber = Math.max(this.segmentNumber, parseNumber(file));
+        }
+        final long now = System.currentTimeMillis();
+        final List<Entry> live = new ArrayList<Entry>(pending.size());
+        openSegment(this.segmentNumber + 1);
+        for (final Entry entry : pending.values()) {
+            if (now - entry.created <= timeToLive) {
+                write(new Record(ADD, entry.id, entry.created, entry.url, entry.body));
+                live.add(entry);
+            }
+        }
+        sync();
+        for (final File file : segments) {
+            delete(file);
+        }
+        log.info("Recovered {} pending logout messages from {}, discarded {} expired",
+                new Object[] {live.size(), this.directory, pending.size() - live.size()});
+
+        this.queue = new ArrayBlockingQueue<Record>(this.queueCapacity);
+        this.running = true;
+        this.writerThread = new Thread(this, "LogoutMessageJournal-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        return live;
+    }
+
+    /**
+     * Records a queued message.
+     *
+     * @param created Time the message was created.
+     * @param url Logout endpoint of the service.
+     * @param body Logout request.
+     *
+     * @return Id of the message, to be passed to {@link #done(long)}.
+     */
+    public long add(final long created, final String url, final String body) {
+        final long id = this.nextId.getAndIncrement();
+        publish(new Record(ADD, id, created, url, body));
+        return id;
+    }
+
+    /**
+     * Records that a message was delivered or dropped.
+     *
+     * @param id Id of the message.
+     */
+    public void done(final long id) {
+        publish(new Record(DONE, id, 0, null, null));
+    }
+
+    public void destroy() throws Exception {
+        this.running = false;
+        if (this.writerThread != null) {
+            this.writerThread.join();
+        }
+    }
+
+    public void run() {
+        final List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                final Record first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch, BATCH_SIZE - 1);
+                    for (final Record record : batch) {
+                        write(record);
+                    }
+                    this.segment.flush();
+                    this.journaledCount.addAndGet(batch.size());
+                }
+                if (System.currentTimeMillis() - this.lastSync >= this.syncInterval) {
+                    sync();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (final IOException e) {
+                log.error("Failed writing logout message journal; starting a new segment", e);
+                try {
+                    Thread.sleep(1000);
+                    roll();
+                } catch (final InterruptedException ie) {
+                    break;
+                } catch (final IOException ioe) {
+                    log.error("Cannot start a new logout message journal segment", ioe);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        try {
+            sync();
+            this.segmentFile.close();
+        } catch (final IOException e) {
+            log.warn("Failed closing logout message journal", e);
+        }
+    }
+
+    /**
+     * @return Number of records waiting to be written.
+     */
+    public int getPendingRecords() {
+        return this.queue == null ? 0 : this.queue.size();
+    }
+
+    /**
+     * @return Number of records written to the journal.
+     */
+    public long getJournaledCount() {
+        return this.journaledCount.get();
+    }
+
+    /**
+     * @return Number of records dropped because the queue was full.
+     */
+    public long getOverflowCount() {
+        return this.overflowCount.get();
+    }
+
+    /**
+     * @param size Size in bytes beyond which a new segment is started. Default is 16 MB.
+     */
+    public void setSegmentSize(final long size) {
+        this.segmentSize = size;
+    }
+
+    /**
+     * @param interval Minimum milliseconds between two forces to disk. Default is 1000.
+     */
+    public void setSyncInterval(final long interval) {
+        this.syncInterval = interval;
+    }
+
+    /**
+     * @param capacity Maximum number of records waiting to be written. Default is 200000.
+     */
+    public void setQueueCapacity(final int capacity) {
+        this.queueCapacity = capacity;
+    }
+
+    private void publish(final Record record) {
+        if (this.queue == null || !this.queue.offer(record)) {
+            this.overflowCount.incrementAndGet();
+        }
+    }
+
+    private void write(final Record record) throws IOException {
+        if (this.segmentBytes >= this.segmentSize) {
+            roll();
+        }
+        final byte[] frame = encode(record);
+        this.checksum.reset();
+        this.checksum.update(frame);
+        this.segment.writeInt(frame.length);
+        this.segment.writeInt((int) this.checksum.getValue());
+        this.segment.write(frame);
+        this.segmentBytes += frame.length + FRAME_HEADER_SIZE;
+
+        if (record.type == ADD) {
+            this.segmentOfMessage.put(record.id, this.segmentNumber);
+            this.pendingBySegment.put(this.segmentNumber, this.pendingBySegment.get(this.segmentNumber) + 1);
+        } else {
+            final Long number = this.segmentOfMessage.remove(record.id);
+            if (number != null) {
+                this.pendingBySegment.put(number, this.pendingBySegment.get(number) - 1);
+                deleteDoneSegments();
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        this.segment.flush();
+        this.segmentFile.getFD().sync();
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    private void roll() throws IOException {
+        try {
+            sync();
+        } finally {
+            this.segmentFile.close();
+            openSegment(this.segmentNumber + 1);
+        }
+        deleteDoneSegments();
+    }
+
+    private void openSegment(final long number) throws IOException {
+        this.segmentFile = new FileOutputStream(new File(this.directory, PREFIX + format(number) + SUFFIX), true);
+        this.segment = new DataOutputStream(new BufferedOutputStream(this.segmentFile, 65536));
+        this.segmentNumber = number;
+        this.segmentBytes = 0;
+        this.pendingBySegment.put(number, 0);
+    }
+
+    /**
+     * Deletes the oldest segments without pending messages. A segment is kept while an older one is, since it may
+     * hold the DONE records of messages recorded in the older one.
+     */
+    private void deleteDoneSegments() {
+        while (true) {
+            final Map.Entry<Long, Integer> oldest = this.pendingBySegment.firstEntry();
+            if (oldest.getKey() == this.segmentNumber || oldest.getValue() > 0) {
+                return;
+            }
+            this.pendingBySegment.pollFirstEntry();
+            delete(new File(this.directory, PREFIX + format(oldest.getKey()) + SUFFIX));
+        }
+    }
+
+    private byte[] encode(final Record record) throws IOException {
+        this.frameBuffer.reset();
+        final DataOutputStream out = new DataOutputStream(this.frameBuffer);
+        out.writeByte(record.type);
+        out.writeLong(record.id);
+        if (record.type == ADD) {
+            final byte[] body = record.body.getBytes("UTF-8");
+            out.writeLong(record.created);
+            out.writeUTF(record.url);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+        return this.frameBuffer.toByteArray();
+    }
+
+    private void read(final File file, final Map<Long, Entry> pending) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        final CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                final int length;
+                final int expectedChecksum;
+                final byte[] frame;
+                try {
+                    length = in.readInt();
+                    expectedChecksum = in.readInt();
+                    if (length <= 0 || length > MAX_FRAME_SIZE) {
+                        log.warn("Corrupt record in {}; ignoring remainder", file);
+                        return;
+                    }
+                    frame = new byte[length];
+                    in.readFully(frame);
+                } catch (final EOFException e) {
+                    // End of the segment, possibly in a frame torn by a crash
+                    return;
+                }
+                crc.reset();
+                crc.update(frame);
+                if ((int) crc.getValue() != expectedChecksum) {
+                    log.warn("Corrupt record in {}; ignoring remainder", file);
+                    return;
+                }
+                final DataInputStream record = new DataInputStream(new ByteArrayInputStream(frame));
+                final byte type = record.readByte();
+                final long id = record.readLong();
+                if (id >= this.nextId.get()) {
+                    this.nextId.set(id + 1);
+                }
+                if (type == ADD) {
+                    final long created = record.readLong();
+                    final String url = record.readUTF();
+                    final byte[] body = new byte[record.readInt()];
+                    record.readFully(body);
+                    pending.put(id, new Entry(id, created, url, new String(body, "UTF-8")));
+                } else {
+                    pending.remove(id);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private File[] list() {
+        final File[] files = this.directory.listFiles(new FileFilter() {
+            public boolean accept(final File file) {
+                return file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+            }
+        });
+        // Zero-padded segment numbers sort lexicographically
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void delete(final File file) {
+        if (!file.delete()) {
+            log.warn("Cannot delete logout message journal segment {}", file);
+        }
+    }
+
+    private static long parseNumber(final File file) {
+        final String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static String format(final long number) {
+        return String.format("%020d", number);
+    }
+
+
+    /**
+     * Pending message read back from the journal.
+     */
+    public static final class Entry {
+
+        private final long id;
+
+        private final long created;
+
+        private final String url;
+
+        private final String body;
+
+        public Entry(final long id, final long created, final String url, final String body) {
+            this.id = id;
+            this.created = created;
+            this.url = url;
+            this.body = body;
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        public long getCreated() {
+            return this.created;
+        }
+
+        public String getUrl() {
+            return this.url;
+        }
+
+        public String getBody() {
+            return this.body;
+        }
+    }
+
+
+    private static final class Record {
+
+        private final byte type;
+
+        private final long id;
+
+        private final long created;
+
+        private final String url;
+
+        private final String body;
+
+        public Record(final byte type, final long id, final long created, final String url, final String body) {
+            this.type = type;
+            this.id = id;
+            this.created = created;
+            this.url = url;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Source of cryptographically strong random bytes shared by the generators of ids, tokens and nonces.
+ * <p>
+ * A single {@link SecureRandom} serializes its callers, which shows under many request threads. This source gives
+ * every thread its own SHA1PRNG generator, seeded from the platform generator, and draws bytes from it in bulk into
+ * a per-thread buffer from which requests are served without any synchronization. A thread's generator is reseeded
+ * with fresh platform entropy after it has produced a given number of bytes or a given time has elapsed, whichever
+ * comes first, so that no generator runs long on a single seed.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class RandomSource {
+
+    private static final String ALGORITHM = "SHA1PRNG";
+
+    private static final int SEED_LENGTH = 32;
+
+    private static final RandomSource INSTANCE = new RandomSource(4096, 1024 * 1024, 10 * 60 * 1000);
+
+    /** Platform generator, used only to seed the per-thread generators. */
+    private final SecureRandom seedSource = new SecureRandom();
+
+    private final int bufferSize;
+
+    private final long reseedBytes;
+
+    private final long reseedPeriod;
+
+    private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+
+    /**
+     * Creates a new source.
+     *
+     * @param bufferSize Number of bytes drawn at once into each thread's buffer.
+     * @param reseedBytes Number of bytes a thread's generator produces before it is reseeded.
+     * @param reseedPeriod Milliseconds after which a thread's generator is reseeded.
+     */
+    public RandomSource(final int bufferSize, final long reseedBytes, final long reseedPeriod) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.reseedBytes = reseedBytes;
+        this.reseedPeriod = reseedPeriod;
+    }
+
+
+    /**
+     * @return Source shared by the whole application, with buffers of 4 KB and generators reseeded every MB or
+     * every 10 minutes.
+     */
+    public static RandomSource getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Fills an array with random bytes.
+     *
+     * @param bytes Array to fill.
+     */
+    public void nextBytes(final byte[] bytes) {
+        final Buffer buffer = this.buffers.get();
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (buffer.position == buffer.bytes.length) {
+                buffer.refill();
+            }
+            final int length = Math.min(bytes.length - offset, buffer.bytes.length - buffer.position);
+            System.arraycopy(buffer.bytes, buffer.position, bytes, offset, length);
+            // consumed bytes are erased so that they cannot be handed out twice or read back
+            Arrays.fill(buffer.bytes, buffer.position, buffer.position + length, (byte) 0);
+            buffer.position += length;
+            offset += length;
+        }
+    }
+
+    /**
+     * @return Random long.
+     */
+    public long nextLong() {
+        final byte[] bytes = new byte[8];
+        nextBytes(bytes);
+        long value = 0;
+        for (final byte b : bytes) {
+            value = value << 8 | (b & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @param bound Exclusive upper bound, at most 256.
+     *
+     * @return Random number uniformly distributed between 0 and the bound.
+     */
+    public int nextInt(final int bound) {
+        if (bound < 1 || bound > 256) {
+            throw new IllegalArgumentException("Bound must be between 1 and 256");
+        }
+        // bytes beyond the largest multiple of the bound are drawn again so that no value is favored
+        final int limit = 256 - 256 % bound;
+        final byte[] b = new byte[1];
+        int value;
+        do {
+            nextBytes(b);
+            value = b[0] & 0xFF;
+        } while (value >= limit);
+        return value % bound;
+    }
+
+    private byte[] newSeed() {
+        final byte[] seed = new byte[SEED_LENGTH];
+        this.seedSource.nextBytes(seed);
+        return seed;
+    }
+
+
+    /** Generator and buffer of a thread. */
+    private final class Buffer {
+
+        private final SecureRandom generator;
+
+        private final byte[] bytes = new byte[bufferSize];
+
+        /** Index of the next unused byte; the buffer starts out used up. */
+        private int position = this.bytes.length;
+
+        private long bytesSinceSeed;
+
+        private long seededAt;
+
+        public Buffer() {
+            try {
+                this.generator = SecureRandom.getInstance(ALGORITHM);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Cannot get " + ALGORITHM + " secure random instance.", e);
+            }
+            // seeding before the first use replaces the self-seeding of the generator
+            this.generator.setSeed(newSeed());
+            this.seededAt = System.currentTimeMillis();
+        }
+
+        public void refill() {
+            final long now = System.currentTimeMillis();
+            if (this.bytesSinceSeed >= reseedBytes || now - this.seededAt >= reseedPeriod) {
+                // adds to the state of the generator rather than replacing it
+                this.generator.setSeed(newSeed());
+                this.bytesSinceSeed = 0;
+                this.seededAt = now;
+            }
+            this.generator.nextBytes(this.bytes);
+            this.bytesSinceSeed += this.bytes.length;
+            this.position = 0;
+        }
+    }
+}
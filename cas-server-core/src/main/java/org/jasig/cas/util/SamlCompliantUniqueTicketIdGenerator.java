@@ -20,8 +20,6 @@
 package org.jasig.cas.util;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 import org.opensaml.saml1.binding.artifact.SAML1ArtifactType0001;
 import org.opensaml.saml2.binding.artifact.SAML2ArtifactType0004;
@@ -51,7 +49,7 @@ public final class SamlCompliantUniqueTicketIdGenerator implements UniqueTicketI
     private boolean saml2compliant;
 
     /** Random generator to construct the AssertionHandle. */
-    private final SecureRandom random;
+    private final RandomSource random = RandomSource.getInstance();
 
     public SamlCompliantUniqueTicketIdGenerator(final String sourceId) {
         try {
@@ -61,11 +59,6 @@ public final class SamlCompliantUniqueTicketIdGenerator implements UniqueTicketI
         } catch (final Exception e) {
             throw new IllegalStateException("Exception generating digest of source ID.", e);
         }
-        try {
-            this.random = SecureRandom.getInstance("SHA1PRNG");
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Cannot get SHA1PRNG secure random instance.");
-        }
     }
 
     /**
@@ -72,6 +72,25 @@ public final class SamlUtils {
         // nothing to do
     }
 
+    /**
+     * Creates a SAML 2 logout request for one or more sessions.
+     *
+     * @param id the id of the request.
+     * @param sessionIndexes the ids of the service tickets of the sessions.
+     * @return the request.
+     */
+    public static String newLogoutRequest(final String id, final Collection<String> sessionIndexes) {
+        final StringBuilder builder = new StringBuilder(256 + 64 * sessionIndexes.size());
+        builder.append("<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"")
+            .append(id)
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(getCurrentDateAndTime())
+            .append("\"><saml:NameID xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">@NOT_USED@</saml:NameID>");
+        for (final String sessionIndex : sessionIndexes) {
+            builder.append("<samlp:SessionIndex>").append(sessionIndex).append("</samlp:SessionIndex>");
+        }
+        return builder.append("</samlp:LogoutRequest>").toString();
+    }
+
     public static String getCurrentDateAndTime() {
         return getFormattedDateAndTime(new Date());
     }
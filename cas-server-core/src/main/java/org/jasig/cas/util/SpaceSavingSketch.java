@@ -0,0 +1,214 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the most frequent items of a stream in bounded memory with the Space-Saving algorithm.
+ * <p>
+ * At most <code>capacity</code> items are counted. When a new item arrives while all counters are taken, it
+ * replaces the item with the smallest count and inherits that count as its possible overestimation. Any item whose
+ * true frequency exceeds the number of offered items divided by the capacity is guaranteed to be counted.
+ * </p>
+ * <p>
+ * Methods are synchronized; offering an item takes time logarithmic in the capacity.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class SpaceSavingSketch {
+
+    private static final Comparator<Counter> BY_COUNT_DESCENDING = new Comparator<Counter>() {
+        public int compare(final Counter c1, final Counter c2) {
+            return c1.count < c2.count ? 1 : c1.count == c2.count ? 0 : -1;
+        }
+    };
+
+    /** Counters ordered as a binary min-heap on their count. */
+    private final Entry[] heap;
+
+    private final Map<String, Entry> entries;
+
+    private int size;
+
+    private long offered;
+
+
+    /**
+     * Creates a new sketch.
+     *
+     * @param capacity Maximum number of items that are counted.
+     */
+    public SpaceSavingSketch(final int capacity) {
+        this.heap = new Entry[capacity];
+        this.entries = new HashMap<String, Entry>(capacity * 2);
+    }
+
+
+    /**
+     * Counts an occurrence of an item.
+     *
+     * @param item Item that occurred.
+     */
+    public synchronized void offer(final String item) {
+        this.offered++;
+        Entry entry = this.entries.get(item);
+        if (entry != null) {
+            entry.count++;
+            siftDown(entry.index);
+        } else if (this.size < this.heap.length) {
+            entry = new Entry(item, 1, 0);
+            entry.index = this.size;
+            this.heap[this.size++] = entry;
+            this.entries.put(item, entry);
+            siftUp(entry.index);
+        } else {
+            entry = this.heap[0];
+            this.entries.remove(entry.item);
+            entry.item = item;
+            entry.error = entry.count;
+            entry.count++;
+            this.entries.put(item, entry);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Gets the most frequent items.
+     *
+     * @param limit Maximum number of items to return.
+     *
+     * @return Counters of the most frequent items, most frequent first.
+     */
+    public synchronized List<Counter> getTop(final int limit) {
+        final List<Counter> counters = new ArrayList<Counter>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            counters.add(new Counter(this.heap[i].item, this.heap[i].count, this.heap[i].error));
+        }
+        Collections.sort(counters, BY_COUNT_DESCENDING);
+        return counters.size() > limit ? new ArrayList<Counter>(counters.subList(0, limit)) : counters;
+    }
+
+    /**
+     * @return Number of items offered so far.
+     */
+    public synchronized long getOffered() {
+        return this.offered;
+    }
+
+    private void siftUp(final int index) {
+        int child = index;
+        while (child > 0) {
+            final int parent = (child - 1) / 2;
+            if (this.heap[parent].count <= this.heap[child].count) {
+                return;
+            }
+            swap(parent, child);
+            child = parent;
+        }
+    }
+
+    private void siftDown(final int index) {
+        int parent = index;
+        while (true) {
+            final int left = 2 * parent + 1;
+            if (left >= this.size) {
+                return;
+            }
+            final int right = left + 1;
+            final int smallest = right < this.size && this.heap[right].count < this.heap[left].count ? right : left;
+            if (this.heap[parent].count <= this.heap[smallest].count) {
+                return;
+            }
+            swap(parent, smallest);
+            parent = smallest;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        final Entry entry = this.heap[i];
+        this.heap[i] = this.heap[j];
+        this.heap[j] = entry;
+        this.heap[i].index = i;
+        this.heap[j].index = j;
+    }
+
+
+    private static final class Entry {
+        private String item;
+
+        private long count;
+
+        private long error;
+
+        private int index;
+
+        public Entry(final String item, final long count, final long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+
+    /**
+     * Estimated number of occurrences of an item.
+     */
+    public static final class Counter {
+
+        private final String item;
+
+        private final long count;
+
+        private final long error;
+
+        public Counter(final String item, final long count, final long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * @return Counted item.
+         */
+        public String getItem() {
+            return this.item;
+        }
+
+        /**
+         * @return Estimated number of occurrences, never less than the true number.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return Maximum overestimation of the number of occurrences.
+         */
+        public long getError() {
+            return this.error;
+        }
+    }
+}
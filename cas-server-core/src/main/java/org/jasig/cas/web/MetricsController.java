@@ -0,0 +1,103 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.web;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.monitor.LatencyHistogram;
+import org.jasig.cas.monitor.LatencyMetrics;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.mvc.AbstractController;
+
+/**
+ * Reports the latencies recorded in a {@link LatencyMetrics} registry in the Prometheus text exposition format,
+ * as one summary per metric with quantiles, sum and count in seconds. Quantiles cover the recent window of each
+ * histogram, while sum and count are totals since startup, as Prometheus expects of a summary.
+ *
+ * @since 3.5.2
+ */
+public final class MetricsController extends AbstractController {
+
+    /** Quantiles reported for each histogram. */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /** Name of the label of each known metric. */
+    private static final Map<String, String> LABEL_NAMES = new HashMap<String, String>();
+
+    static {
+        LABEL_NAMES.put(LatencyMetrics.OPERATION, "operation");
+        LABEL_NAMES.put(LatencyMetrics.AUTHENTICATION_HANDLER, "handler");
+        LABEL_NAMES.put(LatencyMetrics.TICKET_REGISTRY, "operation");
+        LABEL_NAMES.put(LatencyMetrics.REGISTERED_SERVICE, "service");
+    }
+
+    @NotNull
+    private LatencyMetrics latencyMetrics;
+
+
+    /**
+     * Sets the registry whose latencies are reported.
+     *
+     * @param metrics Latency metrics registry.
+     */
+    public void setLatencyMetrics(final LatencyMetrics metrics) {
+        this.latencyMetrics = metrics;
+    }
+
+
+    /** {@inheritDoc} */
+    protected ModelAndView handleRequestInternal(
+            final HttpServletRequest request, final HttpServletResponse response)
+            throws Exception {
+
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, Map<String, LatencyHistogram.Snapshot>> metric
+                : this.latencyMetrics.snapshot().entrySet()) {
+            final String name = metric.getKey() + "_seconds";
+            final String labelName = LABEL_NAMES.containsKey(metric.getKey())
+                    ? LABEL_NAMES.get(metric.getKey()) : "name";
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for (final Map.Entry<String, LatencyHistogram.Snapshot> entry : metric.getValue().entrySet()) {
+                final String label = labelName + "=\"" + escape(entry.getKey()) + '"';
+                final LatencyHistogram.Snapshot snapshot = entry.getValue();
+                for (final double quantile : QUANTILES) {
+                    sb.append(name).append('{').append(label).append(",quantile=\"").append(quantile).append("\"} ");
+                    sb.append(snapshot.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+                }
+                sb.append(name).append("_sum{").append(label).append("} ").append(snapshot.getTotalSum() / 1e9);
+                sb.append('\n');
+                sb.append(name).append("_count{").append(label).append("} ").append(snapshot.getTotalCount());
+                sb.append('\n');
+            }
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+
+        // Return null to signal MVC framework that we handled response directly
+        return null;
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
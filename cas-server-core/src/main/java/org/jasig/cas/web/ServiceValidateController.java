@@ -21,6 +21,7 @@ package org.jasig.cas.web;
 import java.net.URL;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import org.jasig.cas.CentralAuthenticationService;
@@ -31,6 +32,7 @@ import org.jasig.cas.services.UnauthorizedServiceException;
 import org.jasig.cas.ticket.TicketException;
 import org.jasig.cas.ticket.TicketValidationException;
 import org.jasig.cas.ticket.proxy.ProxyHandler;
+import org.jasig.cas.util.HttpClient;
 import org.jasig.cas.validation.Assertion;
 import org.jasig.cas.validation.ValidationSpecification;
 import org.jasig.cas.validation.Cas20ProtocolValidationSpecification;
@@ -91,6 +93,10 @@ public class ServiceValidateController extends DelegateController {
     @NotNull
     private ArgumentExtractor argumentExtractor;
 
+    /** Milliseconds allowed for contacting the proxy callback url; 0 for no limit. */
+    @Min(0)
+    private int proxyCallbackTimeBudget = 0;
+
     /**
      * Overrideable method to determine which credentials to use to grant a
      * proxy granting ticket. Default is to use the pgtUrl.
@@ -131,6 +137,11 @@ public class ServiceValidateController extends DelegateController {
             final Credentials serviceCredentials = getServiceCredentialsFromRequest(request);
             String proxyGrantingTicketId = null;
 
+            if (serviceCredentials != null && this.proxyCallbackTimeBudget > 0) {
+                // bounds the validation of the callback url and the delivery of the pgtIou together
+                HttpClient.setDeadline(System.currentTimeMillis() + this.proxyCallbackTimeBudget);
+            }
+
             // XXX should be able to validate AND THEN use
             if (serviceCredentials != null) {
                 try {
@@ -179,6 +190,8 @@ public class ServiceValidateController extends DelegateController {
                 new Object[] {serviceTicketId});
         } catch (final UnauthorizedServiceException e) {
             return generateErrorView(e.getMessage(), e.getMessage(), null);
+        } finally {
+            HttpClient.clearDeadline();
         }
     }
 
@@ -252,4 +265,13 @@ public class ServiceValidateController extends DelegateController {
         this.proxyHandler = proxyHandler;
     }
 
+    /**
+     * @param proxyCallbackTimeBudget Total milliseconds allowed for validating
+     * the proxy callback url and sending it the pgtIou, after which the
+     * validation succeeds without a pgtIou. Default is 0, for no limit.
+     */
+    public final void setProxyCallbackTimeBudget(final int proxyCallbackTimeBudget) {
+        this.proxyCallbackTimeBudget = proxyCallbackTimeBudget;
+    }
+
 }
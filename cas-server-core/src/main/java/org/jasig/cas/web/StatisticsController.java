@@ -18,10 +18,11 @@
  */
 package org.jasig.cas.web;
 
+import org.jasig.cas.monitor.LatencyMetrics;
+import org.jasig.cas.services.ServiceUsageMetrics;
 import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.Ticket;
 import org.jasig.cas.ticket.registry.TicketRegistry;
-import org.perf4j.log4j.GraphingStatisticsAppender;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.AbstractController;
 
@@ -50,6 +51,10 @@ public final class StatisticsController extends AbstractController {
 
     private String casTicketSuffix;
 
+    private LatencyMetrics latencyMetrics;
+
+    private ServiceUsageMetrics serviceUsageMetrics;
+
     public StatisticsController(final TicketRegistry ticketRegistry) {
         this.ticketRegistry = ticketRegistry;
     }
@@ -58,6 +63,14 @@ public final class StatisticsController extends AbstractController {
         this.casTicketSuffix = casTicketSuffix;
     }
 
+    public void setLatencyMetrics(final LatencyMetrics latencyMetrics) {
+        this.latencyMetrics = latencyMetrics;
+    }
+
+    public void setServiceUsageMetrics(final ServiceUsageMetrics serviceUsageMetrics) {
+        this.serviceUsageMetrics = serviceUsageMetrics;
+    }
+
     @Override
     protected ModelAndView handleRequestInternal(final HttpServletRequest httpServletRequest, final HttpServletResponse httpServletResponse) throws Exception {
         final ModelAndView modelAndView = new ModelAndView("viewStatisticsView");
@@ -100,14 +113,18 @@ public final class StatisticsController extends AbstractController {
             // this means the ticket registry doesn't support this information.
         }
 
-        final Collection<GraphingStatisticsAppender> appenders = GraphingStatisticsAppender.getAllGraphingStatisticsAppenders();
-
         modelAndView.addObject("unexpiredTgts", unexpiredTgts);
         modelAndView.addObject("unexpiredSts", unexpiredSts);
         modelAndView.addObject("expiredTgts", expiredTgts);
         modelAndView.addObject("expiredSts", expiredSts);
         modelAndView.addObject("pageTitle", modelAndView.getViewName());
-        modelAndView.addObject("graphingStatisticAppenders", appenders);
+        if (this.latencyMetrics != null) {
+            modelAndView.addObject("latencyMetrics", this.latencyMetrics.snapshot());
+        }
+        if (this.serviceUsageMetrics != null) {
+            modelAndView.addObject("serviceUsage", this.serviceUsageMetrics.getTopServiceUsage(50));
+            modelAndView.addObject("unregisteredServices", this.serviceUsageMetrics.getTopUnregisteredServices(20));
+        }
 
         return modelAndView;
     }
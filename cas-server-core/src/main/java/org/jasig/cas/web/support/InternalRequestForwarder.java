@@ -0,0 +1,351 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.web.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+
+/**
+ * Relays an HTTP request received by this CAS node to another CAS node of the cluster and copies the response back.
+ * <p>
+ * Connections are made with {@link HttpURLConnection}, whose JVM-wide connection cache keeps connections to each
+ * node alive between requests. Response bodies are always read to the end and connections are never explicitly
+ * disconnected so that they return to that cache; the number of idle connections kept per node is controlled by
+ * the <code>http.maxConnections</code> system property.
+ * </p>
+ * <p>
+ * Forwarded requests carry the name of the forwarding node in the {@link #FORWARDED_BY_HEADER} header, which the
+ * receiving node uses to process the request locally rather than route it again. Since clients can set any header,
+ * the {@link #SIGNATURE_HEADER} header carries an HMAC-SHA256 of the forwarding node, the time of forwarding and
+ * the forwarded request under a key shared by all nodes, and {@link #isForwarded(HttpServletRequest)} only trusts
+ * recent requests with a valid signature. The address of the client is sent in the signed
+ * {@link #CLIENT_ADDRESS_HEADER} header, since the receiving node sees the forwarding node as the remote address
+ * and cannot trust <code>X-Forwarded-For</code>. These headers are never relayed from the incoming request.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public class InternalRequestForwarder {
+
+    /** Request header identifying the CAS node that forwarded a request. */
+    public static final String FORWARDED_BY_HEADER = "X-CAS-Forwarded-By";
+
+    /** Request header authenticating the {@link #FORWARDED_BY_HEADER} header. */
+    public static final String SIGNATURE_HEADER = "X-CAS-Forwarded-Signature";
+
+    /** Request header carrying the address of the client of a forwarded request. */
+    public static final String CLIENT_ADDRESS_HEADER = "X-CAS-Forwarded-Client";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /** Maximum age in milliseconds of a signature, allowing for clock skew between nodes. */
+    private static final long MAX_SIGNATURE_AGE = 5 * 60 * 1000;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Headers that apply to a single connection and must not be relayed. */
+    private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailers",
+            "transfer-encoding", "upgrade", "content-length", "host",
+            FORWARDED_BY_HEADER.toLowerCase(), SIGNATURE_HEADER.toLowerCase(), CLIENT_ADDRESS_HEADER.toLowerCase()));
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Connect timeout in milliseconds. */
+    @Min(0)
+    private int connectTimeout = 500;
+
+    /** Read timeout in milliseconds. */
+    @Min(0)
+    private int readTimeout = 5000;
+
+    /** Key shared by all nodes to sign forwarded requests; null if not set. */
+    private SecretKeySpec signingKey;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(signingKey);
+                return mac;
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+
+    /**
+     * Forwards the request to the given CAS node.
+     *
+     * @param request Request to forward.
+     * @param response Response to which the response of the target node is copied.
+     * @param targetUrl Base URL of the target node, e.g. <code>https://cas02.example.org:8443/cas</code>.
+     * @param localNode Name of this node, which is sent to the target node to prevent forwarding loops.
+     *
+     * @return True if the request was forwarded and the response written, false if the target node could not be
+     * reached, in which case neither the request body has been consumed nor the response committed.
+     *
+     * @throws IOException if relaying failed after the request body was consumed.
+     * @throws IllegalStateException if no signing key is set.
+     */
+    public boolean forward(
+            final HttpServletRequest request,
+            final HttpServletResponse response,
+            final String targetUrl,
+            final String localNode) throws IOException {
+
+        if (this.signingKey == null) {
+            throw new IllegalStateException("Signing key must be set to forward requests.");
+        }
+        final String target = getTarget(request);
+        final HttpURLConnection connection = (HttpURLConnection) new URL(targetUrl + target).openConnection();
+        connection.setConnectTimeout(this.connectTimeout);
+        connection.setReadTimeout(this.readTimeout);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setRequestMethod(request.getMethod());
+        copyRequestHeaders(request, connection);
+        final String clientAddress = request.getRemoteAddr();
+        connection.setRequestProperty(FORWARDED_BY_HEADER, localNode);
+        connection.setRequestProperty(CLIENT_ADDRESS_HEADER, clientAddress);
+        connection.setRequestProperty(SIGNATURE_HEADER,
+                sign(localNode, clientAddress, System.currentTimeMillis(), request.getMethod(), target));
+        final String forwardedFor = request.getHeader("X-Forwarded-For");
+        connection.setRequestProperty(
+                "X-Forwarded-For",
+                forwardedFor != null ? forwardedFor + ", " + request.getRemoteAddr() : request.getRemoteAddr());
+
+        final int status;
+        boolean bodyConsumed = false;
+        try {
+            if ("POST".equals(request.getMethod())) {
+                connection.setDoOutput(true);
+                // Obtaining the output stream connects, so failure here leaves the request body untouched
+                final OutputStream out = connection.getOutputStream();
+                bodyConsumed = true;
+                try {
+                    IOUtils.copy(request.getInputStream(), out);
+                } finally {
+                    out.close();
+                }
+            } else {
+                connection.connect();
+            }
+            status = connection.getResponseCode();
+        } catch (final IOException e) {
+            if (bodyConsumed) {
+                throw e;
+            }
+            log.warn("Failed forwarding request to {}: {}", targetUrl, e.getMessage());
+            return false;
+        }
+
+        response.setStatus(status);
+        for (final Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // The null key holds the status line
+            if (header.getKey() == null || HOP_BY_HOP_HEADERS.contains(header.getKey().toLowerCase())) {
+                continue;
+            }
+            for (final String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        final InputStream in = status >= HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getErrorStream() : connection.getInputStream();
+        if (in != null) {
+            try {
+                IOUtils.copy(in, response.getOutputStream());
+            } finally {
+                // Closing a fully read stream returns the connection to the keep-alive cache
+                in.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the request was forwarded by another node, i.e. carries a recent and valid signature.
+     *
+     * @param request Received request.
+     *
+     * @return True if the request was forwarded by a node sharing the signing key of this one, false otherwise.
+     */
+    public boolean isForwarded(final HttpServletRequest request) {
+        final String node = request.getHeader(FORWARDED_BY_HEADER);
+        final String signature = request.getHeader(SIGNATURE_HEADER);
+        if (node == null || signature == null || this.signingKey == null) {
+            return false;
+        }
+        final int separator = signature.indexOf(':');
+        final long timestamp;
+        try {
+            timestamp = Long.parseLong(signature.substring(0, Math.max(separator, 0)));
+        } catch (final NumberFormatException e) {
+            log.warn("Ignoring malformed {} header from {}", SIGNATURE_HEADER, request.getRemoteAddr());
+            return false;
+        }
+        if (Math.abs(System.currentTimeMillis() - timestamp) > MAX_SIGNATURE_AGE) {
+            log.warn("Ignoring expired {} header from {}", SIGNATURE_HEADER, request.getRemoteAddr());
+            return false;
+        }
+        final String clientAddress = request.getHeader(CLIENT_ADDRESS_HEADER);
+        final String expected = sign(
+                node, clientAddress != null ? clientAddress : "", timestamp, request.getMethod(), getTarget(request));
+        if (!MessageDigest.isEqual(toBytes(expected), toBytes(signature))) {
+            log.warn("Ignoring forged {} header from {}", FORWARDED_BY_HEADER, request.getRemoteAddr());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the address of the client on whose behalf a request was forwarded.
+     *
+     * @param request Request for which {@link #isForwarded(HttpServletRequest)} holds.
+     *
+     * @return Address of the client that sent the request to the forwarding node.
+     */
+    public String getClientAddress(final HttpServletRequest request) {
+        return request.getHeader(CLIENT_ADDRESS_HEADER);
+    }
+
+    /**
+     * @param timeout Connect timeout in milliseconds. Default is 500.
+     */
+    public void setConnectTimeout(final int timeout) {
+        this.connectTimeout = timeout;
+    }
+
+    /**
+     * @param timeout Read timeout in milliseconds. Default is 5000.
+     */
+    public void setReadTimeout(final int timeout) {
+        this.readTimeout = timeout;
+    }
+
+    /**
+     * @param key Base64 encoded HMAC key of at least 32 bytes, shared by all nodes of the cluster. Requests are
+     * neither forwarded nor trusted as forwarded unless a key is set; an empty key leaves it unset.
+     */
+    public void setSigningKey(final String key) {
+        if (!StringUtils.hasText(key)) {
+            this.signingKey = null;
+            return;
+        }
+        final byte[] bytes = Base64.decodeBase64(key);
+        if (bytes.length < 32) {
+            throw new IllegalArgumentException("Signing key must be at least 32 bytes long");
+        }
+        this.signingKey = new SecretKeySpec(bytes, MAC_ALGORITHM);
+    }
+
+    /**
+     * @return True if a signing key is set, i.e. requests can be forwarded.
+     */
+    public boolean isSigning() {
+        return this.signingKey != null;
+    }
+
+    /**
+     * Computes the value of the signature header of a forwarded request.
+     *
+     * @param node Name of the forwarding node.
+     * @param clientAddress Address of the client of the forwarded request.
+     * @param timestamp Time of forwarding in milliseconds since the epoch.
+     * @param method Request method.
+     * @param target Path of the request within the CAS context, including the query string.
+     *
+     * @return Timestamp followed by a colon and the hex encoded MAC.
+     */
+    String sign(final String node, final String clientAddress, final long timestamp, final String method,
+                final String target) {
+        final Mac mac = this.macs.get();
+        final byte[] digest = mac.doFinal(
+                toBytes(node + '\n' + clientAddress + '\n' + timestamp + '\n' + method + '\n' + target));
+        final StringBuilder signature = new StringBuilder(Long.toString(timestamp)).append(':');
+        for (final byte b : digest) {
+            signature.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
+        return signature.toString();
+    }
+
+    private static byte[] toBytes(final String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the path of the request within the CAS context, including the query string, which is the same on the
+     * forwarding and receiving node whatever their context paths.
+     */
+    private static String getTarget(final HttpServletRequest request) {
+        final StringBuilder url = new StringBuilder();
+        url.append(request.getServletPath());
+        if (request.getPathInfo() != null) {
+            url.append(request.getPathInfo());
+        }
+        if (request.getQueryString() != null) {
+            url.append('?').append(request.getQueryString());
+        }
+        return url.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void copyRequestHeaders(final HttpServletRequest request, final HttpURLConnection connection) {
+        final Enumeration<String> names = request.getHeaderNames();
+        while (names.hasMoreElements()) {
+            final String name = names.nextElement();
+            if (HOP_BY_HOP_HEADERS.contains(name.toLowerCase())) {
+                continue;
+            }
+            final Enumeration<String> values = request.getHeaders(name);
+            while (values.hasMoreElements()) {
+                connection.addRequestProperty(name, values.nextElement());
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.web.support;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Routes requests that reference a ticket to the CAS node that created the ticket.
+ * <p>
+ * Each node generates ticket IDs carrying its own suffix (see
+ * {@link org.jasig.cas.util.DefaultUniqueTicketIdGenerator}), so the owner of a ticket can be determined from the
+ * ticket ID alone. Requests for a ticket owned by another node are either relayed to that node over keep-alive
+ * connections by an {@link InternalRequestForwarder}, or answered with a temporary redirect to the owning node that
+ * also carries the owner in the {@link #OWNER_HEADER} header for load balancers able to act on it. Login and logout
+ * requests are always relayed, since the browser would not send the TGC, which is scoped to the host name of the
+ * cluster, to the host name of the owning node. With every
+ * request served by the owning node, each node may keep its tickets in a local
+ * {@link org.jasig.cas.ticket.registry.DefaultTicketRegistry}.
+ * </p>
+ * <p>
+ * The ticket is obtained from the <code>ticket</code> parameter of validation requests, the <code>pgt</code>
+ * parameter of proxy requests and the TGC of login and logout requests. Parameters are read from the query string
+ * only so that the body of a request that is subsequently forwarded is left untouched. SAML 1.1 validation requests
+ * carry the artifact in the <code>AssertionArtifact</code> element of their SOAP body, which is buffered so that it
+ * can still be forwarded or processed. SAML artifacts carry no node suffix; their owner is the node whose name hashes
+ * to the source ID of the artifact, which requires the source ID of each node's
+ * {@link org.jasig.cas.util.SamlCompliantUniqueTicketIdGenerator} to be its node name. Requests already forwarded by
+ * another node, as authenticated by {@link InternalRequestForwarder#isForwarded(HttpServletRequest)}, requests for
+ * unknown nodes, and requests whose owner cannot be reached are processed locally.
+ * </p>
+ * <p>
+ * The remote address of a forwarded request is that of the forwarding node, so it is replaced with the client
+ * address signed by the forwarding node. This filter must therefore precede any filter that records the client
+ * address, such as the Inspektr client info filter, for throttling and auditing to see the actual client.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class TicketAffinityRoutingFilter extends OncePerRequestFilter {
+
+    /** Response header naming the node that owns the ticket of a redirected request. */
+    public static final String OWNER_HEADER = "X-CAS-Ticket-Owner";
+
+    /** Maximum number of bytes of a SAML validation request body searched for the artifact. */
+    private static final int MAX_SAML_BODY = 64 * 1024;
+
+    /** Matches the artifact of a SAML 1.1 request, with or without namespace prefix. */
+    private static final Pattern ARTIFACT_PATTERN =
+            Pattern.compile("<(?:\\w+:)?AssertionArtifact>\\s*([^<\\s]+)\\s*</");
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Ticket ID suffix of this node. */
+    @NotNull
+    private String localNodeSuffix;
+
+    /** Base URLs of the CAS nodes of the cluster keyed by ticket ID suffix. */
+    @NotNull
+    private Map<String, String> nodeUrls = new HashMap<String, String>();
+
+    /** Forwards requests to their owning node. */
+    @NotNull
+    private InternalRequestForwarder forwarder = new InternalRequestForwarder();
+
+    /** Name of the ticket granting cookie. */
+    @NotNull
+    private String ticketGrantingCookieName = "CASTGC";
+
+    /** Flag indicating whether requests are forwarded, or else redirected, to their owning node. */
+    private boolean forwardRequests = true;
+
+
+    /**
+     * @param suffix Ticket ID suffix of this node, typically the <code>host.name</code> property.
+     */
+    public void setLocalNodeSuffix(final String suffix) {
+        this.localNodeSuffix = suffix;
+    }
+
+    /**
+     * @param urls Map of ticket ID suffix to base URL of the corresponding CAS node, e.g.
+     * <code>https://cas02.example.org:8443/cas</code>.
+     */
+    public void setNodeUrls(final Map<String, String> urls) {
+        this.nodeUrls = urls;
+    }
+
+    /**
+     * @param forwarder Forwards requests to their owning node.
+     */
+    public void setForwarder(final InternalRequestForwarder forwarder) {
+        this.forwarder = forwarder;
+    }
+
+    /**
+     * @param name Name of the ticket granting cookie. Default is <code>CASTGC</code>.
+     */
+    public void setTicketGrantingCookieName(final String name) {
+        this.ticketGrantingCookieName = name;
+    }
+
+    /**
+     * @param forward True to forward requests to the owning node, false to redirect the client to the owning node.
+     * Default is true.
+     */
+    public void setForwardRequests(final boolean forward) {
+        this.forwardRequests = forward;
+    }
+
+    @Override
+    protected void initFilterBean() throws ServletException {
+        if (!this.nodeUrls.isEmpty() && !this.forwarder.isSigning()) {
+            throw new ServletException("Routing requires the forwarder to have a signing key shared by all nodes.");
+        }
+    }
+
+    @Override
+    protected void doFilterInternal(
+            final HttpServletRequest request,
+            final HttpServletResponse response,
+            final FilterChain filterChain) throws ServletException, IOException {
+
+        HttpServletRequest routed = request;
+        if (this.forwarder.isForwarded(request)) {
+            final String clientAddress = this.forwarder.getClientAddress(request);
+            if (clientAddress != null) {
+                routed = new ClientAddressRequest(request, clientAddress);
+            }
+        } else {
+            if ("/samlValidate".equals(request.getServletPath()) && "POST".equals(request.getMethod())) {
+                routed = new BufferedBodyRequest(request);
+            }
+            final String ticketId = extractTicketId(routed);
+            final String owner = ticketId != null ? getOwner(ticketId) : null;
+            if (owner != null && !owner.equals(this.localNodeSuffix)) {
+                final String url = this.nodeUrls.get(owner);
+                if (this.forwardRequests || usesTicketGrantingCookie(request)) {
+                    log.debug("Forwarding request for ticket {} to {}", ticketId, url);
+                    if (this.forwarder.forward(routed, response, url, this.localNodeSuffix)) {
+                        return;
+                    }
+                    log.info("Owner {} of ticket {} is unreachable; processing request locally.", owner, ticketId);
+                } else {
+                    log.debug("Redirecting request for ticket {} to {}", ticketId, url);
+                    redirect(request, response, owner, url);
+                    return;
+                }
+            }
+        }
+        filterChain.doFilter(routed, response);
+    }
+
+    /**
+     * Determines the node that owns the given ticket from the ticket ID suffix.
+     *
+     * @param ticketId Ticket ID.
+     *
+     * @return Suffix of the owning node, or null if the ticket ID neither ends with the suffix of a known node nor
+     * is a SAML artifact whose source ID is the hash of a known node.
+     */
+    protected String getOwner(final String ticketId) {
+        if (ticketId.endsWith('-' + this.localNodeSuffix)) {
+            return this.localNodeSuffix;
+        }
+        // Suffixes may themselves contain dashes, so match against the known nodes rather than split the ID
+        for (final String suffix : this.nodeUrls.keySet()) {
+            if (ticketId.endsWith('-' + suffix)) {
+                return suffix;
+            }
+        }
+        return getArtifactOwner(ticketId);
+    }
+
+    /**
+     * Determines the node that issued a SAML 1.1 type 0x0001 or SAML 2 type 0x0004 artifact from its source ID,
+     * which is the SHA-1 hash of the source ID given to its
+     * {@link org.jasig.cas.util.SamlCompliantUniqueTicketIdGenerator}.
+     */
+    private String getArtifactOwner(final String ticketId) {
+        final byte[] artifact = Base64.decodeBase64(ticketId);
+        final int offset;
+        if (artifact.length == 42 && artifact[0] == 0 && artifact[1] == 1) {
+            offset = 2;
+        } else if (artifact.length == 44 && artifact[0] == 0 && artifact[1] == 4) {
+            offset = 4;
+        } else {
+            return null;
+        }
+        final byte[] sourceId = Arrays.copyOfRange(artifact, offset, offset + 20);
+        if (Arrays.equals(sourceId, digest(this.localNodeSuffix))) {
+            return this.localNodeSuffix;
+        }
+        for (final String suffix : this.nodeUrls.keySet()) {
+            if (Arrays.equals(sourceId, digest(suffix))) {
+                return suffix;
+            }
+        }
+        return null;
+    }
+
+    private static boolean usesTicketGrantingCookie(final HttpServletRequest request) {
+        return "/login".equals(request.getServletPath()) || "/logout".equals(request.getServletPath());
+    }
+
+    private String extractTicketId(final HttpServletRequest request) throws IOException {
+        final String path = request.getServletPath();
+        if ("/serviceValidate".equals(path) || "/proxyValidate".equals(path) || "/validate".equals(path)) {
+            return getQueryParameter(request, "ticket");
+        } else if ("/proxy".equals(path)) {
+            return getQueryParameter(request, "pgt");
+        } else if (request instanceof BufferedBodyRequest) {
+            final Matcher matcher = ARTIFACT_PATTERN.matcher(((BufferedBodyRequest) request).getBufferedBody());
+            return matcher.find() ? matcher.group(1) : null;
+        } else if ("/login".equals(path) || "/logout".equals(path)) {
+            final Cookie[] cookies = request.getCookies();
+            if (cookies != null) {
+                for (final Cookie cookie : cookies) {
+                    if (this.ticketGrantingCookieName.equals(cookie.getName())) {
+                        return cookie.getValue();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private void redirect(
+            final HttpServletRequest request,
+            final HttpServletResponse response,
+            final String owner,
+            final String url) {
+
+        final StringBuilder location = new StringBuilder(url);
+        location.append(request.getServletPath());
+        if (request.getPathInfo() != null) {
+            location.append(request.getPathInfo());
+        }
+        if (request.getQueryString() != null) {
+            location.append('?').append(request.getQueryString());
+        }
+        // 307 preserves the method and body of POST requests
+        response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+        response.setHeader("Location", location.toString());
+        response.setHeader(OWNER_HEADER, owner);
+    }
+
+    private static byte[] digest(final String sourceId) {
+        try {
+            return MessageDigest.getInstance("SHA").digest(sourceId.getBytes("8859_1"));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getQueryParameter(final HttpServletRequest request, final String name) {
+        final String query = request.getQueryString();
+        if (!StringUtils.hasText(query)) {
+            return null;
+        }
+        for (final String pair : query.split("&")) {
+            final int index = pair.indexOf('=');
+            if (index > 0 && name.equals(pair.substring(0, index))) {
+                try {
+                    return URLDecoder.decode(pair.substring(index + 1), "UTF-8");
+                } catch (final UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Request forwarded by another node, whose remote address is that of the client of the forwarding node.
+     */
+    private static final class ClientAddressRequest extends HttpServletRequestWrapper {
+
+        private final String clientAddress;
+
+        public ClientAddressRequest(final HttpServletRequest request, final String clientAddress) {
+            super(request);
+            this.clientAddress = clientAddress;
+        }
+
+        @Override
+        public String getRemoteAddr() {
+            return this.clientAddress;
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return this.clientAddress;
+        }
+    }
+
+    /**
+     * Request whose body has been read up to {@link #MAX_SAML_BODY} bytes, and is replayed to later readers.
+     */
+    private static final class BufferedBodyRequest extends HttpServletRequestWrapper {
+
+        private final byte[] buffer;
+
+        private final InputStream in;
+
+        public BufferedBodyRequest(final HttpServletRequest request) throws IOException {
+            super(request);
+            final InputStream original = request.getInputStream();
+            final byte[] bytes = new byte[MAX_SAML_BODY];
+            int length = 0;
+            int n;
+            while (length < bytes.length && (n = original.read(bytes, length, bytes.length - length)) > 0) {
+                length += n;
+            }
+            this.buffer = Arrays.copyOf(bytes, length);
+            this.in = new SequenceInputStream(new ByteArrayInputStream(this.buffer), original);
+        }
+
+        public String getBufferedBody() throws UnsupportedEncodingException {
+            final String encoding = getCharacterEncoding();
+            return new String(this.buffer, encoding != null ? encoding : "UTF-8");
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() throws UnsupportedEncodingException {
+            final String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(), encoding != null ? encoding : "UTF-8"));
+        }
+    }
+}
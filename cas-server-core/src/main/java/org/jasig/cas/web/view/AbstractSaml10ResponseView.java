@@ -20,16 +20,17 @@
 package org.jasig.cas.web.view;
 
 import java.lang.reflect.Field;
-import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.constraints.NotNull;
 import javax.xml.namespace.QName;
 
+import org.apache.commons.codec.binary.Hex;
 import org.jasig.cas.authentication.principal.SamlService;
 import org.jasig.cas.authentication.principal.WebApplicationService;
 import org.jasig.cas.util.CasHTTPSOAP11Encoder;
+import org.jasig.cas.util.RandomSource;
 import org.jasig.cas.web.support.SamlArgumentExtractor;
 import org.joda.time.DateTime;
 import org.opensaml.Configuration;
@@ -38,7 +39,6 @@ import org.opensaml.common.SAMLObject;
 import org.opensaml.common.SAMLObjectBuilder;
 import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.binding.BasicSAMLMessageContext;
-import org.opensaml.common.impl.SecureRandomIdentifierGenerator;
 import org.opensaml.saml1.binding.encoding.HTTPSOAP11Encoder;
 import org.opensaml.saml1.core.Response;
 import org.opensaml.saml1.core.Status;
@@ -63,7 +63,8 @@ public abstract class AbstractSaml10ResponseView extends AbstractCasView {
 
     private final HTTPSOAP11Encoder encoder = new CasHTTPSOAP11Encoder();
 
-    private final SecureRandomIdentifierGenerator idGenerator;
+    /** Number of random bytes of message ids. */
+    private static final int ID_SIZE = 16;
 
     @NotNull
     private String encoding = DEFAULT_ENCODING;
@@ -87,14 +88,6 @@ public abstract class AbstractSaml10ResponseView extends AbstractCasView {
         }
     }
 
-    protected AbstractSaml10ResponseView() {
-        try {
-            this.idGenerator = new SecureRandomIdentifierGenerator();
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Cannot create secure random ID generator for SAML message IDs.");
-        }
-    }
-
     protected void renderMergedOutputModel(
             final Map<String, Object> model, final HttpServletRequest request, final HttpServletResponse response) throws Exception {
 
@@ -138,8 +131,15 @@ public abstract class AbstractSaml10ResponseView extends AbstractCasView {
     protected abstract void prepareResponse(Response response, Map<String, Object> model);
 
 
+    /**
+     * Generates a message id of the same form as OpenSAML's <code>SecureRandomIdentifierGenerator</code>.
+     *
+     * @return "_" followed by 32 hex digits.
+     */
     protected final String generateId() {
-        return this.idGenerator.generateIdentifier();
+        final byte[] bytes = new byte[ID_SIZE];
+        RandomSource.getInstance().nextBytes(bytes);
+        return "_" + new String(Hex.encodeHex(bytes));
     }
 
     protected final <T extends SAMLObject> T newSamlObject(final Class<T> objectType) {
@@ -26,6 +26,7 @@ import org.jasig.cas.services.UnauthorizedServiceException;
 import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.TicketException;
 import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.TicketValidationException;
 import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
 import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
 import org.jasig.cas.validation.Assertion;
@@ -249,6 +250,28 @@ public class CentralAuthenticationServiceImplTests extends AbstractCentralAuthen
             .setServiceTicketExpirationPolicy(new NeverExpiresExpirationPolicy());
     }
 
+    @Test
+    public void testValidateSingleUseServiceTicketForOtherService() throws TicketException {
+        ((CentralAuthenticationServiceImpl) getCentralAuthenticationService())
+            .setServiceTicketExpirationPolicy(new MultiTimeUseOrTimeoutExpirationPolicy(1, 10000));
+        final String ticketGrantingTicket = getCentralAuthenticationService().createTicketGrantingTicket(
+            TestUtils.getCredentialsWithSameUsernameAndPassword());
+        final String serviceTicket = getCentralAuthenticationService()
+            .grantServiceTicket(ticketGrantingTicket, TestUtils.getService());
+
+        try {
+            getCentralAuthenticationService().validateServiceTicket(serviceTicket,
+                TestUtils.getService("testDefault"));
+            fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+        } catch (TicketValidationException e) {
+            // nothing to do here, exception is expected.
+        } finally {
+            ((CentralAuthenticationServiceImpl) getCentralAuthenticationService())
+                .setServiceTicketExpirationPolicy(new NeverExpiresExpirationPolicy());
+        }
+        assertNull(getTicketRegistry().getTicket(serviceTicket));
+    }
+
     @Test
     public void testValidateServiceTicketWithValidService()
         throws TicketException {
@@ -300,6 +323,20 @@ public class CentralAuthenticationServiceImplTests extends AbstractCentralAuthen
         }
     }
 
+    @Test
+    public void testValidateServiceTicketWithTicketGrantingTicket() throws TicketException {
+        final String ticketGrantingTicket = getCentralAuthenticationService().createTicketGrantingTicket(
+            TestUtils.getCredentialsWithSameUsernameAndPassword());
+
+        try {
+            getCentralAuthenticationService().validateServiceTicket(ticketGrantingTicket, TestUtils.getService());
+            fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+        } catch (TicketException e) {
+            // nothing to do here, exception is expected.
+        }
+        assertNotNull(getTicketRegistry().getTicket(ticketGrantingTicket));
+    }
+
     @Test
     public void testValidateServiceTicketNonExistantTicket() {
         try {
@@ -347,6 +384,34 @@ public class CentralAuthenticationServiceImplTests extends AbstractCentralAuthen
         final Authentication auth = assertion.getChainedAuthentications().get(0);
         assertEquals(auth.getPrincipal().getId(), "developer");
     }
+
+    @Test
+    public void testValidateStatelessServiceTicket() throws TicketException {
+        UsernamePasswordCredentials cred =  TestUtils.getCredentialsWithSameUsernameAndPassword();
+        final String ticketGrantingTicket = getCentralAuthenticationService().createTicketGrantingTicket(cred);
+
+        Service svc = TestUtils.getService("statelessServiceTickets");
+        final String serviceTicket = getCentralAuthenticationService().grantServiceTicket(ticketGrantingTicket, svc);
+        assertNull(getTicketRegistry().getTicket(serviceTicket));
+
+        try {
+            getCentralAuthenticationService().validateServiceTicket(serviceTicket, TestUtils.getService("testDefault"));
+            fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+        } catch (TicketException e) {
+            // a service not using stateless tickets looks the ticket up in the registry and does not find it
+        }
+
+        final Assertion assertion = getCentralAuthenticationService().validateServiceTicket(serviceTicket, svc);
+        assertEquals(cred.getUsername(), assertion.getChainedAuthentications().get(0).getPrincipal().getId());
+        assertEquals(svc, assertion.getService());
+
+        try {
+            getCentralAuthenticationService().validateServiceTicket(serviceTicket, svc);
+            fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+        } catch (TicketException e) {
+            // stateless tickets are single use
+        }
+    }
     
     @Test
     public void testValidateServiceTicketWithInvalidUsernameAttribute() throws TicketException {
@@ -0,0 +1,186 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.audit.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.github.inspektr.audit.AuditActionContext;
+import com.github.inspektr.audit.AuditPointRuntimeInfo;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link AsynchronousAuditTrailManager}.
+ *
+ * @since 3.5.2
+ */
+public class AsynchronousAuditTrailManagerTests {
+
+    private final List<AuditActionContext> written = Collections.synchronizedList(new ArrayList<AuditActionContext>());
+
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private AsynchronousAuditTrailManager manager;
+
+    @After
+    public void tearDown() throws Exception {
+        this.release.countDown();
+        this.manager.destroy();
+    }
+
+    @Test
+    public void testRecordsWrittenInBatchesInOrder() throws Exception {
+        this.manager = newManager(new CollectingSink(false));
+        this.manager.setBatchSize(10);
+        this.manager.afterPropertiesSet();
+        for (int i = 0; i < 25; i++) {
+            this.manager.record(newRecord(i));
+        }
+        this.manager.destroy();
+        assertEquals(25, this.manager.getWrittenCount());
+        assertEquals(25, this.written.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals("resource" + i, this.written.get(i).getResourceOperatedUpon());
+        }
+        for (final int size : this.batchSizes) {
+            assertTrue(size <= 10);
+        }
+        assertEquals(0, this.manager.getPendingCount());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        this.manager = newManager(new CollectingSink(true));
+        this.manager.setCapacity(4);
+        this.manager.setBatchSize(1);
+        this.manager.setOverflowPolicy(AsynchronousAuditTrailManager.OverflowPolicy.DROP);
+        this.manager.afterPropertiesSet();
+        for (int i = 0; i < 20; i++) {
+            this.manager.record(newRecord(i));
+        }
+        assertTrue(this.manager.getDroppedCount() >= 15);
+        this.release.countDown();
+        this.manager.destroy();
+        assertEquals(20, this.manager.getWrittenCount() + this.manager.getDroppedCount());
+    }
+
+    @Test
+    public void testBlockLosesNothing() throws Exception {
+        this.manager = newManager(new CollectingSink(false));
+        this.manager.setCapacity(2);
+        this.manager.setBatchSize(1);
+        this.manager.afterPropertiesSet();
+        for (int i = 0; i < 200; i++) {
+            this.manager.record(newRecord(i));
+        }
+        this.manager.destroy();
+        assertEquals(200, this.manager.getWrittenCount());
+        assertEquals(0, this.manager.getDroppedCount());
+    }
+
+    @Test
+    public void testSamplingOnceHalfFull() throws Exception {
+        this.manager = newManager(new CollectingSink(true));
+        this.manager.setCapacity(64);
+        this.manager.setBatchSize(1);
+        this.manager.setSampleRate(4);
+        this.manager.setOverflowPolicy(AsynchronousAuditTrailManager.OverflowPolicy.SAMPLE);
+        this.manager.afterPropertiesSet();
+        for (int i = 0; i < 100; i++) {
+            this.manager.record(newRecord(i));
+        }
+        // about half the buffer fills up, then one record in four is kept
+        assertTrue(this.manager.getRecordedCount() < 64);
+        assertTrue(this.manager.getRecordedCount() > 32 + 10);
+        assertEquals(100, this.manager.getRecordedCount() + this.manager.getDroppedCount());
+    }
+
+    @Test
+    public void testFailingSinkCountsLostRecords() throws Exception {
+        this.manager = newManager(new AuditRecordSink() {
+            public void write(final List<AuditActionContext> records) throws Exception {
+                throw new IllegalStateException("Database down");
+            }
+        });
+        this.manager.afterPropertiesSet();
+        this.manager.record(newRecord(1));
+        this.manager.destroy();
+        assertEquals(1, this.manager.getLostCount());
+        assertEquals(0, this.manager.getWrittenCount());
+    }
+
+    @Test
+    public void testRecordsCountedOnceForSeveralSinks() throws Exception {
+        this.manager = new AsynchronousAuditTrailManager(Arrays.<AuditRecordSink>asList(
+                new CollectingSink(false), new CollectingSink(false)));
+        this.manager.setFlushInterval(1);
+        this.manager.afterPropertiesSet();
+        for (int i = 0; i < 5; i++) {
+            this.manager.record(newRecord(i));
+        }
+        this.manager.destroy();
+        assertEquals(10, this.written.size());
+        assertEquals(5, this.manager.getWrittenCount());
+        assertEquals(0, this.manager.getLostCount());
+    }
+
+    private AsynchronousAuditTrailManager newManager(final AuditRecordSink sink) {
+        final AsynchronousAuditTrailManager manager = new AsynchronousAuditTrailManager(
+                Collections.singletonList(sink));
+        manager.setFlushInterval(1);
+        return manager;
+    }
+
+    static AuditActionContext newRecord(final int i) {
+        return new AuditActionContext("user" + i, "resource" + i, "TICKET_GRANTING_TICKET_CREATED", "CAS",
+                new Date(), "127.0.0.1", "127.0.0.2", new AuditPointRuntimeInfo() {
+                    public String asString() {
+                        return "test";
+                    }
+                });
+    }
+
+
+    private final class CollectingSink implements AuditRecordSink {
+
+        private final boolean stalled;
+
+        public CollectingSink(final boolean stalled) {
+            this.stalled = stalled;
+        }
+
+        public void write(final List<AuditActionContext> records) throws Exception {
+            if (this.stalled) {
+                release.await();
+            }
+            batchSizes.add(records.size());
+            written.addAll(records);
+        }
+    }
+}
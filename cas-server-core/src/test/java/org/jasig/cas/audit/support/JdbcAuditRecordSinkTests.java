@@ -0,0 +1,69 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.audit.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.inspektr.audit.AuditActionContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for {@link JdbcAuditRecordSink} against an in-memory database.
+ *
+ * @since 3.5.2
+ */
+public class JdbcAuditRecordSinkTests {
+
+    private SimpleDriverDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dataSource = new SimpleDriverDataSource(new org.hsqldb.jdbcDriver(), "jdbc:hsqldb:mem:cas-audit", "sa", "");
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+        jdbcTemplate.execute("DROP TABLE COM_AUDIT_TRAIL IF EXISTS");
+        jdbcTemplate.execute("CREATE TABLE COM_AUDIT_TRAIL (AUD_USER VARCHAR(100), AUD_CLIENT_IP VARCHAR(15), "
+                + "AUD_SERVER_IP VARCHAR(15), AUD_RESOURCE VARCHAR(100), AUD_ACTION VARCHAR(100), "
+                + "APPLIC_CD VARCHAR(5), AUD_DATE TIMESTAMP)");
+    }
+
+    @Test
+    public void testBatchInserted() throws Exception {
+        final JdbcAuditRecordSink sink = new JdbcAuditRecordSink(this.dataSource);
+        sink.setColumnLength(9);
+        final List<AuditActionContext> batch = new ArrayList<AuditActionContext>();
+        for (int i = 0; i < 50; i++) {
+            batch.add(AsynchronousAuditTrailManagerTests.newRecord(i));
+        }
+        sink.write(batch);
+
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+        assertEquals(50, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM COM_AUDIT_TRAIL"));
+        assertEquals(1, jdbcTemplate.queryForInt(
+                "SELECT COUNT(*) FROM COM_AUDIT_TRAIL WHERE AUD_USER = 'user7' AND AUD_RESOURCE = 'resource7'"));
+        // resource12 and the like are truncated to the column length
+        assertEquals(11, jdbcTemplate.queryForInt(
+                "SELECT COUNT(*) FROM COM_AUDIT_TRAIL WHERE AUD_RESOURCE = 'resource1'"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.audit.support;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.inspektr.audit.AuditActionContext;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link MappedFileAuditRecordSink}.
+ *
+ * @since 3.5.2
+ */
+public class MappedFileAuditRecordSinkTests {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        this.directory = File.createTempFile("cas-audit", "");
+        this.directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    @Test
+    public void testRecordsWrittenAsLines() throws Exception {
+        final MappedFileAuditRecordSink sink = new MappedFileAuditRecordSink(this.directory);
+        sink.write(Arrays.asList(
+                AsynchronousAuditTrailManagerTests.newRecord(1), AsynchronousAuditTrailManagerTests.newRecord(2)));
+        sink.destroy();
+
+        final File[] files = this.directory.listFiles();
+        assertEquals(1, files.length);
+        final List<String> lines = FileUtils.readLines(files[0], "UTF-8");
+        assertEquals(2, lines.size());
+        final String[] fields = lines.get(1).split("\t");
+        assertEquals(7, fields.length);
+        assertEquals("CAS", fields[1]);
+        assertEquals("TICKET_GRANTING_TICKET_CREATED", fields[2]);
+        assertEquals("user2", fields[3]);
+        assertEquals("resource2", fields[4]);
+        assertEquals("127.0.0.1", fields[5]);
+    }
+
+    @Test
+    public void testSegmentsRotatedAndPruned() throws Exception {
+        final MappedFileAuditRecordSink sink = new MappedFileAuditRecordSink(this.directory);
+        sink.setSegmentSize(4096);
+        sink.setMaxSegments(3);
+        final List<AuditActionContext> batch = new ArrayList<AuditActionContext>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(AsynchronousAuditTrailManagerTests.newRecord(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            sink.write(batch);
+        }
+        sink.destroy();
+
+        final File[] files = this.directory.listFiles();
+        Arrays.sort(files);
+        assertEquals(3, files.length);
+        for (final File file : files) {
+            assertTrue(file.length() <= 4096);
+        }
+
+        // numbering continues after a restart
+        final MappedFileAuditRecordSink restarted = new MappedFileAuditRecordSink(this.directory);
+        restarted.setMaxSegments(3);
+        restarted.write(batch);
+        restarted.destroy();
+        final List<String> names = Arrays.asList(this.directory.list());
+        assertEquals(3, names.size());
+        assertFalse(names.contains(files[0].getName()));
+    }
+}
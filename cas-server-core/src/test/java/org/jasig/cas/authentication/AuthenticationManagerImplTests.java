@@ -27,10 +27,12 @@ import org.jasig.cas.authentication.handler.AuthenticationHandler;
 import org.jasig.cas.authentication.handler.BadCredentialsAuthenticationException;
 import org.jasig.cas.authentication.handler.UnsupportedCredentialsException;
 import org.jasig.cas.authentication.handler.support.HttpBasedServiceCredentialsAuthenticationHandler;
+import org.jasig.cas.authentication.handler.support.SimpleTestUsernamePasswordAuthenticationHandler;
 import org.jasig.cas.authentication.principal.Credentials;
 import org.jasig.cas.authentication.principal.CredentialsToPrincipalResolver;
 import org.jasig.cas.authentication.principal.Principal;
 import org.jasig.cas.authentication.principal.UsernamePasswordCredentialsToPrincipalResolver;
+import org.jasig.cas.monitor.LatencyMetrics;
 import org.jasig.cas.util.HttpClient;
 import org.junit.Test;
 
@@ -98,6 +100,20 @@ public class AuthenticationManagerImplTests extends AbstractCentralAuthenticatio
             manager.authenticate(TestUtils.getHttpBasedServiceCredentials());
     }
     
+    @Test
+    public void testHandlerLatencyRecorded() throws Exception {
+        final AuthenticationManagerImpl manager = new AuthenticationManagerImpl();
+        final LatencyMetrics metrics = new LatencyMetrics();
+        manager.setAuthenticationHandlers(
+            Arrays.asList((AuthenticationHandler) new SimpleTestUsernamePasswordAuthenticationHandler()));
+        manager.setCredentialsToPrincipalResolvers(
+            Arrays.asList((CredentialsToPrincipalResolver) new UsernamePasswordCredentialsToPrincipalResolver()));
+        manager.setLatencyMetrics(metrics);
+        manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword());
+        assertEquals(1, metrics.snapshot().get(LatencyMetrics.AUTHENTICATION_HANDLER)
+            .get(SimpleTestUsernamePasswordAuthenticationHandler.class.getName()).getCount());
+    }
+
     protected class TestCredentialsToPrincipalResolver implements CredentialsToPrincipalResolver {
 
         public Principal resolvePrincipal(Credentials credentials) {
@@ -18,6 +18,13 @@
  */
 package org.jasig.cas.authentication.handler.support;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.jasig.cas.TestUtils;
 import org.jasig.cas.util.HttpClient;
 
@@ -82,4 +89,31 @@ public final class HttpBasedServiceCredentialsAuthenticationHandlerTests extends
         assertFalse(this.authenticationHandler.authenticate(TestUtils
             .getHttpBasedServiceCredentials("https://www.ja-sig.org")));
     }
+
+    public void testValidationCachedPerOrigin() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        final String origin = "http://127.0.0.1:" + server.getAddress().getPort();
+        this.authenticationHandler.setRequireSecure(false);
+        this.authenticationHandler.setValidationCacheTimeToLive(60000);
+        try {
+            assertTrue(this.authenticationHandler.authenticate(
+                TestUtils.getHttpBasedServiceCredentials(origin + "/proxyCallback")));
+            assertTrue(this.authenticationHandler.authenticate(
+                TestUtils.getHttpBasedServiceCredentials(origin + "/otherCallback")));
+            assertEquals(1, requests.get());
+        } finally {
+            server.stop(0);
+        }
+        assertTrue(this.authenticationHandler.authenticate(
+            TestUtils.getHttpBasedServiceCredentials(origin + "/proxyCallback")));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.authentication.principal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link ImmutableAttributeMap}.
+ *
+ * @since 3.5.2
+ */
+public class ImmutableAttributeMapTests {
+
+    @Test
+    public void testEqualMapsShareInstanceAndValues() {
+        final Map<String, Object> first = newAttributes("jdoe");
+        final Map<String, Object> second = newAttributes("jdoe");
+        final ImmutableAttributeMap interned = ImmutableAttributeMap.intern(first);
+
+        assertEquals(first, interned);
+        assertSame(interned, ImmutableAttributeMap.intern(second));
+
+        final ImmutableAttributeMap other = ImmutableAttributeMap.intern(newAttributes("jsmith"));
+        assertNotSame(interned, other);
+        assertSame(interned.get("memberOf"), other.get("memberOf"));
+    }
+
+    @Test
+    public void testCollectionTypePreserved() {
+        final Map<String, Object> attributes = newAttributes("jdoe");
+        final Set<String> roles = new HashSet<String>(Arrays.asList("staff", "faculty"));
+        attributes.put("roles", roles);
+        final ImmutableAttributeMap interned = ImmutableAttributeMap.intern(attributes);
+
+        assertTrue(interned.get("roles") instanceof Set);
+        assertEquals(roles, interned.get("roles"));
+        assertTrue(interned.get("memberOf") instanceof List);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        ImmutableAttributeMap.intern(newAttributes("jdoe")).put("uid", "jsmith");
+    }
+
+    @Test
+    public void testDeserializedMapIsCanonical() throws Exception {
+        final ImmutableAttributeMap interned = ImmutableAttributeMap.intern(newAttributes("jdoe"));
+        final SimplePrincipal principal = new SimplePrincipal("jdoe", interned);
+        assertSame(interned, principal.getAttributes());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(principal);
+        out.close();
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final SimplePrincipal copy = (SimplePrincipal) in.readObject();
+        in.close();
+
+        assertSame(interned, copy.getAttributes());
+    }
+
+    private static Map<String, Object> newAttributes(final String uid) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("uid", new String(uid));
+        final List<String> groups = Arrays.asList(
+                new String("cn=staff,ou=groups,dc=example,dc=org"), new String("cn=vpn,ou=groups,dc=example,dc=org"));
+        attributes.put("memberOf", groups);
+        return attributes;
+    }
+}
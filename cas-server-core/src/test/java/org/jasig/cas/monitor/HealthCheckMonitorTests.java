@@ -18,14 +18,19 @@
  */
 package org.jasig.cas.monitor;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jasig.cas.ticket.registry.DefaultTicketRegistry;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit test for {@link HealthCheckMonitor} class.
@@ -42,6 +47,11 @@ public class HealthCheckMonitorTests {
         this.monitor = new HealthCheckMonitor();
     }
 
+    @After
+    public void tearDown() throws Exception {
+        this.monitor.destroy();
+    }
+
     @Test
     public void testObserveUnknown() throws Exception {
         assertEquals(StatusCode.UNKNOWN, this.monitor.observe().getCode());
@@ -66,10 +76,83 @@ public class HealthCheckMonitorTests {
         this.monitor.setMonitors(monitors);
         assertEquals(StatusCode.WARN, this.monitor.observe().getCode());
     }
-    
+
+    @Test
+    public void testObserveTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingMonitor slow = new CountingMonitor("slow", release);
+        this.monitor.setMonitors(Arrays.<Monitor>asList(new MemoryMonitor(), slow));
+        this.monitor.setTimeout(100);
+        final long start = System.currentTimeMillis();
+        HealthStatus status = this.monitor.observe();
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(StatusCode.ERROR, status.getCode());
+        assertEquals(StatusCode.OK, status.getDetails().get("MemoryMonitor").getCode());
+        // The hung observation is shared rather than started again
+        status = this.monitor.observe();
+        assertEquals(StatusCode.ERROR, status.getDetails().get("slow").getCode());
+        assertEquals(1, slow.count.get());
+        release.countDown();
+        Thread.sleep(100);
+        assertEquals(StatusCode.OK, this.monitor.observe().getDetails().get("slow").getCode());
+    }
+
+    @Test
+    public void testConcurrentObservationsCollapsedAndCached() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingMonitor counting = new CountingMonitor("counting", release);
+        this.monitor.setMonitors(Arrays.<Monitor>asList(counting));
+        this.monitor.setCacheTimeToLive(60000);
+        final Thread[] probes = new Thread[10];
+        final AtomicInteger ok = new AtomicInteger();
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = new Thread() {
+                public void run() {
+                    if (monitor.observe().getCode() == StatusCode.OK) {
+                        ok.incrementAndGet();
+                    }
+                }
+            };
+            probes[i].start();
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (final Thread probe : probes) {
+            probe.join();
+        }
+        assertEquals(probes.length, ok.get());
+        assertEquals(StatusCode.OK, this.monitor.observe().getCode());
+        assertEquals(1, counting.count.get());
+    }
+
     private SessionMonitor newSessionMonitor() {
         final SessionMonitor sessionMonitor = new SessionMonitor();
         sessionMonitor.setTicketRegistry(new DefaultTicketRegistry());
         return sessionMonitor;
     }
+
+    private static class CountingMonitor implements Monitor<Status> {
+        private final String name;
+        private final CountDownLatch release;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public CountingMonitor(final String name, final CountDownLatch release) {
+            this.name = name;
+            this.release = release;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public Status observe() {
+            this.count.incrementAndGet();
+            try {
+                this.release.await();
+            } catch (final InterruptedException e) {
+                return Status.UNKNOWN;
+            }
+            return Status.OK;
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link LatencyHistogram}.
+ *
+ * @since 3.5.2
+ */
+public class LatencyHistogramTests {
+
+    @Test
+    public void testEmpty() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(99));
+        assertEquals(0, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void testPercentilesWithinRelativeError() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000000, snapshot.getMax());
+        assertEquals(50000500.0, snapshot.getMean(), 1);
+        assertWithin(50000000, snapshot.getMedian());
+        assertWithin(99000000, snapshot.getPercentile99());
+        assertWithin(99900000, snapshot.getPercentile999());
+        assertEquals(100000000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testSmallAndOutOfRangeValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 64; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(66, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(1));
+        assertEquals(31, snapshot.getValueAtPercentile(50));
+        assertEquals((1L << 40) - 1, snapshot.getMax());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        histogram.record(j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(4L * 99999 * 100000 / 2, snapshot.getSum());
+        assertEquals(99999, snapshot.getMax());
+    }
+
+    @Test
+    public void testOldValuesLeaveTheWindow() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram(100);
+        histogram.record(1000000);
+        assertEquals(1, histogram.snapshot().getCount());
+        Thread.sleep(150);
+        histogram.record(2000);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(2000, snapshot.getMax());
+        assertEquals(2000, snapshot.getValueAtPercentile(99));
+        assertEquals(2, snapshot.getTotalCount());
+        assertEquals(1002000, snapshot.getTotalSum());
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(actual + " is not within 3.2% of " + expected, Math.abs(actual - expected) <= expected * 0.032);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.monitor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link LatencyMonitor} class.
+ *
+ * @since 3.5.2
+ */
+public class LatencyMonitorTests {
+
+    private LatencyMetrics metrics;
+    private LatencyMonitor monitor;
+
+    @Before
+    public void setUp() {
+        this.metrics = new LatencyMetrics();
+        this.monitor = new LatencyMonitor();
+        this.monitor.setLatencyMetrics(this.metrics);
+    }
+
+    @Test
+    public void testObserveUnknown() {
+        assertEquals(StatusCode.UNKNOWN, this.monitor.observe().getCode());
+    }
+
+    @Test
+    public void testObserveOk() {
+        this.metrics.record(LatencyMetrics.OPERATION, "GRANT_SERVICE_TICKET", 2000000);
+        final LatencyStatus status = this.monitor.observe();
+        assertEquals(StatusCode.OK, status.getCode());
+        assertEquals(1, status.getOperations().get("GRANT_SERVICE_TICKET").getCount());
+        assertTrue(status.getDescription().startsWith("GRANT_SERVICE_TICKET p99 2.0"));
+    }
+
+    @Test
+    public void testObserveWarn() {
+        this.monitor.setLatencyWarnThreshold(10);
+        this.metrics.record(LatencyMetrics.OPERATION, "GRANT_SERVICE_TICKET", 2000000);
+        this.metrics.record(LatencyMetrics.OPERATION, "VALIDATE_SERVICE_TICKET", 50000000);
+        final LatencyStatus status = this.monitor.observe();
+        assertEquals(StatusCode.WARN, status.getCode());
+        assertTrue(status.getDescription().contains("VALIDATE_SERVICE_TICKET p99 (50.0"));
+    }
+
+    @Test
+    public void testWarningClearsOnceSlowOperationsLeaveTheWindow() throws Exception {
+        this.metrics.setWindow(100);
+        this.monitor.setLatencyWarnThreshold(10);
+        this.metrics.record(LatencyMetrics.OPERATION, "VALIDATE_SERVICE_TICKET", 50000000);
+        assertEquals(StatusCode.WARN, this.monitor.observe().getCode());
+        Thread.sleep(150);
+        assertEquals(StatusCode.UNKNOWN, this.monitor.observe().getCode());
+        this.metrics.record(LatencyMetrics.OPERATION, "VALIDATE_SERVICE_TICKET", 2000000);
+        assertEquals(StatusCode.OK, this.monitor.observe().getCode());
+    }
+
+    @Test
+    public void testMaxLabels() {
+        this.metrics.setMaxLabels(2);
+        this.metrics.record(LatencyMetrics.REGISTERED_SERVICE, "a", 1);
+        this.metrics.record(LatencyMetrics.REGISTERED_SERVICE, "b", 1);
+        this.metrics.record(LatencyMetrics.REGISTERED_SERVICE, "c", 1);
+        this.metrics.record(LatencyMetrics.REGISTERED_SERVICE, "d", 1);
+        assertEquals(2, this.metrics.snapshot().get(LatencyMetrics.REGISTERED_SERVICE).get("other").getCount());
+        assertEquals(3, this.metrics.snapshot().get(LatencyMetrics.REGISTERED_SERVICE).size());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.services;
+
+import java.util.List;
+
+import org.jasig.cas.util.SpaceSavingSketch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for {@link ServiceUsageMetrics}.
+ *
+ * @since 3.5.2
+ */
+public class ServiceUsageMetricsTests {
+
+    private final ServiceUsageMetrics metrics = new ServiceUsageMetrics();
+
+    @Test
+    public void testCountsPerServiceAcrossTableGrowth() {
+        for (int i = 0; i < 500; i++) {
+            final RegisteredService service = newRegisteredService(i);
+            for (int j = 0; j <= i % 3; j++) {
+                this.metrics.record(service, ServiceUsageMetrics.Event.SERVICE_TICKET_GRANTED);
+            }
+            this.metrics.record(service, ServiceUsageMetrics.Event.VALIDATION_FAILED);
+        }
+        assertEquals(3, this.metrics.getCount(2, ServiceUsageMetrics.Event.SERVICE_TICKET_GRANTED));
+        assertEquals(1, this.metrics.getCount(499, ServiceUsageMetrics.Event.VALIDATION_FAILED));
+        assertEquals(0, this.metrics.getCount(499, ServiceUsageMetrics.Event.ACCESS_DENIED));
+        assertEquals(0, this.metrics.getCount(500, ServiceUsageMetrics.Event.VALIDATION_FAILED));
+        assertEquals(500, this.metrics.getServiceUsage().size());
+
+        final List<ServiceUsageMetrics.ServiceUsage> top = this.metrics.getTopServiceUsage(10);
+        assertEquals(10, top.size());
+        assertEquals(4, top.get(0).getTotal());
+        assertEquals(3, top.get(0).getServiceTicketsGranted());
+        assertEquals("service" + top.get(0).getId(), top.get(0).getName());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final RegisteredService service = newRegisteredService(7);
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        metrics.record(service, ServiceUsageMetrics.Event.VALIDATION_SUCCEEDED);
+                        metrics.record(newRegisteredService(j % 100), ServiceUsageMetrics.Event.ACCESS_DENIED);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, this.metrics.getCount(7, ServiceUsageMetrics.Event.VALIDATION_SUCCEEDED));
+        assertEquals(8000, this.metrics.getCount(99, ServiceUsageMetrics.Event.ACCESS_DENIED));
+    }
+
+    @Test
+    public void testUnregisteredServicesWithoutQueryString() {
+        for (int i = 0; i < 10; i++) {
+            this.metrics.recordUnregisteredService("https://rogue.example.com/app?ticket=" + i);
+        }
+        this.metrics.recordUnregisteredService("https://other.example.com/");
+        final List<SpaceSavingSketch.Counter> top = this.metrics.getTopUnregisteredServices(5);
+        assertEquals(2, top.size());
+        assertEquals("https://rogue.example.com/app", top.get(0).getItem());
+        assertEquals(10, top.get(0).getCount());
+    }
+
+    private static RegisteredService newRegisteredService(final long id) {
+        final MockRegisteredService service = new MockRegisteredService();
+        service.setId(id);
+        service.setName("service" + id);
+        return service;
+    }
+}
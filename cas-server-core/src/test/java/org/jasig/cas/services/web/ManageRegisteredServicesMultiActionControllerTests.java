@@ -19,11 +19,13 @@
 package org.jasig.cas.services.web;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.jasig.cas.services.DefaultServicesManagerImpl;
 import org.jasig.cas.services.InMemoryServiceRegistryDaoImpl;
 import org.jasig.cas.services.RegisteredService;
 import org.jasig.cas.services.RegisteredServiceImpl;
+import org.jasig.cas.services.ServiceUsageMetrics;
 import org.jasig.cas.services.ServicesManager;
 import org.junit.Before;
 import org.junit.Test;
@@ -174,4 +176,26 @@ public class ManageRegisteredServicesMultiActionControllerTests {
         }
     }
     
+
+    @Test
+    public void testUsage() {
+        final RegisteredServiceImpl r = new RegisteredServiceImpl();
+        r.setId(1200);
+        r.setName("name");
+        r.setServiceId("test");
+        final ServiceUsageMetrics metrics = new ServiceUsageMetrics();
+        metrics.record(r, ServiceUsageMetrics.Event.SERVICE_TICKET_GRANTED);
+        metrics.recordUnregisteredService("https://unknown.example.com/?ticket=ST-1");
+        this.controller.setServiceUsageMetrics(metrics);
+
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("limit", "10");
+        final ModelAndView modelAndView = this.controller.usage(request, new MockHttpServletResponse());
+
+        assertEquals("jsonView", modelAndView.getViewName());
+        final List<?> services = (List<?>) modelAndView.getModel().get("services");
+        assertEquals(1, services.size());
+        assertEquals(1, ((ServiceUsageMetrics.ServiceUsage) services.get(0)).getServiceTicketsGranted());
+        assertEquals(1, ((List<?>) modelAndView.getModel().get("unregisteredServices")).size());
+    }
 }
@@ -18,6 +18,9 @@
  */
 package org.jasig.cas.ticket;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.jasig.cas.TestUtils;
 import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.principal.Service;
@@ -147,4 +150,37 @@ public class ServiceTicketImplTests extends TestCase {
             return;
         }
     }
-}
\ No newline at end of file
+
+    public void testSingleUseTicketConsumedOnceUnderContention() throws Exception {
+        final ServiceTicket s = this.ticketGrantingTicket.grantServiceTicket(this.uniqueTicketIdGenerator
+            .getNewTicketId(ServiceTicket.PREFIX), TestUtils.getService(),
+            new MultiTimeUseOrTimeoutExpirationPolicy(1, 60000), false);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger successes = new AtomicInteger();
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    if (s.isValidFor(TestUtils.getService())) {
+                        successes.incrementAndGet();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(1, successes.get());
+        assertEquals(1, s.getCountOfUses());
+        assertTrue(s.isExpired());
+    }
+}
@@ -18,6 +18,10 @@
  */
 package org.jasig.cas.ticket;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -123,6 +127,24 @@ public class TicketGrantingTicketImplTests extends TestCase {
         assertEquals(principals, t.getChainedAuthentications());
     }
 
+    public void testChainedAuthenticationsCachedAndSerialized() throws Exception {
+        final TicketGrantingTicketImpl t1 = new TicketGrantingTicketImpl("test", null,
+            TestUtils.getAuthentication("test1"), new NeverExpiresExpirationPolicy());
+        final TicketGrantingTicketImpl t = new TicketGrantingTicketImpl("test2", t1,
+            TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        assertSame(t.getChainedAuthentications(), t.getChainedAuthentications());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(t);
+        out.close();
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final TicketGrantingTicket copy = (TicketGrantingTicket) in.readObject();
+        in.close();
+
+        assertEquals(t.getChainedAuthentications(), copy.getChainedAuthentications());
+    }
+
     public void testServiceTicketAsFromInitialCredentials() {
         TicketGrantingTicket t = new TicketGrantingTicketImpl("test", null,
             TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
@@ -158,4 +180,15 @@ public class TicketGrantingTicketImplTests extends TestCase {
         
         assertTrue(testService.isLoggedOut());
     }
+
+    public void testNoServiceTicketFromExpiredTicket() {
+        final TicketGrantingTicket t = new TicketGrantingTicketImpl("test", null,
+            TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        t.expire();
+
+        assertNull(t.grantServiceTicket(this.uniqueTicketIdGenerator
+            .getNewTicketId(ServiceTicket.PREFIX), TestUtils.getService(),
+            new NeverExpiresExpirationPolicy(), false));
+        assertEquals(0, t.getCountOfUses());
+    }
 }
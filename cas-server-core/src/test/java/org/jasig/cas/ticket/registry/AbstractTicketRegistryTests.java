@@ -187,6 +187,22 @@ public abstract class AbstractTicketRegistryTests extends TestCase {
         }
     }
 
+    public void testConsumeTicket() {
+        final TicketGrantingTicket ticketGrantingTicket = new TicketGrantingTicketImpl(
+            "TEST", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        final ServiceTicket st = ticketGrantingTicket.grantServiceTicket(
+            "ST-TEST", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        this.ticketRegistry.addTicket(ticketGrantingTicket);
+        this.ticketRegistry.addTicket(st);
+
+        final Ticket consumed = this.ticketRegistry.consumeTicket("ST-TEST");
+        assertNotNull(consumed);
+        assertEquals("ST-TEST", consumed.getId());
+        assertNull(this.ticketRegistry.getTicket("ST-TEST"));
+        assertNull(this.ticketRegistry.consumeTicket("ST-TEST"));
+        assertNotNull(this.ticketRegistry.getTicket("TEST"));
+    }
+
     public void testGetTicketsFromRegistryEqualToTicketsAdded() {
         final Collection<Ticket> tickets = new ArrayList<Ticket>();
 
@@ -216,4 +232,8 @@ public abstract class AbstractTicketRegistryTests extends TestCase {
             fail("Caught an exception. But no exception should have been thrown.");
         }
     }
-}
\ No newline at end of file
+
+    protected static TicketGrantingTicket newTicketGrantingTicket(final String id) {
+        return new TicketGrantingTicketImpl(id, TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.github.inspektr.common.web.ClientInfo;
+import com.github.inspektr.common.web.ClientInfoHolder;
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Unit test for {@link BoundedTicketRegistry}.
+ *
+ * @since 3.5.2
+ */
+public class BoundedTicketRegistryTests extends AbstractTicketRegistryTests {
+
+    private BoundedTicketRegistry registry;
+
+    public TicketRegistry getNewTicketRegistry() throws Exception {
+        this.registry = new BoundedTicketRegistry(new DefaultTicketRegistry());
+        this.registry.setMaxTicketGrantingTickets(10);
+        this.registry.setMinIdleTime(0);
+        this.registry.setEvictionBatchSize(3);
+        return this.registry;
+    }
+
+    protected void tearDown() throws Exception {
+        ClientInfoHolder.setClientInfo(null);
+        super.tearDown();
+    }
+
+    public void testEvictsLeastRecentlyUsedTicketGrantingTickets() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+            Thread.sleep(2);
+        }
+        this.registry.addTicket(newTicketGrantingTicket("TGT-10"));
+
+        assertEquals(3, this.registry.getEvictedCount());
+        assertEquals(8, this.registry.sessionCount());
+        assertNull(this.registry.getTicket("TGT-0"));
+        assertNull(this.registry.getTicket("TGT-2"));
+        assertNotNull(this.registry.getTicket("TGT-3"));
+        assertNotNull(this.registry.getTicket("TGT-10"));
+    }
+
+    public void testSparesRecentlyUsedTicketGrantingTickets() throws Exception {
+        this.registry.setMinIdleTime(50);
+        for (int i = 0; i < 10; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        Thread.sleep(100);
+        ((TicketGrantingTicket) this.registry.getTicket("TGT-0")).grantServiceTicket(
+                "ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        this.registry.addTicket(newTicketGrantingTicket("TGT-10"));
+
+        assertEquals(3, this.registry.getEvictedCount());
+        assertNotNull(this.registry.getTicket("TGT-0"));
+        assertNull(this.registry.getTicket("TGT-3"));
+        assertNotNull(this.registry.getTicket("TGT-4"));
+    }
+
+    public void testRejectsWhenNothingIdle() {
+        this.registry.setMinIdleTime(60 * 60 * 1000);
+        for (int i = 0; i < 10; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        try {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-10"));
+            fail("Expected TicketRegistryFullException");
+        } catch (final TicketRegistryFullException e) {
+            assertEquals(1, this.registry.getRejectedCount());
+        }
+        assertEquals(10, this.registry.sessionCount());
+        assertEquals(1.0, this.registry.getPressure(), 0.0);
+    }
+
+    public void testConcurrentAdditionsStayWithinCap() throws Exception {
+        this.registry.setMinIdleTime(60 * 60 * 1000);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 100;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 100; i++) {
+                        try {
+                            registry.addTicket(newTicketGrantingTicket("TGT-" + (offset + i)));
+                        } catch (final TicketRegistryFullException e) {
+                            // expected once the cap is reached
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(10, this.registry.sessionCount());
+        assertEquals(10, this.registry.getTickets().size());
+        assertEquals(790, this.registry.getRejectedCount());
+    }
+
+    public void testRejectsMostActiveSourceWithoutEvicting() {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("192.0.2.1");
+        ClientInfoHolder.setClientInfo(new ClientInfo(request));
+        for (int i = 0; i < 10; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        try {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-10"));
+            fail("Expected TicketRegistryFullException");
+        } catch (final TicketRegistryFullException e) {
+            assertEquals(0, this.registry.getEvictedCount());
+        }
+    }
+
+    public void testServiceTicketCap() {
+        this.registry.setMaxServiceTickets(2);
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-1");
+        this.registry.addTicket(tgt.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        this.registry.addTicket(tgt.grantServiceTicket("ST-2", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        try {
+            this.registry.addTicket(tgt.grantServiceTicket("ST-3", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+            fail("Expected TicketRegistryFullException");
+        } catch (final TicketRegistryFullException e) {
+            assertEquals(2, this.registry.serviceTicketCount());
+        }
+        assertTrue(this.registry.deleteTicket("ST-1"));
+        assertFalse(this.registry.deleteTicket("ST-1"));
+        assertEquals(1, this.registry.serviceTicketCount());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+
+/**
+ * Unit test for {@link JournalingTicketRegistry} restarting on the same journal directory.
+ *
+ * @since 3.5.2
+ */
+public class JournalingTicketRegistryTests extends AbstractTicketRegistryTests {
+
+    private File directory;
+
+    private DefaultTicketRegistry delegate;
+
+    private JournalingTicketRegistry registry;
+
+    public TicketRegistry getNewTicketRegistry() throws Exception {
+        this.directory = File.createTempFile("cas-journal", "");
+        this.directory.delete();
+        return newRegistry(Long.MAX_VALUE);
+    }
+
+    protected void tearDown() throws Exception {
+        this.registry.destroy();
+        FileUtils.deleteDirectory(this.directory);
+        super.tearDown();
+    }
+
+    public void testTicketsSurviveRestart() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-0");
+        this.registry.addTicket(tgt.grantServiceTicket(
+                "ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        this.registry.deleteTicket("TGT-99");
+        this.registry.destroy();
+
+        newRegistry(Long.MAX_VALUE);
+        assertEquals(99, this.registry.sessionCount());
+        assertNotNull(this.registry.getTicket("ST-1"));
+        assertNull(this.registry.getTicket("TGT-99"));
+        assertEquals(1, this.registry.getTicket("TGT-0").getCountOfUses());
+        // The replayed ST shares the replayed TGT rather than its own copy of it
+        assertSame(this.delegate.getTicket("TGT-0"), this.delegate.getTicket("ST-1").getGrantingTicket());
+    }
+
+    public void testTicketsSurviveSnapshot() throws Exception {
+        this.registry.destroy();
+        newRegistry(0);
+        for (int i = 0; i < 10; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+            // Let the writer compact the journal between changes
+            Thread.sleep(20);
+        }
+        this.registry.deleteTicket("TGT-0");
+        this.registry.destroy();
+
+        newRegistry(0);
+        assertEquals(9, this.registry.sessionCount());
+    }
+
+    private JournalingTicketRegistry newRegistry(final long snapshotThreshold) throws Exception {
+        this.delegate = new DefaultTicketRegistry();
+        this.registry = new JournalingTicketRegistry(this.delegate, this.directory);
+        this.registry.setSegmentSize(64 * 1024);
+        this.registry.setSnapshotThreshold(snapshotThreshold);
+        this.registry.setReplayThreads(4);
+        this.registry.afterPropertiesSet();
+        return this.registry;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+
+/**
+ * Unit test for {@link OffHeapTicketRegistry}.
+ *
+ * @since 3.5.2
+ */
+public class OffHeapTicketRegistryTests extends AbstractTicketRegistryTests {
+
+    private OffHeapTicketRegistry registry;
+
+    public TicketRegistry getNewTicketRegistry() throws Exception {
+        this.registry = new OffHeapTicketRegistry(64 * 1024 * 1024, 0, 0);
+        return this.registry;
+    }
+
+    public void testAddGetDeleteAcrossIndexGrowth() {
+        final int count = 5000;
+        for (int i = 0; i < count; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        assertEquals(count, this.registry.sessionCount());
+        for (int i = 0; i < count; i += 7) {
+            assertEquals("TGT-" + i, this.registry.getTicket("TGT-" + i).getId());
+        }
+        for (int i = 0; i < count; i += 2) {
+            assertTrue(this.registry.deleteTicket("TGT-" + i));
+        }
+        assertFalse(this.registry.deleteTicket("TGT-0"));
+        assertNull(this.registry.getTicket("TGT-0"));
+        assertNotNull(this.registry.getTicket("TGT-1"));
+        assertEquals(count / 2, this.registry.sessionCount());
+        assertEquals(count / 2, this.registry.getTickets().size());
+    }
+
+    public void testUpdateWrittenBack() {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-1");
+        this.registry.addTicket(tgt.grantServiceTicket(
+                "ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        assertEquals(1, this.registry.getTicket("TGT-1").getCountOfUses());
+        assertEquals(1, this.registry.serviceTicketCount());
+    }
+
+    public void testRemoveExpired() throws Exception {
+        final TicketGrantingTicket expired = newTicketGrantingTicket("TGT-expired");
+        expired.expire();
+        this.registry.addTicket(expired);
+        this.registry.addTicket(newTicketGrantingTicket("TGT-live"));
+        Thread.sleep(10);
+        assertEquals(1, this.registry.removeExpired());
+        assertNull(this.registry.getTicket("TGT-expired"));
+        assertNotNull(this.registry.getTicket("TGT-live"));
+    }
+}
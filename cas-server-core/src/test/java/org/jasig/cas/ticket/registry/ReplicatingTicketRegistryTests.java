@@ -0,0 +1,140 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.net.ServerSocket;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.support.TicketReplicationReceiver;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+
+/**
+ * Unit test for {@link ReplicatingTicketRegistry} replicating to a {@link TicketReplicationReceiver} on localhost.
+ *
+ * @since 3.5.2
+ */
+public class ReplicatingTicketRegistryTests extends AbstractTicketRegistryTests {
+
+    private static final String KEY = "MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=";
+
+    private DefaultTicketRegistry standbyRegistry;
+
+    private TicketReplicationReceiver receiver;
+
+    private ReplicatingTicketRegistry primary;
+
+    private boolean started;
+
+    public TicketRegistry getNewTicketRegistry() throws Exception {
+        final ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+
+        this.standbyRegistry = new DefaultTicketRegistry();
+        this.receiver = new TicketReplicationReceiver(this.standbyRegistry, port);
+        this.receiver.setSigningKey(KEY);
+
+        this.primary = new ReplicatingTicketRegistry(new DefaultTicketRegistry(), "127.0.0.1", port, 1000);
+        this.primary.setSigningKey(KEY);
+        this.primary.setReconnectInterval(100);
+        this.primary.setHeartbeatInterval(100);
+        return this.primary;
+    }
+
+    protected void tearDown() throws Exception {
+        this.primary.destroy();
+        if (this.started) {
+            this.receiver.destroy();
+        }
+        super.tearDown();
+    }
+
+    public void testSnapshotOnConnect() throws Exception {
+        this.standbyRegistry.addTicket(newTicketGrantingTicket("TGT-stale"));
+        for (int i = 0; i < 10; i++) {
+            this.primary.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        start();
+        awaitReplication();
+        assertTrue(this.receiver.isSynchronizedWithPrimary());
+        assertEquals(10, this.standbyRegistry.sessionCount());
+        assertNull(this.standbyRegistry.getTicket("TGT-stale"));
+    }
+
+    public void testChangesStreamed() throws Exception {
+        start();
+        awaitReplication();
+
+        this.primary.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.primary.getTicket("TGT-1");
+        this.primary.addTicket(tgt.grantServiceTicket(
+                "ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        awaitReplication();
+        assertNotNull(this.standbyRegistry.getTicket("ST-1"));
+        assertEquals(1, this.standbyRegistry.getTicket("TGT-1").getCountOfUses());
+        assertSame(this.standbyRegistry.getTicket("TGT-1"), this.standbyRegistry.getTicket("ST-1").getGrantingTicket());
+
+        this.primary.deleteTicket("ST-1");
+        awaitReplication();
+        assertNull(this.standbyRegistry.getTicket("ST-1"));
+        assertEquals(0, this.primary.getReplicationLagMillis());
+    }
+
+    public void testDescendantsShareStandbyParent() throws Exception {
+        this.primary.addTicket(newTicketGrantingTicket("TGT-1"));
+        TicketGrantingTicket tgt = (TicketGrantingTicket) this.primary.getTicket("TGT-1");
+        this.primary.addTicket(tgt.grantServiceTicket(
+                "ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        // The snapshot may deliver the ST before its parent
+        start();
+        awaitReplication();
+        assertSame(this.standbyRegistry.getTicket("TGT-1"), this.standbyRegistry.getTicket("ST-1").getGrantingTicket());
+
+        tgt = (TicketGrantingTicket) this.primary.getTicket("TGT-1");
+        tgt.expire();
+        awaitReplication();
+        assertTrue(this.standbyRegistry.getTicket("ST-1").isExpired());
+    }
+
+    public void testPrimaryWithOtherKeyRejected() throws Exception {
+        this.receiver.setSigningKey("ZmVkY2JhOTg3NjU0MzIxMGZlZGNiYTk4NzY1NDMyMTA=");
+        this.primary.addTicket(newTicketGrantingTicket("TGT-1"));
+        start();
+        Thread.sleep(500);
+        assertFalse(this.receiver.isSynchronizedWithPrimary());
+        assertNull(this.standbyRegistry.getTicket("TGT-1"));
+    }
+
+    private void start() throws Exception {
+        this.receiver.afterPropertiesSet();
+        this.started = true;
+        this.primary.afterPropertiesSet();
+    }
+
+    private void awaitReplication() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (this.receiver.isSynchronizedWithPrimary() && this.primary.getPendingChanges() == 0) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Standby did not catch up; pending changes: " + this.primary.getPendingChanges());
+    }
+}
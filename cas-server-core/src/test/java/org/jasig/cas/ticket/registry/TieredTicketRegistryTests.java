@@ -0,0 +1,145 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+
+/**
+ * Unit test for {@link TieredTicketRegistry}.
+ *
+ * @since 3.5.2
+ */
+public class TieredTicketRegistryTests extends AbstractTicketRegistryTests {
+
+    private File directory;
+
+    private TieredTicketRegistry registry;
+
+    public TicketRegistry getNewTicketRegistry() throws Exception {
+        this.directory = File.createTempFile("cas-tier", "");
+        this.directory.delete();
+        this.registry = new TieredTicketRegistry(this.directory, 4096);
+        this.registry.setIdleThreshold(0);
+        return this.registry;
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory);
+        super.tearDown();
+    }
+
+    public void testSpillAndPromote() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-0");
+        this.registry.addTicket(tgt.grantServiceTicket(
+                "ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        Thread.sleep(10);
+
+        // TGT-0 is referenced by ST-1 and must stay on the heap
+        assertEquals(9, this.registry.spill());
+        assertEquals(2, this.registry.getHeapTicketCount());
+        assertEquals(10, this.registry.sessionCount());
+        assertEquals(11, this.registry.getTickets().size());
+
+        final TicketGrantingTicket promoted = (TicketGrantingTicket) this.registry.getTicket("TGT-5");
+        assertNotNull(promoted);
+        assertEquals("TGT-5", promoted.getId());
+        assertEquals(3, this.registry.getHeapTicketCount());
+        assertEquals(8, this.registry.getSpilledTicketCount());
+
+        assertTrue(this.registry.deleteTicket("TGT-6"));
+        assertFalse(this.registry.deleteTicket("TGT-6"));
+        assertEquals(9, this.registry.sessionCount());
+    }
+
+    public void testUpdateThroughStaleReferencePromotes() throws Exception {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-1");
+        Thread.sleep(10);
+        assertEquals(1, this.registry.spill());
+
+        tgt.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        assertEquals(0, this.registry.getSpilledTicketCount());
+        assertEquals(1, this.registry.getTicket("TGT-1").getCountOfUses());
+    }
+
+    public void testGetTicketsDeserializesOnlyExpiringTickets() throws Exception {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        this.registry.addTicket(new TicketGrantingTicketImpl(
+                "TGT-2", TestUtils.getAuthentication(), new TimeoutExpirationPolicy(500)));
+        Thread.sleep(10);
+        assertEquals(2, this.registry.spill());
+        Thread.sleep(600);
+
+        int expired = 0;
+        for (final Ticket ticket : this.registry.getTickets()) {
+            if ("TGT-1".equals(ticket.getId())) {
+                assertFalse(ticket instanceof TicketGrantingTicketImpl);
+                assertFalse(ticket.isExpired());
+                assertEquals(0, ticket.getCountOfUses());
+            } else {
+                assertTrue(ticket instanceof TicketGrantingTicketImpl);
+                assertTrue(ticket.isExpired());
+                expired++;
+            }
+        }
+        assertEquals(1, expired);
+        assertEquals(2, this.registry.getSpilledTicketCount());
+    }
+
+    public void testDeleteDuringSpill() throws Exception {
+        final int count = 500;
+        for (int i = 0; i < count; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        Thread.sleep(10);
+
+        final Thread spiller = new Thread() {
+            public void run() {
+                while (!isInterrupted()) {
+                    registry.spill();
+                }
+            }
+        };
+        spiller.start();
+        try {
+            for (int i = 0; i < count; i++) {
+                assertTrue(this.registry.deleteTicket("TGT-" + i));
+            }
+        } finally {
+            spiller.interrupt();
+            spiller.join();
+        }
+
+        assertEquals(0, this.registry.getSpilledTicketCount());
+        for (int i = 0; i < count; i++) {
+            assertNull(this.registry.getTicket("TGT-" + i));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.Collections;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.jasig.cas.util.SignedUniqueTicketIdGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit test for {@link VerifyingTicketRegistry}.
+ *
+ * @since 3.5.2
+ */
+public class VerifyingTicketRegistryTests {
+
+    private final SignedUniqueTicketIdGenerator generator =
+            new SignedUniqueTicketIdGenerator("MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=");
+
+    private final DefaultTicketRegistry delegate = new DefaultTicketRegistry();
+
+    private final VerifyingTicketRegistry registry = new VerifyingTicketRegistry(this.delegate, this.generator);
+
+    @Test
+    public void testImplausibleIdsNeverReachTheRegistry() {
+        final TicketGrantingTicket tgt = new TicketGrantingTicketImpl(
+                this.generator.getNewTicketId(TicketGrantingTicket.PREFIX), TestUtils.getAuthentication(),
+                new NeverExpiresExpirationPolicy());
+        this.registry.addTicket(tgt);
+        assertNotNull(this.registry.getTicket(tgt.getId()));
+
+        // present in the delegate under an id the verifier cannot vouch for
+        this.delegate.addTicket(new TicketGrantingTicketImpl("TGT-1-abc", TestUtils.getAuthentication(),
+                new NeverExpiresExpirationPolicy()));
+        assertNull(this.registry.getTicket("TGT-1-abc"));
+        assertFalse(this.registry.deleteTicket("TGT-1-abc"));
+        assertNull(this.registry.consumeTicket("TGT-" + tgt.getId().substring(4).replace('-', '_')));
+        final String id = tgt.getId();
+        assertNull(this.registry.getTicket(id.substring(0, id.length() - 1) + (id.endsWith("0") ? "1" : "0")));
+        assertEquals(3, this.registry.getMalformedCount() + this.registry.getForgedCount());
+        assertEquals(3, this.registry.getRejectedCount());
+
+        // other formats pass unchecked
+        assertNull(this.registry.getTicket("AAIAsomeSamlArtifact"));
+        assertEquals(3, this.registry.getRejectedCount());
+    }
+
+    @Test
+    public void testMaximumAge() {
+        this.registry.setMaximumAges(Collections.singletonMap(TicketGrantingTicket.PREFIX, 0L));
+        final String id = this.generator.getNewTicketId(TicketGrantingTicket.PREFIX);
+        this.delegate.addTicket(new TicketGrantingTicketImpl(id, TestUtils.getAuthentication(),
+                new NeverExpiresExpirationPolicy()));
+        assertNotNull(this.registry.getTicket(id));
+
+        final String old = "TGT-" + Long.toString(System.currentTimeMillis() / 60000 - 2, 36) + "-abc-0123456789abcdef";
+        assertNull(this.registry.getTicket(old));
+        assertEquals(1, this.registry.getExpiredCount());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.support;
+
+import org.jasig.cas.TestUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link StatelessServiceTicketCodec}.
+ *
+ * @since 3.5.2
+ */
+public class StatelessServiceTicketCodecTests {
+
+    private static final String ENCRYPTION_KEY = "MDEyMzQ1Njc4OWFiY2RlZg==";
+
+    private static final String SIGNING_KEY = "MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=";
+
+    private final StatelessServiceTicketCodec codec = new StatelessServiceTicketCodec(ENCRYPTION_KEY, SIGNING_KEY);
+
+    @Test
+    public void testRoundTrip() {
+        this.codec.setSuffix("cas01");
+        final String id = this.codec.encode("TGT-1-abc-cas01", TestUtils.getService(), true);
+        assertTrue(id.startsWith("ST-"));
+        assertTrue(id.endsWith("-cas01"));
+        assertEquals(2, id.split("-").length - 1);
+
+        final StatelessServiceTicketCodec.Claims claims = this.codec.decode(id);
+        assertNotNull(claims);
+        assertEquals("TGT-1-abc-cas01", claims.getTicketGrantingTicketId());
+        assertTrue(claims.isFromNewLogin());
+        assertTrue(claims.isValidFor(TestUtils.getService()));
+        assertFalse(claims.isValidFor(TestUtils.getService("other")));
+        assertFalse(this.codec.isExpired(claims));
+    }
+
+    @Test
+    public void testTamperedOrForeignTicketsRejected() {
+        final String id = this.codec.encode("TGT-1", TestUtils.getService(), false);
+        final char c = id.charAt(10);
+        assertNull(this.codec.decode(id.substring(0, 10) + (c == 'A' ? 'B' : 'A') + id.substring(11)));
+        assertNull(this.codec.decode("ST-1-abcdefghijklmnopqrstuvwxyz-cas01"));
+
+        final StatelessServiceTicketCodec other = new StatelessServiceTicketCodec(ENCRYPTION_KEY,
+                "ZmVkY2JhOTg3NjU0MzIxMGZlZGNiYTk4NzY1NDMyMTA=");
+        assertNull(other.decode(id));
+    }
+
+    @Test
+    public void testSingleUse() {
+        final StatelessServiceTicketCodec.Claims claims =
+                this.codec.decode(this.codec.encode("TGT-1", TestUtils.getService(), false));
+        assertTrue(this.codec.use(claims));
+        assertFalse(this.codec.use(claims));
+        assertTrue(this.codec.use(this.codec.decode(this.codec.encode("TGT-1", TestUtils.getService(), false))));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final StatelessServiceTicketCodec shortLived = new StatelessServiceTicketCodec(ENCRYPTION_KEY, SIGNING_KEY, 5, 10);
+        final StatelessServiceTicketCodec.Claims claims =
+                shortLived.decode(shortLived.encode("TGT-1", TestUtils.getService(), false));
+        Thread.sleep(20);
+        assertTrue(shortLived.isExpired(claims));
+        assertFalse(shortLived.use(claims));
+    }
+}
@@ -44,4 +44,18 @@ public class DefaultRandomStringGeneratorTests extends TestCase {
         assertNotSame(this.randomStringGenerator.getNewString(),
             this.randomStringGenerator.getNewString());
     }
+
+    public void testCharactersEquallyLikely() {
+        final int[] counts = new int[128];
+        for (int i = 0; i < 4000; i++) {
+            final String s = this.randomStringGenerator.getNewString();
+            assertEquals(LENGTH, s.length());
+            for (final char c : s.toCharArray()) {
+                counts[c]++;
+            }
+        }
+        // 140000 characters over an alphabet of 61 characters
+        assertTrue(counts['a'] > 2000 && counts['a'] < 2600);
+        assertTrue(counts['9'] > 2000 && counts['9'] < 2600);
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link HostBulkhead}.
+ *
+ * @since 3.5.2
+ */
+public class HostBulkheadTests {
+
+    @Test
+    public void testCallsLimitedPerHost() throws Exception {
+        final HostBulkhead bulkhead = new HostBulkhead();
+        bulkhead.setMaxConcurrentCallsPerHost(2);
+        final URL slow = new URL("https://slow.example.org/proxyCallback");
+
+        final Semaphore first = bulkhead.acquire(slow);
+        assertNotNull(first);
+        assertNotNull(bulkhead.acquire(new URL("https://slow.example.org:443/other")));
+        assertNull(bulkhead.acquire(slow));
+        assertEquals(1, bulkhead.getRejectedCount());
+
+        // other hosts are not affected
+        assertNotNull(bulkhead.acquire(new URL("https://fast.example.org/proxyCallback")));
+
+        first.release();
+        assertNotNull(bulkhead.acquire(slow));
+    }
+
+    @Test
+    public void testIdleHostsForgotten() throws Exception {
+        final HostBulkhead bulkhead = new HostBulkhead();
+        bulkhead.setMaxConcurrentCallsPerHost(1);
+        bulkhead.setMaxHosts(2);
+        final URL busy = new URL("https://busy.example.org/");
+        assertNotNull(bulkhead.acquire(busy));
+        for (int i = 0; i < 10; i++) {
+            bulkhead.acquire(new URL("https://host" + i + ".example.org/")).release();
+        }
+        // the busy host is remembered
+        assertNull(bulkhead.acquire(busy));
+    }
+
+    @Test
+    public void testLimitHoldsWhileHostsAreForgotten() throws Exception {
+        final HostBulkhead bulkhead = new HostBulkhead();
+        bulkhead.setMaxConcurrentCallsPerHost(2);
+        bulkhead.setMaxHosts(1);
+        final URL[] urls = {new URL("https://a.example.org/"), new URL("https://b.example.org/")};
+        final AtomicInteger[] calls = {new AtomicInteger(), new AtomicInteger()};
+        final AtomicInteger maxCalls = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        final int host = i % 2;
+                        final Semaphore permit = bulkhead.acquire(urls[host]);
+                        if (permit != null) {
+                            final int current = calls[host].incrementAndGet();
+                            int max = maxCalls.get();
+                            while (current > max && !maxCalls.compareAndSet(max, current)) {
+                                max = maxCalls.get();
+                            }
+                            Thread.yield();
+                            calls[host].decrementAndGet();
+                            permit.release();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(maxCalls.get() <= 2);
+    }
+}
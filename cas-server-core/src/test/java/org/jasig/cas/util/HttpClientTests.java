@@ -44,4 +44,13 @@ public class HttpClientTests extends TestCase {
     public void testBadUrl() {
         assertFalse(this.httpClient.isValidEndPoint("http://www.jasig.org/scottb.html"));
     }
+
+    public void testNoTimeLeftBeforeDeadline() {
+        HttpClient.setDeadline(System.currentTimeMillis() - 1);
+        try {
+            assertFalse(this.httpClient.isValidEndPoint("http://www.jasig.org"));
+        } finally {
+            HttpClient.clearDeadline();
+        }
+    }
 }
@@ -0,0 +1,291 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.RegisteredServiceImpl;
+import org.jasig.cas.services.ServicesManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link LogoutMessageDispatcher} against a local HTTP server.
+ *
+ * @since 3.5.2
+ */
+public class LogoutMessageDispatcherTests {
+
+    private HttpServer server;
+
+    private String url;
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private final AtomicInteger sessionIndexes = new AtomicInteger();
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    /** Number of requests still to be answered with an error. */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile long responseDelay;
+
+    private final LogoutMessageDispatcher dispatcher = new LogoutMessageDispatcher();
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/logout", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final int current = concurrent.incrementAndGet();
+                int max = maxConcurrent.get();
+                while (current > max && !maxConcurrent.compareAndSet(max, current)) {
+                    max = maxConcurrent.get();
+                }
+                try {
+                    final InputStream in = exchange.getRequestBody();
+                    final String body = IOUtils.toString(in, "UTF-8");
+                    in.close();
+                    Thread.sleep(responseDelay);
+                    final int status = failures.getAndDecrement() > 0 ? 503 : 200;
+                    if (status == 200 && body.startsWith("logoutRequest=")) {
+                        received.incrementAndGet();
+                        final String request = URLDecoder.decode(body.substring("logoutRequest=".length()), "UTF-8");
+                        sessionIndexes.addAndGet(request.split("<samlp:SessionIndex>", -1).length - 1);
+                    }
+                    exchange.sendResponseHeaders(status, -1);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrent.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        this.server.setExecutor(Executors.newFixedThreadPool(20));
+        this.server.start();
+        this.url = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/logout";
+        this.dispatcher.setRetryDelay(10);
+    }
+
+    @After
+    public void tearDown() {
+        this.dispatcher.destroy();
+        this.server.stop(0);
+    }
+
+    @Test
+    public void testDeliveryWithinPerHostLimit() throws Exception {
+        this.responseDelay = 20;
+        this.dispatcher.setMaxConnectionsPerHost(2);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(this.dispatcher.dispatch(this.url, "<LogoutRequest>" + i + "</LogoutRequest>"));
+        }
+        awaitPending(0);
+        assertEquals(20, this.received.get());
+        assertEquals(20, this.dispatcher.getDeliveredCount());
+        assertTrue(this.maxConcurrent.get() <= 2);
+        assertTrue(this.dispatcher.getMaxLatency() >= this.dispatcher.getAverageLatency());
+    }
+
+    @Test
+    public void testRetryAfterServerError() throws Exception {
+        this.failures.set(2);
+        assertTrue(this.dispatcher.dispatch(this.url, "message"));
+        awaitPending(0);
+        assertEquals(1, this.received.get());
+        assertEquals(2, this.dispatcher.getRetriedCount());
+        assertEquals(0, this.dispatcher.getFailedCount());
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() throws Exception {
+        this.failures.set(10);
+        this.dispatcher.setMaxAttempts(3);
+        this.dispatcher.dispatch(this.url, "message");
+        awaitPending(0);
+        assertEquals(0, this.received.get());
+        assertEquals(1, this.dispatcher.getFailedCount());
+        assertEquals(2, this.dispatcher.getRetriedCount());
+    }
+
+    @Test
+    public void testBoundedQueue() throws Exception {
+        this.responseDelay = 200;
+        this.dispatcher.setCapacity(2);
+        this.dispatcher.setEnqueueTimeout(0);
+        assertTrue(this.dispatcher.dispatch(this.url, "1"));
+        assertTrue(this.dispatcher.dispatch(this.url, "2"));
+        assertFalse(this.dispatcher.dispatch(this.url, "3"));
+        assertEquals(1, this.dispatcher.getRejectedCount());
+        awaitPending(0);
+        assertEquals(2, this.received.get());
+    }
+
+    @Test
+    public void testExpiredMessagesDropped() throws Exception {
+        this.failures.set(10);
+        this.dispatcher.setMessageTimeToLive(1);
+        this.dispatcher.setRetryDelay(50);
+        this.dispatcher.dispatch(this.url, "message");
+        awaitPending(0);
+        assertEquals(1, this.dispatcher.getExpiredCount());
+    }
+
+    @Test
+    public void testBatchedLogoutRequests() throws Exception {
+        final Service batched = TestUtils.getService("batched");
+        final Service single = TestUtils.getService("single");
+        final RegisteredServiceImpl registeredService = new RegisteredServiceImpl();
+        registeredService.setBatchLogoutRequests(true);
+        final ServicesManager servicesManager = mock(ServicesManager.class);
+        when(servicesManager.findServiceBy(batched)).thenReturn(registeredService);
+        when(servicesManager.getAllServices()).thenReturn(Collections.<RegisteredService>singleton(registeredService));
+        this.dispatcher.setServicesManager(servicesManager);
+        this.dispatcher.setBatchSize(10);
+        this.dispatcher.setBatchWindow(100);
+
+        for (int i = 0; i < 25; i++) {
+            assertTrue(this.dispatcher.dispatchLogout(batched, this.url, "ST-" + i));
+        }
+        assertTrue(this.dispatcher.dispatchLogout(single, this.url, "ST-single"));
+        // two full batches and the single request are sent at once, the rest after the batch window
+        awaitPending(0);
+        Thread.sleep(200);
+        awaitPending(0);
+        assertEquals(4, this.received.get());
+        assertEquals(26, this.sessionIndexes.get());
+    }
+
+    @Test
+    public void testServicesNotMatchedWithoutBatchedServices() throws Exception {
+        final ServicesManager servicesManager = mock(ServicesManager.class);
+        when(servicesManager.getAllServices()).thenReturn(
+            Collections.<RegisteredService>singleton(new RegisteredServiceImpl()));
+        this.dispatcher.setServicesManager(servicesManager);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(this.dispatcher.dispatchLogout(TestUtils.getService(), this.url, "ST-" + i));
+        }
+        awaitPending(0);
+        assertEquals(3, this.received.get());
+        verify(servicesManager, never()).findServiceBy(any(Service.class));
+    }
+
+    @Test
+    public void testJournaledMessagesRedeliveredAfterRestart() throws Exception {
+        final File directory = File.createTempFile("cas-logout", "");
+        directory.delete();
+        try {
+            this.failures.set(100);
+            this.dispatcher.setMaxAttempts(100);
+            final LogoutMessageJournal journal = new LogoutMessageJournal(directory);
+            this.dispatcher.setJournal(journal);
+            this.dispatcher.afterPropertiesSet();
+            assertTrue(this.dispatcher.dispatch(this.url, "message"));
+            Thread.sleep(100);
+            this.dispatcher.destroy();
+            journal.destroy();
+
+            this.failures.set(0);
+            final LogoutMessageDispatcher restarted = new LogoutMessageDispatcher();
+            final LogoutMessageJournal reopened = new LogoutMessageJournal(directory);
+            restarted.setJournal(reopened);
+            restarted.afterPropertiesSet();
+            for (int i = 0; i < 500 && restarted.getDeliveredCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, this.received.get());
+            assertEquals(1, restarted.getDeliveredCount());
+            restarted.destroy();
+            reopened.destroy();
+            assertTrue(new LogoutMessageJournal(directory).open(60000).isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testBatchedSessionsJournaledOnDestroy() throws Exception {
+        final File directory = File.createTempFile("cas-logout", "");
+        directory.delete();
+        try {
+            final Service batched = TestUtils.getService("batched");
+            final RegisteredServiceImpl registeredService = new RegisteredServiceImpl();
+            registeredService.setBatchLogoutRequests(true);
+            final ServicesManager servicesManager = mock(ServicesManager.class);
+            when(servicesManager.findServiceBy(batched)).thenReturn(registeredService);
+        when(servicesManager.getAllServices()).thenReturn(Collections.<RegisteredService>singleton(registeredService));
+            this.dispatcher.setServicesManager(servicesManager);
+            this.dispatcher.setBatchWindow(60000);
+            this.failures.set(100);
+            final LogoutMessageJournal journal = new LogoutMessageJournal(directory);
+            this.dispatcher.setJournal(journal);
+            this.dispatcher.afterPropertiesSet();
+
+            assertTrue(this.dispatcher.dispatchLogout(batched, this.url, "ST-1"));
+            assertTrue(this.dispatcher.dispatchLogout(batched, this.url, "ST-2"));
+            assertEquals(0, this.dispatcher.getPendingCount());
+            this.dispatcher.destroy();
+            journal.destroy();
+
+            final List<LogoutMessageJournal.Entry> entries = new LogoutMessageJournal(directory).open(60000);
+            assertEquals(1, entries.size());
+            assertTrue(entries.get(0).getBody().contains("ST-2"));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    private void awaitPending(final int pending) throws InterruptedException {
+        for (int i = 0; i < 500 && this.dispatcher.getPendingCount() > pending; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(pending, this.dispatcher.getPendingCount());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link LogoutMessageJournal}.
+ *
+ * @since 3.5.2
+ */
+public class LogoutMessageJournalTests {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        this.directory = File.createTempFile("cas-logout", "");
+        this.directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    @Test
+    public void testPendingMessagesRecovered() throws Exception {
+        final long now = System.currentTimeMillis();
+        final LogoutMessageJournal journal = newJournal();
+        assertTrue(journal.open(60000).isEmpty());
+        final long first = journal.add(now, "https://app1/logout", "request1");
+        final long second = journal.add(now, "https://app2/logout", "request2");
+        journal.add(now, "https://app3/logout", "request3");
+        journal.done(first);
+        journal.destroy();
+
+        final LogoutMessageJournal reopened = newJournal();
+        final List<LogoutMessageJournal.Entry> entries = reopened.open(60000);
+        assertEquals(2, entries.size());
+        assertEquals(second, entries.get(0).getId());
+        assertEquals(now, entries.get(0).getCreated());
+        assertEquals("https://app2/logout", entries.get(0).getUrl());
+        assertEquals("request2", entries.get(0).getBody());
+        assertEquals("request3", entries.get(1).getBody());
+        // new ids must not collide with recovered ones
+        assertTrue(reopened.add(now, "https://app4/logout", "request4") > entries.get(1).getId());
+        reopened.destroy();
+    }
+
+    @Test
+    public void testExpiredMessagesDiscarded() throws Exception {
+        final LogoutMessageJournal journal = newJournal();
+        journal.open(60000);
+        journal.add(System.currentTimeMillis() - 10000, "https://app1/logout", "old");
+        journal.add(System.currentTimeMillis(), "https://app1/logout", "new");
+        journal.destroy();
+
+        final LogoutMessageJournal reopened = newJournal();
+        final List<LogoutMessageJournal.Entry> entries = reopened.open(5000);
+        assertEquals(1, entries.size());
+        assertEquals("new", entries.get(0).getBody());
+        reopened.destroy();
+    }
+
+    @Test
+    public void testDoneSegmentsDeleted() throws Exception {
+        final LogoutMessageJournal journal = newJournal();
+        journal.setSegmentSize(4096);
+        journal.open(60000);
+        final char[] body = new char[500];
+        final long[] ids = new long[100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = journal.add(System.currentTimeMillis(), "https://app/logout", new String(body));
+        }
+        awaitWritten(journal, ids.length);
+        assertTrue(segmentCount() > 10);
+        for (final long id : ids) {
+            journal.done(id);
+        }
+        awaitWritten(journal, ids.length * 2);
+        assertEquals(1, segmentCount());
+        journal.destroy();
+        assertTrue(newJournal().open(60000).isEmpty());
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws Exception {
+        final LogoutMessageJournal journal = newJournal();
+        journal.open(60000);
+        journal.add(System.currentTimeMillis(), "https://app1/logout", "request1");
+        journal.destroy();
+        final File[] segments = this.directory.listFiles();
+        final FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true);
+        out.write(new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 5});
+        out.close();
+
+        final LogoutMessageJournal reopened = newJournal();
+        assertEquals(1, reopened.open(60000).size());
+        reopened.destroy();
+    }
+
+    private LogoutMessageJournal newJournal() {
+        return new LogoutMessageJournal(this.directory);
+    }
+
+    private int segmentCount() {
+        return this.directory.listFiles().length;
+    }
+
+    private static void awaitWritten(final LogoutMessageJournal journal, final long count) throws Exception {
+        for (int i = 0; i < 500 && journal.getJournaledCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, journal.getJournaledCount());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link RandomSource}.
+ *
+ * @since 3.5.2
+ */
+public class RandomSourceTests {
+
+    @Test
+    public void testRequestsSpanningBuffersAndReseeds() {
+        final RandomSource source = new RandomSource(16, 64, Long.MAX_VALUE);
+        final Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            final byte[] bytes = new byte[37];
+            source.nextBytes(bytes);
+            assertTrue(seen.add(Arrays.toString(bytes)));
+        }
+    }
+
+    @Test
+    public void testThreadsGetDistinctBytes() throws Exception {
+        final RandomSource source = new RandomSource(64, 1024, 1000);
+        final byte[][] results = new byte[8][];
+        final Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    results[index] = new byte[32];
+                    source.nextBytes(results[index]);
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < results.length; i++) {
+            for (int j = i + 1; j < results.length; j++) {
+                assertFalse(Arrays.equals(results[i], results[j]));
+            }
+        }
+    }
+
+    @Test
+    public void testNextIntIsUnbiased() {
+        final RandomSource source = RandomSource.getInstance();
+        final int bound = 61;
+        final int[] counts = new int[bound];
+        final int draws = bound * 2000;
+        for (int i = 0; i < draws; i++) {
+            counts[source.nextInt(bound)]++;
+        }
+        // the first values would come out about 25% more often with a plain modulo
+        for (final int count : counts) {
+            assertTrue(count > 1700 && count < 2300);
+        }
+        assertEquals(0, source.nextInt(1));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import org.jasig.cas.util.SignedUniqueTicketIdGenerator.Verification;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link SignedUniqueTicketIdGenerator}.
+ *
+ * @since 3.5.2
+ */
+public class SignedUniqueTicketIdGeneratorTests {
+
+    private static final String KEY = "MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=";
+
+    private final SignedUniqueTicketIdGenerator generator = new SignedUniqueTicketIdGenerator(KEY, "cas01");
+
+    @Test
+    public void testGeneratedIdsVerify() {
+        final String id = this.generator.getNewTicketId("TGT");
+        assertTrue(id.startsWith("TGT-"));
+        assertTrue(id.endsWith("-cas01"));
+        assertEquals(Verification.VALID, this.generator.verify(id, -1));
+        assertEquals(Verification.VALID, this.generator.verify(id, 60 * 1000));
+        assertEquals(Verification.VALID,
+                new SignedUniqueTicketIdGenerator(KEY).verify(id.substring(0, id.length() - 6), -1));
+    }
+
+    @Test
+    public void testForgedIds() {
+        final String id = this.generator.getNewTicketId("ST");
+        final int random = id.indexOf('-', 3) + 1;
+        final char c = id.charAt(random);
+        assertEquals(Verification.FORGED,
+                this.generator.verify(id.substring(0, random) + (c == 'a' ? 'b' : 'a') + id.substring(random + 1), -1));
+        assertEquals(Verification.FORGED, new SignedUniqueTicketIdGenerator(
+                "ZmVkY2JhOTg3NjU0MzIxMGZlZGNiYTk4NzY1NDMyMTA=").verify(id, -1));
+    }
+
+    @Test
+    public void testMalformedIds() {
+        assertEquals(Verification.MALFORMED, this.generator.verify("ST-1-abcdefghij-cas01", -1));
+        assertEquals(Verification.MALFORMED, this.generator.verify("garbage", -1));
+        assertEquals(Verification.MALFORMED, this.generator.verify("ST-!!-abc-0123456789abcdef", -1));
+        assertEquals(Verification.MALFORMED, this.generator.verify("ST-1-abc-0123456789abcdeg", -1));
+    }
+
+    @Test
+    public void testExpiredIds() {
+        final String id = "ST-" + Long.toString(System.currentTimeMillis() / 60000 - 10, 36)
+                + "-abc-0123456789abcdef";
+        assertEquals(Verification.EXPIRED, this.generator.verify(id, 60 * 1000));
+        assertEquals(Verification.FORGED, this.generator.verify(id, -1));
+    }
+}
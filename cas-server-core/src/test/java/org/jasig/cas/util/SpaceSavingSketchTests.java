@@ -0,0 +1,73 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.util;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link SpaceSavingSketch}.
+ *
+ * @since 3.5.2
+ */
+public class SpaceSavingSketchTests {
+
+    @Test
+    public void testExactBelowCapacity() {
+        final SpaceSavingSketch sketch = new SpaceSavingSketch(10);
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j <= i; j++) {
+                sketch.offer("item" + i);
+            }
+        }
+        final List<SpaceSavingSketch.Counter> top = sketch.getTop(3);
+        assertEquals(3, top.size());
+        assertEquals("item4", top.get(0).getItem());
+        assertEquals(5, top.get(0).getCount());
+        assertEquals(0, top.get(0).getError());
+        assertEquals("item2", top.get(2).getItem());
+        assertEquals(15, sketch.getOffered());
+    }
+
+    @Test
+    public void testHeavyHittersFoundInLongTail() {
+        final SpaceSavingSketch sketch = new SpaceSavingSketch(20);
+        for (int i = 0; i < 100000; i++) {
+            if (i % 10 == 0) {
+                sketch.offer("heavy1");
+            } else if (i % 10 == 1) {
+                sketch.offer("heavy2");
+            } else {
+                sketch.offer("tail" + i);
+            }
+        }
+        final List<SpaceSavingSketch.Counter> top = sketch.getTop(2);
+        assertEquals(2, top.size());
+        for (final SpaceSavingSketch.Counter counter : top) {
+            assertTrue(counter.getItem().startsWith("heavy"));
+            assertTrue(counter.getCount() >= 10000);
+            assertTrue(counter.getCount() - counter.getError() <= 10000);
+        }
+        assertEquals(20, sketch.getTop(100).size());
+    }
+}
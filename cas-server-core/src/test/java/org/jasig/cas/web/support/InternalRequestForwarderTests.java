@@ -0,0 +1,232 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.web.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link InternalRequestForwarder} against a local HTTP server.
+ *
+ * @since 3.5.2
+ */
+public class InternalRequestForwarderTests {
+
+    static final String KEY = "MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=";
+
+    static final String CLIENT = "198.51.100.7";
+
+    private HttpServer server;
+
+    private String url;
+
+    /** Request received by the server, rebuilt as seen by the servlet container of the owning node. */
+    private volatile MockHttpServletRequest received;
+
+    private volatile int status = 200;
+
+    private final InternalRequestForwarder forwarder = new InternalRequestForwarder();
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/cas", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    final MockHttpServletRequest request = new MockHttpServletRequest(
+                            exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+                    request.setServletPath(exchange.getRequestURI().getPath().substring("/cas".length()));
+                    request.setQueryString(exchange.getRequestURI().getRawQuery());
+                    for (final Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                        for (final String value : header.getValue()) {
+                            request.addHeader(header.getKey(), value);
+                        }
+                    }
+                    final InputStream in = exchange.getRequestBody();
+                    final byte[] body = IOUtils.toByteArray(in);
+                    in.close();
+                    received = request;
+
+                    exchange.getResponseHeaders().add("X-Node", "cas-node-2");
+                    exchange.getResponseHeaders().add("Connection", "keep-alive");
+                    final byte[] response = body.length > 0 ? body : "yes\n".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(status, response.length);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.start();
+        this.url = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/cas";
+        this.forwarder.setSigningKey(KEY);
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void testForwardGet() throws Exception {
+        final MockHttpServletRequest request = newRequest("GET", "/serviceValidate");
+        request.setQueryString("service=https%3A%2F%2Fapp.example.org&ticket=ST-1-abcdef-cas-node-2");
+        request.addHeader("Accept-Language", "fr");
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue(this.forwarder.forward(request, response, this.url, "cas-node-1"));
+
+        assertEquals(200, response.getStatus());
+        assertEquals("yes\n", response.getContentAsString());
+        assertEquals("cas-node-2", response.getHeader("X-Node"));
+        assertNull(response.getHeader("Connection"));
+        assertEquals("/serviceValidate", this.received.getServletPath());
+        assertEquals(request.getQueryString(), this.received.getQueryString());
+        assertEquals("fr", this.received.getHeader("Accept-Language"));
+        assertEquals("cas-node-1", this.received.getHeader(InternalRequestForwarder.FORWARDED_BY_HEADER));
+        assertEquals("127.0.0.1", this.received.getHeader("X-Forwarded-For"));
+        assertTrue(this.forwarder.isForwarded(this.received));
+    }
+
+    @Test
+    public void testForwardPost() throws Exception {
+        final MockHttpServletRequest request = newRequest("POST", "/login");
+        request.setContent("username=test&password=test".getBytes("UTF-8"));
+        request.setContentType("application/x-www-form-urlencoded");
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue(this.forwarder.forward(request, response, this.url, "cas-node-1"));
+        assertEquals("username=test&password=test", response.getContentAsString());
+        assertEquals("POST", this.received.getMethod());
+        assertTrue(this.forwarder.isForwarded(this.received));
+    }
+
+    @Test
+    public void testErrorResponseRelayed() throws Exception {
+        this.status = 500;
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue(this.forwarder.forward(newRequest("GET", "/logout"), response, this.url, "cas-node-1"));
+        assertEquals(500, response.getStatus());
+        assertEquals("yes\n", response.getContentAsString());
+    }
+
+    @Test
+    public void testUnreachableNodeNotForwarded() throws Exception {
+        final ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+        final MockHttpServletRequest request = newRequest("POST", "/login");
+        request.setContent("username=test".getBytes("UTF-8"));
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        assertFalse(this.forwarder.forward(request, response, "http://127.0.0.1:" + port + "/cas", "cas-node-1"));
+        assertFalse(response.isCommitted());
+        assertEquals(200, response.getStatus());
+        assertEquals("username=test", IOUtils.toString(request.getInputStream(), "UTF-8"));
+    }
+
+    @Test
+    public void testClientForwardedHeadersNotTrustedNorRelayed() throws Exception {
+        final MockHttpServletRequest request = newRequest("GET", "/login");
+        request.addHeader(InternalRequestForwarder.FORWARDED_BY_HEADER, "cas-node-3");
+        request.addHeader(InternalRequestForwarder.SIGNATURE_HEADER, System.currentTimeMillis() + ":0123456789");
+        request.addHeader(InternalRequestForwarder.CLIENT_ADDRESS_HEADER, "192.0.2.66");
+        assertFalse(this.forwarder.isForwarded(request));
+
+        assertTrue(this.forwarder.forward(request, new MockHttpServletResponse(), this.url, "cas-node-1"));
+        assertEquals("cas-node-1", this.received.getHeader(InternalRequestForwarder.FORWARDED_BY_HEADER));
+        assertEquals(1, countHeaders(this.received, InternalRequestForwarder.SIGNATURE_HEADER));
+        assertEquals(1, countHeaders(this.received, InternalRequestForwarder.CLIENT_ADDRESS_HEADER));
+        assertEquals("127.0.0.1", this.forwarder.getClientAddress(this.received));
+    }
+
+    @Test
+    public void testSignatureVerification() throws Exception {
+        final long now = System.currentTimeMillis();
+        final String target = "/proxy?pgt=PGT-1-abcdef-cas-node-2";
+        assertTrue(this.forwarder.isForwarded(newProxyRequest(
+                "PGT-1-abcdef-cas-node-2", this.forwarder.sign("cas-node-2", CLIENT, now, "GET", target))));
+
+        // Signature of another request
+        assertFalse(this.forwarder.isForwarded(newProxyRequest(
+                "PGT-2-abcdef-cas-node-2", this.forwarder.sign("cas-node-2", CLIENT, now, "GET", target))));
+
+        // Signature for another client
+        final MockHttpServletRequest spoofed = newProxyRequest(
+                "PGT-1-abcdef-cas-node-2", this.forwarder.sign("cas-node-2", "192.0.2.66", now, "GET", target));
+        assertFalse(this.forwarder.isForwarded(spoofed));
+
+        // Expired signature
+        assertFalse(this.forwarder.isForwarded(newProxyRequest(
+                "PGT-1-abcdef-cas-node-2", this.forwarder.sign("cas-node-2", CLIENT, now - 3600000, "GET", target))));
+
+        // Signature under another key
+        final InternalRequestForwarder other = new InternalRequestForwarder();
+        other.setSigningKey("ZmVkY2JhOTg3NjU0MzIxMGZlZGNiYTk4NzY1NDMyMTA=");
+        assertFalse(this.forwarder.isForwarded(
+                newProxyRequest("PGT-1-abcdef-cas-node-2", other.sign("cas-node-2", CLIENT, now, "GET", target))));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testForwardRequiresSigningKey() throws Exception {
+        new InternalRequestForwarder().forward(
+                newRequest("GET", "/login"), new MockHttpServletResponse(), this.url, "cas-node-1");
+    }
+
+    private static MockHttpServletRequest newRequest(final String method, final String servletPath) {
+        final MockHttpServletRequest request = new MockHttpServletRequest(method, "/cas" + servletPath);
+        request.setContextPath("/cas");
+        request.setServletPath(servletPath);
+        request.setRemoteAddr("127.0.0.1");
+        return request;
+    }
+
+    private static MockHttpServletRequest newProxyRequest(final String pgt, final String signature) {
+        final MockHttpServletRequest request = newRequest("GET", "/proxy");
+        request.setQueryString("pgt=" + pgt);
+        request.addHeader(InternalRequestForwarder.FORWARDED_BY_HEADER, "cas-node-2");
+        request.addHeader(InternalRequestForwarder.CLIENT_ADDRESS_HEADER, CLIENT);
+        request.addHeader(InternalRequestForwarder.SIGNATURE_HEADER, signature);
+        return request;
+    }
+
+    private static int countHeaders(final MockHttpServletRequest request, final String name) {
+        return Collections.list(request.getHeaders(name)).size();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.web.support;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jasig.cas.util.SamlCompliantUniqueTicketIdGenerator;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link TicketAffinityRoutingFilter} in redirect mode.
+ *
+ * @since 3.5.2
+ */
+public class TicketAffinityRoutingFilterTests {
+
+    private TicketAffinityRoutingFilter filter;
+
+    private InternalRequestForwarder forwarder;
+
+    @Before
+    public void setUp() {
+        final Map<String, String> nodes = new HashMap<String, String>();
+        nodes.put("cas-node-2", "https://cas2.example.org/cas");
+        forwarder = new InternalRequestForwarder();
+        forwarder.setSigningKey(InternalRequestForwarderTests.KEY);
+        filter = new TicketAffinityRoutingFilter();
+        filter.setLocalNodeSuffix("cas-node-1");
+        filter.setNodeUrls(nodes);
+        filter.setForwarder(forwarder);
+        filter.setForwardRequests(false);
+    }
+
+    @Test
+    public void testValidationRedirectedToOwner() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/serviceValidate");
+        request.setServletPath("/serviceValidate");
+        request.setQueryString("service=https%3A%2F%2Fapp.example.org&ticket=ST-1-abcdef-cas-node-2");
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, response, chain);
+        assertNull(chain.getRequest());
+        assertEquals(HttpServletResponse.SC_TEMPORARY_REDIRECT, response.getStatus());
+        assertEquals(
+                "https://cas2.example.org/cas/serviceValidate?" + request.getQueryString(),
+                response.getHeader("Location"));
+        assertEquals("cas-node-2", response.getHeader(TicketAffinityRoutingFilter.OWNER_HEADER));
+    }
+
+    @Test
+    public void testLoginForwardedByCookie() throws Exception {
+        // The TGC would not be sent to the owner's host name, so login requests are never redirected
+        final InternalRequestForwarder mockForwarder = mock(InternalRequestForwarder.class);
+        when(mockForwarder.forward(any(HttpServletRequest.class), any(HttpServletResponse.class),
+                eq("https://cas2.example.org/cas"), eq("cas-node-1"))).thenReturn(true);
+        filter.setForwarder(mockForwarder);
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+        request.setServletPath("/login");
+        request.setCookies(new Cookie("CASTGC", "TGT-1-abcdef-cas-node-2"));
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, response, chain);
+        assertNull(chain.getRequest());
+        assertNull(response.getHeader("Location"));
+        verify(mockForwarder).forward(request, response, "https://cas2.example.org/cas", "cas-node-1");
+    }
+
+    @Test
+    public void testLocalAndUnknownTicketsProcessedLocally() throws Exception {
+        for (final String ticket : new String[] {"ST-1-abcdef-cas-node-1", "ST-1-abcdef-cas-node-3"}) {
+            final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/serviceValidate");
+            request.setServletPath("/serviceValidate");
+            request.setQueryString("ticket=" + ticket);
+            final MockFilterChain chain = new MockFilterChain();
+            filter.doFilter(request, new MockHttpServletResponse(), chain);
+            assertNotNull(chain.getRequest());
+        }
+    }
+
+    @Test
+    public void testForwardedRequestProcessedLocally() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/proxy");
+        request.setServletPath("/proxy");
+        request.setQueryString("pgt=PGT-1-abcdef-cas-node-2&targetService=https%3A%2F%2Fapp.example.org");
+        request.setRemoteAddr("10.0.0.2");
+        request.addHeader(InternalRequestForwarder.FORWARDED_BY_HEADER, "cas-node-2");
+        request.addHeader(InternalRequestForwarder.CLIENT_ADDRESS_HEADER, InternalRequestForwarderTests.CLIENT);
+        request.addHeader(InternalRequestForwarder.SIGNATURE_HEADER, forwarder.sign("cas-node-2",
+                InternalRequestForwarderTests.CLIENT, System.currentTimeMillis(), "GET",
+                "/proxy?" + request.getQueryString()));
+        final MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        assertNotNull(chain.getRequest());
+        // The owner sees the client rather than the forwarding node
+        assertEquals(InternalRequestForwarderTests.CLIENT, chain.getRequest().getRemoteAddr());
+    }
+
+    @Test
+    public void testSamlValidationRedirectedByArtifactSourceId() throws Exception {
+        final String artifact = new SamlCompliantUniqueTicketIdGenerator("cas-node-2").getNewTicketId("ST");
+        final MockHttpServletRequest request = newSamlRequest(artifact);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, response, chain);
+        assertNull(chain.getRequest());
+        assertEquals(HttpServletResponse.SC_TEMPORARY_REDIRECT, response.getStatus());
+        assertEquals("cas-node-2", response.getHeader(TicketAffinityRoutingFilter.OWNER_HEADER));
+    }
+
+    @Test
+    public void testSamlValidationBodyReplayedWhenProcessedLocally() throws Exception {
+        final String artifact = new SamlCompliantUniqueTicketIdGenerator("cas-node-1").getNewTicketId("ST");
+        final MockHttpServletRequest request = newSamlRequest(artifact);
+        final MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        assertNotNull(chain.getRequest());
+        final String body = ((HttpServletRequest) chain.getRequest()).getReader().readLine();
+        assertEquals(new String(request.getContentAsByteArray(), "UTF-8"), body);
+    }
+
+    @Test
+    public void testForgedForwardedHeaderIgnored() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/proxy");
+        request.setServletPath("/proxy");
+        request.setQueryString("pgt=PGT-1-abcdef-cas-node-2&targetService=https%3A%2F%2Fapp.example.org");
+        request.addHeader(InternalRequestForwarder.FORWARDED_BY_HEADER, "cas-node-2");
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, response, chain);
+        assertNull(chain.getRequest());
+        assertEquals(HttpServletResponse.SC_TEMPORARY_REDIRECT, response.getStatus());
+    }
+
+    private static MockHttpServletRequest newSamlRequest(final String artifact) throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cas/samlValidate");
+        request.setServletPath("/samlValidate");
+        request.setQueryString("TARGET=https%3A%2F%2Fapp.example.org");
+        request.setContentType("text/xml");
+        request.setContent(("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<SOAP-ENV:Header/><SOAP-ENV:Body><samlp:Request xmlns:samlp=\"urn:oasis:names:tc:SAML:1.0:protocol\""
+                + " MajorVersion=\"1\" MinorVersion=\"1\" RequestID=\"_1\" IssueInstant=\"2002-06-19T17:03:44.022Z\">"
+                + "<samlp:AssertionArtifact>" + artifact + "</samlp:AssertionArtifact></samlp:Request>"
+                + "</SOAP-ENV:Body></SOAP-ENV:Envelope>").getBytes("UTF-8"));
+        return request;
+    }
+}
@@ -88,6 +88,18 @@ public final class TicketRegistryDecorator extends AbstractTicketRegistry {
         return this.ticketRegistry.deleteTicket(ticketId);
     }
 
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        final String userName = this.cache.get(ticketId);
+
+        if (userName != null) {
+            log.debug("Removing mapping ticket {} for user name {}", ticketId, userName);
+            this.cache.remove(userName);
+        }
+
+        return this.ticketRegistry.consumeTicket(ticketId);
+    }
+
     public Collection<Ticket> getTickets() {
         return this.ticketRegistry.getTickets();
     }
@@ -92,6 +92,21 @@ public final class EhCacheTicketRegistry extends AbstractDistributedTicketRegist
         return this.serviceTicketsCache.remove(ticketId) || this.ticketGrantingTicketsCache.remove(ticketId);
     }
     
+    /**
+     * Removes service tickets only if they are still mapped to the element read, which Ehcache does atomically.
+     */
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        if (StringUtils.isBlank(ticketId)) {
+            return null;
+        }
+        final Element element = this.serviceTicketsCache.get(ticketId);
+        if (element != null) {
+            return this.serviceTicketsCache.removeElement(element) ? (Ticket) element.getValue() : null;
+        }
+        return super.consumeTicket(ticketId);
+    }
+
     public Ticket getTicket(final String ticketId) {
         if (ticketId == null) {
             return null;
@@ -0,0 +1,270 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Ticket registry backed by <a href="http://www.hazelcast.com/">Hazelcast</a> distributed maps, which embeds a
+ * partitioned data grid in the CAS JVMs.
+ * <p>
+ * Unlike replicated caches, each ticket is owned by a single member of the cluster and copied to a configurable
+ * number of backup members, so memory consumed per CAS node is proportional to the total number of tickets divided
+ * by the number of nodes. TGTs and STs are kept in distinct maps so that each can be tuned independently in the
+ * Hazelcast configuration, e.g. with a near cache for the frequently read TGT map and a backup count for both:
+ * </p>
+ * <pre>
+ * &lt;map name="tickets-tgt"&gt;
+ *   &lt;backup-count&gt;1&lt;/backup-count&gt;
+ *   &lt;time-to-live-seconds&gt;28800&lt;/time-to-live-seconds&gt;
+ *   &lt;near-cache&gt;
+ *     &lt;max-idle-seconds&gt;60&lt;/max-idle-seconds&gt;
+ *     &lt;invalidate-on-change&gt;true&lt;/invalidate-on-change&gt;
+ *   &lt;/near-cache&gt;
+ * &lt;/map&gt;
+ * </pre>
+ * <p>
+ * Tickets are added with a time-to-live matching their type, after which the owning member evicts them. Updates
+ * are applied in place on the owning member and its backups by an entry processor that never resurrects a ticket
+ * that was concurrently deleted or expired. Maps should also be configured with a time-to-live matching the ticket
+ * type so that entries rewritten by updates remain subject to server-side expiry.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public final class HazelcastTicketRegistry extends AbstractDistributedTicketRegistry implements DisposableBean {
+
+    /** Hazelcast member or client through which the maps are accessed. */
+    @NotNull
+    private final HazelcastInstance hazelcastInstance;
+
+    /** Distributed map of TGTs. */
+    @NotNull
+    private final IMap<String, Ticket> ticketGrantingTickets;
+
+    /** Distributed map of STs. */
+    @NotNull
+    private final IMap<String, Ticket> serviceTickets;
+
+    /** TGT time to live in seconds. */
+    @Min(0)
+    private final int tgtTimeout;
+
+    /** ST time to live in seconds. */
+    @Min(0)
+    private final int stTimeout;
+
+    /** Flag indicating whether the Hazelcast instance is shut down with this registry. */
+    private boolean shutdownOnDestroy = true;
+
+
+    /**
+     * Creates a new registry that stores tickets in the given maps.
+     *
+     * @param instance Hazelcast instance.
+     * @param tgtMapName Name of the distributed map holding TGTs.
+     * @param stMapName Name of the distributed map holding STs.
+     * @param ticketGrantingTicketTimeOut TGT time to live in seconds.
+     * @param serviceTicketTimeOut ST time to live in seconds.
+     */
+    public HazelcastTicketRegistry(
+            final HazelcastInstance instance,
+            final String tgtMapName,
+            final String stMapName,
+            final int ticketGrantingTicketTimeOut,
+            final int serviceTicketTimeOut) {
+        this.hazelcastInstance = instance;
+        this.ticketGrantingTickets = instance.getMap(tgtMapName);
+        this.serviceTickets = instance.getMap(stMapName);
+        this.tgtTimeout = ticketGrantingTicketTimeOut;
+        this.stTimeout = serviceTicketTimeOut;
+    }
+
+
+    public void addTicket(final Ticket ticket) {
+        log.debug("Adding ticket {}", ticket);
+        getMap(ticket).set(ticket.getId(), ticket, getTimeout(ticket), TimeUnit.SECONDS);
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        Ticket ticket = this.serviceTickets.get(ticketId);
+        if (ticket == null) {
+            ticket = this.ticketGrantingTickets.get(ticketId);
+        }
+        return getProxiedTicketInstance(ticket);
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+        log.debug("Deleting ticket {}", ticketId);
+        return this.serviceTickets.remove(ticketId) != null || this.ticketGrantingTickets.remove(ticketId) != null;
+    }
+
+    /**
+     * Removes and returns a ticket in a single operation on the member owning it.
+     *
+     * @param ticketId Ticket to remove.
+     *
+     * @return Removed ticket, or null if no such ticket exists.
+     */
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        log.debug("Consuming ticket {}", ticketId);
+        final Ticket ticket = this.serviceTickets.remove(ticketId);
+        return ticket != null ? ticket : this.ticketGrantingTickets.remove(ticketId);
+    }
+
+    /**
+     * Gets all tickets in the cluster. This operation transfers every ticket to the calling member and should
+     * be reserved for periodic tasks such as the registry cleaner.
+     *
+     * @return Collection of all tickets stored in the cluster.
+     */
+    public Collection<Ticket> getTickets() {
+        final List<Ticket> tickets = new ArrayList<Ticket>();
+        for (final Ticket ticket : this.ticketGrantingTickets.values()) {
+            tickets.add(getProxiedTicketInstance(ticket));
+        }
+        for (final Ticket ticket : this.serviceTickets.values()) {
+            tickets.add(getProxiedTicketInstance(ticket));
+        }
+        return tickets;
+    }
+
+    /**
+     * @return Number of TGTs in the cluster.
+     */
+    @Override
+    public int sessionCount() {
+        return this.ticketGrantingTickets.size();
+    }
+
+    /**
+     * @return Number of STs in the cluster.
+     */
+    @Override
+    public int serviceTicketCount() {
+        return this.serviceTickets.size();
+    }
+
+    /**
+     * Sets whether the Hazelcast instance is shut down when this registry is destroyed.
+     *
+     * @param shutdown True to shut down the instance on destroy, false when the instance is managed elsewhere.
+     * Default is true.
+     */
+    public void setShutdownOnDestroy(final boolean shutdown) {
+        this.shutdownOnDestroy = shutdown;
+    }
+
+    public void destroy() throws Exception {
+        if (this.shutdownOnDestroy) {
+            this.hazelcastInstance.getLifecycleService().shutdown();
+        }
+    }
+
+    @Override
+    protected void updateTicket(final Ticket ticket) {
+        log.debug("Updating ticket {}", ticket);
+        final Object updated = getMap(ticket).executeOnKey(ticket.getId(), new UpdateTicketProcessor(ticket));
+        if (!Boolean.TRUE.equals(updated)) {
+            log.debug("Ticket {} no longer exists and was not updated.", ticket);
+        }
+    }
+
+    /**
+     * Tickets read from the grid are copies, so TGT state must be fetched from the grid on access.
+     *
+     * @return True.
+     */
+    @Override
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    private IMap<String, Ticket> getMap(final Ticket ticket) {
+        if (ticket instanceof TicketGrantingTicket) {
+            return this.ticketGrantingTickets;
+        } else if (ticket instanceof ServiceTicket) {
+            return this.serviceTickets;
+        }
+        throw new IllegalArgumentException("Invalid ticket type " + ticket);
+    }
+
+    private int getTimeout(final Ticket ticket) {
+        return ticket instanceof TicketGrantingTicket ? this.tgtTimeout : this.stTimeout;
+    }
+
+
+    /**
+     * Replaces the stored state of a ticket on the partition owner and its backups, provided the ticket still
+     * exists.
+     */
+    private static final class UpdateTicketProcessor
+            implements EntryProcessor<String, Ticket>, EntryBackupProcessor<String, Ticket> {
+
+        private static final long serialVersionUID = -4617436102894735128L;
+
+        /** Updated ticket state. */
+        private final Ticket ticket;
+
+        public UpdateTicketProcessor(final Ticket ticket) {
+            this.ticket = ticket;
+        }
+
+        public Object process(final Map.Entry<String, Ticket> entry) {
+            if (entry.getValue() == null) {
+                return Boolean.FALSE;
+            }
+            entry.setValue(this.ticket);
+            return Boolean.TRUE;
+        }
+
+        public EntryBackupProcessor<String, Ticket> getBackupProcessor() {
+            return this;
+        }
+
+        public void processBackup(final Map.Entry<String, Ticket> entry) {
+            process(entry);
+        }
+    }
+}
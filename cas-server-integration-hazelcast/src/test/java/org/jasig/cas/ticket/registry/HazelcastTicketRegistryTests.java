@@ -0,0 +1,131 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import com.hazelcast.config.ClasspathXmlConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link HazelcastTicketRegistry} running two cluster members in the test JVM.
+ *
+ * @since 3.5.2
+ */
+public class HazelcastTicketRegistryTests {
+
+    private HazelcastInstance member1;
+
+    private HazelcastInstance member2;
+
+    private HazelcastTicketRegistry registry1;
+
+    private HazelcastTicketRegistry registry2;
+
+    @Before
+    public void setUp() {
+        member1 = Hazelcast.newHazelcastInstance(new ClasspathXmlConfig("hazelcast-test.xml"));
+        member2 = Hazelcast.newHazelcastInstance(new ClasspathXmlConfig("hazelcast-test.xml"));
+        registry1 = new HazelcastTicketRegistry(member1, "tickets-tgt", "tickets-st", 36000, 1);
+        registry2 = new HazelcastTicketRegistry(member2, "tickets-tgt", "tickets-st", 36000, 1);
+    }
+
+    @After
+    public void tearDown() {
+        Hazelcast.shutdownAll();
+    }
+
+    @Test
+    public void testTicketVisibleOnAllMembers() {
+        registry1.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) registry2.getTicket("TGT-1");
+        assertNotNull(tgt);
+        assertEquals("TGT-1", tgt.getId());
+        assertEquals(1, registry1.sessionCount());
+        assertEquals(1, registry2.sessionCount());
+        assertTrue(registry2.deleteTicket("TGT-1"));
+        assertNull(registry1.getTicket("TGT-1"));
+    }
+
+    @Test
+    public void testUpdateAppliedOnOwner() {
+        registry1.addTicket(newTicketGrantingTicket("TGT-2"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) registry2.getTicket("TGT-2");
+        final ServiceTicket st = tgt.grantServiceTicket(
+                "ST-1", new SimpleWebApplicationServiceImpl("http://www.example.com"),
+                new NeverExpiresExpirationPolicy(), false);
+        registry2.addTicket(st);
+        assertEquals(1, registry1.getTicket("TGT-2").getCountOfUses());
+        assertEquals(1, registry1.serviceTicketCount());
+    }
+
+    @Test
+    public void testUpdateDoesNotResurrectDeletedTicket() {
+        registry1.addTicket(newTicketGrantingTicket("TGT-3"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) registry2.getTicket("TGT-3");
+        registry1.deleteTicket("TGT-3");
+        tgt.expire();
+        assertNull(registry1.getTicket("TGT-3"));
+    }
+
+    @Test
+    public void testServiceTicketExpiresOnServer() throws Exception {
+        registry1.addTicket(newTicketGrantingTicket("TGT-4"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) registry1.getTicket("TGT-4");
+        registry1.addTicket(tgt.grantServiceTicket(
+                "ST-2", new SimpleWebApplicationServiceImpl("http://www.example.com"),
+                new NeverExpiresExpirationPolicy(), false));
+        assertNotNull(registry2.getTicket("ST-2"));
+        // Sleep a little longer than the ST time to live
+        Thread.sleep(2100);
+        assertNull(registry2.getTicket("ST-2"));
+    }
+
+    @Test
+    public void testBackupSurvivesMemberLoss() {
+        final int count = 50;
+        for (int i = 0; i < count; i++) {
+            registry1.addTicket(newTicketGrantingTicket("TGT-backup-" + i));
+        }
+        member1.getLifecycleService().shutdown();
+        for (int i = 0; i < count; i++) {
+            assertNotNull(registry2.getTicket("TGT-backup-" + i));
+        }
+        assertEquals(count, registry2.sessionCount());
+    }
+
+    private static TicketGrantingTicket newTicketGrantingTicket(final String id) {
+        return new TicketGrantingTicketImpl(
+                id, new ImmutableAuthentication(new SimplePrincipal("test")), new NeverExpiresExpirationPolicy());
+    }
+}
@@ -19,20 +19,61 @@
 package org.jasig.cas.ticket.registry;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
 import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.Ticket;
 import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.support.MemCacheReplicaLocator;
+import org.jasig.cas.ticket.registry.support.MemCacheTicketIndex;
 import org.springframework.beans.factory.DisposableBean;
 
 /**
  * Key-value ticket registry implementation that stores tickets in memcached keyed on the ticket ID.
+ * <p>
+ * Memcached provides no means of enumerating or counting stored items, so by default this registry reports
+ * unknown session counts and does not support {@link #getTickets()}. Two optional facilities remedy that:
+ * <ul>
+ * <li>{@link #setTrackTicketCounts(boolean) Ticket counters} are memcached counters that are incremented on
+ * ticket addition and decremented on deletion; reading them costs a single round trip.</li>
+ * <li>{@link #setIndexShards(int) The ticket index} is a sharded set of ticket IDs that makes ticket enumeration
+ * possible. Since the index records when memcached will expire each ticket, it also accounts for tickets that
+ * expire by TTL, and corrects the counters accordingly when both facilities are enabled.</li>
+ * </ul>
+ * Counters add round trips to ticket addition and deletion, while index changes are buffered and written in
+ * batches by a background thread. Counts and the index are shared by all CAS nodes using the same memcached pool.
+ * </p>
+ * <p>
+ * Memcached does not replicate data, so the failure of a single node loses every ticket it holds. The registry
+ * can mitigate that by {@link #setReplicaCount(int) writing copies} of each ticket to distinct nodes and reading
+ * from the first available one, and by keeping tickets in a local {@link #setFallbackRegistry(TicketRegistry)
+ * fallback registry} while no replica of a ticket is reachable. Tickets held in the fallback registry are visible
+ * to this CAS node only; {@link #reconcile()} should be invoked periodically to move them back to memcached once
+ * the nodes return.
+ * </p>
+ * <p>
+ * A replica on an unavailable node cannot be deleted, and would make a deleted ticket reappear once its node
+ * returns. Deleting a ticket therefore overwrites its reachable replicas with a tombstone, which hides the stale
+ * replica from every CAS node, and queues the delete of the unreachable replica for {@link #reconcile()}.
+ * </p>
  *
  * @author Scott Battaglia
  * @author Marvin S. Addison
@@ -41,6 +82,21 @@ import org.springframework.beans.factory.DisposableBean;
  */
 public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegistry implements DisposableBean {
 
+    /** Memcached key of the TGT counter. */
+    private static final String TGT_COUNTER_KEY = "cas:count:tgt";
+
+    /** Memcached key of the ST counter. */
+    private static final String ST_COUNTER_KEY = "cas:count:st";
+
+    /** Memcached key prefix of TGT index shards. */
+    private static final String TGT_INDEX_PREFIX = "cas:index:tgt:";
+
+    /** Memcached key prefix of ST index shards. */
+    private static final String ST_INDEX_PREFIX = "cas:index:st:";
+
+    /** Value replacing the replicas of a deleted ticket while some of its replicas could not be deleted. */
+    private static final String TOMBSTONE = "cas:deleted";
+
     /** Memcached client */
     @NotNull
     private final MemcachedClient client;
@@ -57,6 +113,35 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
     @Min(0)
     private final int stTimeout;
 
+    /** Flag indicating whether TGT and ST counts are maintained in memcached counters. */
+    private boolean trackTicketCounts;
+
+    /** Index of TGT IDs; null if indexing is disabled. */
+    private MemCacheTicketIndex tgtIndex;
+
+    /** Index of ST IDs; null if indexing is disabled. */
+    private MemCacheTicketIndex stIndex;
+
+    /** Milliseconds between writes of pending index changes. */
+    private volatile long indexFlushInterval = 1000;
+
+    /** Thread writing pending index changes; null if indexing is disabled. */
+    private Thread indexFlusher;
+
+    /** Computes the keys of ticket replicas. */
+    @NotNull
+    private MemCacheReplicaLocator replicaLocator;
+
+    /** Registry holding tickets while none of their replicas is reachable; null to disable degraded mode. */
+    private TicketRegistry fallbackRegistry;
+
+    /** IDs of tickets added to the fallback registry that are not yet counted or indexed. */
+    private final Set<String> uncountedFallbackIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Keys of replicas that could not be deleted since their node was unavailable, to when they expire. */
+    private final ConcurrentMap<String, Long> deferredDeletes = new ConcurrentHashMap<String, Long>();
+
 
     /**
      * Creates a new instance that stores tickets in the given memcached hosts.
@@ -73,6 +158,7 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
         }
         this.tgtTimeout = ticketGrantingTicketTimeOut;
         this.stTimeout = serviceTicketTimeOut;
+        this.replicaLocator = new MemCacheReplicaLocator(this.client, 1);
     }
 
     /**
@@ -101,12 +187,17 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
         this.tgtTimeout = ticketGrantingTicketTimeOut;
         this.stTimeout = serviceTicketTimeOut;
         this.client = client;
+        this.replicaLocator = new MemCacheReplicaLocator(this.client, 1);
     }
 
     protected void updateTicket(final Ticket ticket) {
         log.debug("Updating ticket {}", ticket);
         try {
-            if (!this.client.replace(ticket.getId(), getTimeout(ticket), ticket).get()) {
+            final int stored = store(Operation.REPLACE, ticket);
+            if (stored < 0 && this.fallbackRegistry != null) {
+                log.warn("No replica of {} is reachable. Keeping updated ticket in fallback registry.", ticket);
+                this.fallbackRegistry.addTicket(ticket);
+            } else if (stored < 1) {
                 log.error("Failed updating {}", ticket);
             }
         } catch (final InterruptedException e) {
@@ -120,8 +211,15 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
     public void addTicket(final Ticket ticket) {
         log.debug("Adding ticket {}", ticket);
         try {
-            if (!this.client.add(ticket.getId(), getTimeout(ticket), ticket).get()) {
+            final int stored = store(Operation.ADD, ticket);
+            if (stored < 0 && this.fallbackRegistry != null) {
+                log.warn("No replica of {} is reachable. Adding ticket to fallback registry.", ticket);
+                this.fallbackRegistry.addTicket(ticket);
+                this.uncountedFallbackIds.add(ticket.getId());
+            } else if (stored < 1) {
                 log.error("Failed adding {}", ticket);
+            } else {
+                afterAdd(ticket);
             }
         } catch (final InterruptedException e) {
             log.warn("Interrupted while waiting for response to async add operation for ticket {}. " +
@@ -133,36 +231,315 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 
     public boolean deleteTicket(final String ticketId) {
         log.debug("Deleting ticket {}", ticketId);
+        final boolean deletedFromFallback =
+                this.fallbackRegistry != null && this.fallbackRegistry.deleteTicket(ticketId);
+        if (deletedFromFallback) {
+            this.uncountedFallbackIds.remove(ticketId);
+        }
         try {
-            return this.client.delete(ticketId).get();
+            // Ticket type determines which counter and index must be updated
+            final Object ticket = isTracking() ? getFromCache(ticketId) : null;
+            final List<String> keys = this.replicaLocator.getKeys(ticketId);
+            final List<String> skipped = new ArrayList<String>();
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (final String key : keys) {
+                if (!checkAvailability() || this.replicaLocator.isAvailable(key)) {
+                    futures.add(this.client.delete(key));
+                } else {
+                    skipped.add(key);
+                }
+            }
+            boolean deleted = false;
+            for (final Future<Boolean> future : futures) {
+                try {
+                    deleted |= future.get();
+                } catch (final ExecutionException e) {
+                    log.error("Failed deleting replica of {}", ticketId, e);
+                } catch (final RuntimeException e) {
+                    log.error("Failed deleting replica of {}", ticketId, e);
+                }
+            }
+            if (!skipped.isEmpty()) {
+                bury(keys, skipped, Math.max(this.tgtTimeout, this.stTimeout));
+            }
+            if (deleted && ticket instanceof Ticket) {
+                afterDelete((Ticket) ticket);
+            }
+            return deleted || deletedFromFallback;
         } catch (final Exception e) {
             log.error("Failed deleting {}", ticketId, e);
         }
-        return false;
+        return deletedFromFallback;
     }
 
     public Ticket getTicket(final String ticketId) {
-        try {
-            final Ticket t = (Ticket) this.client.get(ticketId);
+        if (this.fallbackRegistry != null) {
+            final Ticket t = this.fallbackRegistry.getTicket(ticketId);
             if (t != null) {
-                return getProxiedTicketInstance(t);
+                return t;
+            }
+        }
+        final Ticket t = (Ticket) getFromCache(ticketId);
+        return t != null ? getProxiedTicketInstance(t) : null;
+    }
+
+    /**
+     * With a single replica and no fallback registry, gets the ticket and deletes it; of concurrent callers only
+     * the one whose delete succeeds gets the ticket. Otherwise replaces the first reachable replica holding the
+     * ticket with a tombstone by an optimistic gets/cas, then buries the remaining replicas. Of concurrent callers
+     * only the one whose cas succeeds gets the ticket; the others find the tombstone. Replicas on unavailable nodes
+     * are deleted once the nodes are reachable again, and the tombstones hide them from lookups until then, so that
+     * a consumed ticket cannot be read back. Tombstones live as long as the ticket they replace.
+     *
+     * @param ticketId Ticket to remove.
+     *
+     * @return Removed ticket, or null if no such ticket exists or another caller consumed it.
+     */
+    @Override
+    public Ticket consumeTicket(final String ticketId) {
+        log.debug("Consuming ticket {}", ticketId);
+        if (this.fallbackRegistry != null) {
+            final Ticket t = this.fallbackRegistry.consumeTicket(ticketId);
+            if (t != null) {
+                return t;
+            }
+        }
+        final List<String> keys = this.replicaLocator.getKeys(ticketId);
+        if (!checkAvailability()) {
+            return consumeReplica(keys.get(0));
+        }
+        final List<String> skipped = new ArrayList<String>();
+        for (final String key : keys) {
+            if (!this.replicaLocator.isAvailable(key)) {
+                skipped.add(key);
+            }
+        }
+        for (final String key : keys) {
+            if (skipped.contains(key) || isDeferredDelete(key)) {
+                continue;
+            }
+            try {
+                final CASValue<Object> current = this.client.gets(key);
+                if (current == null) {
+                    continue;
+                }
+                if (TOMBSTONE.equals(current.getValue())) {
+                    return null;
+                }
+                final Ticket ticket = (Ticket) current.getValue();
+                final int timeout = ticket instanceof TicketGrantingTicket ? this.tgtTimeout : this.stTimeout;
+                if (this.client.cas(key, current.getCas(), timeout, TOMBSTONE, this.client.getTranscoder())
+                        != CASResponse.OK) {
+                    return null;
+                }
+                bury(keys, skipped, timeout);
+                if (isTracking()) {
+                    afterDelete(ticket);
+                }
+                return ticket;
+            } catch (final Exception e) {
+                log.error("Failed consuming {}", key, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the only replica of a ticket and deletes it.
+     *
+     * @param key Key of the replica.
+     *
+     * @return Removed ticket, or null if no such ticket exists or another caller deleted it first.
+     */
+    private Ticket consumeReplica(final String key) {
+        try {
+            final Object value = this.client.get(key);
+            if (!(value instanceof Ticket) || !this.client.delete(key).get()) {
+                return null;
             }
+            final Ticket ticket = (Ticket) value;
+            if (isTracking()) {
+                afterDelete(ticket);
+            }
+            return ticket;
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted while consuming {}.", key);
+            Thread.currentThread().interrupt();
         } catch (final Exception e) {
-            log.error("Failed fetching {} ", ticketId, e);
+            log.error("Failed consuming {}", key, e);
         }
         return null;
     }
 
     /**
-     * This operation is not supported.
+     * Deletes replicas whose delete was deferred since their node was unavailable, and moves tickets from the
+     * fallback registry back to memcached once their replicas are reachable again. Expired tickets are discarded.
+     * This method should be invoked periodically, e.g. by a Quartz trigger, when replicas or a fallback registry
+     * are configured.
+     *
+     * @return Number of tickets moved to memcached.
+     */
+    public int reconcile() {
+        retryDeferredDeletes();
+        if (this.fallbackRegistry == null) {
+            return 0;
+        }
+        int moved = 0;
+        for (final Ticket ticket : this.fallbackRegistry.getTickets()) {
+            if (ticket.isExpired()) {
+                this.fallbackRegistry.deleteTicket(ticket.getId());
+                this.uncountedFallbackIds.remove(ticket.getId());
+                continue;
+            }
+            try {
+                final int stored = store(Operation.SET, ticket);
+                if (stored > 0) {
+                    // Tickets that were updated while in the fallback registry are already counted
+                    if (this.uncountedFallbackIds.remove(ticket.getId())) {
+                        afterAdd(ticket);
+                    }
+                    this.fallbackRegistry.deleteTicket(ticket.getId());
+                    moved++;
+                }
+            } catch (final InterruptedException e) {
+                log.warn("Interrupted while reconciling fallback registry.");
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (moved > 0) {
+            log.info("Moved {} tickets from fallback registry to memcached.", moved);
+        }
+        return moved;
+    }
+
+    /**
+     * Gets all tickets known to the ticket index, as well as the tickets held in the fallback registry.
      *
-     * @throws UnsupportedOperationException if you try and call this operation.
+     * @return Collection of unexpired tickets.
+     *
+     * @throws UnsupportedOperationException if the ticket index is disabled.
      */
     public Collection<Ticket> getTickets() {
-        throw new UnsupportedOperationException("GetTickets not supported.");
+        if (this.tgtIndex == null) {
+            throw new UnsupportedOperationException("GetTickets not supported without ticket index.");
+        }
+        final Set<String> ids = new HashSet<String>();
+        collect(this.tgtIndex, TGT_COUNTER_KEY, ids);
+        collect(this.stIndex, ST_COUNTER_KEY, ids);
+        final List<Ticket> tickets = new ArrayList<Ticket>(ids.size());
+        if (this.fallbackRegistry != null) {
+            // Fallback tickets take precedence, as they do in getTicket()
+            for (final Ticket ticket : this.fallbackRegistry.getTickets()) {
+                tickets.add(ticket);
+                ids.remove(ticket.getId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return tickets;
+        }
+        final Map<String, Object> values = this.client.getBulk(ids);
+        for (final Object value : values.values()) {
+            if (value instanceof Ticket) {
+                tickets.add(getProxiedTicketInstance((Ticket) value));
+            }
+        }
+        return tickets;
+    }
+
+    /**
+     * Gets the number of TGTs from the TGT counter or index if either is enabled.
+     *
+     * @return Number of TGTs or {@link Integer#MIN_VALUE} if unknown.
+     */
+    @Override
+    public int sessionCount() {
+        if (!isTracking()) {
+            return super.sessionCount();
+        }
+        return count(this.tgtIndex, TGT_COUNTER_KEY);
+    }
+
+    /**
+     * Gets the number of STs from the ST counter or index if either is enabled.
+     *
+     * @return Number of STs or {@link Integer#MIN_VALUE} if unknown.
+     */
+    @Override
+    public int serviceTicketCount() {
+        if (!isTracking()) {
+            return super.serviceTicketCount();
+        }
+        return count(this.stIndex, ST_COUNTER_KEY);
+    }
+
+    /**
+     * Enables maintenance of TGT and ST counts in memcached counters, which makes session counts available
+     * to {@link org.jasig.cas.monitor.SessionMonitor} at the cost of one additional round trip per ticket
+     * addition and two per deletion. Unless the ticket index is also enabled, counts do not account for
+     * tickets that memcached expires by TTL and thus tend to overestimate.
+     *
+     * @param track True to maintain ticket counters, false otherwise. Default is false.
+     */
+    public void setTrackTicketCounts(final boolean track) {
+        this.trackTicketCounts = track;
+    }
+
+    /**
+     * Enables the ticket index, which supports {@link #getTickets()} and exact ticket counts.
+     *
+     * @param shards Number of memcached items over which each of the TGT and ST indices is spread.
+     * Zero or negative values disable the index, which is the default.
+     * @see MemCacheTicketIndex#DEFAULT_MAX_SHARD_ENTRIES
+     */
+    public void setIndexShards(final int shards) {
+        if (shards > 0) {
+            this.tgtIndex = new MemCacheTicketIndex(this.client, TGT_INDEX_PREFIX, shards, this.tgtTimeout);
+            this.stIndex = new MemCacheTicketIndex(this.client, ST_INDEX_PREFIX, shards, this.stTimeout);
+            startIndexFlusher();
+        } else {
+            this.tgtIndex = null;
+            this.stIndex = null;
+        }
+    }
+
+    /**
+     * Sets the number of copies of each ticket written to distinct memcached nodes. Reads are served by the
+     * first replica whose node is available, so a ticket survives the failure of up to
+     * <code>replicaCount - 1</code> nodes at the cost of additional network traffic and memcached memory.
+     *
+     * @param replicaCount Number of copies of each ticket. Default is 1, i.e. no replication.
+     */
+    public void setReplicaCount(final int replicaCount) {
+        this.replicaLocator = new MemCacheReplicaLocator(this.client, replicaCount);
+    }
+
+    /**
+     * Sets a local registry, typically a {@link DefaultTicketRegistry}, that holds tickets while none of their
+     * memcached replicas is reachable, so that sessions survive a memcached outage on this CAS node.
+     *
+     * @param registry Fallback registry. Default is none, in which case writes fail while replicas are down.
+     * @see #reconcile()
+     */
+    public void setFallbackRegistry(final TicketRegistry registry) {
+        this.fallbackRegistry = registry;
+    }
+
+    /**
+     * Sets the interval at which index changes buffered by ticket additions and deletions are written to memcached.
+     *
+     * @param interval Interval in milliseconds. Default is 1000.
+     */
+    public void setIndexFlushInterval(final long interval) {
+        this.indexFlushInterval = interval;
     }
 
     public void destroy() throws Exception {
+        if (this.indexFlusher != null) {
+            this.indexFlusher.interrupt();
+            this.indexFlusher.join();
+            flushIndex();
+        }
         this.client.shutdown();
     }
 
@@ -177,6 +554,255 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
         return true;
     }
 
+    /**
+     * Writes all replicas of the given ticket whose nodes are available.
+     *
+     * @param operation Memcached storage operation.
+     * @param ticket Ticket to store.
+     *
+     * @return Number of replicas successfully written, or -1 if no replica could be reached.
+     *
+     * @throws InterruptedException if interrupted while waiting for a response.
+     */
+    private int store(final Operation operation, final Ticket ticket) throws InterruptedException {
+        final boolean checkAvailability = checkAvailability();
+        final int timeout = getTimeout(ticket);
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (final String key : this.replicaLocator.getKeys(ticket.getId())) {
+            if (checkAvailability && !this.replicaLocator.isAvailable(key)) {
+                log.debug("Skipping replica {} since its node is unavailable.", key);
+                continue;
+            }
+            switch (operation) {
+                case ADD:
+                    futures.add(this.client.add(key, timeout, ticket));
+                    break;
+                case REPLACE:
+                    futures.add(this.client.replace(key, timeout, ticket));
+                    break;
+                default:
+                    futures.add(this.client.set(key, timeout, ticket));
+            }
+        }
+        int reachable = 0;
+        int stored = 0;
+        for (final Future<Boolean> future : futures) {
+            try {
+                if (future.get()) {
+                    stored++;
+                }
+                reachable++;
+            } catch (final ExecutionException e) {
+                log.debug("Failed writing replica of {}", ticket, e);
+            } catch (final RuntimeException e) {
+                // Cancellation or operation timeout on an unreachable node
+                log.debug("Failed writing replica of {}", ticket, e);
+            }
+        }
+        return reachable > 0 ? stored : -1;
+    }
+
+    /**
+     * Reads the ticket with the given ID from the first available replica. When there are several, all of them are
+     * read in one round trip, so that a tombstone on any replica hides a stale copy on another.
+     *
+     * @param ticketId Ticket ID.
+     *
+     * @return Ticket or null if no available replica holds the ticket, or the ticket was deleted.
+     */
+    private Object getFromCache(final String ticketId) {
+        final List<String> keys = new ArrayList<String>();
+        for (final String key : this.replicaLocator.getKeys(ticketId)) {
+            if (!checkAvailability() || (this.replicaLocator.isAvailable(key) && !isDeferredDelete(key))) {
+                keys.add(key);
+            }
+        }
+        if (keys.size() > 1) {
+            try {
+                final Map<String, Object> values = this.client.getBulk(keys);
+                if (values.containsValue(TOMBSTONE)) {
+                    return null;
+                }
+                for (final String key : keys) {
+                    if (values.get(key) != null) {
+                        return values.get(key);
+                    }
+                }
+                return null;
+            } catch (final Exception e) {
+                log.warn("Failed fetching replicas of {} at once; fetching them one by one.", ticketId, e);
+            }
+        }
+        for (final String key : keys) {
+            try {
+                final Object t = this.client.get(key);
+                if (TOMBSTONE.equals(t)) {
+                    return null;
+                }
+                if (t != null) {
+                    return t;
+                }
+            } catch (final Exception e) {
+                log.error("Failed fetching {} ", key, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the reachable replicas of a deleted ticket with tombstones, and defers the delete of the others.
+     *
+     * @param keys Keys of all replicas of the ticket.
+     * @param skipped Keys of the replicas on unavailable nodes.
+     * @param timeout Seconds until the replicas expire.
+     */
+    private void bury(final List<String> keys, final List<String> skipped, final int timeout) {
+        final long expiresAt = timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : Long.MAX_VALUE;
+        for (final String key : skipped) {
+            log.debug("Deferring delete of replica {} since its node is unavailable.", key);
+            this.deferredDeletes.put(key, expiresAt);
+        }
+        for (final String key : keys) {
+            if (!skipped.contains(key)) {
+                this.client.set(key, timeout, TOMBSTONE);
+            }
+        }
+    }
+
+    private boolean isDeferredDelete(final String key) {
+        return !this.deferredDeletes.isEmpty() && this.deferredDeletes.containsKey(key);
+    }
+
+    private void retryDeferredDeletes() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Long>> it = this.deferredDeletes.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() <= now) {
+                // Memcached has expired the replica by now
+                it.remove();
+            } else if (this.replicaLocator.isAvailable(entry.getKey())) {
+                try {
+                    this.client.delete(entry.getKey()).get();
+                    it.remove();
+                } catch (final InterruptedException e) {
+                    log.warn("Interrupted while deleting replica {}.", entry.getKey());
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (final Exception e) {
+                    log.debug("Failed deleting replica {}; will retry.", entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Node availability is only checked when there is an alternative to an unavailable node.
+     */
+    private boolean checkAvailability() {
+        return this.fallbackRegistry != null || this.replicaLocator.getReplicas() > 1;
+    }
+
+    private boolean isTracking() {
+        return this.trackTicketCounts || this.tgtIndex != null;
+    }
+
+    private void afterAdd(final Ticket ticket) {
+        if (!isTracking()) {
+            return;
+        }
+        if (this.trackTicketCounts) {
+            this.client.incr(ticket instanceof TicketGrantingTicket ? TGT_COUNTER_KEY : ST_COUNTER_KEY, 1, 1);
+        }
+        index(ticket);
+    }
+
+    private void index(final Ticket ticket) {
+        final MemCacheTicketIndex index = ticket instanceof TicketGrantingTicket ? this.tgtIndex : this.stIndex;
+        if (index != null) {
+            final int timeout = getTimeout(ticket);
+            final long expiresAt = timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : Long.MAX_VALUE;
+            index.add(ticket.getId(), expiresAt);
+        }
+    }
+
+    private void afterDelete(final Ticket ticket) {
+        final String counterKey = ticket instanceof TicketGrantingTicket ? TGT_COUNTER_KEY : ST_COUNTER_KEY;
+        decrement(counterKey, 1);
+        final MemCacheTicketIndex index = ticket instanceof TicketGrantingTicket ? this.tgtIndex : this.stIndex;
+        if (index != null) {
+            index.remove(ticket.getId());
+        }
+    }
+
+    private synchronized void startIndexFlusher() {
+        if (this.indexFlusher != null) {
+            return;
+        }
+        this.indexFlusher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(indexFlushInterval);
+                        flushIndex();
+                    }
+                } catch (final InterruptedException e) {
+                    log.debug("Index flusher stopped.");
+                }
+            }
+        }, "MemCacheTicketRegistry-indexFlusher");
+        this.indexFlusher.setDaemon(true);
+        this.indexFlusher.start();
+    }
+
+    /**
+     * Writes pending index changes, and corrects the counters for the expired tickets pruned along the way.
+     */
+    private void flushIndex() {
+        final MemCacheTicketIndex tgts = this.tgtIndex;
+        final MemCacheTicketIndex sts = this.stIndex;
+        if (tgts == null || sts == null) {
+            return;
+        }
+        try {
+            decrement(TGT_COUNTER_KEY, tgts.flush());
+            decrement(ST_COUNTER_KEY, sts.flush());
+        } catch (final RuntimeException e) {
+            log.error("Failed writing index changes", e);
+        }
+    }
+
+    /**
+     * Collects IDs from the given index and corrects the associated counter for tickets expired by memcached.
+     */
+    private void collect(final MemCacheTicketIndex index, final String counterKey, final Collection<String> ids) {
+        decrement(counterKey, index.collect(ids));
+    }
+
+    private int count(final MemCacheTicketIndex index, final String counterKey) {
+        try {
+            if (this.trackTicketCounts) {
+                final long value = this.client.incr(counterKey, 0, 0);
+                if (value >= 0) {
+                    return (int) Math.min(value, Integer.MAX_VALUE);
+                }
+            } else {
+                final Set<String> ids = new HashSet<String>();
+                collect(index, counterKey, ids);
+                return ids.size();
+            }
+        } catch (final Exception e) {
+            log.error("Failed reading ticket count from {}", counterKey, e);
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private void decrement(final String counterKey, final int by) {
+        if (this.trackTicketCounts && by > 0) {
+            this.client.decr(counterKey, by, 0);
+        }
+    }
+
     private int getTimeout(final Ticket t) {
         if (t instanceof TicketGrantingTicket) {
             return this.tgtTimeout;
@@ -185,4 +811,9 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
         }
         throw new IllegalArgumentException("Invalid ticket type");
     }
+
+    /** Memcached storage operations used to write ticket replicas. */
+    private enum Operation {
+        ADD, REPLACE, SET
+    }
 }
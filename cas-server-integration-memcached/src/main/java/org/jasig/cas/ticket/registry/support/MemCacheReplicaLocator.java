@@ -0,0 +1,131 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.NodeLocator;
+
+/**
+ * Computes the memcached keys under which copies of a ticket are stored.
+ * <p>
+ * The first replica is always stored under the ticket ID itself. Additional replicas are stored under derived keys
+ * of the form <code>ID~n</code>, where suffixes are chosen such that each replica key is owned by a distinct
+ * memcached node according to the client's node locator. With a consistent hashing locator (e.g. ketama) the
+ * derived keys thus land on successor nodes, and every CAS node computes the same keys as long as all nodes are
+ * configured with the same memcached server list. Fewer keys than requested are produced when the pool contains
+ * fewer nodes than replicas.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public class MemCacheReplicaLocator {
+
+    /** Separator between ticket ID and replica number in replica keys. */
+    public static final char REPLICA_SEPARATOR = '~';
+
+    /** Number of candidate suffixes probed per replica when searching for a distinct node. */
+    private static final int MAX_PROBES_PER_REPLICA = 8;
+
+    /** Memcached client. */
+    private final MemcachedClient client;
+
+    /** Desired number of copies of each ticket. */
+    private final int replicas;
+
+    /** Read-only view of the client's node locator; nodes of the view reflect live node state. */
+    private volatile NodeLocator locator;
+
+
+    /**
+     * Creates a new replica locator.
+     *
+     * @param client Memcached client.
+     * @param replicas Desired number of copies of each ticket; must be positive.
+     */
+    public MemCacheReplicaLocator(final MemcachedClient client, final int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Number of replicas must be positive.");
+        }
+        this.client = client;
+        this.replicas = replicas;
+    }
+
+
+    /**
+     * @return Desired number of copies of each ticket.
+     */
+    public int getReplicas() {
+        return this.replicas;
+    }
+
+
+    /**
+     * Gets the keys under which copies of the given ticket are stored, in order of preference.
+     *
+     * @param ticketId Ticket ID.
+     *
+     * @return List of one or more memcached keys, the first of which is the ticket ID.
+     */
+    public List<String> getKeys(final String ticketId) {
+        if (this.replicas == 1) {
+            return Collections.singletonList(ticketId);
+        }
+        final NodeLocator nodeLocator = getLocator();
+        final List<String> keys = new ArrayList<String>(this.replicas);
+        final Set<SocketAddress> owners = new HashSet<SocketAddress>();
+        keys.add(ticketId);
+        owners.add(nodeLocator.getPrimary(ticketId).getSocketAddress());
+        final int maxSuffix = this.replicas * MAX_PROBES_PER_REPLICA;
+        for (int i = 1; i < maxSuffix && keys.size() < this.replicas; i++) {
+            final String key = ticketId + REPLICA_SEPARATOR + i;
+            if (owners.add(nodeLocator.getPrimary(key).getSocketAddress())) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+
+    /**
+     * Determines whether the memcached node that owns the given key is currently connected.
+     *
+     * @param key Memcached key.
+     *
+     * @return True if the owning node is active, false otherwise.
+     */
+    public boolean isAvailable(final String key) {
+        return getLocator().getPrimary(key).isActive();
+    }
+
+
+    private NodeLocator getLocator() {
+        // Obtaining the read-only locator copies the hash continuum, so do it once
+        if (this.locator == null) {
+            this.locator = this.client.getNodeLocator();
+        }
+        return this.locator;
+    }
+}
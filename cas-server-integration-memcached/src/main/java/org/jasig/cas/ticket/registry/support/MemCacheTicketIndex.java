@@ -0,0 +1,342 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import org.jasig.cas.ticket.Ticket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sharded set of ticket IDs stored in memcached alongside the tickets themselves.
+ * <p>
+ * Each shard is a single memcached item holding a map of ticket ID to the time, in milliseconds since the epoch,
+ * at which memcached will evict the ticket. {@link #add(String, long)} and {@link #remove(String)} only record
+ * the change in memory; {@link #flush()} writes the pending changes with one optimistic gets/cas loop per shard,
+ * so that index maintenance stays off the request thread and several CAS nodes may maintain the same index
+ * concurrently.
+ * </p>
+ * <p>
+ * A ticket whose TTL is restarted by an update outlives the expiration time recorded for it. Entries whose
+ * expiration time has passed are therefore looked up in memcached before they are pruned: entries of tickets that
+ * still exist are given a new expiration time one TTL ahead, and only the others are pruned, which provides an
+ * estimate of the tickets memcached has silently expired.
+ * </p>
+ * <p>
+ * Memcached limits the size of an item to 1MB by default, so each shard holds at most
+ * {@link #setMaxShardEntries(int) a bounded number} of IDs. Additions to a full shard are dropped with a warning,
+ * in which case the number of shards should be raised.
+ * </p>
+ *
+ * @since 3.5.2
+ */
+public class MemCacheTicketIndex {
+
+    /** Default maximum number of IDs per shard, which keeps shards well below the 1MB memcached item limit. */
+    public static final int DEFAULT_MAX_SHARD_ENTRIES = 5000;
+
+    /** Maximum number of gets/cas round trips attempted for a single shard update. */
+    private static final int MAX_CAS_ATTEMPTS = 16;
+
+    /** Logger instance. */
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Memcached client. */
+    private final MemcachedClient client;
+
+    /** Prefix of the memcached keys holding shards of this index. */
+    private final String keyPrefix;
+
+    /** Number of shards. */
+    private final int shards;
+
+    /** Memcached TTL of the indexed tickets in milliseconds; zero if they never expire. */
+    private final long ttl;
+
+    /** Maximum number of IDs per shard. */
+    private int maxShardEntries = DEFAULT_MAX_SHARD_ENTRIES;
+
+    /** Changes not yet written, keyed on ticket ID; null values denote removals. Guarded by itself. */
+    private Map<String, Long> pending = new LinkedHashMap<String, Long>();
+
+
+    /**
+     * Creates a new index.
+     *
+     * @param client Memcached client.
+     * @param keyPrefix Prefix of memcached keys holding index shards; the shard number is appended to it.
+     * @param shards Number of shards; must be positive.
+     * @param ttl Memcached TTL of the indexed tickets in seconds; zero if they never expire.
+     */
+    public MemCacheTicketIndex(final MemcachedClient client, final String keyPrefix, final int shards, final int ttl) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of index shards must be positive.");
+        }
+        this.client = client;
+        this.keyPrefix = keyPrefix;
+        this.shards = shards;
+        this.ttl = ttl * 1000L;
+    }
+
+
+    /**
+     * Sets the maximum number of IDs held by a single shard.
+     *
+     * @param max Maximum number of IDs per shard. Default is {@value #DEFAULT_MAX_SHARD_ENTRIES}.
+     */
+    public void setMaxShardEntries(final int max) {
+        this.maxShardEntries = max;
+    }
+
+
+    /**
+     * Records the addition of a ticket ID to the index; the change is written by the next {@link #flush()}.
+     *
+     * @param ticketId Ticket ID.
+     * @param expiresAt Time in milliseconds since the epoch when memcached will expire the ticket.
+     */
+    public void add(final String ticketId, final long expiresAt) {
+        synchronized (this) {
+            this.pending.put(ticketId, expiresAt);
+        }
+    }
+
+
+    /**
+     * Records the removal of a ticket ID from the index; the change is written by the next {@link #flush()}.
+     *
+     * @param ticketId Ticket ID.
+     */
+    public void remove(final String ticketId) {
+        synchronized (this) {
+            this.pending.put(ticketId, null);
+        }
+    }
+
+
+    /**
+     * Writes all pending changes, with a single update per affected shard.
+     *
+     * @return Number of entries of expired tickets pruned from the updated shards.
+     */
+    public int flush() {
+        final Map<String, Long> changes;
+        synchronized (this) {
+            if (this.pending.isEmpty()) {
+                return 0;
+            }
+            changes = this.pending;
+            this.pending = new LinkedHashMap<String, Long>();
+        }
+        final Map<String, Map<String, Long>> byShard = new HashMap<String, Map<String, Long>>();
+        for (final Map.Entry<String, Long> change : changes.entrySet()) {
+            final String key = shardKey(change.getKey());
+            Map<String, Long> shardChanges = byShard.get(key);
+            if (shardChanges == null) {
+                shardChanges = new HashMap<String, Long>();
+                byShard.put(key, shardChanges);
+            }
+            shardChanges.put(change.getKey(), change.getValue());
+        }
+        int pruned = 0;
+        for (final Map.Entry<String, Map<String, Long>> entry : byShard.entrySet()) {
+            final int n = update(entry.getKey(), entry.getValue());
+            if (n > 0) {
+                pruned += n;
+            }
+        }
+        return pruned;
+    }
+
+
+    /**
+     * Collects the IDs of all live tickets in the index, after writing pending changes and pruning the entries of
+     * expired tickets along the way.
+     *
+     * @param ids Collection to which live ticket IDs are added.
+     *
+     * @return Number of expired entries pruned from the index.
+     */
+    public int collect(final Collection<String> ids) {
+        int pruned = flush();
+        final List<String> keys = new ArrayList<String>(this.shards);
+        for (int i = 0; i < this.shards; i++) {
+            keys.add(this.keyPrefix + i);
+        }
+        final long now = System.currentTimeMillis();
+        final Map<String, Object> values = this.client.getBulk(keys);
+        for (final Map.Entry<String, Object> entry : values.entrySet()) {
+            final Map<String, Long> shard = castShard(entry.getValue());
+            boolean stale = false;
+            for (final Map.Entry<String, Long> item : shard.entrySet()) {
+                if (item.getValue() > now) {
+                    ids.add(item.getKey());
+                } else {
+                    stale = true;
+                }
+            }
+            if (stale) {
+                final Set<String> live = new HashSet<String>();
+                final int n = update(entry.getKey(), Collections.<String, Long>emptyMap(), live);
+                ids.addAll(live);
+                if (n > 0) {
+                    pruned += n;
+                }
+            }
+        }
+        return pruned;
+    }
+
+
+    private int update(final String key, final Map<String, Long> changes) {
+        return update(key, changes, new HashSet<String>());
+    }
+
+
+    /**
+     * Applies a batch of changes, plus pruning of expired entries, to a shard.
+     *
+     * @param key Shard key.
+     * @param changes Ticket IDs to add, mapped to their expiration time, or to remove, mapped to null.
+     * @param refreshed Collection to which the IDs of stale entries of live tickets are added.
+     *
+     * @return Number of pruned entries or -1 on failure.
+     */
+    private int update(final String key, final Map<String, Long> changes, final Set<String> refreshed) {
+        try {
+            for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+                final CASValue<Object> current = this.client.gets(key);
+                final Map<String, Long> shard;
+                if (current == null) {
+                    if (!hasAdditions(changes)) {
+                        return 0;
+                    }
+                    shard = new HashMap<String, Long>();
+                } else {
+                    shard = new HashMap<String, Long>(castShard(current.getValue()));
+                }
+                refreshed.clear();
+                final int pruned = prune(shard, changes.keySet(), refreshed);
+                boolean changed = pruned > 0 || !refreshed.isEmpty();
+                int dropped = 0;
+                for (final Map.Entry<String, Long> change : changes.entrySet()) {
+                    if (change.getValue() == null) {
+                        changed |= shard.remove(change.getKey()) != null;
+                    } else if (shard.containsKey(change.getKey()) || shard.size() < this.maxShardEntries) {
+                        shard.put(change.getKey(), change.getValue());
+                        changed = true;
+                    } else {
+                        dropped++;
+                    }
+                }
+                if (dropped > 0) {
+                    logger.warn("Index shard {} is full; {} tickets were not indexed. Raise the number of shards.",
+                            key, dropped);
+                }
+                if (!changed) {
+                    return 0;
+                }
+                if (current == null) {
+                    if (this.client.add(key, 0, shard).get()) {
+                        return pruned;
+                    }
+                } else if (this.client.cas(key, current.getCas(), 0, shard, this.client.getTranscoder())
+                        == CASResponse.OK) {
+                    return pruned;
+                }
+            }
+            logger.warn("Gave up updating index shard {} after {} attempts.", key, MAX_CAS_ATTEMPTS);
+        } catch (final InterruptedException e) {
+            logger.warn("Interrupted while updating index shard {}.", key);
+            Thread.currentThread().interrupt();
+        } catch (final Exception e) {
+            logger.error("Failed updating index shard {}", key, e);
+        }
+        return -1;
+    }
+
+
+    /**
+     * Removes the entries of expired tickets from a shard, and moves the expiration time of stale entries of
+     * tickets that still exist in memcached one TTL ahead.
+     *
+     * @param shard Mutable shard contents.
+     * @param exclude IDs of the tickets being updated, which are neither pruned nor refreshed.
+     * @param refreshed Collection to which the IDs of refreshed entries are added.
+     *
+     * @return Number of entries pruned.
+     */
+    private int prune(final Map<String, Long> shard, final Set<String> exclude, final Set<String> refreshed) {
+        final long now = System.currentTimeMillis();
+        final List<String> stale = new ArrayList<String>();
+        for (final Map.Entry<String, Long> entry : shard.entrySet()) {
+            if (entry.getValue() <= now && !exclude.contains(entry.getKey())) {
+                stale.add(entry.getKey());
+            }
+        }
+        if (stale.isEmpty()) {
+            return 0;
+        }
+        final Map<String, Object> live = this.client.getBulk(stale);
+        int pruned = 0;
+        for (final String id : stale) {
+            if (live.get(id) instanceof Ticket) {
+                shard.put(id, this.ttl > 0 ? now + this.ttl : Long.MAX_VALUE);
+                refreshed.add(id);
+            } else {
+                shard.remove(id);
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
+
+    private static boolean hasAdditions(final Map<String, Long> changes) {
+        for (final Long expiresAt : changes.values()) {
+            if (expiresAt != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private String shardKey(final String ticketId) {
+        return this.keyPrefix + ((ticketId.hashCode() & Integer.MAX_VALUE) % this.shards);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Long> castShard(final Object value) {
+        return (Map<String, Long>) value;
+    }
+}
@@ -32,6 +32,7 @@ import com.esotericsoftware.kryo.serialize.DateSerializer;
 import com.esotericsoftware.kryo.serialize.FieldSerializer;
 import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.Transcoder;
+import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.ImmutableAuthentication;
 import org.jasig.cas.authentication.MutableAuthentication;
 import org.jasig.cas.authentication.principal.SamlService;
@@ -39,6 +40,7 @@ import org.jasig.cas.authentication.principal.SimplePrincipal;
 import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
 import org.jasig.cas.ticket.ServiceTicketImpl;
 import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.TicketUsage;
 import org.jasig.cas.ticket.registry.support.kryo.serial.HardTimeoutExpirationPolicySerializer;
 import org.jasig.cas.ticket.registry.support.kryo.serial.ImmutableAuthenticationSerializer;
 import org.jasig.cas.ticket.registry.support.kryo.serial.MultiTimeUseOrTimeoutExpirationPolicySerializer;
@@ -60,6 +62,12 @@ import org.slf4j.LoggerFactory;
 /**
  * {@link net.spy.memcached.MemcachedClient} transcoder implementation based on Kryo fast serialization framework
  * suited for efficient serialization of tickets.
+ * <p>
+ * Tickets are encoded field by field, so tickets encoded by a CAS version whose ticket classes have other fields
+ * cannot be decoded. In particular, tickets written before 3.5.2, which held ticket usage in separate fields rather
+ * than in a {@link TicketUsage}, are unreadable after an upgrade: flush memcached when upgrading, which ends
+ * existing sessions. Java serialization, used by the default transcoder, reads tickets of earlier versions.
+ * </p>
  *
  * @author Marvin S. Addison
  * @version $Revision: $
@@ -132,6 +140,10 @@ public class KryoTranscoder implements Transcoder<Object> {
                 new FieldSerializer(kryo, TicketGrantingTicketExpirationPolicy.class));
         kryo.register(TimeoutExpirationPolicy.class, new TimeoutExpirationPolicySerializer(fieldHelper));
 
+        // Types added since are registered last, in order, so that the types above keep their class IDs
+        kryo.register(Authentication[].class);
+        kryo.register(TicketUsage.class);
+
         // Register other types
         if (serializerMap != null) {
             for (final Class<?> clazz : serializerMap.keySet()) {
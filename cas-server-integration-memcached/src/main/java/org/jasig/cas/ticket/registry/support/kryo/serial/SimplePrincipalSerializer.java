@@ -22,10 +22,12 @@ import java.nio.ByteBuffer;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.serialize.SimpleSerializer;
+import org.jasig.cas.authentication.principal.ImmutableAttributeMap;
 import org.jasig.cas.authentication.principal.SimplePrincipal;
 
 /**
- * Serializer for {@link SimplePrincipal} class.
+ * Serializer for {@link SimplePrincipal} class. Attributes are read back as their canonical
+ * {@link ImmutableAttributeMap}, shared with other principals with the same attributes.
  *
  * @author Marvin S. Addison
  * @version $Revision: $
@@ -48,6 +50,6 @@ public final class SimplePrincipalSerializer extends SimpleSerializer<SimplePrin
     public SimplePrincipal read(final ByteBuffer buffer) {
         return new SimplePrincipal(
                 kryo.readObjectData(buffer, String.class),
-                attrSerializer.read(buffer));
+                ImmutableAttributeMap.intern(attrSerializer.read(buffer)));
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for the degraded mode of {@link MemCacheTicketRegistry} that does not require a memcached server.
+ *
+ * @since 3.5.2
+ */
+public class MemCacheTicketRegistryFallbackTests {
+
+    private MemcachedClient client;
+
+    private MemcachedNode node;
+
+    private DefaultTicketRegistry fallback;
+
+    private MemCacheTicketRegistry registry;
+
+    @Before
+    public void setUp() {
+        client = mock(MemcachedClient.class);
+        node = mock(MemcachedNode.class);
+        final NodeLocator locator = mock(NodeLocator.class);
+        when(client.getNodeLocator()).thenReturn(locator);
+        when(locator.getPrimary(anyString())).thenReturn(node);
+        fallback = new DefaultTicketRegistry();
+        registry = new MemCacheTicketRegistry(client, 36000, 2);
+        registry.setFallbackRegistry(fallback);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFallbackAndReconcile() throws Exception {
+        final TicketGrantingTicket ticket = mock(TicketGrantingTicket.class);
+        when(ticket.getId()).thenReturn("TGT-1-fallback");
+
+        when(node.isActive()).thenReturn(false);
+        registry.addTicket(ticket);
+        verify(client, never()).add(anyString(), anyInt(), any());
+        assertNotNull(registry.getTicket("TGT-1-fallback"));
+        assertEquals(1, fallback.getTickets().size());
+
+        final OperationFuture<Boolean> future = mock(OperationFuture.class);
+        when(future.get()).thenReturn(true);
+        when(client.set(anyString(), anyInt(), any())).thenReturn(future);
+        when(node.isActive()).thenReturn(true);
+        assertEquals(1, registry.reconcile());
+        assertTrue(fallback.getTickets().isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDeleteDefersUnreachableReplica() throws Exception {
+        final MemcachedNode other = mock(MemcachedNode.class);
+        final NodeLocator locator = client.getNodeLocator();
+        when(node.getSocketAddress()).thenReturn(new InetSocketAddress("localhost", 11211));
+        when(other.getSocketAddress()).thenReturn(new InetSocketAddress("localhost", 11212));
+        when(locator.getPrimary("TGT-1-deleted~1")).thenReturn(other);
+        when(node.isActive()).thenReturn(true);
+        when(other.isActive()).thenReturn(false);
+        registry.setReplicaCount(2);
+
+        final OperationFuture<Boolean> future = mock(OperationFuture.class);
+        when(future.get()).thenReturn(true);
+        when(client.delete(anyString())).thenReturn(future);
+        assertTrue(registry.deleteTicket("TGT-1-deleted"));
+        verify(client, never()).delete("TGT-1-deleted~1");
+        verify(client).set(eq("TGT-1-deleted"), anyInt(), eq("cas:deleted"));
+
+        when(other.isActive()).thenReturn(true);
+        registry.reconcile();
+        verify(client).delete("TGT-1-deleted~1");
+        registry.reconcile();
+        verify(client, times(1)).delete("TGT-1-deleted~1");
+
+        // A stale replica that is still present is hidden by the tombstone
+        final Map<String, Object> replicas = new HashMap<String, Object>();
+        replicas.put("TGT-1-deleted", "cas:deleted");
+        replicas.put("TGT-1-deleted~1", mock(TicketGrantingTicket.class));
+        when(client.getBulk(any(Collection.class))).thenReturn(replicas);
+        assertNull(registry.getTicket("TGT-1-deleted"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConsumeTombstonesAllReplicas() throws Exception {
+        final MemcachedNode other = mock(MemcachedNode.class);
+        final NodeLocator locator = client.getNodeLocator();
+        when(node.getSocketAddress()).thenReturn(new InetSocketAddress("localhost", 11211));
+        when(other.getSocketAddress()).thenReturn(new InetSocketAddress("localhost", 11212));
+        when(locator.getPrimary("ST-1-consumed~1")).thenReturn(other);
+        when(node.isActive()).thenReturn(true);
+        when(other.isActive()).thenReturn(false);
+        registry.setReplicaCount(2);
+
+        final ServiceTicket ticket = mock(ServiceTicket.class);
+        when(client.gets("ST-1-consumed")).thenReturn(new CASValue<Object>(1L, ticket));
+        when(client.cas(eq("ST-1-consumed"), eq(1L), eq(2), eq("cas:deleted"), any(Transcoder.class)))
+                .thenReturn(CASResponse.OK);
+        assertSame(ticket, registry.consumeTicket("ST-1-consumed"));
+        verify(client, never()).gets("ST-1-consumed~1");
+        verify(client).set(eq("ST-1-consumed"), eq(2), eq("cas:deleted"));
+
+        // Another caller finds the tombstone, and the unreachable replica is not read once its node is back
+        when(client.gets("ST-1-consumed")).thenReturn(new CASValue<Object>(2L, "cas:deleted"));
+        when(client.gets("ST-1-consumed~1")).thenReturn(new CASValue<Object>(1L, ticket));
+        when(other.isActive()).thenReturn(true);
+        assertNull(registry.consumeTicket("ST-1-consumed"));
+        verify(client, never()).gets("ST-1-consumed~1");
+        verify(client, times(1)).cas(anyString(), anyLong(), anyInt(), any(), any(Transcoder.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConsumeDeletesSingleReplica() throws Exception {
+        final MemCacheTicketRegistry registry = new MemCacheTicketRegistry(client, 36000, 2);
+        final ServiceTicket ticket = mock(ServiceTicket.class);
+        when(client.get("ST-1-consumed")).thenReturn(ticket);
+        final OperationFuture<Boolean> future = mock(OperationFuture.class);
+        when(future.get()).thenReturn(true, false);
+        when(client.delete("ST-1-consumed")).thenReturn(future);
+
+        assertSame(ticket, registry.consumeTicket("ST-1-consumed"));
+        // Another caller's delete finds nothing
+        assertNull(registry.consumeTicket("ST-1-consumed"));
+        verify(client, never()).gets(anyString());
+        verify(client, never()).set(anyString(), anyInt(), any());
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.Collection;
 
 import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Before;
@@ -67,7 +68,8 @@ public class MemCacheTicketRegistryTests {
     public static Collection<Object[]> getTestParameters() throws Exception {
         return Arrays.asList(
           new Object[] {"testCase1", false},
-          new Object[] {"testCase2", true}
+          new Object[] {"testCase2", true},
+          new Object[] {"testCase3", false}
         );
     }
 
@@ -110,6 +112,46 @@ public class MemCacheTicketRegistryTests {
         Assert.assertNull((ServiceTicket) registry.getTicket(id));
     }
 
+    @Test
+    public void testTicketCountsAndIndex() throws Exception {
+        // Only applies to registries configured with ticket counters
+        Assume.assumeTrue(registry.serviceTicketCount() != Integer.MIN_VALUE);
+        final String id = "ST-1234567890ABCDEFGHIJKL-count";
+        final ServiceTicket ticket = mock(ServiceTicket.class, withSettings().serializable());
+        when(ticket.getId()).thenReturn(id);
+        final int before = registry.serviceTicketCount();
+        registry.addTicket(ticket);
+        Assert.assertEquals(before + 1, registry.serviceTicketCount());
+        boolean found = false;
+        for (final Ticket t : registry.getTickets()) {
+            if (id.equals(t.getId())) {
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+        Assert.assertTrue(registry.deleteTicket(id));
+        Assert.assertEquals(before, registry.serviceTicketCount());
+    }
+
+    @Test
+    public void testIndexOutlivesUpdatedTicketExpiry() throws Exception {
+        // Only applies to registries configured with the ticket index
+        Assume.assumeTrue(registry.serviceTicketCount() != Integer.MIN_VALUE);
+        final String id = "ST-1234567890ABCDEFGHIJKL-update";
+        final ServiceTicket ticket = mock(ServiceTicket.class, withSettings().serializable());
+        when(ticket.getId()).thenReturn(id);
+        final int before = registry.serviceTicketCount();
+        registry.addTicket(ticket);
+        // Updates restart the 2 second TTL, so the ticket outlives the expiry recorded in the index
+        Thread.sleep(1200);
+        registry.updateTicket(ticket);
+        Thread.sleep(1200);
+        Assert.assertNotNull(registry.getTicket(id));
+        Assert.assertEquals(before + 1, registry.serviceTicketCount());
+        Assert.assertTrue(registry.deleteTicket(id));
+        Assert.assertEquals(before, registry.serviceTicketCount());
+    }
+
     private boolean isMemcachedListening() {
         Socket socket = null;
         try {
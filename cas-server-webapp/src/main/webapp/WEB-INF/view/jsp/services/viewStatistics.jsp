@@ -90,13 +90,83 @@
     </tbody>
 </table>
 
-<h2>Performance Statistics</h2>
+<h2>Service Usage</h2>
+<table width="800">
+    <thead>
+        <tr>
+            <th>Service</th>
+            <th>Service Tickets</th>
+            <th>Validations</th>
+            <th>Failed Validations</th>
+            <th>Proxy Granting Tickets</th>
+            <th>Denied</th>
+        </tr>
+    </thead>
+    <tbody>
+    <c:forEach items="${serviceUsage}" var="usage">
+        <tr>
+            <td><a href="edit.html?id=${usage.id}"><c:out value="${usage.name}" /></a></td>
+            <td>${usage.serviceTicketsGranted}</td>
+            <td>${usage.validationsSucceeded}</td>
+            <td>${usage.validationsFailed}</td>
+            <td>${usage.proxyGrantingTicketsGranted}</td>
+            <td>${usage.accessDenied}</td>
+        </tr>
+    </c:forEach>
+    </tbody>
+</table>
 
-<c:forEach items="${graphingStatisticAppenders}" var="appender">
-<h3>${appender.name}</h3>
+<h3>Most Rejected Unregistered Services</h3>
+<table width="800">
+    <thead>
+        <tr>
+            <th>Service</th>
+            <th>Rejections (at most)</th>
+            <th>Overestimated By (at most)</th>
+        </tr>
+    </thead>
+    <tbody>
+    <c:forEach items="${unregisteredServices}" var="counter">
+        <tr>
+            <td><c:out value="${counter.item}" /></td>
+            <td>${counter.count}</td>
+            <td>${counter.error}</td>
+        </tr>
+    </c:forEach>
+    </tbody>
+</table>
 
-<img src="${appender.chartGenerator.chartUrl}" alt="${appender.name}" />
+<h2>Performance Statistics</h2>
+<p>Latencies recorded over the last few minutes.</p>
 
+<c:forEach items="${latencyMetrics}" var="metric">
+<h3><c:out value="${metric.key}" /></h3>
+<table width="800">
+    <thead>
+        <tr>
+            <th>Name</th>
+            <th>Count</th>
+            <th>Mean (ms)</th>
+            <th>50% (ms)</th>
+            <th>99% (ms)</th>
+            <th>99.9% (ms)</th>
+            <th>Max (ms)</th>
+        </tr>
+    </thead>
+    <tbody>
+    <c:forEach items="${metric.value}" var="entry">
+        <tr>
+            <td><c:out value="${entry.key}" /></td>
+            <td>${entry.value.count}</td>
+            <td><fmt:formatNumber value="${entry.value.mean / 1000000}" maxFractionDigits="3" /></td>
+            <td><fmt:formatNumber value="${entry.value.median / 1000000}" maxFractionDigits="3" /></td>
+            <td><fmt:formatNumber value="${entry.value.percentile99 / 1000000}" maxFractionDigits="3" /></td>
+            <td><fmt:formatNumber value="${entry.value.percentile999 / 1000000}" maxFractionDigits="3" /></td>
+            <td><fmt:formatNumber value="${entry.value.max / 1000000}" maxFractionDigits="3" /></td>
+        </tr>
+    </c:forEach>
+    </tbody>
+</table>
 </c:forEach>
 
 <%@include file="includes/bottom.jsp" %>
\ No newline at end of file